@@ -0,0 +1,36 @@
+-- Migrates an existing legacy Beehive database to the pooled identifier generators of the
+-- '*-LegacyBeehive-Pooled' persistence units (see WEB-INF/classes/META-INF/persistence.xml).
+--
+-- Creates the generator table and starts each generator above the largest identifier already
+-- issued. The pooled generators hand out blocks of 50 identifiers that end at the stored
+-- value, hence the stored value is the current maximum plus the block size. The script can
+-- be run again, e.g. after rows have been inserted through AUTO_INCREMENT, and only ever
+-- moves the generators forward.
+--
+-- The AUTO_INCREMENT attributes of the key columns are left in place so that existing tools
+-- keep working. Note however that rows inserted through AUTO_INCREMENT while the account
+-- manager uses the pooled units can take identifiers from a block the account manager has
+-- already reserved. Run the account manager as the only writer of these tables, or re-run
+-- this script after other writes.
+--
+-- The 'controller' table is created by Beehive and is not part of
+-- CreateLegacyBeehiveSchema.sql.
+
+CREATE TABLE IF NOT EXISTS `identifier_generator` (
+  `sequence_name` VARCHAR(255) NOT NULL,
+  `next_val` BIGINT(20) NOT NULL,
+  PRIMARY KEY (`sequence_name`))
+ENGINE = InnoDB
+DEFAULT CHARACTER SET = utf8;
+
+INSERT INTO identifier_generator (sequence_name, next_val)
+  SELECT 'account', COALESCE(MAX(oid), 0) + 50 FROM account
+  ON DUPLICATE KEY UPDATE next_val = GREATEST(next_val, VALUES(next_val));
+
+INSERT INTO identifier_generator (sequence_name, next_val)
+  SELECT 'user', COALESCE(MAX(oid), 0) + 50 FROM user
+  ON DUPLICATE KEY UPDATE next_val = GREATEST(next_val, VALUES(next_val));
+
+INSERT INTO identifier_generator (sequence_name, next_val)
+  SELECT 'controller', COALESCE(MAX(oid), 0) + 50 FROM controller
+  ON DUPLICATE KEY UPDATE next_val = GREATEST(next_val, VALUES(next_val));
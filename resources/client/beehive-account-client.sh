@@ -74,10 +74,11 @@ fi
 
 # OpenRemote libs.
 CLASSPATH=BeehiveAccountClient-2.0.0.jar
-CLASSPATH="$CLASSPATH:lib/object-model-0.2.0_WIP.jar"
+CLASSPATH="$CLASSPATH:lib/or-object-model-0.2.2.jar"
 CLASSPATH="$CLASSPATH:lib/openremote-security-0.3.1.jar"
 
 # Logging
+CLASSPATH="$CLASSPATH:lib/openremote-logging-0.1.0.jar"
 CLASSPATH="$CLASSPATH:lib/slf4j-api-1.7.12.jar"
 
 # FlexJSON lib for JSON processing
@@ -96,6 +97,7 @@ CLASSPATH="$CLASSPATH:lib/jersey-guava-2.6.jar"
 
 # Java Inject API and Glassfish HK2 dependency injection framework.
 CLASSPATH="$CLASSPATH:lib/javax.inject.jar"
+CLASSPATH="$CLASSPATH:lib/javax.annotation-api-1.2.jar"
 CLASSPATH="$CLASSPATH:lib/hk2-api-2.2.0.jar"
 CLASSPATH="$CLASSPATH:lib/hk2-locator-2.2.0.jar"
 CLASSPATH="$CLASSPATH:lib/hk2-utils-2.2.0.jar"
@@ -0,0 +1,280 @@
+/*
+ * OpenRemote, the Home of the Digital Home.
+ * Copyright 2008-2015, OpenRemote Inc.
+ *
+ * See the contributors.txt file in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.openremote.beehive.account.model.rest;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.StringReader;
+import java.lang.reflect.Field;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import org.openremote.base.Defaults;
+import org.openremote.model.Controller;
+import org.openremote.model.persistence.jpa.RelationalAccount;
+import org.openremote.model.persistence.jpa.RelationalController;
+
+import org.openremote.beehive.account.model.CustomerFulfillment;
+import org.openremote.beehive.account.model.UserRegistration;
+
+
+/**
+ * JMH micro-benchmarks for the JSON serialization and deserialization paths of user
+ * registrations and customer fulfillments: the JAX-RS readers and writers, and the model
+ * objects' <tt>toJSONString()</tt> implementations. User registrations are read with both the
+ * default and the streaming registration reader. <p>
+ *
+ * The payloads are taken from the unit test resources: the user registration documents under
+ * 'resources/test/user-registration' are the small payloads, the customer fulfillment under
+ * 'resources/test/fulfillment' the typical payload. The many-controller payloads are derived
+ * from the same fulfillment document with additional controllers. <p>
+ *
+ * Run with the Ant 'benchmark' target, which includes the JMH GC profiler to report the
+ * allocation rate per operation along with the throughput.
+ *
+ * @author Juha Lindfors
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+
+public class JSONSerializationBenchmark
+{
+
+  // Constants ------------------------------------------------------------------------------------
+
+  /**
+   * System property pointing to the project's resource directory, as with unit tests: {@value}
+   */
+  public static final String RESOURCES_DIR_PROPERTY = "openremote.project.resources.dir";
+
+
+
+  // Benchmarks -----------------------------------------------------------------------------------
+
+  @Benchmark public UserRegistration readUserRegistration(RegistrationPayload payload)
+  {
+    return new UserRegistrationReader().readFrom(
+        UserRegistration.class, null, null, null, null, payload.input()
+    );
+  }
+
+  @Benchmark public UserRegistration readUserRegistrationStreaming(RegistrationPayload payload)
+  {
+    return new StreamingUserRegistrationReader().readFrom(
+        UserRegistration.class, null, null, null, null, payload.input()
+    );
+  }
+
+  @Benchmark public int writeUser(RegistrationPayload payload, Sink sink) throws IOException
+  {
+    new UserWriter().writeTo(
+        payload.registration, UserRegistration.class, null, null, null, null, sink.reset()
+    );
+
+    return sink.out.size();
+  }
+
+  @Benchmark public String registrationToJSONString(RegistrationPayload payload)
+  {
+    return payload.registration.toJSONString();
+  }
+
+  @Benchmark public CustomerFulfillment readCustomerFulfillment(FulfillmentPayload payload)
+  {
+    return new CustomerFulfillmentReader().readFrom(
+        CustomerFulfillment.class, null, null, null, null, payload.input()
+    );
+  }
+
+  @Benchmark public int writeCustomerFulfillment(FulfillmentPayload payload, Sink sink)
+      throws IOException
+  {
+    new CustomerFulfillmentWriter().writeTo(
+        payload.fulfillment, CustomerFulfillment.class, null, null, null, null, sink.reset()
+    );
+
+    return sink.out.size();
+  }
+
+  @Benchmark public String fulfillmentToJSONString(FulfillmentPayload payload)
+  {
+    return payload.fulfillment.toJSONString();
+  }
+
+
+
+  // Private Class Methods ------------------------------------------------------------------------
+
+  private static byte[] loadResource(String dir, String name) throws IOException
+  {
+    File resources = new File(System.getProperty(RESOURCES_DIR_PROPERTY, "resources"), "test");
+    File file = new File(new File(resources, dir), name);
+
+    InputStream in = new FileInputStream(file);
+    ByteArrayOutputStream out = new ByteArrayOutputStream((int)file.length());
+
+    try
+    {
+      byte[] buffer = new byte[4096];
+
+      for (int len = in.read(buffer); len != -1; len = in.read(buffer))
+      {
+        out.write(buffer, 0, len);
+      }
+    }
+
+    finally
+    {
+      in.close();
+    }
+
+    return out.toByteArray();
+  }
+
+  /**
+   * Returns a fulfillment with the given number of controllers that have a database identifier,
+   * as the writers expect from controllers loaded from the database.
+   */
+  private static CustomerFulfillment createFulfillment(UserRegistration registration, int count)
+      throws Exception
+  {
+    CustomerFulfillment fulfillment = new CustomerFulfillment(registration, null);
+
+    Field id = RelationalController.class.getDeclaredField("id");
+    id.setAccessible(true);
+
+    RelationalAccount account = new RelationalAccount();
+
+    for (int i = 0; i < count; ++i)
+    {
+      Controller controller = new Controller();
+      controller.addMacAddress(String.format("00:00:00:00:%02X:%02X", i >> 8, i & 0xFF));
+
+      RelationalController persistent = new RelationalController(account, controller);
+      id.set(persistent, Long.valueOf(i + 1));
+
+      fulfillment.add(persistent);
+    }
+
+    return fulfillment;
+  }
+
+
+
+  // Nested Classes -------------------------------------------------------------------------------
+
+  /**
+   * Small payloads: user registration documents without controllers.
+   */
+  @State(Scope.Benchmark)
+  public static class RegistrationPayload
+  {
+    @Param({ "user-registration.json", "user-registration-characters.json" })
+    public String document;
+
+    private byte[] json;
+
+    private UserRegistration registration;
+
+    @Setup public void load() throws Exception
+    {
+      json = loadResource("user-registration", document);
+
+      registration = new UserRegistrationReader().readFrom(
+          UserRegistration.class, null, null, null, null, input()
+      );
+    }
+
+    private InputStream input()
+    {
+      return new ByteArrayInputStream(json);
+    }
+  }
+
+  /**
+   * Typical (a single controller, as in the test resource) and many-controller customer
+   * fulfillment payloads.
+   */
+  @State(Scope.Benchmark)
+  public static class FulfillmentPayload
+  {
+    @Param({ "1", "10", "100" })
+    public int controllers;
+
+    private byte[] json;
+
+    private CustomerFulfillment fulfillment;
+
+    @Setup public void load() throws Exception
+    {
+      byte[] typical = loadResource("fulfillment", "fulfillment.json");
+
+      CustomerFulfillment template = (CustomerFulfillment)new CustomerFulfillment.FulfillmentTransformer()
+          .read(new StringReader(new String(typical, Defaults.UTF8)));
+
+      fulfillment = createFulfillment(template, controllers);
+
+      json = (controllers == 1)
+          ? typical
+          : fulfillment.toJSONString().getBytes(Defaults.UTF8);
+    }
+
+    private InputStream input()
+    {
+      return new ByteArrayInputStream(json);
+    }
+  }
+
+  /**
+   * Per-thread output buffer for the writer benchmarks, reused so that buffer growth is not
+   * included in the measured allocation rate.
+   */
+  @State(Scope.Thread)
+  public static class Sink
+  {
+    private ByteArrayOutputStream out = new ByteArrayOutputStream(64 * 1024);
+
+    private ByteArrayOutputStream reset()
+    {
+      out.reset();
+
+      return out;
+    }
+  }
+}
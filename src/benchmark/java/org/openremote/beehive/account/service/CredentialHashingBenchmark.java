@@ -0,0 +1,97 @@
+/*
+ * OpenRemote, the Home of the Digital Home.
+ * Copyright 2008-2015, OpenRemote Inc.
+ *
+ * See the contributors.txt file in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.openremote.beehive.account.service;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import org.openremote.base.Defaults;
+
+
+/**
+ * JMH micro-benchmark of the SCRYPT credential hashing cost per parameter set. Reports the
+ * average time of a single hash, which together with the hashing thread count bounds the
+ * registration throughput of the service (see {@link CredentialHashing}). The results can be
+ * compared to the parameters the service selects at startup for a given target latency. <p>
+ *
+ * Run with the Ant 'benchmark' target, for example with
+ * -Dbenchmark.args="CredentialHashingBenchmark" to leave out the GC profiler.
+ *
+ * @author Juha Lindfors
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+
+public class CredentialHashingBenchmark
+{
+
+  // Benchmarks -----------------------------------------------------------------------------------
+
+  @Benchmark public byte[] hash(HashingParameters parameters)
+  {
+    return CredentialHashing.hash(parameters.credentials, parameters.parameters);
+  }
+
+
+
+  // Nested Classes -------------------------------------------------------------------------------
+
+  /**
+   * SCRYPT parameter sets from the service minimum cost up to the maximum cost, at the
+   * service block size, and with increased block size and parallelization for comparison.
+   */
+  @State(Scope.Benchmark)
+  public static class HashingParameters
+  {
+    @Param({ "16384", "32768", "65536", "131072" })
+    public int cost;
+
+    @Param({ "8", "16" })
+    public int blockSize;
+
+    @Param({ "1", "2" })
+    public int parallelization;
+
+    private CredentialHashing.Parameters parameters;
+
+    private byte[] credentials;
+
+    @Setup public void init()
+    {
+      parameters = new CredentialHashing.Parameters(cost, blockSize, parallelization);
+      credentials = "correct horse battery staple".getBytes(Defaults.UTF8);
+    }
+  }
+}
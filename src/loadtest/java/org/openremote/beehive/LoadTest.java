@@ -0,0 +1,536 @@
+/*
+ * OpenRemote, the Home of the Digital Home.
+ * Copyright 2008-2015, OpenRemote Inc.
+ *
+ * See the contributors.txt file in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.openremote.beehive;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.net.URL;
+import java.security.Security;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.ws.rs.core.Response;
+
+import org.HdrHistogram.ConcurrentHistogram;
+import org.HdrHistogram.Histogram;
+
+import org.openremote.base.Defaults;
+import org.openremote.model.Controller;
+import org.openremote.model.Model;
+import org.openremote.security.SecurityProvider;
+
+import org.openremote.beehive.account.client.AccountManagerClient;
+import org.openremote.beehive.account.model.CustomerFulfillment;
+import org.openremote.beehive.account.model.UserRegistration;
+
+
+/**
+ * End-to-end load generator for the account manager service. <p>
+ *
+ * Deploys the service to the embedded {@link Tomcat} test fixture (see the Ant 'load-test'
+ * target, which configures the deployed service with an in-memory H2 database) and drives a
+ * configurable mix of account creation, customer fulfillment, account retrieval and account
+ * removal requests through a number of concurrent worker threads, each with its own
+ * {@link AccountManagerClient} instance. <p>
+ *
+ * Request latencies are recorded per operation type into HdrHistogram histograms once the
+ * warm-up period has passed. At the end of the run the throughput, p50/p99/p99.9 latencies
+ * and the full HdrHistogram percentile distribution of each operation type are printed to the
+ * standard output, and optionally written as .hgrm files to a report directory. <p>
+ *
+ * The load is configured with system properties:
+ *
+ * <ul>
+ *   <li>{@value #THREADS_PROPERTY}: number of concurrent clients (default 16)</li>
+ *   <li>{@value #DURATION_PROPERTY}: measured duration in seconds (default 60)</li>
+ *   <li>{@value #WARMUP_PROPERTY}: warm-up duration in seconds (default 10)</li>
+ *   <li>{@value #MIX_PROPERTY}: relative operation weights, for example
+ *       'create:40,fulfillment:20,get:30,delete:10' (the default)</li>
+ *   <li>{@value #REPORT_DIR_PROPERTY}: optional directory for .hgrm histogram files</li>
+ * </ul>
+ *
+ * @author Juha Lindfors
+ */
+public class LoadTest
+{
+
+  // Constants ------------------------------------------------------------------------------------
+
+  public static final String THREADS_PROPERTY = "openremote.loadtest.threads";
+
+  public static final String DURATION_PROPERTY = "openremote.loadtest.duration";
+
+  public static final String WARMUP_PROPERTY = "openremote.loadtest.warmup";
+
+  public static final String MIX_PROPERTY = "openremote.loadtest.mix";
+
+  public static final String REPORT_DIR_PROPERTY = "openremote.loadtest.report.dir";
+
+  public static final String DEFAULT_MIX = "create:40,fulfillment:20,get:30,delete:10";
+
+  private static final String ADMIN_USERNAME = "admin";
+
+  private static final byte[] ADMIN_CREDENTIALS = "admin".getBytes(Defaults.UTF8);
+
+  private static final byte[] USER_CREDENTIALS = "loadtestpassword".getBytes(Defaults.UTF8);
+
+  /**
+   * Latencies are recorded in nanoseconds and reported in microseconds.
+   */
+  private static final double REPORT_SCALING_RATIO = 1000.0;
+
+
+
+  // Class Members --------------------------------------------------------------------------------
+
+  public static void main(String... args) throws Exception
+  {
+    Security.addProvider(SecurityProvider.BC.getProviderInstance());
+
+    LoadTest test = new LoadTest(
+        Integer.getInteger(THREADS_PROPERTY, 16),
+        Integer.getInteger(DURATION_PROPERTY, 60),
+        Integer.getInteger(WARMUP_PROPERTY, 10),
+        parseMix(System.getProperty(MIX_PROPERTY, DEFAULT_MIX))
+    );
+
+    Tomcat tomcat = new Tomcat();
+
+    try
+    {
+      tomcat.start();
+
+      test.run(tomcat);
+    }
+
+    finally
+    {
+      tomcat.stop();
+    }
+
+    test.report(System.out);
+
+    String reportDir = System.getProperty(REPORT_DIR_PROPERTY);
+
+    if (reportDir != null)
+    {
+      test.writeHistograms(new File(reportDir));
+    }
+  }
+
+  private static Map<Operation, Integer> parseMix(String mix)
+  {
+    Map<Operation, Integer> weights = new EnumMap<Operation, Integer>(Operation.class);
+
+    for (String entry : mix.split(","))
+    {
+      String[] pair = entry.trim().split(":");
+
+      if (pair.length != 2)
+      {
+        throw new IllegalArgumentException("Invalid operation mix entry '" + entry + "'.");
+      }
+
+      weights.put(Operation.valueOf(pair[0].trim().toUpperCase()), Integer.parseInt(pair[1].trim()));
+    }
+
+    return weights;
+  }
+
+
+
+  // Instance Fields ------------------------------------------------------------------------------
+
+  private int threads;
+
+  private int duration;
+
+  private int warmup;
+
+  private Operation[] schedule;
+
+  private Map<Operation, Histogram> histograms = new EnumMap<Operation, Histogram>(Operation.class);
+
+  private Map<Operation, AtomicLong> errors = new EnumMap<Operation, AtomicLong>(Operation.class);
+
+  private volatile boolean recording = false;
+
+  private volatile boolean running = true;
+
+  private long measuredNanos;
+
+
+
+  // Constructors ---------------------------------------------------------------------------------
+
+  public LoadTest(int threads, int duration, int warmup, Map<Operation, Integer> mix)
+  {
+    this.threads = threads;
+    this.duration = duration;
+    this.warmup = warmup;
+
+    // expand the weights into a schedule workers pick random operations from...
+
+    List<Operation> list = new ArrayList<Operation>(100);
+
+    for (Map.Entry<Operation, Integer> weight : mix.entrySet())
+    {
+      for (int i = 0; i < weight.getValue(); ++i)
+      {
+        list.add(weight.getKey());
+      }
+    }
+
+    if (list.isEmpty())
+    {
+      throw new IllegalArgumentException("Operation mix has no operations.");
+    }
+
+    this.schedule = list.toArray(new Operation[list.size()]);
+
+    for (Operation op : Operation.values())
+    {
+      histograms.put(op, new ConcurrentHistogram(3));
+      errors.put(op, new AtomicLong());
+    }
+  }
+
+
+
+  // Public Instance Methods ----------------------------------------------------------------------
+
+  /**
+   * Runs the load against the given (started) Tomcat instance.
+   *
+   * @param tomcat    embedded Tomcat with the account manager service deployed
+   *
+   * @throws Exception  if the clients cannot be initialized
+   */
+  public void run(Tomcat tomcat) throws Exception
+  {
+    URL serviceRoot = new URL(
+        "https://localhost:" + Tomcat.DEFAULT_SECURE_CONNECTOR_PORT + Tomcat.DEFAULT_WEBAPP_CONTEXT
+    );
+
+    File trustStore = File.createTempFile("loadtest", ".truststore");
+    trustStore.deleteOnExit();
+
+    CountDownLatch done = new CountDownLatch(threads);
+
+    for (int i = 0; i < threads; ++i)
+    {
+      AccountManagerClient client = new AccountManagerClient(
+          serviceRoot, ADMIN_USERNAME, ADMIN_CREDENTIALS
+      );
+
+      if (i == 0)
+      {
+        client.createCertificateTrustStore(trustStore.toURI(), tomcat.getHttpsCertificate());
+      }
+
+      else
+      {
+        client.setCertificateTrustStore(trustStore.toURI());
+      }
+
+      Thread thread = new Thread(new Worker(i, client, done), "LoadTest-" + i);
+      thread.setDaemon(true);
+      thread.start();
+    }
+
+    System.out.println(
+        "Load test: " + threads + " clients, " + warmup + "s warm-up, " + duration + "s measured."
+    );
+
+    TimeUnit.SECONDS.sleep(warmup);
+
+    recording = true;
+    long start = System.nanoTime();
+
+    TimeUnit.SECONDS.sleep(duration);
+
+    recording = false;
+    measuredNanos = System.nanoTime() - start;
+
+    running = false;
+
+    done.await(30, TimeUnit.SECONDS);
+  }
+
+  /**
+   * Prints the throughput, latency percentiles and HdrHistogram percentile distribution of
+   * each operation type.
+   *
+   * @param out   output stream
+   */
+  public void report(PrintStream out)
+  {
+    double seconds = measuredNanos / 1E9;
+
+    out.println();
+    out.printf(
+        "%-12s %10s %8s %10s %10s %10s %10s%n",
+        "Operation", "Count", "Errors", "Ops/s", "p50 (us)", "p99 (us)", "p999 (us)"
+    );
+
+    for (Operation op : Operation.values())
+    {
+      Histogram histogram = histograms.get(op);
+
+      out.printf(
+          "%-12s %10d %8d %10.1f %10.1f %10.1f %10.1f%n",
+          op.name().toLowerCase(),
+          histogram.getTotalCount(),
+          errors.get(op).get(),
+          histogram.getTotalCount() / seconds,
+          histogram.getValueAtPercentile(50.0) / REPORT_SCALING_RATIO,
+          histogram.getValueAtPercentile(99.0) / REPORT_SCALING_RATIO,
+          histogram.getValueAtPercentile(99.9) / REPORT_SCALING_RATIO
+      );
+    }
+
+    for (Operation op : Operation.values())
+    {
+      Histogram histogram = histograms.get(op);
+
+      if (histogram.getTotalCount() == 0)
+      {
+        continue;
+      }
+
+      out.println();
+      out.println("Latency distribution of '" + op.name().toLowerCase() + "' (microseconds):");
+      out.println();
+
+      histogram.outputPercentileDistribution(out, REPORT_SCALING_RATIO);
+    }
+  }
+
+  /**
+   * Writes the HdrHistogram percentile distribution of each operation type to a
+   * '[operation].hgrm' file in the given directory, for plotting and comparing runs.
+   *
+   * @param dir   report directory
+   *
+   * @throws IOException  if writing the files fails
+   */
+  public void writeHistograms(File dir) throws IOException
+  {
+    dir.mkdirs();
+
+    for (Operation op : Operation.values())
+    {
+      PrintStream out = new PrintStream(
+          new FileOutputStream(new File(dir, op.name().toLowerCase() + ".hgrm")), false, "UTF-8"
+      );
+
+      try
+      {
+        histograms.get(op).outputPercentileDistribution(out, REPORT_SCALING_RATIO);
+      }
+
+      finally
+      {
+        out.close();
+      }
+    }
+  }
+
+
+
+  // Enums ----------------------------------------------------------------------------------------
+
+  public enum Operation
+  {
+    CREATE, FULFILLMENT, GET, DELETE
+  }
+
+
+
+  // Nested Classes -------------------------------------------------------------------------------
+
+  /**
+   * Issues requests with a single client until the load test is stopped. Retrievals and
+   * removals target accounts this worker has created earlier; if there are none the worker
+   * creates an account instead.
+   */
+  private class Worker implements Runnable
+  {
+    private int id;
+
+    private AccountManagerClient client;
+
+    private CountDownLatch done;
+
+    private Random random;
+
+    private List<String> usernames = new ArrayList<String>();
+
+    private long sequence = 0;
+
+    private Worker(int id, AccountManagerClient client, CountDownLatch done)
+    {
+      this.id = id;
+      this.client = client;
+      this.done = done;
+      this.random = new Random(id);
+    }
+
+    @Override public void run()
+    {
+      try
+      {
+        while (running)
+        {
+          Operation op = schedule[random.nextInt(schedule.length)];
+
+          if ((op == Operation.GET || op == Operation.DELETE) && usernames.isEmpty())
+          {
+            op = Operation.CREATE;
+          }
+
+          execute(op);
+        }
+      }
+
+      finally
+      {
+        done.countDown();
+      }
+    }
+
+    private void execute(Operation op)
+    {
+      String username;
+      boolean success = false;
+
+      long start = System.nanoTime();
+
+      try
+      {
+        switch (op)
+        {
+          case CREATE:
+
+            username = nextUsername();
+            success = isSuccess(client.create(createRegistration(username)));
+
+            if (success)
+            {
+              usernames.add(username);
+            }
+
+            break;
+
+          case FULFILLMENT:
+
+            username = nextUsername();
+            success = isSuccess(client.create(createFulfillment(username)));
+
+            if (success)
+            {
+              usernames.add(username);
+            }
+
+            break;
+
+          case GET:
+
+            username = usernames.get(random.nextInt(usernames.size()));
+            success = isSuccess(client.retrieveAccountInfo(username));
+
+            break;
+
+          default:
+
+            username = usernames.remove(usernames.size() - 1);
+            success = isSuccess(client.delete(username));
+
+            break;
+        }
+      }
+
+      catch (Model.ValidationException exception)
+      {
+        success = false;
+      }
+
+      catch (RuntimeException exception)
+      {
+        success = false;
+      }
+
+      long elapsed = System.nanoTime() - start;
+
+      if (recording)
+      {
+        histograms.get(op).recordValue(elapsed);
+
+        if (!success)
+        {
+          errors.get(op).incrementAndGet();
+        }
+      }
+    }
+
+    private boolean isSuccess(Response response)
+    {
+      try
+      {
+        return response.getStatusInfo().getFamily() == Response.Status.Family.SUCCESSFUL;
+      }
+
+      finally
+      {
+        response.close();
+      }
+    }
+
+    private String nextUsername()
+    {
+      return "loadtest-" + id + "-" + (sequence++) + "-" + Long.toHexString(System.nanoTime());
+    }
+
+    private UserRegistration createRegistration(String username) throws Model.ValidationException
+    {
+      return new UserRegistration(username, "loadtest@host.domain", USER_CREDENTIALS);
+    }
+
+    private CustomerFulfillment createFulfillment(String username)
+        throws Model.ValidationException
+    {
+      Controller controller = new Controller();
+      controller.addMacAddress(
+          String.format("02:00:00:%02X:%02X:%02X", id & 0xFF, (sequence >> 8) & 0xFF, sequence & 0xFF)
+      );
+
+      return new CustomerFulfillment(username, "loadtest@host.domain", USER_CREDENTIALS, controller);
+    }
+  }
+}
@@ -20,6 +20,7 @@
  */
 package org.openremote.beehive.account.client;
 
+import java.io.Closeable;
 import java.io.File;
 import java.io.FileInputStream;
 
@@ -32,15 +33,30 @@ import java.nio.charset.Charset;
 import java.security.KeyManagementException;
 import java.security.KeyStore;
 import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
 import java.security.cert.Certificate;
 
+import java.util.Iterator;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+
 import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLContextSpi;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLServerSocketFactory;
+import javax.net.ssl.SSLSessionContext;
+import javax.net.ssl.SSLSocketFactory;
+import javax.net.ssl.TrustManager;
 import javax.net.ssl.TrustManagerFactory;
 
+import javax.ws.rs.HttpMethod;
 import javax.ws.rs.client.Client;
 import javax.ws.rs.client.ClientBuilder;
 import javax.ws.rs.client.Entity;
 import javax.ws.rs.client.Invocation;
+import javax.ws.rs.client.InvocationCallback;
 import javax.ws.rs.client.WebTarget;
 import javax.ws.rs.core.MediaType;
 import javax.ws.rs.core.Response;
@@ -56,6 +72,7 @@ import org.openremote.security.TrustStore;
 
 import org.openremote.model.User;
 
+import org.openremote.beehive.account.model.BatchResult;
 import org.openremote.beehive.account.model.CustomerFulfillment;
 import org.openremote.beehive.account.model.UserRegistration;
 import org.slf4j.Logger;
@@ -71,9 +88,34 @@ import org.slf4j.LoggerFactory;
  * For examples on how to directly invoke corresponding operations against the service's HTTP REST
  * API with 'curl', refer to the examples in the documentation at http://www.openremote.org/x/vBJoAQ
  *
+ * A client instance builds its HTTP client and TLS context once, on first use, and reuses them
+ * for all subsequent operations. Connections to the service are therefore kept alive between
+ * operations and TLS sessions are resumed rather than renegotiated. The HTTP client is rebuilt
+ * only if the trust store or HTTPS protocol configuration of this client is changed. Responses
+ * returned by the operations should be closed by the caller so the underlying connection can
+ * be returned to the keep-alive pool. The number of pooled connections per host is controlled
+ * by the runtime's 'http.maxConnections' system property. <p>
+ *
+ * Instances are thread-safe and should be shared, and closed with {@link #close()} once no
+ * longer needed. <p>
+ *
+ * In addition to the blocking operations, each operation has an asynchronous variant that
+ * returns immediately with a {@link java.util.concurrent.Future} of a typed
+ * {@link AccountResult}, and optionally notifies a {@link javax.ws.rs.client.InvocationCallback}
+ * on completion. The asynchronous operations are executed by the HTTP client's own request
+ * threads so that a small number of caller threads can keep a large number of requests in
+ * flight. The number of concurrently pending requests is bounded by
+ * {@link #setMaxInFlightRequests(int)}; once the limit is reached the asynchronous operations
+ * block the caller until a pending request completes. Callbacks are run on the executor set
+ * with {@link #setCallbackExecutor(java.util.concurrent.Executor)}, or on the completing HTTP
+ * client thread if no executor has been set.
+ *
  * @see #create(org.openremote.beehive.account.model.UserRegistration)
  * @see #create(org.openremote.beehive.account.model.CustomerFulfillment)
  * @see #delete(String)
+ * @see #createAsync(org.openremote.beehive.account.model.UserRegistration)
+ * @see #deleteAsync(String)
+ * @see #createAll(java.util.Iterator)
  *
  * @author Juha Lindfors
  *
@@ -81,7 +123,7 @@ import org.slf4j.LoggerFactory;
  * TODO : document/link to client configuration API above.
  *
  */
-public class AccountManagerClient
+public class AccountManagerClient implements Closeable
 {
 
   // Constants ------------------------------------------------------------------------------------
@@ -127,6 +169,11 @@ public class AccountManagerClient
    */
   public static final Charset UTF8 = Charset.forName("UTF-8");
 
+  /**
+   * Default maximum number of concurrently pending asynchronous operations: {@value}
+   */
+  public static final int DEFAULT_MAX_IN_FLIGHT_REQUESTS = 256;
+
 
 
   // Class Members --------------------------------------------------------------------------------
@@ -157,8 +204,33 @@ public class AccountManagerClient
 
   private String httpsProtocolJcaName = null;
 
+  /**
+   * Precomputed value of the HTTP basic authentication header.
+   */
+  private String authorization;
+
+  /**
+   * HTTP client shared by all operations, built on first use.
+   */
+  private Client client = null;
+
+  /**
+   * Service root endpoint of the shared HTTP client.
+   */
+  private WebTarget serviceEndpoint = null;
+
+  private boolean closed = false;
+
+  /**
+   * Bounds the number of concurrently pending asynchronous operations.
+   */
+  private volatile Semaphore inFlightPermits = new Semaphore(DEFAULT_MAX_IN_FLIGHT_REQUESTS);
 
-  //private WebTarget serviceEndpoint;
+  /**
+   * Executor for asynchronous operation callbacks, or null to run callbacks on the completing
+   * HTTP client thread.
+   */
+  private volatile Executor callbackExecutor = null;
 
 
   // Constructors ---------------------------------------------------------------------------------
@@ -177,6 +249,9 @@ public class AccountManagerClient
 
     this.username = username;
     this.credentials = credentials;
+
+    this.authorization =
+        "Basic " + new String(Base64.encode((username + ":" + new String(credentials)).getBytes(UTF8)));
   }
 
 
@@ -188,7 +263,7 @@ public class AccountManagerClient
 
   public Response create(User user)
   {
-    WebTarget target = constructTargetBase(createClient()).path("users");
+    WebTarget target = getServiceEndpoint().path("users");
 
     Entity<String> jsonEntity = Entity.entity(user.toJSONString(), MediaType.APPLICATION_JSON);
 
@@ -197,7 +272,7 @@ public class AccountManagerClient
 
   public Response create(UserRegistration user)
   {
-    WebTarget target = constructTargetBase(createClient()).path("users");
+    WebTarget target = getServiceEndpoint().path("users");
 
     Entity<String> jsonEntity = Entity.entity(user.toJSONString(), MediaType.APPLICATION_JSON);
 
@@ -206,7 +281,7 @@ public class AccountManagerClient
 
   public Response create(CustomerFulfillment fulfillment)
   {
-    WebTarget target = constructTargetBase(createClient()).path("users");
+    WebTarget target = getServiceEndpoint().path("users");
 
     Entity<String> jsonEntity = Entity.entity(
         fulfillment.toJSONString(), CustomerFulfillment.JSON_HTTP_CONTENT_TYPE
@@ -217,7 +292,7 @@ public class AccountManagerClient
 
   public Response retrieveAccountInfo(String username)
   {
-    WebTarget target = constructTargetBase(createClient()).path("users/" + username + "/accounts");
+    WebTarget target = getServiceEndpoint().path("users/" + username + "/accounts");
 
     return sendGet(target);
   }
@@ -225,17 +300,203 @@ public class AccountManagerClient
 
   public Response delete(String username)
   {
-    WebTarget target = constructTargetBase(createClient()).path("users/" + username);
+    WebTarget target = getServiceEndpoint().path("users/" + username);
 
     return sendDelete(target);
   }
 
 
 
-  public AccountManagerClient setCertificateTrustStore(URI storeLocation)
+  /**
+   * Asynchronously creates a new user account.
+   *
+   * @param user    user registration
+   *
+   * @return  future result of the operation
+   */
+  public Future<AccountResult> createAsync(UserRegistration user)
+  {
+    return createAsync(user, null);
+  }
+
+  /**
+   * Asynchronously creates a new user account and notifies the given callback on completion.
+   *
+   * @param user        user registration
+   * @param callback    callback to notify on completion, may be <tt>null</tt>
+   *
+   * @return  future result of the operation
+   */
+  public Future<AccountResult> createAsync(UserRegistration user,
+                                           InvocationCallback<AccountResult> callback)
+  {
+    WebTarget target = getServiceEndpoint().path("users");
+
+    Entity<String> jsonEntity = Entity.entity(user.toJSONString(), MediaType.APPLICATION_JSON);
+
+    return sendAsync(HttpMethod.POST, target, jsonEntity, user.getName(), callback);
+  }
+
+  /**
+   * Asynchronously creates a new user account with the controllers of a customer fulfillment.
+   *
+   * @param fulfillment   customer fulfillment
+   *
+   * @return  future result of the operation
+   */
+  public Future<AccountResult> createAsync(CustomerFulfillment fulfillment)
+  {
+    return createAsync(fulfillment, null);
+  }
+
+  /**
+   * Asynchronously creates a new user account with the controllers of a customer fulfillment
+   * and notifies the given callback on completion.
+   *
+   * @param fulfillment   customer fulfillment
+   * @param callback      callback to notify on completion, may be <tt>null</tt>
+   *
+   * @return  future result of the operation
+   */
+  public Future<AccountResult> createAsync(CustomerFulfillment fulfillment,
+                                           InvocationCallback<AccountResult> callback)
+  {
+    WebTarget target = getServiceEndpoint().path("users");
+
+    Entity<String> jsonEntity = Entity.entity(
+        fulfillment.toJSONString(), CustomerFulfillment.JSON_HTTP_CONTENT_TYPE
+    );
+
+    return sendAsync(HttpMethod.POST, target, jsonEntity, fulfillment.getName(), callback);
+  }
+
+  /**
+   * Asynchronously retrieves the account information of a user.
+   *
+   * @param username    user account name
+   *
+   * @return  future result of the operation, the account listing document is available as
+   *          the result entity
+   */
+  public Future<AccountResult> retrieveAccountInfoAsync(String username)
+  {
+    return retrieveAccountInfoAsync(username, null);
+  }
+
+  /**
+   * Asynchronously retrieves the account information of a user and notifies the given callback
+   * on completion.
+   *
+   * @param username    user account name
+   * @param callback    callback to notify on completion, may be <tt>null</tt>
+   *
+   * @return  future result of the operation, the account listing document is available as
+   *          the result entity
+   */
+  public Future<AccountResult> retrieveAccountInfoAsync(String username,
+                                                        InvocationCallback<AccountResult> callback)
+  {
+    WebTarget target = getServiceEndpoint().path("users/" + username + "/accounts");
+
+    return sendAsync(HttpMethod.GET, target, null, username, callback);
+  }
+
+  /**
+   * Asynchronously deletes a user account.
+   *
+   * @param username    user account name
+   *
+   * @return  future result of the operation
+   */
+  public Future<AccountResult> deleteAsync(String username)
+  {
+    return deleteAsync(username, null);
+  }
+
+  /**
+   * Asynchronously deletes a user account and notifies the given callback on completion.
+   *
+   * @param username    user account name
+   * @param callback    callback to notify on completion, may be <tt>null</tt>
+   *
+   * @return  future result of the operation
+   */
+  public Future<AccountResult> deleteAsync(String username,
+                                           InvocationCallback<AccountResult> callback)
+  {
+    WebTarget target = getServiceEndpoint().path("users/" + username);
+
+    return sendAsync(HttpMethod.DELETE, target, null, username, callback);
+  }
+
+
+  /**
+   * Creates user accounts for all the given registrations with the default bulk import
+   * settings. See {@link BulkImport} for the concurrency and retry behavior, and for
+   * configuring it.
+   *
+   * @param registrations   user registrations and/or customer fulfillments
+   *
+   * @return  per-registration outcomes
+   *
+   * @throws InterruptedException
+   *            if the calling thread is interrupted while waiting for pending registrations
+   */
+  public BatchResult createAll(Iterator<? extends UserRegistration> registrations)
+      throws InterruptedException
+  {
+    return new BulkImport(this).createAll(registrations);
+  }
+
+
+  /**
+   * Sets the maximum number of concurrently pending asynchronous operations. Operations that
+   * are already pending are not affected. The default is {@value #DEFAULT_MAX_IN_FLIGHT_REQUESTS}.
+   *
+   * @param maxInFlightRequests   maximum number of pending asynchronous operations
+   *
+   * @return  this client
+   *
+   * @throws IllegalArgumentException
+   *            if the given limit is less than one
+   */
+  public synchronized AccountManagerClient setMaxInFlightRequests(int maxInFlightRequests)
+  {
+    if (maxInFlightRequests < 1)
+    {
+      throw new IllegalArgumentException(
+          "Maximum in-flight requests must be at least one, was " + maxInFlightRequests
+      );
+    }
+
+    this.inFlightPermits = new Semaphore(maxInFlightRequests);
+
+    return this;
+  }
+
+  /**
+   * Sets the executor used to run the callbacks of asynchronous operations. If not set, or set
+   * to <tt>null</tt>, callbacks are run on the HTTP client thread that completed the operation
+   * and should therefore not block.
+   *
+   * @param executor    callback executor, or <tt>null</tt>
+   *
+   * @return  this client
+   */
+  public synchronized AccountManagerClient setCallbackExecutor(Executor executor)
+  {
+    this.callbackExecutor = executor;
+
+    return this;
+  }
+
+
+  public synchronized AccountManagerClient setCertificateTrustStore(URI storeLocation)
   {
     this.trustStoreLocation = storeLocation;
 
+    resetClient();
+
     return this;
   }
 
@@ -278,10 +539,12 @@ public class AccountManagerClient
 
 
 
-  public AccountManagerClient setHttpsProtocol(String jcaProtocolName)
+  public synchronized AccountManagerClient setHttpsProtocol(String jcaProtocolName)
   {
     this.httpsProtocolJcaName = jcaProtocolName;
 
+    resetClient();
+
     return this;
   }
 
@@ -291,6 +554,18 @@ public class AccountManagerClient
   }
 
 
+  /**
+   * Closes the HTTP client of this instance and releases its pooled connections. Any
+   * subsequent operations on this instance will fail.
+   */
+  @Override public synchronized void close()
+  {
+    closed = true;
+
+    resetClient();
+  }
+
+
 
   // Private Instance Methods ---------------------------------------------------------------------
 
@@ -314,12 +589,68 @@ public class AccountManagerClient
     return invocationBuilder.post(content);
   }
 
+  /**
+   * Submits an asynchronous request once an in-flight permit is available.
+   *
+   * @param method      HTTP method
+   * @param target      request target
+   * @param content     request entity, or <tt>null</tt>
+   * @param username    user account name the operation is executed on
+   * @param callback    caller callback, or <tt>null</tt>
+   *
+   * @return  future result of the request
+   */
+  private Future<AccountResult> sendAsync(String method, WebTarget target, Entity<?> content,
+                                          String username, InvocationCallback<AccountResult> callback)
+  {
+    Semaphore permits = inFlightPermits;
+
+    try
+    {
+      permits.acquire();
+    }
+
+    catch (InterruptedException exception)
+    {
+      Thread.currentThread().interrupt();
+
+      AsyncResult<AccountResult> result =
+          new AsyncResult<AccountResult>(null, callback, callbackExecutor);
+
+      result.fail(exception);
+
+      return result;
+    }
+
+    AsyncResult<AccountResult> result =
+        new AsyncResult<AccountResult>(permits, callback, callbackExecutor);
+
+    try
+    {
+      Invocation.Builder invocationBuilder = target.request();
+
+      authenticate(invocationBuilder);
+
+      ResponseCallback responseCallback = new ResponseCallback(username, result);
+
+      Future<Response> pending = (content == null)
+          ? invocationBuilder.async().method(method, responseCallback)
+          : invocationBuilder.async().method(method, content, responseCallback);
+
+      result.setPending(pending);
+    }
+
+    catch (RuntimeException exception)
+    {
+      result.fail(exception);
+    }
+
+    return result;
+  }
+
   private void authenticate(Invocation.Builder invocation)
   {
-    invocation.header(
-        "Authorization",
-        "Basic " + new String(Base64.encode((username + ":" + new String(credentials)).getBytes(UTF8)))
-    );
+    invocation.header("Authorization", authorization);
   }
 
   private Response sendDelete(WebTarget target)
@@ -363,6 +694,46 @@ public class AccountManagerClient
 //  }
 //
 
+  /**
+   * Returns the service root endpoint of the shared HTTP client, building the client if it
+   * has not been built yet or the client configuration has changed since.
+   *
+   * @return  service root endpoint
+   *
+   * @throws IllegalStateException
+   *            if this client has been closed
+   */
+  private synchronized WebTarget getServiceEndpoint()
+  {
+    if (closed)
+    {
+      throw new IllegalStateException("Account manager client has been closed.");
+    }
+
+    if (serviceEndpoint == null)
+    {
+      client = createClient();
+      serviceEndpoint = constructTargetBase(client);
+    }
+
+    return serviceEndpoint;
+  }
+
+  /**
+   * Discards the shared HTTP client so that it is rebuilt with the current configuration on
+   * next use. Must be called while holding this instance's lock.
+   */
+  private void resetClient()
+  {
+    if (client != null)
+    {
+      client.close();
+    }
+
+    client = null;
+    serviceEndpoint = null;
+  }
+
   private WebTarget constructTargetBase(Client client)
   {
     WebTarget target = client
@@ -404,7 +775,15 @@ public class AccountManagerClient
 
         FileInputStream fis = new FileInputStream(new File(trustStoreLocation));
 
-        trustedKeyCertificates.load(fis, KeyManager.EMPTY_KEY_PASSWORD);
+        try
+        {
+          trustedKeyCertificates.load(fis, KeyManager.EMPTY_KEY_PASSWORD);
+        }
+
+        finally
+        {
+          fis.close();
+        }
 
         tmf = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
         tmf.init(trustedKeyCertificates);
@@ -432,7 +811,7 @@ public class AccountManagerClient
 
       ssl.init(null, (tmf == null) ? null : tmf.getTrustManagers(), null /* default secure random */);
 
-      builder.sslContext(ssl);
+      builder.sslContext(new SharedSocketFactoryContext(ssl));
     }
 
     catch (KeyManagementException exception)
@@ -552,6 +931,108 @@ public class AccountManagerClient
 
   // Nested Classes -------------------------------------------------------------------------------
 
+  /**
+   * Wraps an initialized SSL context to always return the same socket factory instance. The
+   * JAX-RS client requests a socket factory from the SSL context for each connection; the
+   * runtime's HTTPS keep-alive cache only reuses a pooled connection if it was created with
+   * the same socket factory instance.
+   */
+  private static class SharedSocketFactoryContext extends SSLContext
+  {
+    private SharedSocketFactoryContext(SSLContext ssl)
+    {
+      super(new SharedSocketFactorySpi(ssl), ssl.getProvider(), ssl.getProtocol());
+    }
+  }
+
+  private static class SharedSocketFactorySpi extends SSLContextSpi
+  {
+    private SSLContext ssl;
+
+    private SSLSocketFactory socketFactory;
+
+    private SharedSocketFactorySpi(SSLContext ssl)
+    {
+      this.ssl = ssl;
+      this.socketFactory = ssl.getSocketFactory();
+    }
+
+    @Override protected void engineInit(javax.net.ssl.KeyManager[] keyManagers,
+                                        TrustManager[] trustManagers,
+                                        SecureRandom random) throws KeyManagementException
+    {
+      ssl.init(keyManagers, trustManagers, random);
+
+      socketFactory = ssl.getSocketFactory();
+    }
+
+    @Override protected SSLSocketFactory engineGetSocketFactory()
+    {
+      return socketFactory;
+    }
+
+    @Override protected SSLServerSocketFactory engineGetServerSocketFactory()
+    {
+      return ssl.getServerSocketFactory();
+    }
+
+    @Override protected SSLEngine engineCreateSSLEngine()
+    {
+      return ssl.createSSLEngine();
+    }
+
+    @Override protected SSLEngine engineCreateSSLEngine(String host, int port)
+    {
+      return ssl.createSSLEngine(host, port);
+    }
+
+    @Override protected SSLSessionContext engineGetServerSessionContext()
+    {
+      return ssl.getServerSessionContext();
+    }
+
+    @Override protected SSLSessionContext engineGetClientSessionContext()
+    {
+      return ssl.getClientSessionContext();
+    }
+  }
+
+
+  /**
+   * Converts the HTTP client's asynchronous response into a typed account result.
+   */
+  private static class ResponseCallback implements InvocationCallback<Response>
+  {
+    private String username;
+
+    private AsyncResult<AccountResult> result;
+
+    private ResponseCallback(String username, AsyncResult<AccountResult> result)
+    {
+      this.username = username;
+      this.result = result;
+    }
+
+    @Override public void completed(Response response)
+    {
+      try
+      {
+        result.complete(AccountResult.from(username, response));
+      }
+
+      catch (RuntimeException exception)
+      {
+        result.fail(exception);
+      }
+    }
+
+    @Override public void failed(Throwable throwable)
+    {
+      result.fail(throwable);
+    }
+  }
+
+
   private static class VersionPath extends Version
   {
 
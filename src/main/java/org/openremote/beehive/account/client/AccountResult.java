@@ -0,0 +1,213 @@
+/*
+ * OpenRemote, the Home of the Digital Home.
+ * Copyright 2008-2015, OpenRemote Inc.
+ *
+ * See the contributors.txt file in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.openremote.beehive.account.client;
+
+import java.io.StringReader;
+
+import javax.ws.rs.core.Response;
+
+import org.openremote.model.User;
+import org.openremote.model.data.json.DeserializationException;
+
+import org.openremote.beehive.account.model.TransformerRegistry;
+
+
+/**
+ * Typed outcome of an account manager operation executed through the asynchronous client API.
+ * The HTTP response of the operation has already been fully read and closed when an instance
+ * of this class is returned, so no connection resources are held by it. <p>
+ *
+ * For successful account creations the database identifier of the created account, as
+ * returned by the service, is available through {@link #getAccountId()}. For failed
+ * operations the error description returned by the service is available through
+ * {@link #getEntity()}.
+ *
+ * @see AccountManagerClient#createAsync(org.openremote.beehive.account.model.UserRegistration)
+ * @see AccountManagerClient#deleteAsync(String)
+ *
+ * @author Juha Lindfors
+ */
+public class AccountResult
+{
+
+  // Constants ------------------------------------------------------------------------------------
+
+  /**
+   * The user attribute name the service uses to return the identifier of a created account.
+   */
+  public static final String ACCOUNT_ID_ATTRIBUTE_NAME = "accountId";
+
+
+
+  // Class Members --------------------------------------------------------------------------------
+
+  /**
+   * Reads the response of an operation into a typed result and closes the response.
+   *
+   * @param username    the user account name the operation was executed on
+   * @param response    HTTP response of the operation
+   *
+   * @return  operation result
+   */
+  static AccountResult from(String username, Response response)
+  {
+    try
+    {
+      String entity = response.hasEntity() ? response.readEntity(String.class) : null;
+
+      return new AccountResult(
+          username, response.getStatus(), response.getStatusInfo().getReasonPhrase(), entity
+      );
+    }
+
+    finally
+    {
+      response.close();
+    }
+  }
+
+
+
+  // Instance Fields ------------------------------------------------------------------------------
+
+  private String username;
+
+  private int status;
+
+  private String reasonPhrase;
+
+  private String entity;
+
+
+
+  // Constructors ---------------------------------------------------------------------------------
+
+  AccountResult(String username, int status, String reasonPhrase, String entity)
+  {
+    this.username = username;
+    this.status = status;
+    this.reasonPhrase = reasonPhrase;
+    this.entity = entity;
+  }
+
+
+
+  // Public Instance Methods ----------------------------------------------------------------------
+
+  /**
+   * Returns the user account name the operation was executed on.
+   *
+   * @return  user account name
+   */
+  public String getUsername()
+  {
+    return username;
+  }
+
+  /**
+   * Returns the HTTP status code of the operation.
+   *
+   * @return  HTTP status code
+   */
+  public int getStatus()
+  {
+    return status;
+  }
+
+  /**
+   * Returns the HTTP reason phrase of the operation, if any.
+   *
+   * @return  HTTP reason phrase or <tt>null</tt>
+   */
+  public String getReasonPhrase()
+  {
+    return reasonPhrase;
+  }
+
+  /**
+   * Indicates whether the service completed the operation successfully (HTTP 2xx status).
+   *
+   * @return  true if the operation succeeded, false otherwise
+   */
+  public boolean isSuccessful()
+  {
+    return status >= 200 && status < 300;
+  }
+
+  /**
+   * Returns the response document of the operation as text, if any.
+   *
+   * @return  response document or <tt>null</tt>
+   */
+  public String getEntity()
+  {
+    return entity;
+  }
+
+  /**
+   * Returns the database identifier of a created account, if the operation was a successful
+   * account creation.
+   *
+   * @return  account identifier, or <tt>null</tt> if the response did not include one
+   */
+  public Long getAccountId()
+  {
+    if (!isSuccessful() || entity == null)
+    {
+      return null;
+    }
+
+    try
+    {
+      TransformerRegistry.Transformers transformers = TransformerRegistry.borrow(User.class);
+      User user;
+
+      try
+      {
+        user = transformers.read(User.class, new StringReader(entity));
+      }
+
+      finally
+      {
+        TransformerRegistry.release(transformers);
+      }
+
+      String id = user.getAttribute(ACCOUNT_ID_ATTRIBUTE_NAME);
+
+      return (id == null) ? null : Long.valueOf(id);
+    }
+
+    catch (DeserializationException exception)
+    {
+      return null;
+    }
+
+    catch (NumberFormatException exception)
+    {
+      return null;
+    }
+  }
+
+  @Override public String toString()
+  {
+    return username + ": " + status + ((reasonPhrase == null) ? "" : " " + reasonPhrase);
+  }
+}
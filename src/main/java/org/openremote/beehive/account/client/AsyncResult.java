@@ -0,0 +1,292 @@
+/*
+ * OpenRemote, the Home of the Digital Home.
+ * Copyright 2008-2015, OpenRemote Inc.
+ *
+ * See the contributors.txt file in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.openremote.beehive.account.client;
+
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javax.ws.rs.client.InvocationCallback;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+
+/**
+ * Future result of an asynchronous account manager client operation. The result is completed
+ * from the HTTP client's response thread, after which the optional caller provided callback
+ * is dispatched on the configured callback executor. <p>
+ *
+ * Each result holds one in-flight permit of the issuing client, which is released exactly
+ * once when the result completes, fails or is cancelled.
+ *
+ * @param <T>   result type
+ *
+ * @author Juha Lindfors
+ */
+class AsyncResult<T> implements Future<T>
+{
+
+  // Class Members --------------------------------------------------------------------------------
+
+  private static final Logger log =
+      LoggerFactory.getLogger(AccountManagerClient.Log.CLIENT.getCanonicalLogHierarchyName());
+
+
+
+  // Instance Fields ------------------------------------------------------------------------------
+
+  private CountDownLatch done = new CountDownLatch(1);
+
+  private AtomicBoolean permitReleased = new AtomicBoolean(false);
+
+  private Semaphore permits;
+
+  private InvocationCallback<T> callback;
+
+  private Executor callbackExecutor;
+
+  private Future<?> pending = null;
+
+  private T value = null;
+
+  private Throwable failure = null;
+
+  private boolean cancelled = false;
+
+  private boolean finished = false;
+
+
+
+  // Constructors ---------------------------------------------------------------------------------
+
+  /**
+   * @param permits             in-flight permits of the issuing client, one of which has been
+   *                            acquired for this result, or <tt>null</tt> if no permit is held
+   * @param callback            optional caller callback, may be <tt>null</tt>
+   * @param callbackExecutor    executor to run the callback on, or <tt>null</tt> to run it on
+   *                            the completing thread
+   */
+  AsyncResult(Semaphore permits, InvocationCallback<T> callback, Executor callbackExecutor)
+  {
+    this.permits = permits;
+    this.callback = callback;
+    this.callbackExecutor = callbackExecutor;
+  }
+
+
+
+  // Implements Future ----------------------------------------------------------------------------
+
+  @Override public boolean cancel(boolean mayInterruptIfRunning)
+  {
+    Future<?> request;
+
+    synchronized (this)
+    {
+      if (finished)
+      {
+        return false;
+      }
+
+      finished = true;
+      cancelled = true;
+      request = pending;
+    }
+
+    if (request != null)
+    {
+      request.cancel(mayInterruptIfRunning);
+    }
+
+    finish(null, new CancellationException("Account manager operation was cancelled."));
+
+    return true;
+  }
+
+  @Override public synchronized boolean isCancelled()
+  {
+    return cancelled;
+  }
+
+  @Override public boolean isDone()
+  {
+    return done.getCount() == 0;
+  }
+
+  @Override public T get() throws InterruptedException, ExecutionException
+  {
+    done.await();
+
+    return report();
+  }
+
+  @Override public T get(long timeout, TimeUnit unit)
+      throws InterruptedException, ExecutionException, TimeoutException
+  {
+    if (!done.await(timeout, unit))
+    {
+      throw new TimeoutException("Account manager operation did not complete in time.");
+    }
+
+    return report();
+  }
+
+
+
+  // Package-Private Instance Methods -------------------------------------------------------------
+
+  /**
+   * Associates the pending HTTP request with this result so that it can be cancelled.
+   *
+   * @param request   pending HTTP request
+   */
+  synchronized void setPending(Future<?> request)
+  {
+    this.pending = request;
+  }
+
+  /**
+   * Completes this result with a value.
+   *
+   * @param result    operation result
+   */
+  void complete(T result)
+  {
+    synchronized (this)
+    {
+      if (finished)
+      {
+        return;
+      }
+
+      finished = true;
+      value = result;
+    }
+
+    finish(result, null);
+  }
+
+  /**
+   * Completes this result with a failure.
+   *
+   * @param throwable   operation failure
+   */
+  void fail(Throwable throwable)
+  {
+    synchronized (this)
+    {
+      if (finished)
+      {
+        return;
+      }
+
+      finished = true;
+      failure = throwable;
+    }
+
+    finish(null, throwable);
+  }
+
+
+
+  // Private Instance Methods ---------------------------------------------------------------------
+
+  private void finish(final T result, final Throwable throwable)
+  {
+    done.countDown();
+
+    if (permits != null && permitReleased.compareAndSet(false, true))
+    {
+      permits.release();
+    }
+
+    if (callback == null)
+    {
+      return;
+    }
+
+    Runnable dispatch = new Runnable()
+    {
+      @Override public void run()
+      {
+        try
+        {
+          if (throwable == null)
+          {
+            callback.completed(result);
+          }
+
+          else
+          {
+            callback.failed(throwable);
+          }
+        }
+
+        catch (RuntimeException exception)
+        {
+          log.error("Account manager client callback failed: " + exception.getMessage(), exception);
+        }
+      }
+    };
+
+    if (callbackExecutor == null)
+    {
+      dispatch.run();
+
+      return;
+    }
+
+    try
+    {
+      callbackExecutor.execute(dispatch);
+    }
+
+    catch (RejectedExecutionException exception)
+    {
+      log.debug("Callback executor rejected the callback, running it on the completing thread.");
+
+      dispatch.run();
+    }
+  }
+
+  private synchronized T report() throws ExecutionException
+  {
+    if (cancelled)
+    {
+      throw new CancellationException("Account manager operation was cancelled.");
+    }
+
+    if (failure != null)
+    {
+      throw new ExecutionException(failure.getMessage(), failure);
+    }
+
+    return value;
+  }
+}
@@ -0,0 +1,429 @@
+/*
+ * OpenRemote, the Home of the Digital Home.
+ * Copyright 2008-2015, OpenRemote Inc.
+ *
+ * See the contributors.txt file in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.openremote.beehive.account.client;
+
+import java.util.Iterator;
+import java.util.Random;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import javax.ws.rs.client.InvocationCallback;
+
+import org.openremote.beehive.account.model.BatchResult;
+import org.openremote.beehive.account.model.CustomerFulfillment;
+import org.openremote.beehive.account.model.UserRegistration;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+
+/**
+ * Bulk driver for creating a large number of user accounts through an
+ * {@link AccountManagerClient}. Registrations are pulled from the given iterator only as fast
+ * as the service accepts them: at most a configured window of registrations is pending at any
+ * given time, and the iterator is not advanced until a slot in the window is free. This keeps
+ * the memory use of an import independent of its size when the registrations are read lazily
+ * from a file or a database cursor. <p>
+ *
+ * Registrations that fail with a HTTP 5xx server error or without any response (connection
+ * failures, timeouts) are retried up to a configured number of attempts, with an exponential
+ * backoff and full random jitter between the attempts so that concurrent retries do not hit
+ * the service in lock step. <p>
+ *
+ * Since a failed attempt may still have been committed by the service, a HTTP 409 - Conflict
+ * response to a retried registration is treated as a successful, idempotent outcome of the
+ * earlier attempt. A conflict on the first attempt means the account existed before the import
+ * and is reported as a failure. <p>
+ *
+ * The outcome of each registration is reported as an item of the returned
+ * {@link org.openremote.beehive.account.model.BatchResult}, identified by the registration's
+ * position in the iterator. Items are recorded in the order the registrations complete.
+ * Registrations that never received a response from the service are reported with status 0.
+ *
+ * @see AccountManagerClient#createAll(java.util.Iterator)
+ *
+ * @author Juha Lindfors
+ */
+public class BulkImport
+{
+
+  // Constants ------------------------------------------------------------------------------------
+
+  /**
+   * Default maximum number of pending registrations: {@value}
+   */
+  public static final int DEFAULT_WINDOW_SIZE = 32;
+
+  /**
+   * Default maximum number of attempts per registration, including the first one: {@value}
+   */
+  public static final int DEFAULT_MAX_ATTEMPTS = 4;
+
+  /**
+   * Default upper bound of the backoff before the first retry, in milliseconds: {@value}
+   */
+  public static final long DEFAULT_BASE_BACKOFF = 250;
+
+  /**
+   * Default upper bound of the backoff between any two attempts, in milliseconds: {@value}
+   */
+  public static final long DEFAULT_MAX_BACKOFF = 10000;
+
+  /**
+   * Status reported for registrations that did not receive a response from the service.
+   */
+  public static final int NO_RESPONSE_STATUS = 0;
+
+
+
+  // Class Members --------------------------------------------------------------------------------
+
+  private static final Logger log =
+      LoggerFactory.getLogger(AccountManagerClient.Log.CLIENT.getCanonicalLogHierarchyName());
+
+  private static final Random jitter = new Random();
+
+
+
+  // Instance Fields ------------------------------------------------------------------------------
+
+  private AccountManagerClient client;
+
+  private int windowSize = DEFAULT_WINDOW_SIZE;
+
+  private int maxAttempts = DEFAULT_MAX_ATTEMPTS;
+
+  private long baseBackoff = DEFAULT_BASE_BACKOFF;
+
+  private long maxBackoff = DEFAULT_MAX_BACKOFF;
+
+
+
+  // Constructors ---------------------------------------------------------------------------------
+
+  /**
+   * @param client    account manager client to execute the registrations with
+   */
+  public BulkImport(AccountManagerClient client)
+  {
+    this.client = client;
+  }
+
+
+
+  // Public Instance Methods ----------------------------------------------------------------------
+
+  /**
+   * Sets the maximum number of registrations pending at any given time. Note that the number
+   * of concurrent requests is also bounded by the client's
+   * {@link AccountManagerClient#setMaxInFlightRequests(int) in-flight limit}.
+   *
+   * @param windowSize    maximum number of pending registrations
+   *
+   * @return  this bulk import
+   */
+  public BulkImport setWindowSize(int windowSize)
+  {
+    if (windowSize < 1)
+    {
+      throw new IllegalArgumentException("Window size must be at least one, was " + windowSize);
+    }
+
+    this.windowSize = windowSize;
+
+    return this;
+  }
+
+  /**
+   * Sets the maximum number of attempts per registration, including the first one.
+   *
+   * @param maxAttempts   maximum number of attempts
+   *
+   * @return  this bulk import
+   */
+  public BulkImport setMaxAttempts(int maxAttempts)
+  {
+    if (maxAttempts < 1)
+    {
+      throw new IllegalArgumentException("Max attempts must be at least one, was " + maxAttempts);
+    }
+
+    this.maxAttempts = maxAttempts;
+
+    return this;
+  }
+
+  /**
+   * Sets the retry backoff. The backoff before the n:th retry is a random delay between zero
+   * and <tt>base * 2^(n-1)</tt>, capped to the given maximum.
+   *
+   * @param base    upper bound of the backoff before the first retry
+   * @param max     upper bound of the backoff between any two attempts
+   * @param unit    time unit of the given values
+   *
+   * @return  this bulk import
+   */
+  public BulkImport setBackoff(long base, long max, TimeUnit unit)
+  {
+    if (base < 0 || max < base)
+    {
+      throw new IllegalArgumentException(
+          "Invalid backoff, base " + base + " and max " + max + " " + unit
+      );
+    }
+
+    this.baseBackoff = unit.toMillis(base);
+    this.maxBackoff = unit.toMillis(max);
+
+    return this;
+  }
+
+  /**
+   * Creates user accounts for all the given registrations, and returns once each registration
+   * has either succeeded or failed.
+   *
+   * @param registrations   user registrations and/or customer fulfillments
+   *
+   * @return  per-registration outcomes
+   *
+   * @throws InterruptedException
+   *            if the calling thread is interrupted while waiting for pending registrations,
+   *            registrations already submitted may still complete in the background
+   */
+  public BatchResult createAll(Iterator<? extends UserRegistration> registrations)
+      throws InterruptedException
+  {
+    BatchResult result = new BatchResult();
+
+    int size = windowSize;
+
+    Semaphore window = new Semaphore(size);
+
+    ScheduledExecutorService retries = Executors.newSingleThreadScheduledExecutor(
+        new ThreadFactory()
+        {
+          @Override public Thread newThread(Runnable runnable)
+          {
+            Thread thread = new Thread(runnable, "AccountManager Bulk Import Retry");
+            thread.setDaemon(true);
+
+            return thread;
+          }
+        }
+    );
+
+    try
+    {
+      int index = 0;
+
+      while (registrations.hasNext())
+      {
+        window.acquire();
+
+        new Registration(index++, registrations.next(), result, window, retries).submit();
+      }
+
+      // Wait for the window to drain...
+
+      window.acquire(size);
+      window.release(size);
+
+      log.info(
+          "Bulk import of {} registrations completed, {} succeeded, {} failed.",
+          index, result.getSucceededCount(), result.getFailedCount()
+      );
+
+      return result;
+    }
+
+    finally
+    {
+      retries.shutdownNow();
+    }
+  }
+
+
+
+  // Nested Classes -------------------------------------------------------------------------------
+
+  /**
+   * Tracks the attempts of a single registration until it has an outcome, then records the
+   * outcome and frees its slot in the window.
+   */
+  private class Registration implements InvocationCallback<AccountResult>, Runnable
+  {
+    private int index;
+
+    private UserRegistration registration;
+
+    private BatchResult result;
+
+    private Semaphore window;
+
+    private ScheduledExecutorService retries;
+
+    private volatile int attempt = 0;
+
+    /**
+     * Set once an attempt has failed without a definite outcome from the service.
+     */
+    private volatile boolean uncertain = false;
+
+    private Registration(int index, UserRegistration registration, BatchResult result,
+                         Semaphore window, ScheduledExecutorService retries)
+    {
+      this.index = index;
+      this.registration = registration;
+      this.result = result;
+      this.window = window;
+      this.retries = retries;
+    }
+
+    @Override public void run()
+    {
+      submit();
+    }
+
+    @Override public void completed(AccountResult response)
+    {
+      int status = response.getStatus();
+
+      if (response.isSuccessful())
+      {
+        succeeded(status, response.getAccountId());
+      }
+
+      else if (status == 409 && uncertain)
+      {
+        log.info(
+            "Registration ''{}'' already exists after an earlier attempt, treating as created.",
+            registration.getName()
+        );
+
+        succeeded(status, null);
+      }
+
+      else if (status >= 500 && attempt < maxAttempts)
+      {
+        uncertain = true;
+
+        retry("HTTP " + status);
+      }
+
+      else
+      {
+        String message = response.getEntity();
+
+        failed(status, (message == null || message.equals("")) ? response.getReasonPhrase() : message);
+      }
+    }
+
+    @Override public void failed(Throwable throwable)
+    {
+      if (attempt < maxAttempts)
+      {
+        uncertain = true;
+
+        retry(throwable.getMessage());
+      }
+
+      else
+      {
+        failed(NO_RESPONSE_STATUS, "No response after " + attempt + " attempts: " + throwable.getMessage());
+      }
+    }
+
+    private void submit()
+    {
+      attempt++;
+
+      try
+      {
+        if (registration instanceof CustomerFulfillment)
+        {
+          client.createAsync((CustomerFulfillment)registration, this);
+        }
+
+        else
+        {
+          client.createAsync(registration, this);
+        }
+      }
+
+      catch (IllegalStateException exception)
+      {
+        failed(NO_RESPONSE_STATUS, exception.getMessage());
+      }
+
+      catch (RuntimeException exception)
+      {
+        failed(exception);
+      }
+    }
+
+    private void retry(String reason)
+    {
+      long cap = Math.min(maxBackoff, baseBackoff << Math.min(attempt - 1, 30));
+
+      long delay = (long)(jitter.nextDouble() * cap);
+
+      log.debug(
+          "Registration ''{}'' attempt {} failed ({}), retrying in {} ms.",
+          registration.getName(), attempt, reason, delay
+      );
+
+      try
+      {
+        retries.schedule(this, delay, TimeUnit.MILLISECONDS);
+      }
+
+      catch (RejectedExecutionException exception)
+      {
+        failed(NO_RESPONSE_STATUS, "Bulk import was stopped before retrying: " + reason);
+      }
+    }
+
+    private void succeeded(int status, Long accountId)
+    {
+      synchronized (result)
+      {
+        result.succeeded(index, registration.getName(), status, accountId);
+      }
+
+      window.release();
+    }
+
+    private void failed(int status, String message)
+    {
+      log.debug("Registration ''{}'' failed: {} {}", registration.getName(), status, message);
+
+      synchronized (result)
+      {
+        result.failed(index, registration.getName(), status, message);
+      }
+
+      window.release();
+    }
+  }
+}
@@ -21,15 +21,24 @@
 package org.openremote.beehive.account.client;
 
 
+import java.io.BufferedInputStream;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStream;
 import java.net.URI;
 import java.net.URL;
 import java.security.Security;
 import java.security.cert.Certificate;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
 
+import javax.ws.rs.core.MediaType;
 import javax.ws.rs.core.Response;
 
+import org.openremote.beehive.account.model.BatchResult;
+import org.openremote.beehive.account.model.RegistrationBatch;
 import org.openremote.beehive.account.model.UserRegistration;
+import org.openremote.beehive.account.model.rest.RegistrationBatchReader;
 import org.openremote.security.KeyManager;
 import org.openremote.security.PrivateKeyManager;
 import org.openremote.security.SecurityProvider;
@@ -82,6 +91,11 @@ public class Tools
       executeTestRequests(args);
     }
 
+    else if (args[0].equalsIgnoreCase("--bulk-import"))
+    {
+      executeBulkImport(args);
+    }
+
     else
     {
       System.err.println();
@@ -173,6 +187,110 @@ public class Tools
   }
 
 
+  private static void executeBulkImport(String... args) throws Exception
+  {
+    if (args.length < 4)
+    {
+      System.err.println("");
+      System.err.println("Attribute --bulk-import requires additional arguments:");
+      System.err.println("  [--bulk-import <file> <url> <username:password>]");
+      System.err.println("");
+      System.err.println("The file contains a JSON array of user registrations and/or customer");
+      System.err.println("fulfillments, or one registration per line if its name ends with '.ndjson'.");
+      System.err.println("");
+
+      return;
+    }
+
+    File file = new File(args[1]);
+
+    if (!file.isFile())
+    {
+      System.err.println();
+      System.err.println("Bulk import file '" + file + "' was not found.");
+      System.err.println();
+
+      return;
+    }
+
+    int separator = args[3].indexOf(":");
+
+    if (separator < 0)
+    {
+      System.err.println();
+      System.err.println("Unable to parse <username:password> from '" + args[3] + "'.");
+      System.err.println();
+
+      return;
+    }
+
+    AccountManagerClient client = new AccountManagerClient(
+        new URL(args[2]),
+        args[3].substring(0, separator),
+        args[3].substring(separator + 1).getBytes(AccountManagerClient.UTF8)
+    );
+
+    File userHomeDir = new File(System.getProperty("user.home"));
+    File trustStoreLocation = new File(userHomeDir, "client.truststore");
+
+    if (trustStoreLocation.exists())
+    {
+      client.setCertificateTrustStore(trustStoreLocation.toURI());
+    }
+
+    MediaType mediaType = file.getName().endsWith(".ndjson")
+        ? MediaType.valueOf(RegistrationBatch.NDJSON_HTTP_CONTENT_TYPE)
+        : MediaType.valueOf(RegistrationBatch.JSON_HTTP_CONTENT_TYPE);
+
+    InputStream in = new BufferedInputStream(new FileInputStream(file));
+
+    try
+    {
+      RegistrationBatch batch = new RegistrationBatchReader().readFrom(
+          RegistrationBatch.class, null, null, mediaType, null, in
+      );
+
+      System.out.println();
+      System.out.println("Importing registrations from " + file + " to " + args[2]);
+      System.out.println();
+
+      long start = System.currentTimeMillis();
+
+      BatchResult result = client.createAll(new ValidRegistrations(batch.iterator()));
+
+      long elapsed = System.currentTimeMillis() - start;
+
+      for (BatchResult.Item item : result.getItems())
+      {
+        if (item.getStatus() < 200 || item.getStatus() >= 300)
+        {
+          String outcome = (item.getMessage() == null)
+              ? "created by an earlier attempt"
+              : item.getMessage();
+
+          System.out.println(
+              "  #" + item.getIndex() + " '" + item.getUsername() + "': " + item.getStatus() + " " + outcome
+          );
+        }
+      }
+
+      System.out.println();
+      System.out.println(
+          result.getSucceededCount() + " succeeded, " + result.getFailedCount() + " failed in " +
+          elapsed + " ms."
+      );
+      System.out.println();
+    }
+
+    finally
+    {
+      in.close();
+
+      client.close();
+    }
+  }
+
+
   private static void generateKeys(String... args) throws KeyManager.KeyManagerException
   {
     if (args.length < 2)
@@ -273,6 +391,64 @@ public class Tools
   }
 
 
+  // Nested Classes -------------------------------------------------------------------------------
+
+  /**
+   * Passes through the valid registrations of a batch, reporting and skipping the entries that
+   * could not be read.
+   */
+  private static class ValidRegistrations implements Iterator<UserRegistration>
+  {
+    private Iterator<RegistrationBatch.Entry> entries;
+
+    private UserRegistration next = null;
+
+    private ValidRegistrations(Iterator<RegistrationBatch.Entry> entries)
+    {
+      this.entries = entries;
+    }
+
+    @Override public boolean hasNext()
+    {
+      while (next == null && entries.hasNext())
+      {
+        RegistrationBatch.Entry entry = entries.next();
+
+        if (entry.isValid())
+        {
+          next = entry.getRegistration();
+        }
+
+        else
+        {
+          System.err.println("  Skipping entry " + entry.getIndex() + ": " + entry.getError());
+        }
+      }
+
+      return next != null;
+    }
+
+    @Override public UserRegistration next()
+    {
+      if (!hasNext())
+      {
+        throw new NoSuchElementException();
+      }
+
+      UserRegistration registration = next;
+
+      next = null;
+
+      return registration;
+    }
+
+    @Override public void remove()
+    {
+      throw new UnsupportedOperationException("Registrations cannot be removed.");
+    }
+  }
+
+
   // Constructors ---------------------------------------------------------------------------------
 
 
@@ -0,0 +1,331 @@
+/*
+ * OpenRemote, the Home of the Digital Home.
+ * Copyright 2008-2015, OpenRemote Inc.
+ *
+ * See the contributors.txt file in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.openremote.beehive.account.model;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.openremote.base.Version;
+
+import org.openremote.model.data.json.DeserializationException;
+import org.openremote.model.data.json.JSONModel;
+import org.openremote.model.data.json.JSONTransformer;
+import org.openremote.model.data.json.ModelObject;
+
+
+/**
+ * Lists the accounts of a single user, and the controllers registered to each account. <p>
+ *
+ * This is a read-only view of the user's persistent account data, returned by the user
+ * account REST resource. Database identifiers are serialized as strings.
+ *
+ * @author Juha Lindfors
+ */
+public class AccountListing
+{
+
+  // Constants ------------------------------------------------------------------------------------
+
+  public static final String JSON_HTTP_CONTENT_TYPE =
+      "application/vnd.openremote.account-listing+json";
+
+  public static final Version JSON_SCHEMA_VERSION = new Version(1, 0, 0);
+
+  public static final String USERNAME_JSON_PROPERTY_NAME = "username";
+
+  public static final String ACCOUNTS_JSON_PROPERTY_NAME = "accounts";
+
+  public static final String CONTROLLERS_JSON_PROPERTY_NAME = "controllers";
+
+  public static final String ID_JSON_PROPERTY_NAME = "id";
+
+  public static final String MAC_ADDRESSES_JSON_PROPERTY_NAME = "macAddresses";
+
+
+
+  // Instance Fields ------------------------------------------------------------------------------
+
+  private String username;
+
+  private List<AccountEntry> accounts = new ArrayList<AccountEntry>(1);
+
+
+
+  // Constructors ---------------------------------------------------------------------------------
+
+  public AccountListing(String username)
+  {
+    this.username = username;
+  }
+
+
+
+  // Public Instance Methods ----------------------------------------------------------------------
+
+  /**
+   * Adds an account to this listing.
+   *
+   * @param accountId   database identifier of the account
+   *
+   * @return  the added account entry, to which the account's controllers can be added
+   */
+  public AccountEntry addAccount(Long accountId)
+  {
+    AccountEntry account = new AccountEntry(accountId);
+
+    accounts.add(account);
+
+    return account;
+  }
+
+  public String getUsername()
+  {
+    return username;
+  }
+
+  public List<AccountEntry> getAccounts()
+  {
+    return Collections.unmodifiableList(accounts);
+  }
+
+  public String toJSONString()
+  {
+    TransformerRegistry.Transformers transformers = TransformerRegistry.borrow(AccountListing.class);
+
+    try
+    {
+      return transformers.toJSONString(this, AccountListing.class.getName(), JSON_SCHEMA_VERSION);
+    }
+
+    finally
+    {
+      TransformerRegistry.release(transformers);
+    }
+  }
+
+
+
+  // Nested Classes -------------------------------------------------------------------------------
+
+  /**
+   * A single account in the listing.
+   */
+  public static class AccountEntry
+  {
+    private Long id;
+
+    private List<ControllerEntry> controllers = new ArrayList<ControllerEntry>(1);
+
+    private AccountEntry(Long id)
+    {
+      this.id = id;
+    }
+
+    public void addController(Long controllerId, String macAddresses)
+    {
+      controllers.add(new ControllerEntry(controllerId, macAddresses));
+    }
+
+    public Long getId()
+    {
+      return id;
+    }
+
+    public List<ControllerEntry> getControllers()
+    {
+      return Collections.unmodifiableList(controllers);
+    }
+  }
+
+
+  /**
+   * A single controller registered to an account.
+   */
+  public static class ControllerEntry
+  {
+    private Long id;
+
+    private String macAddresses;
+
+    private ControllerEntry(Long id, String macAddresses)
+    {
+      this.id = id;
+      this.macAddresses = macAddresses;
+    }
+
+    public Long getId()
+    {
+      return id;
+    }
+
+    public String getMacAddresses()
+    {
+      return macAddresses;
+    }
+  }
+
+
+  /**
+   * JSON transformer for the account listing document.
+   */
+  public static class ListingTransformer extends JSONTransformer<AccountListing>
+  {
+    public ListingTransformer()
+    {
+      super(AccountListing.class);
+    }
+
+    @Override protected void write(AccountListing listing)
+    {
+      startObject();
+
+      writeProperty(USERNAME_JSON_PROPERTY_NAME, listing.username);
+      writeArray(ACCOUNTS_JSON_PROPERTY_NAME, listing.accounts);
+
+      endObject();
+    }
+
+    @Override protected AccountListing deserialize(JSONModel model) throws DeserializationException
+    {
+      ModelObject object = model.getModel();
+
+      AccountListing listing = new AccountListing(object.getAttribute(USERNAME_JSON_PROPERTY_NAME));
+
+      List<ModelObject> accounts = object.getObjectArray(ACCOUNTS_JSON_PROPERTY_NAME);
+
+      if (accounts == null)
+      {
+        return listing;
+      }
+
+      for (ModelObject account : accounts)
+      {
+        AccountEntry entry = listing.addAccount(parseId(account));
+
+        List<ModelObject> controllers = account.getObjectArray(CONTROLLERS_JSON_PROPERTY_NAME);
+
+        if (controllers == null)
+        {
+          continue;
+        }
+
+        for (ModelObject controller : controllers)
+        {
+          entry.addController(
+              parseId(controller), controller.getAttribute(MAC_ADDRESSES_JSON_PROPERTY_NAME)
+          );
+        }
+      }
+
+      return listing;
+    }
+
+    private static Long parseId(ModelObject object) throws DeserializationException
+    {
+      String id = object.getAttribute(ID_JSON_PROPERTY_NAME);
+
+      if (id == null)
+      {
+        return null;
+      }
+
+      try
+      {
+        return Long.valueOf(id);
+      }
+
+      catch (NumberFormatException exception)
+      {
+        throw new DeserializationException("Invalid identifier ''{0}''.", id);
+      }
+    }
+  }
+
+
+  /**
+   * JSON transformer for individual accounts in the listing document.
+   */
+  static class AccountTransformer extends JSONTransformer<AccountEntry>
+  {
+    AccountTransformer()
+    {
+      super(AccountEntry.class);
+    }
+
+    @Override protected void write(AccountEntry account)
+    {
+      startObject();
+
+      if (account.id != null)
+      {
+        writeProperty(ID_JSON_PROPERTY_NAME, account.id.toString());
+      }
+
+      writeArray(CONTROLLERS_JSON_PROPERTY_NAME, account.controllers);
+
+      endObject();
+    }
+
+    @Override protected AccountEntry deserialize(JSONModel model) throws DeserializationException
+    {
+      throw new DeserializationException(
+          "Accounts are deserialized as part of the account listing document."
+      );
+    }
+  }
+
+
+  /**
+   * JSON transformer for individual controllers in the listing document.
+   */
+  static class ControllerTransformer extends JSONTransformer<ControllerEntry>
+  {
+    ControllerTransformer()
+    {
+      super(ControllerEntry.class);
+    }
+
+    @Override protected void write(ControllerEntry controller)
+    {
+      startObject();
+
+      if (controller.id != null)
+      {
+        writeProperty(ID_JSON_PROPERTY_NAME, controller.id.toString());
+      }
+
+      if (controller.macAddresses != null && !controller.macAddresses.isEmpty())
+      {
+        writeProperty(MAC_ADDRESSES_JSON_PROPERTY_NAME, controller.macAddresses);
+      }
+
+      endObject();
+    }
+
+    @Override protected ControllerEntry deserialize(JSONModel model) throws DeserializationException
+    {
+      throw new DeserializationException(
+          "Controllers are deserialized as part of the account listing document."
+      );
+    }
+  }
+}
@@ -0,0 +1,297 @@
+/*
+ * OpenRemote, the Home of the Digital Home.
+ * Copyright 2008-2015, OpenRemote Inc.
+ *
+ * See the contributors.txt file in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.openremote.beehive.account.model;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.openremote.base.Version;
+
+import org.openremote.model.data.json.DeserializationException;
+import org.openremote.model.data.json.JSONModel;
+import org.openremote.model.data.json.JSONTransformer;
+import org.openremote.model.data.json.ModelObject;
+
+
+/**
+ * Per-item outcome of a batch operation. Each item in the result records the position of the
+ * corresponding entry in the submitted batch, the username it referred to and an HTTP status
+ * code describing the outcome for that entry, so that a single failing entry does not hide
+ * the results of the rest of the batch.
+ *
+ * @author Juha Lindfors
+ */
+public class BatchResult
+{
+
+  // Constants ------------------------------------------------------------------------------------
+
+  public static final String JSON_HTTP_CONTENT_TYPE =
+      "application/vnd.openremote.batch-result+json";
+
+  public static final Version JSON_SCHEMA_VERSION = new Version(1, 0, 0);
+
+  /**
+   * The JSON property name value used for the array of per-item results: {@value}
+   */
+  public static final String RESULTS_JSON_PROPERTY_NAME = "results";
+
+  public static final String SUCCEEDED_JSON_PROPERTY_NAME = "succeeded";
+
+  public static final String FAILED_JSON_PROPERTY_NAME = "failed";
+
+  public static final String INDEX_JSON_PROPERTY_NAME = "index";
+
+  public static final String USERNAME_JSON_PROPERTY_NAME = "username";
+
+  public static final String STATUS_JSON_PROPERTY_NAME = "status";
+
+  public static final String ACCOUNT_ID_JSON_PROPERTY_NAME = "accountId";
+
+  public static final String MESSAGE_JSON_PROPERTY_NAME = "message";
+
+
+
+  // Instance Fields ------------------------------------------------------------------------------
+
+  private List<Item> items = new ArrayList<Item>();
+
+  private int succeeded = 0;
+
+  private int failed = 0;
+
+
+
+  // Public Instance Methods ----------------------------------------------------------------------
+
+  public void succeeded(int index, String username, int status, Long accountId)
+  {
+    items.add(new Item(index, username, status, accountId, null));
+
+    succeeded++;
+  }
+
+  public void failed(int index, String username, int status, String message)
+  {
+    items.add(new Item(index, username, status, null, message));
+
+    failed++;
+  }
+
+  public List<Item> getItems()
+  {
+    return Collections.unmodifiableList(items);
+  }
+
+  public int getSucceededCount()
+  {
+    return succeeded;
+  }
+
+  public int getFailedCount()
+  {
+    return failed;
+  }
+
+  public String toJSONString()
+  {
+    TransformerRegistry.Transformers transformers = TransformerRegistry.borrow(BatchResult.class);
+
+    try
+    {
+      return transformers.toJSONString(this, BatchResult.class.getName(), JSON_SCHEMA_VERSION);
+    }
+
+    finally
+    {
+      TransformerRegistry.release(transformers);
+    }
+  }
+
+
+
+  // Nested Classes -------------------------------------------------------------------------------
+
+  /**
+   * Outcome of a single batch entry.
+   */
+  public static class Item
+  {
+    private int index;
+
+    private String username;
+
+    private int status;
+
+    private Long accountId;
+
+    private String message;
+
+    private Item(int index, String username, int status, Long accountId, String message)
+    {
+      this.index = index;
+      this.username = username;
+      this.status = status;
+      this.accountId = accountId;
+      this.message = message;
+    }
+
+    public int getIndex()
+    {
+      return index;
+    }
+
+    public String getUsername()
+    {
+      return username;
+    }
+
+    public int getStatus()
+    {
+      return status;
+    }
+
+    public Long getAccountId()
+    {
+      return accountId;
+    }
+
+    public String getMessage()
+    {
+      return message;
+    }
+  }
+
+
+  /**
+   * JSON transformer for the batch result document.
+   */
+  public static class ResultTransformer extends JSONTransformer<BatchResult>
+  {
+    public ResultTransformer()
+    {
+      super(BatchResult.class);
+    }
+
+    @Override protected void write(BatchResult result)
+    {
+      startObject();
+
+      writeProperty(SUCCEEDED_JSON_PROPERTY_NAME, result.succeeded);
+      writeProperty(FAILED_JSON_PROPERTY_NAME, result.failed);
+      writeArray(RESULTS_JSON_PROPERTY_NAME, result.items);
+
+      endObject();
+    }
+
+    @Override protected BatchResult deserialize(JSONModel model) throws DeserializationException
+    {
+      BatchResult result = new BatchResult();
+
+      List<ModelObject> array = model.getModel().getObjectArray(RESULTS_JSON_PROPERTY_NAME);
+
+      if (array == null)
+      {
+        return result;
+      }
+
+      for (ModelObject object : array)
+      {
+        Number index = object.getNumberAttribute(INDEX_JSON_PROPERTY_NAME);
+        Number status = object.getNumberAttribute(STATUS_JSON_PROPERTY_NAME);
+        String accountId = object.getAttribute(ACCOUNT_ID_JSON_PROPERTY_NAME);
+
+        if (index == null || status == null)
+        {
+          throw new DeserializationException("Batch result item is missing index or status.");
+        }
+
+        Item item = new Item(
+            index.intValue(),
+            object.getAttribute(USERNAME_JSON_PROPERTY_NAME),
+            status.intValue(),
+            (accountId == null) ? null : Long.valueOf(accountId),
+            object.getAttribute(MESSAGE_JSON_PROPERTY_NAME)
+        );
+
+        result.items.add(item);
+
+        if (item.status < 300)
+        {
+          result.succeeded++;
+        }
+
+        else
+        {
+          result.failed++;
+        }
+      }
+
+      return result;
+    }
+  }
+
+
+  /**
+   * JSON transformer for individual items in the batch result document.
+   */
+  static class ItemTransformer extends JSONTransformer<Item>
+  {
+    ItemTransformer()
+    {
+      super(Item.class);
+    }
+
+    @Override protected void write(Item item)
+    {
+      startObject();
+
+      writeProperty(INDEX_JSON_PROPERTY_NAME, item.index);
+
+      if (item.username != null)
+      {
+        writeProperty(USERNAME_JSON_PROPERTY_NAME, item.username);
+      }
+
+      writeProperty(STATUS_JSON_PROPERTY_NAME, item.status);
+
+      if (item.accountId != null)
+      {
+        writeProperty(ACCOUNT_ID_JSON_PROPERTY_NAME, item.accountId.toString());
+      }
+
+      if (item.message != null)
+      {
+        writeProperty(MESSAGE_JSON_PROPERTY_NAME, item.message);
+      }
+
+      endObject();
+    }
+
+    @Override protected Item deserialize(JSONModel model) throws DeserializationException
+    {
+      throw new DeserializationException(
+          "Batch result items are deserialized as part of the batch result document."
+      );
+    }
+  }
+}
@@ -20,17 +20,13 @@
  */
 package org.openremote.beehive.account.model;
 
-import java.io.StringReader;
-
-import java.util.HashMap;
+import java.util.Collections;
+import java.util.Enumeration;
 import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Locale;
-import java.util.Map;
 import java.util.Set;
-import java.util.concurrent.CopyOnWriteArraySet;
-
-import flexjson.transformer.Transformer;
 
 import org.openremote.base.Defaults;
 import org.openremote.base.exception.IncorrectImplementationException;
@@ -65,6 +61,17 @@ public class CustomerFulfillment extends UserRegistration
   public static final String JSON_HTTP_CONTENT_TYPE =
       "application/vnd.openremote.customer-fulfillment+json";
 
+  /**
+   * Default maximum number of controllers accepted in a single customer fulfillment: {@value}
+   */
+  public static final int DEFAULT_MAX_CONTROLLERS = 10000;
+
+  /**
+   * Default maximum number of MAC addresses accepted for a single controller in a customer
+   * fulfillment: {@value}
+   */
+  public static final int DEFAULT_MAX_MAC_ADDRESSES = 64;
+
 
   // Class Members --------------------------------------------------------------------------------
 
@@ -72,9 +79,19 @@ public class CustomerFulfillment extends UserRegistration
           AccountManager.Log.REGISTRATION_DESERIALIZE.getCanonicalLogHierarchyName());
 
 
+
+
   // Instance Fields ------------------------------------------------------------------------------
 
-  protected Set<Controller> controllers = new CopyOnWriteArraySet<Controller>();
+  /**
+   * Controllers of this fulfillment in insertion order. Controllers are collected into a
+   * plain set while the fulfillment is built by a single thread. Once the fulfillment is
+   * complete, the set is frozen into an unmodifiable view that can be shared by copies and
+   * read by other threads.
+   */
+  protected Set<Controller> controllers = new LinkedHashSet<Controller>();
+
+  private boolean frozen = false;
 
 
 
@@ -95,9 +112,17 @@ public class CustomerFulfillment extends UserRegistration
   {
     super(copy, new UserAuthentication(copy));
 
-    if (!copy.controllers.isEmpty())
+    // a frozen controller set is immutable and can be shared with the copy...
+
+    if (copy.frozen)
+    {
+      this.controllers = copy.controllers;
+      this.frozen = true;
+    }
+
+    else if (!copy.controllers.isEmpty())
     {
-      this.controllers = new CopyOnWriteArraySet<Controller>(copy.controllers);
+      this.controllers = new LinkedHashSet<Controller>(copy.controllers);
     }
   }
 
@@ -120,16 +145,32 @@ public class CustomerFulfillment extends UserRegistration
 
   @Override public String toJSONString()
   {
-    Map<Class<?>, Transformer> transformers = new HashMap<Class<?>, Transformer>();
-    transformers.put(CustomerFulfillment.class, jsonTransformer);
-    transformers.put(Controller.class, new ControllerTransformer());
+    TransformerRegistry.Transformers transformers =
+        TransformerRegistry.borrow(CustomerFulfillment.class);
 
-    return JSONHeader.toJSON(this, CustomerFulfillment.class.getName(), JSON_SCHEMA_VERSION, transformers);
+    try
+    {
+      return transformers.toJSONString(this, CustomerFulfillment.class.getName(), JSON_SCHEMA_VERSION);
+    }
+
+    finally
+    {
+      TransformerRegistry.release(transformers);
+    }
   }
 
 
   // Public Instance Methods ----------------------------------------------------------------------
 
+  /**
+   * Adds a controller to this fulfillment. The controller limits are not enforced, use a
+   * {@link Builder} for fulfillments built from untrusted input.
+   *
+   * @param controller    controller to add, <tt>null</tt> values are ignored
+   *
+   * @throws IncorrectImplementationException
+   *            if the fulfillment's controllers have already been frozen
+   */
   public void add(Controller controller)
   {
     // don't allow nulls into the set...
@@ -139,12 +180,234 @@ public class CustomerFulfillment extends UserRegistration
       return;
     }
 
+    if (frozen)
+    {
+      throw new IncorrectImplementationException(
+          "Controllers cannot be added to a completed customer fulfillment ''{0}''.", username
+      );
+    }
+
     controllers.add(controller);
   }
 
+  /**
+   * Returns the controllers of this fulfillment in the order they were added.
+   *
+   * @return  unmodifiable set of controllers
+   */
+  public Set<Controller> getControllers()
+  {
+    return frozen ? controllers : Collections.unmodifiableSet(controllers);
+  }
+
+
+
+  // Private Instance Methods ---------------------------------------------------------------------
+
+  private CustomerFulfillment freeze(Set<Controller> controllerSet)
+  {
+    this.controllers = Collections.unmodifiableSet(controllerSet);
+    this.frozen = true;
+
+    return this;
+  }
+
 
   // Nested Classes -------------------------------------------------------------------------------
 
+  /**
+   * Upper limits enforced on customer fulfillments deserialized from JSON documents and on
+   * fulfillments created with a {@link Builder}. The account manager service configures its
+   * own limits per application, see its fulfillment and batch readers. <p>
+   *
+   * Instances are immutable.
+   */
+  public static final class Limits
+  {
+    /**
+     * Limits of {@link #DEFAULT_MAX_CONTROLLERS} controllers and
+     * {@link #DEFAULT_MAX_MAC_ADDRESSES} MAC addresses per controller.
+     */
+    public static final Limits DEFAULT = new Limits(DEFAULT_MAX_CONTROLLERS, DEFAULT_MAX_MAC_ADDRESSES);
+
+    private int maxControllers;
+
+    private int maxMacAddresses;
+
+    /**
+     * @param maxControllers
+     *          maximum number of controllers in a single fulfillment
+     *
+     * @param maxMacAddresses
+     *          maximum number of MAC addresses of a single controller
+     */
+    public Limits(int maxControllers, int maxMacAddresses)
+    {
+      if (maxControllers < 1 || maxMacAddresses < 1)
+      {
+        throw new IncorrectImplementationException(
+            "Controller limits must be positive, got {0} controllers and {1} MAC addresses.",
+            maxControllers, maxMacAddresses
+        );
+      }
+
+      this.maxControllers = maxControllers;
+      this.maxMacAddresses = maxMacAddresses;
+    }
+
+    /**
+     * @return  maximum number of controllers in a single fulfillment
+     */
+    public int getMaxControllers()
+    {
+      return maxControllers;
+    }
+
+    /**
+     * @return  maximum number of MAC addresses of a single controller in a fulfillment
+     */
+    public int getMaxMacAddresses()
+    {
+      return maxMacAddresses;
+    }
+  }
+
+  /**
+   * Builds a customer fulfillment with any number of controllers, up to the given
+   * {@link Limits limits}. The controllers are collected into a plain set that
+   * is handed over to the built fulfillment as is, frozen into an unmodifiable view, without
+   * copying. <p>
+   *
+   * A builder is meant to be used by a single thread. After {@link #build()} the builder
+   * starts over with an empty set of controllers.
+   */
+  public static class Builder
+  {
+    private UserRegistration registration;
+
+    private Limits limits;
+
+    private Set<Controller> controllers = new LinkedHashSet<Controller>();
+
+    /**
+     * Creates a builder with the {@link Limits#DEFAULT default limits}.
+     *
+     * @param registration    user registration of the fulfillment
+     */
+    public Builder(UserRegistration registration)
+    {
+      this(registration, Limits.DEFAULT);
+    }
+
+    /**
+     * @param registration    user registration of the fulfillment
+     * @param limits          upper limits of the fulfillment's controllers
+     */
+    public Builder(UserRegistration registration, Limits limits)
+    {
+      if (registration == null)
+      {
+        throw new IncorrectImplementationException("Null user registration in fulfillment builder.");
+      }
+
+      if (limits == null)
+      {
+        throw new IncorrectImplementationException("Null limits in fulfillment builder.");
+      }
+
+      this.registration = registration;
+      this.limits = limits;
+    }
+
+    /**
+     * Adds a controller.
+     *
+     * @param controller    controller to add, <tt>null</tt> values are ignored
+     *
+     * @return  this builder
+     *
+     * @throws ValidationException
+     *            if the fulfillment would exceed the maximum number of controllers
+     */
+    public Builder add(Controller controller) throws ValidationException
+    {
+      if (controller == null || controllers.contains(controller))
+      {
+        return this;
+      }
+
+      if (controllers.size() >= limits.maxControllers)
+      {
+        throw new ValidationException(
+            "Customer fulfillment for ''{0}'' exceeds the maximum of {1} controllers.",
+            registration.getName(), limits.maxControllers
+        );
+      }
+
+      controllers.add(controller);
+
+      return this;
+    }
+
+    /**
+     * Adds a new controller with the given MAC addresses.
+     *
+     * @param macAddresses    MAC addresses of the controller
+     *
+     * @return  this builder
+     *
+     * @throws ValidationException
+     *            if the controller exceeds the maximum number of MAC addresses, or the
+     *            fulfillment the maximum number of controllers
+     */
+    public Builder addController(String... macAddresses) throws ValidationException
+    {
+      if (macAddresses.length > limits.maxMacAddresses)
+      {
+        throw new ValidationException(
+            "Controller with {0} MAC addresses exceeds the maximum of {1}.",
+            macAddresses.length, limits.maxMacAddresses
+        );
+      }
+
+      Controller controller = new Controller();
+
+      for (String macAddress : macAddresses)
+      {
+        controller.addMacAddress(macAddress);
+      }
+
+      return add(controller);
+    }
+
+    /**
+     * Returns the number of controllers added so far.
+     *
+     * @return  controller count
+     */
+    public int getControllerCount()
+    {
+      return controllers.size();
+    }
+
+    /**
+     * Creates the customer fulfillment with the controllers added so far.
+     *
+     * @return  new customer fulfillment
+     */
+    public CustomerFulfillment build()
+    {
+      CustomerFulfillment fulfillment = new CustomerFulfillment(registration, null);
+
+      fulfillment.freeze(controllers);
+
+      controllers = new LinkedHashSet<Controller>();
+
+      return fulfillment;
+    }
+  }
+
+
   public static class FulfillmentTransformer extends UserTransformer
   {
 
@@ -156,6 +419,49 @@ public class CustomerFulfillment extends UserRegistration
      */
     public static final String CONTROLLERS_JSON_PROPERTY_NAME = "controllers";
 
+    /**
+     * The JSON header property name of the class name of a nested controller document.
+     */
+    private static final String CLASS_NAME_JSON_PROPERTY_NAME = "javaFullClassName";
+
+    /**
+     * The JSON header property name of the library name of a nested controller document.
+     */
+    private static final String LIBRARY_NAME_JSON_PROPERTY_NAME = "libraryName";
+
+    /**
+     * The JSON header property name of the model of a nested controller document.
+     */
+    private static final String MODEL_JSON_PROPERTY_NAME = "model";
+
+
+
+    // Instance Fields ----------------------------------------------------------------------------
+
+    private Limits limits = Limits.DEFAULT;
+
+
+
+    // Public Instance Methods --------------------------------------------------------------------
+
+    /**
+     * Sets the upper limits enforced on the fulfillments deserialized with this transformer.
+     * Transformers are pooled and shared between readers, see
+     * {@link TransformerRegistry}, so a reader must set its limits each time it has borrowed
+     * the transformer.
+     *
+     * @param limits  upper limits of a fulfillment's controllers
+     */
+    public void setLimits(Limits limits)
+    {
+      if (limits == null)
+      {
+        throw new IncorrectImplementationException("Null customer fulfillment limits.");
+      }
+
+      this.limits = limits;
+    }
+
 
 
     // UserTransformer Overrides ------------------------------------------------------------------
@@ -218,27 +524,36 @@ public class CustomerFulfillment extends UserRegistration
       );
 
 
-      // Check if controller objects are included...
+      CustomerFulfillment fulfillment = new CustomerFulfillment(registration, null);
+
 
-      Controller ctrl = null;
+      // Check if controller objects are included. The controllers have already been parsed
+      // as part of the fulfillment document, build them directly from the parsed model...
 
       List<ModelObject> controllerArray = model.getModel()
           .getObjectArray(CONTROLLERS_JSON_PROPERTY_NAME);
 
-      if (controllerArray != null && !controllerArray.isEmpty())
+      if (controllerArray == null)
       {
-        // TODO : this only allows a single controller to be associated per fulfillment, for now
+        return fulfillment.freeze(fulfillment.controllers);
+      }
 
-        // TODO :
-        //        we need to convert incoming ModelObject back to raw JSON string for the
-        //        transformer to deserialize, find a better solution for this
+      if (controllerArray.size() > limits.maxControllers)
+      {
+        throw new DeserializationException(
+            "Customer fulfillment has {0} controllers, the maximum is {1}.",
+            controllerArray.size(), limits.maxControllers
+        );
+      }
 
-        StringReader reader = new StringReader(controllerArray.get(0).toString());
+      Set<Controller> controllerSet = new LinkedHashSet<Controller>(controllerArray.size() * 2);
 
-        ctrl = new ControllerTransformer().read(reader);
+      for (int index = 0; index < controllerArray.size(); ++index)
+      {
+        controllerSet.add(deserializeController(index, controllerArray.get(index)));
       }
 
-      return new CustomerFulfillment(registration, ctrl);
+      return fulfillment.freeze(controllerSet);
     }
 
 
@@ -246,6 +561,105 @@ public class CustomerFulfillment extends UserRegistration
     // Private Instance Methods -------------------------------------------------------------------
 
 
+    /**
+     * Builds a controller from its already parsed JSON document. The document is expected to
+     * be in the format written by {@link #writeExtendedProperties(User)}, that is, a controller
+     * model wrapped in the object model's JSON header.
+     *
+     * @param index     position of the controller in the fulfillment's controller array
+     * @param element   parsed controller document
+     *
+     * @return  controller instance
+     *
+     * @throws DeserializationException
+     *            if the document is not a controller document
+     */
+    private Controller deserializeController(int index, ModelObject element)
+        throws DeserializationException
+    {
+      checkControllerHeader(index, element);
+
+      ModelObject ctrl = element.getObject(MODEL_JSON_PROPERTY_NAME);
+
+      if (ctrl == null)
+      {
+        throw new DeserializationException("Controller {0} is missing its model.", index);
+      }
+
+      if (ctrl.hasObject(ControllerTransformer.CONFIGURATION_JSON_PROPERTY_NAME))
+      {
+        throw new DeserializationException(
+            "Controller {0} includes configurations, which are not supported.", index
+        );
+      }
+
+      List<String> macAddresses =
+          ctrl.getStringArray(ControllerTransformer.MAC_ADDRESSES_JSON_PROPERTY_NAME);
+
+      if (macAddresses != null && macAddresses.size() > limits.maxMacAddresses)
+      {
+        throw new DeserializationException(
+            "Controller {0} has {1} MAC addresses, the maximum is {2}.",
+            index, macAddresses.size(), limits.maxMacAddresses
+        );
+      }
+
+      // the controller constructor rejects a missing identity as an implementation error,
+      // report it as a malformed document instead...
+
+      String identity = ctrl.getAttribute(ControllerTransformer.IDENTITY_JSON_PROPERTY_NAME);
+
+      if (identity == null || identity.isEmpty())
+      {
+        throw new DeserializationException("Controller {0} is missing its identity.", index);
+      }
+
+      Controller controller = new Controller(
+          identity,
+          (macAddresses == null) ? new HashSet<String>() : new HashSet<String>(macAddresses),
+          ctrl.getAttribute(ControllerTransformer.NAME_JSON_PROPERTY_NAME),
+          ctrl.getAttribute(ControllerTransformer.DESCRIPTION_JSON_PROPERTY_NAME)
+      );
+
+      ModelObject attributes =
+          ctrl.getObject(ControllerTransformer.CONTROLLER_ATTRIBUTES_JSON_PROPERTY_NAME);
+
+      if (attributes != null)
+      {
+        Enumeration<ModelObject.Attribute> enumeration = attributes.getAttributes();
+
+        while (enumeration.hasMoreElements())
+        {
+          ModelObject.Attribute attribute = enumeration.nextElement();
+
+          controller.addAttribute(attribute.getName(), attribute.getValue());
+        }
+      }
+
+      return controller;
+    }
+
+    private void checkControllerHeader(int index, ModelObject element)
+        throws DeserializationException
+    {
+      String library = element.getAttribute(LIBRARY_NAME_JSON_PROPERTY_NAME);
+      String className = element.getAttribute(CLASS_NAME_JSON_PROPERTY_NAME);
+
+      if (library != null && !library.equalsIgnoreCase(JSONHeader.LIBRARY_NAME))
+      {
+        throw new DeserializationException(
+            "Controller {0} has an unrecognized library name ''{1}''.", index, library
+        );
+      }
+
+      if (className != null && !className.equals(Controller.class.getName()))
+      {
+        throw new DeserializationException(
+            "Controller {0} has an unexpected type ''{1}''.", index, className
+        );
+      }
+    }
+
     // TODO : replace repeated code from UserRegistrationReader
     private byte[] extractMandatoryCredentials(User user) throws DeserializationException
     {
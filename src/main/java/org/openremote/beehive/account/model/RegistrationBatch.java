@@ -0,0 +1,274 @@
+/*
+ * OpenRemote, the Home of the Digital Home.
+ * Copyright 2008-2015, OpenRemote Inc.
+ *
+ * See the contributors.txt file in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.openremote.beehive.account.model;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+
+
+/**
+ * A batch of user registrations and/or customer fulfillments submitted in a single request. <p>
+ *
+ * The batch is a single-pass sequence of entries. When deserialized on the service side the
+ * entries are produced lazily from the incoming request stream so the entire batch is never
+ * held in memory at once. Each entry carries either a successfully deserialized registration
+ * or the reason it could not be deserialized, allowing the rest of the batch to be processed
+ * even if individual entries are malformed. <p>
+ *
+ * The JSON representation of a batch is a JSON array where each element is a complete user
+ * registration or customer fulfillment JSON document. Alternatively a batch can be streamed
+ * as newline delimited JSON (NDJSON) where each line holds one such document.
+ *
+ * @author Juha Lindfors
+ */
+public class RegistrationBatch implements Iterable<RegistrationBatch.Entry>
+{
+
+  // Constants ------------------------------------------------------------------------------------
+
+  public static final String JSON_HTTP_CONTENT_TYPE =
+      "application/vnd.openremote.registration-batch+json";
+
+  public static final String NDJSON_HTTP_CONTENT_TYPE = "application/x-ndjson";
+
+
+
+  // Class Members --------------------------------------------------------------------------------
+
+  /**
+   * Collapses a (pretty printed) JSON document onto a single line so it can be used as a
+   * record in a newline delimited JSON stream. Line breaks never appear unescaped inside
+   * JSON string values, so any line break and the indentation following it can be removed.
+   *
+   * @param json  JSON document
+   *
+   * @return  the same JSON document without line breaks
+   */
+  public static String toSingleLine(String json)
+  {
+    StringBuilder builder = new StringBuilder(json.length());
+
+    boolean lineStart = false;
+
+    for (int i = 0; i < json.length(); ++i)
+    {
+      char c = json.charAt(i);
+
+      if (c == '\n' || c == '\r')
+      {
+        lineStart = true;
+      }
+
+      else if (!lineStart || !Character.isWhitespace(c))
+      {
+        lineStart = false;
+
+        builder.append(c);
+      }
+    }
+
+    return builder.toString();
+  }
+
+
+
+  // Instance Fields ------------------------------------------------------------------------------
+
+  private Iterator<Entry> entries;
+
+
+
+  // Constructors ---------------------------------------------------------------------------------
+
+  /**
+   * Creates a batch from an existing collection of registrations.
+   *
+   * @param registrations
+   *          user registrations and/or customer fulfillments to include in this batch
+   */
+  public RegistrationBatch(Collection<? extends UserRegistration> registrations)
+  {
+    List<Entry> list = new ArrayList<Entry>(registrations.size());
+
+    int index = 0;
+
+    for (UserRegistration registration : registrations)
+    {
+      list.add(new Entry(index++, registration));
+    }
+
+    this.entries = list.iterator();
+  }
+
+  /**
+   * Creates a batch from a lazily evaluated sequence of entries.
+   *
+   * @param entries
+   *          batch entries
+   */
+  public RegistrationBatch(Iterator<Entry> entries)
+  {
+    this.entries = entries;
+  }
+
+
+
+  // Iterable Implementation ----------------------------------------------------------------------
+
+  /**
+   * Returns the entries of this batch. Note that a batch can only be iterated once.
+   *
+   * @return  batch entries
+   */
+  @Override public Iterator<Entry> iterator()
+  {
+    if (entries == null)
+    {
+      throw new IllegalStateException("Registration batch has already been iterated.");
+    }
+
+    Iterator<Entry> iterator = entries;
+
+    entries = null;
+
+    return iterator;
+  }
+
+
+
+  // Public Instance Methods ----------------------------------------------------------------------
+
+  /**
+   * Serializes this batch into its JSON array representation. This consumes the batch.
+   *
+   * @return  JSON array of user registration and customer fulfillment documents
+   */
+  public String toJSONString()
+  {
+    StringBuilder builder = new StringBuilder(1024);
+
+    builder.append('[');
+
+    boolean first = true;
+
+    for (Entry entry : this)
+    {
+      if (entry.registration == null)
+      {
+        continue;
+      }
+
+      if (!first)
+      {
+        builder.append(',');
+      }
+
+      builder.append(entry.registration.toJSONString());
+
+      first = false;
+    }
+
+    builder.append(']');
+
+    return builder.toString();
+  }
+
+  /**
+   * Serializes this batch into its newline delimited JSON representation, one registration
+   * document per line. This consumes the batch.
+   *
+   * @return  NDJSON stream of user registration and customer fulfillment documents
+   */
+  public String toNDJSONString()
+  {
+    StringBuilder builder = new StringBuilder(1024);
+
+    for (Entry entry : this)
+    {
+      if (entry.registration != null)
+      {
+        builder.append(toSingleLine(entry.registration.toJSONString())).append('\n');
+      }
+    }
+
+    return builder.toString();
+  }
+
+
+
+  // Nested Classes -------------------------------------------------------------------------------
+
+  /**
+   * A single entry in a registration batch.
+   */
+  public static class Entry
+  {
+    private int index;
+
+    private UserRegistration registration;
+
+    private String error;
+
+    public Entry(int index, UserRegistration registration)
+    {
+      this.index = index;
+      this.registration = registration;
+    }
+
+    public Entry(int index, String error)
+    {
+      this.index = index;
+      this.error = error;
+    }
+
+    /**
+     * Returns the zero-based position of this entry in the batch.
+     */
+    public int getIndex()
+    {
+      return index;
+    }
+
+    /**
+     * Returns the registration in this entry, or <tt>null</tt> if it could not be deserialized.
+     */
+    public UserRegistration getRegistration()
+    {
+      return registration;
+    }
+
+    /**
+     * Returns the reason this entry could not be deserialized, or <tt>null</tt> if the
+     * entry is valid.
+     */
+    public String getError()
+    {
+      return error;
+    }
+
+    public boolean isValid()
+    {
+      return registration != null;
+    }
+  }
+}
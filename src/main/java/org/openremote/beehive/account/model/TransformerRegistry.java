@@ -0,0 +1,414 @@
+/*
+ * OpenRemote, the Home of the Digital Home.
+ * Copyright 2008-2015, OpenRemote Inc.
+ *
+ * See the contributors.txt file in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.openremote.beehive.account.model;
+
+import java.io.Reader;
+import java.io.Writer;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import flexjson.JSONSerializer;
+import flexjson.transformer.Transformer;
+
+import org.openremote.base.Version;
+import org.openremote.base.exception.IncorrectImplementationException;
+
+import org.openremote.model.Controller;
+import org.openremote.model.User;
+import org.openremote.model.data.json.ControllerTransformer;
+import org.openremote.model.data.json.DeserializationException;
+import org.openremote.model.data.json.JSONHeader;
+import org.openremote.model.data.json.JSONTransformer;
+import org.openremote.model.data.json.UserTransformer;
+
+
+/**
+ * Pools of pre-configured JSON transformers for the documents handled by the account
+ * manager. <p>
+ *
+ * Each document type has a set of transformers for the document and the types nested in it,
+ * and a FlexJSON serializer already configured with those transformers. Setting up a new
+ * serializer and its type transformer mappings for each document, as
+ * {@link JSONHeader#toJSON} does, is repeated work on every request. The object model's JSON
+ * transformers also keep state while writing a document and are not thread-safe, so the
+ * transformer sets are pooled and confined to a single thread at a time: a set is borrowed
+ * with {@link #borrow(Class)} and must be returned with {@link #release(Transformers)} once
+ * the document has been read or written: <p>
+ *
+ * <pre>
+ *   TransformerRegistry.Transformers transformers = TransformerRegistry.borrow(User.class);
+ *
+ *   try
+ *   {
+ *     return transformers.read(User.class, reader);
+ *   }
+ *
+ *   finally
+ *   {
+ *     TransformerRegistry.release(transformers);
+ *   }
+ * </pre>
+ *
+ * Transformers are registered by default for {@link User}, {@link CustomerFulfillment},
+ * {@link BatchResult} and {@link AccountListing} documents. Additional document types can be
+ * added with {@link #register(Class, Factory)}.
+ *
+ * @author Juha Lindfors
+ */
+public final class TransformerRegistry
+{
+
+  // Constants ------------------------------------------------------------------------------------
+
+  /**
+   * Maximum number of idle transformer sets retained per document type: {@value}
+   */
+  public static final int MAX_IDLE_TRANSFORMERS = 64;
+
+
+
+  // Class Members --------------------------------------------------------------------------------
+
+  private static final ConcurrentMap<Class<?>, Pool> pools = new ConcurrentHashMap<Class<?>, Pool>();
+
+
+  static
+  {
+    register(User.class, new Factory()
+    {
+      @Override public Map<Class<?>, Transformer> createTransformers()
+      {
+        Map<Class<?>, Transformer> transformers = new HashMap<Class<?>, Transformer>();
+        transformers.put(User.class, new UserTransformer());
+
+        return transformers;
+      }
+    });
+
+    register(CustomerFulfillment.class, new Factory()
+    {
+      @Override public Map<Class<?>, Transformer> createTransformers()
+      {
+        Map<Class<?>, Transformer> transformers = new HashMap<Class<?>, Transformer>();
+        transformers.put(CustomerFulfillment.class, new CustomerFulfillment.FulfillmentTransformer());
+        transformers.put(Controller.class, new ControllerTransformer());
+
+        return transformers;
+      }
+    });
+
+    register(BatchResult.class, new Factory()
+    {
+      @Override public Map<Class<?>, Transformer> createTransformers()
+      {
+        Map<Class<?>, Transformer> transformers = new HashMap<Class<?>, Transformer>();
+        transformers.put(BatchResult.class, new BatchResult.ResultTransformer());
+        transformers.put(BatchResult.Item.class, new BatchResult.ItemTransformer());
+
+        return transformers;
+      }
+    });
+
+    register(AccountListing.class, new Factory()
+    {
+      @Override public Map<Class<?>, Transformer> createTransformers()
+      {
+        Map<Class<?>, Transformer> transformers = new HashMap<Class<?>, Transformer>();
+        transformers.put(AccountListing.class, new AccountListing.ListingTransformer());
+        transformers.put(AccountListing.AccountEntry.class, new AccountListing.AccountTransformer());
+        transformers.put(AccountListing.ControllerEntry.class, new AccountListing.ControllerTransformer());
+
+        return transformers;
+      }
+    });
+  }
+
+
+  /**
+   * Registers the transformers for a document type. Replaces any previous registration for
+   * the same type.
+   *
+   * @param documentType
+   *          the top level type of the document
+   *
+   * @param factory
+   *          creates the transformers for the document type and the types nested in it; the
+   *          document type itself must be included
+   */
+  public static void register(Class<?> documentType, Factory factory)
+  {
+    pools.put(documentType, new Pool(documentType, factory));
+  }
+
+  /**
+   * Returns a set of transformers for a document type for the exclusive use of the calling
+   * thread. The set must be returned with {@link #release(Transformers)} when done.
+   *
+   * @param documentType
+   *          the top level type of the document
+   *
+   * @return  transformers for the given document type
+   *
+   * @throws IncorrectImplementationException
+   *            if no transformers have been registered for the document type
+   */
+  public static Transformers borrow(Class<?> documentType)
+  {
+    Pool pool = pools.get(documentType);
+
+    if (pool == null)
+    {
+      throw new IncorrectImplementationException(
+          "No JSON transformers registered for ''{0}''.", documentType.getName()
+      );
+    }
+
+    Transformers transformers = pool.idle.poll();
+
+    if (transformers != null)
+    {
+      pool.idleCount.decrementAndGet();
+
+      return transformers;
+    }
+
+    return new Transformers(pool);
+  }
+
+  /**
+   * Returns a set of transformers borrowed with {@link #borrow(Class)} to the registry.
+   *
+   * @param transformers
+   *          transformers to return, may be <tt>null</tt>
+   */
+  public static void release(Transformers transformers)
+  {
+    if (transformers == null)
+    {
+      return;
+    }
+
+    Pool pool = transformers.pool;
+
+    // discard sets of replaced registrations, and sets above the pool limit...
+
+    if (pools.get(pool.documentType) != pool)
+    {
+      return;
+    }
+
+    if (pool.idleCount.incrementAndGet() > MAX_IDLE_TRANSFORMERS)
+    {
+      pool.idleCount.decrementAndGet();
+
+      return;
+    }
+
+    pool.idle.offer(transformers);
+  }
+
+
+
+  // Constructors ---------------------------------------------------------------------------------
+
+  private TransformerRegistry()
+  {
+
+  }
+
+
+
+  // Nested Classes -------------------------------------------------------------------------------
+
+  /**
+   * Creates new transformer instances for a document type.
+   */
+  public interface Factory
+  {
+    /**
+     * @return  new transformer instances for the document type and the types nested in it,
+     *          keyed by the type they transform
+     */
+    Map<Class<?>, Transformer> createTransformers();
+  }
+
+
+  /**
+   * A set of transformers and a serializer configured with them. Instances are not
+   * thread-safe and may only be used by the thread that borrowed them from the registry.
+   */
+  public static final class Transformers
+  {
+    private Pool pool;
+
+    private Map<Class<?>, Transformer> transformers;
+
+    private JSONSerializer serializer;
+
+    private Transformers(Pool pool)
+    {
+      this.pool = pool;
+      this.transformers = Collections.unmodifiableMap(pool.factory.createTransformers());
+
+      // Same serializer configuration as JSONHeader.toJSON()...
+
+      JSONSerializer json = new JSONSerializer()
+          .transform(new JSONHeader.HeaderTransformer(), JSONHeader.class)
+          .transform(new JSONHeader.VersionTransformer(), Version.class)
+          .exclude("*.class");
+
+      for (Map.Entry<Class<?>, Transformer> entry : transformers.entrySet())
+      {
+        json = json.transform(entry.getValue(), entry.getKey());
+      }
+
+      this.serializer = json;
+    }
+
+    /**
+     * Returns the transformers of this set.
+     *
+     * @return  unmodifiable map of transformers keyed by the type they transform
+     */
+    public Map<Class<?>, Transformer> getTransformerMap()
+    {
+      return transformers;
+    }
+
+    /**
+     * Deserializes a JSON document.
+     *
+     * @param type
+     *          the document type, or a type nested in it, to deserialize
+     *
+     * @param reader
+     *          the JSON document
+     *
+     * @return  deserialized instance
+     *
+     * @throws DeserializationException
+     *            if the document cannot be deserialized to the requested type
+     */
+    public <T> T read(Class<T> type, Reader reader) throws DeserializationException
+    {
+      Transformer transformer = transformers.get(type);
+
+      if (!(transformer instanceof JSONTransformer))
+      {
+        throw new IncorrectImplementationException(
+            "No JSON transformer for reading ''{0}''.", type.getName()
+        );
+      }
+
+      Object result = ((JSONTransformer<?>)transformer).read(reader);
+
+      if (!type.isInstance(result))
+      {
+        throw new DeserializationException(
+            "Expected ''{0}'', got ''{1}''.",
+            type.getName(), (result == null) ? null : result.getClass().getName()
+        );
+      }
+
+      return type.cast(result);
+    }
+
+    /**
+     * Serializes a model instance with a JSON header, as {@link JSONHeader#toJSON} does.
+     *
+     * @param model
+     *          the model instance to serialize
+     *
+     * @param className
+     *          the class name to include in the JSON header
+     *
+     * @param schemaVersion
+     *          the schema version to include in the JSON header
+     *
+     * @return  pretty-printed JSON document
+     */
+    public String toJSONString(Object model, String className, Version schemaVersion)
+    {
+      return serializer.prettyPrint(true).serialize(new Header(model, className, schemaVersion));
+    }
+
+    /**
+     * Serializes a model instance with a JSON header into a character stream. The document
+     * is written without pretty-printing.
+     *
+     * @param model
+     *          the model instance to serialize
+     *
+     * @param className
+     *          the class name to include in the JSON header
+     *
+     * @param schemaVersion
+     *          the schema version to include in the JSON header
+     *
+     * @param writer
+     *          the character stream to write to
+     */
+    public void writeJSON(Object model, String className, Version schemaVersion, Writer writer)
+    {
+      serializer.prettyPrint(false).serialize(new Header(model, className, schemaVersion), writer);
+    }
+  }
+
+
+  /**
+   * Idle transformer sets of a single document type.
+   */
+  private static class Pool
+  {
+    private Class<?> documentType;
+
+    private Factory factory;
+
+    private Queue<Transformers> idle = new ConcurrentLinkedQueue<Transformers>();
+
+    private AtomicInteger idleCount = new AtomicInteger(0);
+
+    private Pool(Class<?> documentType, Factory factory)
+    {
+      this.documentType = documentType;
+      this.factory = factory;
+    }
+  }
+
+
+  /**
+   * JSON header with an explicit class name.
+   */
+  private static class Header extends JSONHeader<Object>
+  {
+    private Header(Object model, String className, Version schemaVersion)
+    {
+      super(model, className, schemaVersion);
+    }
+  }
+}
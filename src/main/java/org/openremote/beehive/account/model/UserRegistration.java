@@ -23,6 +23,7 @@ package org.openremote.beehive.account.model;
 import java.nio.ByteBuffer;
 import java.nio.CharBuffer;
 import java.util.Arrays;
+import java.util.Locale;
 
 import org.openremote.base.Defaults;
 
@@ -51,6 +52,20 @@ public class UserRegistration extends User
   public static final String JSON_HTTP_CONTENT_TYPE =
       "application/vnd.openremote.user-registration+json";
 
+  /**
+   * User attribute name that marks the registration credentials as already encoded for
+   * storage (for example, exported from an existing account database). The attribute value
+   * is the name of the {@link User.CredentialsEncoding} constant the credentials were encoded
+   * with: {@value}
+   */
+  public static final String ENCODED_CREDENTIALS_ATTRIBUTE_NAME = "encodedCredentials";
+
+  /**
+   * Placeholder value used in place of user credentials that are not disclosed. Registrations
+   * carrying this value as credentials must never be stored as an account password: {@value}
+   */
+  public static final String CREDENTIALS_NOT_PROVIDED = "<not provided>";
+
 
 //
 //  /**
@@ -163,6 +178,36 @@ public class UserRegistration extends User
   }
 
 
+  /**
+   * Creates a user registration that carries credentials already encoded for storage, such as
+   * a credential hash copied from an existing account database. The registration is marked with
+   * {@link #ENCODED_CREDENTIALS_ATTRIBUTE_NAME} so that the credentials are stored unchanged
+   * instead of being encoded again.
+   *
+   * @param user
+   *          the user details to register
+   *
+   * @param credentials
+   *          the encoded credentials
+   *
+   * @param encoding
+   *          the encoding the credentials were produced with
+   *
+   * @return  user registration with encoded credentials
+   */
+  public static UserRegistration withEncodedCredentials(User user, byte[] credentials,
+                                                        CredentialsEncoding encoding)
+  {
+    UserRegistration registration = new UserRegistration(
+        user, new Authentication(credentials, encoding)
+    );
+
+    registration.addAttribute(ENCODED_CREDENTIALS_ATTRIBUTE_NAME, encoding.name());
+
+    return registration;
+  }
+
+
   private static byte[] extractAuthCredentials(Authentication auth)
   {
     return new UserAuthentication(auth).credentials;
@@ -260,6 +305,62 @@ public class UserRegistration extends User
   }
 
 
+  // Public Instance Methods ----------------------------------------------------------------------
+
+  /**
+   * Returns the encoding of credentials that were registered already encoded for storage via
+   * {@link #withEncodedCredentials}.
+   *
+   * @return  credentials encoding, or <tt>null</tt> if the registration carries plain
+   *          credentials
+   *
+   * @throws ValidationException
+   *            if the encoded credentials marker does not name a known encoding
+   */
+  public CredentialsEncoding getEncodedCredentials() throws ValidationException
+  {
+    String encoding = getAttribute(ENCODED_CREDENTIALS_ATTRIBUTE_NAME);
+
+    if (encoding == null)
+    {
+      return null;
+    }
+
+    try
+    {
+      return CredentialsEncoding.valueOf(encoding.toUpperCase(Locale.ENGLISH));
+    }
+
+    catch (IllegalArgumentException e)
+    {
+      throw new ValidationException("Unknown credentials encoding ''{0}''.", encoding);
+    }
+  }
+
+  /**
+   * Removes the {@link #ENCODED_CREDENTIALS_ATTRIBUTE_NAME} marker from the user attributes of
+   * this registration so that it is not stored as a user attribute of the new user.
+   */
+  public void removeEncodedCredentialsMarker()
+  {
+    userAttributes.remove(ENCODED_CREDENTIALS_ATTRIBUTE_NAME);
+  }
+
+  /**
+   * Indicates whether this registration carries usable credentials. Registrations with empty
+   * credentials or with the {@link #CREDENTIALS_NOT_PROVIDED} placeholder have none.
+   *
+   * @return  true if credentials are present, false otherwise
+   */
+  public boolean hasCredentials()
+  {
+    String credentials = getAttribute(User.CREDENTIALS_ATTRIBUTE_NAME);
+
+    return credentials != null && !credentials.isEmpty()
+        && !credentials.equals(CREDENTIALS_NOT_PROVIDED);
+  }
+
+
   // Protected Instance Methods -------------------------------------------------------------------
 
   protected void validate() throws ValidationException
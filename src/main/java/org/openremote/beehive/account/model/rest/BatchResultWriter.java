@@ -0,0 +1,78 @@
+/*
+ * OpenRemote, the Home of the Digital Home.
+ * Copyright 2008-2015, OpenRemote Inc.
+ *
+ * See the contributors.txt file in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.openremote.beehive.account.model.rest;
+
+import org.openremote.beehive.account.model.BatchResult;
+import org.openremote.beehive.account.model.TransformerRegistry;
+
+import javax.ws.rs.Produces;
+import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.MultivaluedMap;
+import javax.ws.rs.ext.MessageBodyWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.annotation.Annotation;
+import java.lang.reflect.Type;
+
+/**
+ * Writes the per-item results of a batch operation to a JSON payload.
+ *
+ * @author Juha Lindfors
+ */
+@Produces({ MediaType.APPLICATION_JSON, BatchResult.JSON_HTTP_CONTENT_TYPE })
+public class BatchResultWriter implements MessageBodyWriter<BatchResult>
+{
+  @Override
+  public boolean isWriteable(Class<?> aClass, Type type, Annotation[] annotations, MediaType mediaType)
+  {
+    return BatchResult.class.isAssignableFrom(aClass);
+  }
+
+  @Override
+  public long getSize(BatchResult result, Class<?> aClass, Type type, Annotation[] annotations,
+                      MediaType mediaType)
+  {
+    return -1;
+  }
+
+  @Override
+  public void writeTo(BatchResult result, Class<?> aClass, Type type, Annotation[] annotations,
+                      MediaType mediaType, MultivaluedMap<String, Object> multivaluedMap,
+                      OutputStream outputStream) throws IOException, WebApplicationException
+  {
+    JSONEntityWriter json = new JSONEntityWriter(outputStream);
+
+    TransformerRegistry.Transformers transformers = TransformerRegistry.borrow(BatchResult.class);
+
+    try
+    {
+      transformers.writeJSON(result, BatchResult.class.getName(), BatchResult.JSON_SCHEMA_VERSION, json);
+    }
+
+    finally
+    {
+      TransformerRegistry.release(transformers);
+    }
+
+    json.finish(multivaluedMap);
+  }
+}
@@ -35,6 +35,7 @@ import javax.ws.rs.ext.MessageBodyReader;
 import org.openremote.model.data.json.DeserializationException;
 
 import org.openremote.beehive.account.model.CustomerFulfillment;
+import org.openremote.beehive.account.model.TransformerRegistry;
 import org.openremote.beehive.account.service.AccountManager;
 import org.openremote.beehive.account.service.HttpBadRequest;
 import org.openremote.beehive.account.service.HttpInternalError;
@@ -53,7 +54,9 @@ import org.slf4j.LoggerFactory;
  * ({@link CustomerFulfillment#JSON_HTTP_CONTENT_TYPE}). <p>
  *
  * If successful, will return a new instance of
- * {@link org.openremote.beehive.account.model.CustomerFulfillment}.
+ * {@link org.openremote.beehive.account.model.CustomerFulfillment}. Fulfillments that exceed
+ * the reader's {@link CustomerFulfillment.Limits controller limits} are rejected as bad
+ * requests.
  *
  * @author Juha Lindfors
  */
@@ -69,6 +72,35 @@ public class CustomerFulfillmentReader implements MessageBodyReader<CustomerFulf
 
 
 
+  // Instance Fields ------------------------------------------------------------------------------
+
+  private CustomerFulfillment.Limits limits;
+
+
+
+  // Constructors ---------------------------------------------------------------------------------
+
+  /**
+   * Creates a reader with the {@link CustomerFulfillment.Limits#DEFAULT default} controller
+   * limits.
+   */
+  public CustomerFulfillmentReader()
+  {
+    this(CustomerFulfillment.Limits.DEFAULT);
+  }
+
+  /**
+   * Creates a reader with the given controller limits.
+   *
+   * @param limits  upper limits of a fulfillment's controllers
+   */
+  public CustomerFulfillmentReader(CustomerFulfillment.Limits limits)
+  {
+    this.limits = limits;
+  }
+
+
+
   // Implements MessageBodyReader -----------------------------------------------------------------
 
   @Override public boolean isReadable(Class<?> type, Type genericType,
@@ -84,17 +116,35 @@ public class CustomerFulfillmentReader implements MessageBodyReader<CustomerFulf
   {
     try
     {
-      // TODO : set upper limit to request document size.
-      // TODO : enforce a request timeout
+      // Request document size and read time are bounded by the service's RequestEntityLimits
+      // interceptor before the document reaches this reader...
 
-      log.info("Deserializing customer fulfillment JSON document...");
+      log.debug("Deserializing customer fulfillment JSON document...");
 
-      CustomerFulfillment.FulfillmentTransformer transformer =
-          new CustomerFulfillment.FulfillmentTransformer();
+      TransformerRegistry.Transformers transformers =
+          TransformerRegistry.borrow(CustomerFulfillment.class);
 
-      return (CustomerFulfillment)transformer.read(
-          new BufferedReader(new InputStreamReader(entityStream))
-      );
+      try
+      {
+        ((CustomerFulfillment.FulfillmentTransformer)transformers.getTransformerMap()
+            .get(CustomerFulfillment.class)).setLimits(limits);
+
+        CustomerFulfillment fulfillment = transformers.read(
+            CustomerFulfillment.class, new BufferedReader(new InputStreamReader(entityStream))
+        );
+
+        // Credentials marked as already encoded are only accepted by the account import, a
+        // single fulfillment always has its credentials encoded by the service...
+
+        fulfillment.removeEncodedCredentialsMarker();
+
+        return fulfillment;
+      }
+
+      finally
+      {
+        TransformerRegistry.release(transformers);
+      }
     }
 
     catch (DeserializationException exception)
@@ -20,13 +20,10 @@
  */
 package org.openremote.beehive.account.model.rest;
 
-import flexjson.transformer.Transformer;
 import org.openremote.base.Version;
 import org.openremote.beehive.account.model.CustomerFulfillment;
+import org.openremote.beehive.account.model.TransformerRegistry;
 import org.openremote.model.Account;
-import org.openremote.model.Controller;
-import org.openremote.model.data.json.ControllerTransformer;
-import org.openremote.model.data.json.JSONHeader;
 import org.openremote.model.persistence.jpa.RelationalAccount;
 
 import javax.ws.rs.Produces;
@@ -36,21 +33,27 @@ import javax.ws.rs.core.MultivaluedMap;
 import javax.ws.rs.ext.MessageBodyWriter;
 import java.io.IOException;
 import java.io.OutputStream;
-import java.io.PrintWriter;
 import java.lang.annotation.Annotation;
 import java.lang.reflect.Type;
-import java.util.HashMap;
-import java.util.Map;
 
 /**
  * Writes a CustomerFulfillment instance to a JSON payload.
  * Account id is provided as an attribute of the returned payload.
  *
+ * The document is serialized directly as UTF-8 into the entity stream, see
+ * {@link JSONEntityWriter}.
+ *
  * @author <a href="mailto:eric@openremote.org">Eric Bariaux</a>
  */
 @Produces({ MediaType.APPLICATION_JSON })
 public class CustomerFulfillmentWriter implements MessageBodyWriter<CustomerFulfillment>
 {
+  /**
+   * Schema version of the written customer fulfillment documents.
+   */
+  private static final Version SCHEMA_VERSION = new Version(4, 0, 0);
+
+
   @Override
   public boolean isWriteable(Class<?> aClass, Type type, Annotation[] annotations, MediaType mediaType)
   {
@@ -61,7 +64,9 @@ public class CustomerFulfillmentWriter implements MessageBodyWriter<CustomerFulf
   public long getSize(CustomerFulfillment customerFulfillment, Class<?> aClass, Type type, Annotation[] annotations,
                       MediaType mediaType)
   {
-    return 0;
+    // content length is set in writeTo() when the document fits into the write buffer...
+
+    return -1;
   }
 
   @Override
@@ -82,11 +87,23 @@ public class CustomerFulfillmentWriter implements MessageBodyWriter<CustomerFulf
 
     }
 
-    PrintWriter pw = new PrintWriter(outputStream);
-    Map<Class<?>, Transformer> transformers = new HashMap<Class<?>, Transformer>();
-    transformers.put(CustomerFulfillment.class, new CustomerFulfillment.FulfillmentTransformer());
-    transformers.put(Controller.class, new ControllerTransformer());
-    pw.write(JSONHeader.toJSON(customerFulfillment, customerFulfillment.getClass().toString(), new Version(4, 0, 0), transformers));
-    pw.flush();
+    JSONEntityWriter json = new JSONEntityWriter(outputStream);
+
+    TransformerRegistry.Transformers transformers =
+        TransformerRegistry.borrow(CustomerFulfillment.class);
+
+    try
+    {
+      transformers.writeJSON(
+          customerFulfillment, CustomerFulfillment.class.getName(), SCHEMA_VERSION, json
+      );
+    }
+
+    finally
+    {
+      TransformerRegistry.release(transformers);
+    }
+
+    json.finish(multivaluedMap);
   }
 }
@@ -0,0 +1,258 @@
+/*
+ * OpenRemote, the Home of the Digital Home.
+ * Copyright 2008-2015, OpenRemote Inc.
+ *
+ * See the contributors.txt file in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.openremote.beehive.account.model.rest;
+
+import java.io.IOException;
+import java.io.Reader;
+
+import org.openremote.model.data.json.DeserializationException;
+
+
+/**
+ * Splits a JSON array of objects into its individual top-level elements without parsing the
+ * whole array document into memory first. Each call to {@link #nextElement()} consumes the
+ * character stream up to the end of the next array element and returns the raw JSON text
+ * of that element, which can then be handed to the appropriate JSON transformer. <p>
+ *
+ * Only the structure of the array is inspected (object nesting and string literals), the
+ * element content is left for the transformers to validate. The memory required is therefore
+ * bounded by the size of a single element rather than the size of the entire array, and a
+ * maximum element size is enforced to protect against unbounded documents.
+ *
+ * @author Juha Lindfors
+ */
+public class JSONArrayReader implements JSONElementReader
+{
+
+  // Constants ------------------------------------------------------------------------------------
+
+  /**
+   * Default maximum size of a single array element, in characters: {@value}
+   */
+  public static final int DEFAULT_MAX_ELEMENT_SIZE = 64 * 1024;
+
+
+
+  // Instance Fields ------------------------------------------------------------------------------
+
+  private Reader reader;
+
+  private int maxElementSize;
+
+  private boolean started = false;
+
+  private boolean finished = false;
+
+  private int elementCount = 0;
+
+  private StringBuilder buffer = new StringBuilder(1024);
+
+  private int depth;
+
+  private boolean inString;
+
+  private boolean escaped;
+
+
+
+  // Constructors ---------------------------------------------------------------------------------
+
+  public JSONArrayReader(Reader reader)
+  {
+    this(reader, DEFAULT_MAX_ELEMENT_SIZE);
+  }
+
+  public JSONArrayReader(Reader reader, int maxElementSize)
+  {
+    this.reader = reader;
+    this.maxElementSize = maxElementSize;
+  }
+
+
+
+  // Implements JSONElementReader ----------------------------------------------------------------
+
+  /**
+   * Returns the raw JSON text of the next object in the array.
+   *
+   * @return  JSON object as a string, or <tt>null</tt> if the end of array has been reached
+   *
+   * @throws DeserializationException
+   *            if the stream does not contain a well-formed JSON array of objects, or if an
+   *            element exceeds the configured maximum element size
+   *
+   * @throws IOException
+   *            if reading from the underlying stream fails
+   */
+  @Override public String nextElement() throws DeserializationException, IOException
+  {
+    if (finished)
+    {
+      return null;
+    }
+
+    if (!started)
+    {
+      if (nextNonWhitespace() != '[')
+      {
+        throw new DeserializationException("Expected a JSON array.");
+      }
+
+      started = true;
+    }
+
+    int c = nextNonWhitespace();
+
+    if (elementCount > 0)
+    {
+      if (c == ']')
+      {
+        finished = true;
+
+        return null;
+      }
+
+      if (c != ',')
+      {
+        throw new DeserializationException(
+            "Expected '','' or '']'' after array element {0}.", elementCount
+        );
+      }
+
+      c = nextNonWhitespace();
+    }
+
+    else if (c == ']')
+    {
+      finished = true;
+
+      return null;
+    }
+
+    if (c != '{')
+    {
+      throw new DeserializationException(
+          "Array element {0} is not a JSON object.", elementCount
+      );
+    }
+
+    readObject();
+
+    elementCount++;
+
+    return buffer.toString();
+  }
+
+  /**
+   * Returns the number of array elements read so far.
+   *
+   * @return  element count
+   */
+  @Override public int getElementCount()
+  {
+    return elementCount;
+  }
+
+
+
+  // Private Instance Methods ---------------------------------------------------------------------
+
+  private void readObject() throws DeserializationException, IOException
+  {
+    buffer.setLength(0);
+    buffer.append('{');
+
+    depth = 1;
+    inString = false;
+    escaped = false;
+
+    while (depth > 0)
+    {
+      int c = reader.read();
+
+      if (c == -1)
+      {
+        throw new DeserializationException(
+            "Unexpected end of stream in array element {0}.", elementCount
+        );
+      }
+
+      if (buffer.length() >= maxElementSize)
+      {
+        throw new DeserializationException(
+            "Array element {0} exceeds the maximum size of {1} characters.",
+            elementCount, maxElementSize
+        );
+      }
+
+      buffer.append((char)c);
+
+      track(c);
+    }
+  }
+
+  private void track(int c)
+  {
+    if (escaped)
+    {
+      escaped = false;
+    }
+
+    else if (inString)
+    {
+      escaped = (c == '\\');
+      inString = (c != '"');
+    }
+
+    else if (c == '"')
+    {
+      inString = true;
+    }
+
+    else if (c == '{' || c == '[')
+    {
+      depth++;
+    }
+
+    else if (c == '}' || c == ']')
+    {
+      depth--;
+    }
+  }
+
+  private int nextNonWhitespace() throws DeserializationException, IOException
+  {
+    while (true)
+    {
+      int c = reader.read();
+
+      if (c == -1)
+      {
+        throw new DeserializationException("Unexpected end of JSON array stream.");
+      }
+
+      if (!Character.isWhitespace(c))
+      {
+        return c;
+      }
+    }
+  }
+}
@@ -0,0 +1,60 @@
+/*
+ * OpenRemote, the Home of the Digital Home.
+ * Copyright 2008-2015, OpenRemote Inc.
+ *
+ * See the contributors.txt file in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.openremote.beehive.account.model.rest;
+
+import java.io.IOException;
+
+import org.openremote.model.data.json.DeserializationException;
+
+
+/**
+ * Common interface for readers that split an incoming stream of JSON documents into
+ * individual documents, one at a time.
+ *
+ * @see JSONArrayReader
+ * @see NDJSONReader
+ *
+ * @author Juha Lindfors
+ */
+interface JSONElementReader
+{
+
+  /**
+   * Returns the raw JSON text of the next document in the stream.
+   *
+   * @return  JSON document as a string, or <tt>null</tt> if the end of stream has been reached
+   *
+   * @throws DeserializationException
+   *            if the stream structure is broken in a way that prevents reading any further
+   *            documents
+   *
+   * @throws IOException
+   *            if reading from the underlying stream fails
+   */
+  String nextElement() throws DeserializationException, IOException;
+
+  /**
+   * Returns the number of documents read so far.
+   *
+   * @return  document count
+   */
+  int getElementCount();
+}
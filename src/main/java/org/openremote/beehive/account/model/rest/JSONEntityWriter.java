@@ -0,0 +1,370 @@
+/*
+ * OpenRemote, the Home of the Digital Home.
+ * Copyright 2008-2015, OpenRemote Inc.
+ *
+ * See the contributors.txt file in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.openremote.beehive.account.model.rest;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Writer;
+
+import javax.ws.rs.core.HttpHeaders;
+import javax.ws.rs.core.MultivaluedMap;
+
+
+/**
+ * Encodes a JSON response entity as UTF-8 directly into the entity output stream. <p>
+ *
+ * The characters are encoded into a per-thread byte buffer that is reused across responses,
+ * rather than first building the document as a string and encoding it with the platform
+ * default charset. When the complete document fits into the buffer, {@link #finish} sets
+ * the HTTP Content-Length header before any bytes are written to the stream. Larger
+ * documents are written out as the buffer fills up, and are sent without a content length.
+ * <p>
+ *
+ * Besides acting as a plain character writer, e.g. for FlexJSON serializers, this class has
+ * a few methods for writing compact JSON documents by hand.
+ *
+ * @author Juha Lindfors
+ */
+final class JSONEntityWriter extends Writer
+{
+
+  // Constants ------------------------------------------------------------------------------------
+
+  /**
+   * Size of the per-thread encoding buffer, in bytes: {@value}
+   */
+  static final int BUFFER_SIZE = 8 * 1024;
+
+  /**
+   * Replacement for unpaired UTF-16 surrogates, which cannot be encoded.
+   */
+  private static final char REPLACEMENT_CHARACTER = '?';
+
+  private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+
+  // Class Members --------------------------------------------------------------------------------
+
+  /**
+   * Per-thread encoding buffers. Holds only JDK types so that request threads kept by the
+   * servlet container do not pin the web application class loader after undeploy.
+   */
+  private static final ThreadLocal<byte[]> buffers = new ThreadLocal<byte[]>();
+
+
+
+  // Instance Fields ------------------------------------------------------------------------------
+
+  private OutputStream out;
+
+  private byte[] buffer;
+
+  private int position = 0;
+
+  private boolean committed = false;
+
+  private char highSurrogate = 0;
+
+  private boolean firstMember = true;
+
+
+
+  // Constructors ---------------------------------------------------------------------------------
+
+  /**
+   * @param out   entity output stream
+   */
+  JSONEntityWriter(OutputStream out)
+  {
+    this.out = out;
+
+    byte[] threadBuffer = buffers.get();
+
+    if (threadBuffer == null)
+    {
+      threadBuffer = new byte[BUFFER_SIZE];
+
+      buffers.set(threadBuffer);
+    }
+
+    this.buffer = threadBuffer;
+  }
+
+
+
+  // Writer Implementation ------------------------------------------------------------------------
+
+  @Override public void write(int c) throws IOException
+  {
+    encode((char)c);
+  }
+
+  @Override public void write(char[] chars, int offset, int length) throws IOException
+  {
+    for (int i = offset; i < offset + length; ++i)
+    {
+      encode(chars[i]);
+    }
+  }
+
+  @Override public void write(String string, int offset, int length) throws IOException
+  {
+    for (int i = offset; i < offset + length; ++i)
+    {
+      encode(string.charAt(i));
+    }
+  }
+
+  /**
+   * Does not write out the buffered content, so that serializers flushing their writer do
+   * not prevent the content length from being set. Use {@link #finish} at the end of the
+   * document.
+   */
+  @Override public void flush()
+  {
+    // no-op, see finish()...
+  }
+
+  /**
+   * Writes out the buffered content. Does not close the underlying entity stream, which is
+   * owned by the JAX-RS runtime.
+   *
+   * @throws IOException  if writing to the entity stream fails
+   */
+  @Override public void close() throws IOException
+  {
+    finish(null);
+  }
+
+
+
+  // Package-Private Instance Methods -------------------------------------------------------------
+
+  /**
+   * Completes the document. If no content has been written to the entity stream yet, sets
+   * the HTTP Content-Length header to the size of the encoded document before writing it.
+   *
+   * @param httpHeaders   response headers, or <tt>null</tt> if the content length should not
+   *                      be set
+   *
+   * @throws IOException  if writing to the entity stream fails
+   */
+  void finish(MultivaluedMap<String, Object> httpHeaders) throws IOException
+  {
+    if (highSurrogate != 0)
+    {
+      highSurrogate = 0;
+
+      put(REPLACEMENT_CHARACTER);
+    }
+
+    if (!committed && httpHeaders != null)
+    {
+      httpHeaders.putSingle(HttpHeaders.CONTENT_LENGTH, Integer.toString(position));
+    }
+
+    drain();
+
+    out.flush();
+  }
+
+  /**
+   * Starts a JSON object, either as a document or as a value of the current object member.
+   */
+  void beginObject() throws IOException
+  {
+    encode('{');
+
+    firstMember = true;
+  }
+
+  /**
+   * Starts a JSON object as the value of the given member of the current object.
+   *
+   * @param name    member name
+   */
+  void beginObject(String name) throws IOException
+  {
+    name(name);
+    beginObject();
+  }
+
+  /**
+   * Ends the current JSON object.
+   */
+  void endObject() throws IOException
+  {
+    encode('}');
+
+    firstMember = false;
+  }
+
+  /**
+   * Writes a string valued member to the current JSON object.
+   *
+   * @param name    member name
+   * @param value   member value, may be <tt>null</tt>
+   */
+  void member(String name, String value) throws IOException
+  {
+    name(name);
+
+    if (value == null)
+    {
+      write("null");
+    }
+
+    else
+    {
+      string(value);
+    }
+
+    firstMember = false;
+  }
+
+
+
+  // Private Instance Methods ---------------------------------------------------------------------
+
+  private void name(String name) throws IOException
+  {
+    if (!firstMember)
+    {
+      encode(',');
+    }
+
+    string(name);
+    encode(':');
+  }
+
+  private void string(String value) throws IOException
+  {
+    encode('"');
+
+    for (int i = 0; i < value.length(); ++i)
+    {
+      char c = value.charAt(i);
+
+      // escape the HTML sensitive characters as well, as the FlexJSON serializer does...
+
+      if (c < 0x20 || c == '"' || c == '\\' || c == '<' || c == '>' || c == '&')
+      {
+        encode('\\');
+        encode('u');
+        encode(HEX_DIGITS[(c >> 12) & 0xF]);
+        encode(HEX_DIGITS[(c >> 8) & 0xF]);
+        encode(HEX_DIGITS[(c >> 4) & 0xF]);
+        encode(HEX_DIGITS[c & 0xF]);
+      }
+
+      else
+      {
+        encode(c);
+      }
+    }
+
+    encode('"');
+  }
+
+  private void encode(char c) throws IOException
+  {
+    if (highSurrogate != 0 || (c >= Character.MIN_SURROGATE && c <= Character.MAX_SURROGATE))
+    {
+      encodeSurrogate(c);
+    }
+
+    else if (c < 0x80)
+    {
+      put(c);
+    }
+
+    else if (c < 0x800)
+    {
+      put(0xC0 | (c >> 6));
+      put(0x80 | (c & 0x3F));
+    }
+
+    else
+    {
+      put(0xE0 | (c >> 12));
+      put(0x80 | ((c >> 6) & 0x3F));
+      put(0x80 | (c & 0x3F));
+    }
+  }
+
+  private void encodeSurrogate(char c) throws IOException
+  {
+    if (highSurrogate != 0)
+    {
+      char high = highSurrogate;
+
+      highSurrogate = 0;
+
+      if (Character.isLowSurrogate(c))
+      {
+        int codePoint = Character.toCodePoint(high, c);
+
+        put(0xF0 | (codePoint >> 18));
+        put(0x80 | ((codePoint >> 12) & 0x3F));
+        put(0x80 | ((codePoint >> 6) & 0x3F));
+        put(0x80 | (codePoint & 0x3F));
+
+        return;
+      }
+
+      put(REPLACEMENT_CHARACTER);
+
+      encode(c);
+    }
+
+    else if (Character.isHighSurrogate(c))
+    {
+      highSurrogate = c;
+    }
+
+    else
+    {
+      put(REPLACEMENT_CHARACTER);
+    }
+  }
+
+  private void put(int b) throws IOException
+  {
+    if (position == buffer.length)
+    {
+      drain();
+
+      committed = true;
+    }
+
+    buffer[position++] = (byte)b;
+  }
+
+  private void drain() throws IOException
+  {
+    if (position > 0)
+    {
+      out.write(buffer, 0, position);
+
+      position = 0;
+    }
+  }
+}
@@ -0,0 +1,484 @@
+/*
+ * OpenRemote, the Home of the Digital Home.
+ * Copyright 2008-2015, OpenRemote Inc.
+ *
+ * See the contributors.txt file in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.openremote.beehive.account.model.rest;
+
+import java.io.IOException;
+import java.io.Reader;
+
+import org.openremote.model.data.json.DeserializationException;
+
+
+/**
+ * Minimal pull parser for JSON documents with a known structure. Rather than building a
+ * generic object tree of the entire document, the caller walks the document field by field
+ * and reads the values it recognizes directly into its domain objects, skipping over the
+ * rest. <p>
+ *
+ * Typical use for an object:
+ *
+ * <pre>
+ *   reader.beginObject();
+ *
+ *   while (reader.hasNextField())
+ *   {
+ *     String name = reader.nextName();
+ *
+ *     if (name.equals("username"))
+ *       username = reader.nextString();
+ *     else
+ *       reader.skipValue();
+ *   }
+ * </pre>
+ *
+ * The length of any single string value and the nesting depth of the document are bounded,
+ * so that a malicious document cannot make the parser buffer an arbitrary amount of data.
+ * Numbers and boolean literals are only supported as skipped values. <p>
+ *
+ * Instances are not thread-safe.
+ *
+ * @author Juha Lindfors
+ */
+public class JSONTokenReader
+{
+
+  // Constants ------------------------------------------------------------------------------------
+
+  /**
+   * Default maximum length of a single string value or field name, in characters: {@value}
+   */
+  public static final int DEFAULT_MAX_STRING_LENGTH = 4 * 1024;
+
+  /**
+   * Maximum nesting depth of objects and arrays: {@value}
+   */
+  public static final int MAX_DEPTH = 32;
+
+  /**
+   * Single character escape sequences, and the characters they stand for in
+   * {@link #ESCAPED_CHARACTERS} at the same index.
+   */
+  private static final String ESCAPES = "\"\\/bfnrt";
+
+  private static final String ESCAPED_CHARACTERS = "\"\\/\b\f\n\r\t";
+
+
+
+  // Instance Fields ------------------------------------------------------------------------------
+
+  private Reader reader;
+
+  private int maxStringLength;
+
+  private StringBuilder buffer = new StringBuilder(64);
+
+  /**
+   * One character push back buffer, or -2 if empty.
+   */
+  private int peeked = -2;
+
+  /**
+   * Whether the next field of the object at each nesting level is the first one.
+   */
+  private boolean[] firstField = new boolean[MAX_DEPTH];
+
+  private int depth = 0;
+
+  private int position = 0;
+
+
+
+  // Constructors ---------------------------------------------------------------------------------
+
+  /**
+   * @param reader            character stream to parse, should be buffered
+   */
+  public JSONTokenReader(Reader reader)
+  {
+    this(reader, DEFAULT_MAX_STRING_LENGTH);
+  }
+
+  /**
+   * @param reader            character stream to parse, should be buffered
+   * @param maxStringLength   maximum length of a single string value or field name
+   */
+  public JSONTokenReader(Reader reader, int maxStringLength)
+  {
+    this.reader = reader;
+    this.maxStringLength = maxStringLength;
+  }
+
+
+
+  // Public Instance Methods ----------------------------------------------------------------------
+
+  /**
+   * Consumes the start of an object.
+   *
+   * @throws DeserializationException   if the next value is not an object
+   * @throws IOException                if reading the stream fails
+   */
+  public void beginObject() throws DeserializationException, IOException
+  {
+    expect('{');
+
+    push();
+  }
+
+  /**
+   * Advances to the next field of the current object, or consumes the end of the object.
+   *
+   * @return  true if a field follows, in which case its name should be read with
+   *          {@link #nextName()}; false if the end of the object was reached
+   *
+   * @throws DeserializationException   if the object is malformed
+   * @throws IOException                if reading the stream fails
+   */
+  public boolean hasNextField() throws DeserializationException, IOException
+  {
+    if (depth == 0)
+    {
+      throw error("Not inside a JSON object");
+    }
+
+    int c = nextNonWhitespace();
+
+    if (c == '}')
+    {
+      depth--;
+
+      return false;
+    }
+
+    if (firstField[depth - 1])
+    {
+      firstField[depth - 1] = false;
+    }
+
+    else if (c == ',')
+    {
+      c = nextNonWhitespace();
+    }
+
+    else
+    {
+      throw error("Expected ',' or '}'");
+    }
+
+    pushBack(c);
+
+    return true;
+  }
+
+  /**
+   * Reads the name of the next field and the separating colon.
+   *
+   * @return  field name
+   *
+   * @throws DeserializationException   if the field is malformed
+   * @throws IOException                if reading the stream fails
+   */
+  public String nextName() throws DeserializationException, IOException
+  {
+    expect('"');
+
+    String name = readString();
+
+    expect(':');
+
+    return name;
+  }
+
+  /**
+   * Reads a string value. A JSON null literal is returned as <tt>null</tt>.
+   *
+   * @return  string value or <tt>null</tt>
+   *
+   * @throws DeserializationException   if the next value is not a string or null
+   * @throws IOException                if reading the stream fails
+   */
+  public String nextString() throws DeserializationException, IOException
+  {
+    int c = nextNonWhitespace();
+
+    if (c == '"')
+    {
+      return readString();
+    }
+
+    if (c == 'n')
+    {
+      readLiteral(c);
+
+      if (buffer.toString().equals("null"))
+      {
+        return null;
+      }
+    }
+
+    throw error("Expected a string value");
+  }
+
+  /**
+   * Skips over the next value, including any nested objects and arrays.
+   *
+   * @throws DeserializationException   if the value is malformed
+   * @throws IOException                if reading the stream fails
+   */
+  public void skipValue() throws DeserializationException, IOException
+  {
+    int c = nextNonWhitespace();
+
+    if (c == '"')
+    {
+      readString();
+    }
+
+    else if (c == '{')
+    {
+      push();
+
+      while (hasNextField())
+      {
+        nextName();
+        skipValue();
+      }
+    }
+
+    else if (c == '[')
+    {
+      push();
+
+      c = nextNonWhitespace();
+
+      if (c != ']')
+      {
+        pushBack(c);
+
+        while (true)
+        {
+          skipValue();
+
+          c = nextNonWhitespace();
+
+          if (c == ']')
+          {
+            break;
+          }
+
+          if (c != ',')
+          {
+            throw error("Expected ',' or ']'");
+          }
+        }
+      }
+
+      depth--;
+    }
+
+    else
+    {
+      readLiteral(c);
+    }
+  }
+
+  /**
+   * Verifies that nothing but whitespace follows the parsed document.
+   *
+   * @throws DeserializationException   if the stream contains trailing content
+   * @throws IOException                if reading the stream fails
+   */
+  public void endDocument() throws DeserializationException, IOException
+  {
+    int c = read();
+
+    while (c != -1 && Character.isWhitespace(c))
+    {
+      c = read();
+    }
+
+    if (c != -1)
+    {
+      throw error("Unexpected content after the end of the document");
+    }
+  }
+
+
+
+  // Private Instance Methods ---------------------------------------------------------------------
+
+  private void push() throws DeserializationException
+  {
+    if (depth >= MAX_DEPTH)
+    {
+      throw error("Document exceeds the maximum nesting depth of " + MAX_DEPTH);
+    }
+
+    firstField[depth++] = true;
+  }
+
+  private String readString() throws DeserializationException, IOException
+  {
+    buffer.setLength(0);
+
+    while (true)
+    {
+      int c = read();
+
+      if (c == -1)
+      {
+        throw error("Unterminated string");
+      }
+
+      if (c == '"')
+      {
+        return buffer.toString();
+      }
+
+      if (c < 0x20)
+      {
+        throw error("Unescaped control character in string");
+      }
+
+      if (c == '\\')
+      {
+        c = readEscape();
+      }
+
+      if (buffer.length() >= maxStringLength)
+      {
+        throw error("String value exceeds the maximum length of " + maxStringLength + " characters");
+      }
+
+      buffer.append((char)c);
+    }
+  }
+
+  private int readEscape() throws DeserializationException, IOException
+  {
+    int c = read();
+
+    int index = (c == -1) ? -1 : ESCAPES.indexOf(c);
+
+    if (index >= 0)
+    {
+      return ESCAPED_CHARACTERS.charAt(index);
+    }
+
+    if (c != 'u')
+    {
+      throw error("Invalid escape sequence");
+    }
+
+    int value = 0;
+
+    for (int i = 0; i < 4; ++i)
+    {
+      int digit = Character.digit(read(), 16);
+
+      if (digit < 0)
+      {
+        throw error("Invalid unicode escape");
+      }
+
+      value = (value << 4) + digit;
+    }
+
+    return value;
+  }
+
+  private void readLiteral(int first) throws DeserializationException, IOException
+  {
+    buffer.setLength(0);
+
+    int c = first;
+
+    while (c != -1 && (Character.isLetterOrDigit(c) || c == '-' || c == '+' || c == '.'))
+    {
+      if (buffer.length() >= maxStringLength)
+      {
+        throw error("Literal value exceeds the maximum length of " + maxStringLength + " characters");
+      }
+
+      buffer.append((char)c);
+
+      c = read();
+    }
+
+    if (buffer.length() == 0)
+    {
+      throw error("Unexpected character '" + (char)c + "'");
+    }
+
+    pushBack(c);
+  }
+
+  private void expect(char expected) throws DeserializationException, IOException
+  {
+    if (nextNonWhitespace() != expected)
+    {
+      throw error("Expected '" + expected + "'");
+    }
+  }
+
+  private int nextNonWhitespace() throws DeserializationException, IOException
+  {
+    while (true)
+    {
+      int c = read();
+
+      if (c == -1)
+      {
+        throw error("Unexpected end of document");
+      }
+
+      if (!Character.isWhitespace(c))
+      {
+        return c;
+      }
+    }
+  }
+
+  private int read() throws IOException
+  {
+    if (peeked != -2)
+    {
+      int c = peeked;
+
+      peeked = -2;
+
+      return c;
+    }
+
+    position++;
+
+    return reader.read();
+  }
+
+  private void pushBack(int c)
+  {
+    peeked = c;
+  }
+
+  private DeserializationException error(String message)
+  {
+    return new DeserializationException("{0} at character {1}.", message, String.valueOf(position));
+  }
+}
@@ -0,0 +1,153 @@
+/*
+ * OpenRemote, the Home of the Digital Home.
+ * Copyright 2008-2015, OpenRemote Inc.
+ *
+ * See the contributors.txt file in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.openremote.beehive.account.model.rest;
+
+import java.io.IOException;
+import java.io.Reader;
+
+import org.openremote.model.data.json.DeserializationException;
+
+
+/**
+ * Splits a newline delimited JSON (NDJSON) stream into its individual JSON documents. Each
+ * non-blank line in the stream is expected to contain exactly one complete JSON document,
+ * which is returned as-is for the appropriate JSON transformer to deserialize. <p>
+ *
+ * Only a single line is held in memory at a time, and a maximum line length is enforced to
+ * protect against unbounded input.
+ *
+ * @author Juha Lindfors
+ */
+public class NDJSONReader implements JSONElementReader
+{
+
+  // Instance Fields ------------------------------------------------------------------------------
+
+  private Reader reader;
+
+  private int maxElementSize;
+
+  private boolean finished = false;
+
+  private int elementCount = 0;
+
+  private StringBuilder buffer = new StringBuilder(1024);
+
+
+
+  // Constructors ---------------------------------------------------------------------------------
+
+  public NDJSONReader(Reader reader)
+  {
+    this(reader, JSONArrayReader.DEFAULT_MAX_ELEMENT_SIZE);
+  }
+
+  public NDJSONReader(Reader reader, int maxElementSize)
+  {
+    this.reader = reader;
+    this.maxElementSize = maxElementSize;
+  }
+
+
+
+  // Implements JSONElementReader ----------------------------------------------------------------
+
+  /**
+   * Returns the next non-blank line in the stream.
+   *
+   * @return  JSON document as a string, or <tt>null</tt> if the end of stream has been reached
+   *
+   * @throws DeserializationException
+   *            if a line exceeds the configured maximum element size
+   *
+   * @throws IOException
+   *            if reading from the underlying stream fails
+   */
+  @Override public String nextElement() throws DeserializationException, IOException
+  {
+    while (!finished)
+    {
+      readLine();
+
+      if (!isBlank())
+      {
+        elementCount++;
+
+        return buffer.toString();
+      }
+    }
+
+    return null;
+  }
+
+  @Override public int getElementCount()
+  {
+    return elementCount;
+  }
+
+
+
+  // Private Instance Methods ---------------------------------------------------------------------
+
+  private void readLine() throws DeserializationException, IOException
+  {
+    buffer.setLength(0);
+
+    while (true)
+    {
+      int c = reader.read();
+
+      if (c == -1)
+      {
+        finished = true;
+
+        return;
+      }
+
+      if (c == '\n')
+      {
+        return;
+      }
+
+      if (buffer.length() >= maxElementSize)
+      {
+        throw new DeserializationException(
+            "Line {0} exceeds the maximum size of {1} characters.", elementCount, maxElementSize
+        );
+      }
+
+      buffer.append((char)c);
+    }
+  }
+
+  private boolean isBlank()
+  {
+    for (int i = 0; i < buffer.length(); ++i)
+    {
+      if (!Character.isWhitespace(buffer.charAt(i)))
+      {
+        return false;
+      }
+    }
+
+    return true;
+  }
+}
@@ -0,0 +1,296 @@
+/*
+ * OpenRemote, the Home of the Digital Home.
+ * Copyright 2008-2015, OpenRemote Inc.
+ *
+ * See the contributors.txt file in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.openremote.beehive.account.model.rest;
+
+import java.lang.annotation.Annotation;
+import java.lang.reflect.Type;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.StringReader;
+
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+import javax.ws.rs.Consumes;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.MultivaluedMap;
+import javax.ws.rs.ext.MessageBodyReader;
+
+import org.openremote.base.Defaults;
+import org.openremote.base.exception.IncorrectImplementationException;
+
+import org.openremote.model.data.json.DeserializationException;
+
+import org.openremote.beehive.account.model.CustomerFulfillment;
+import org.openremote.beehive.account.model.RegistrationBatch;
+import org.openremote.beehive.account.model.TransformerRegistry;
+import org.openremote.beehive.account.service.AccountManager;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+
+/**
+ * Deserializes a batch of user registrations and customer fulfillments from a JSON array, or
+ * from a newline delimited JSON (NDJSON) stream with one document per line. <p>
+ *
+ * The elements are deserialized lazily, one at a time, as the returned
+ * {@link org.openremote.beehive.account.model.RegistrationBatch} is iterated. Only a single
+ * element is held in memory at any given time. An element that fails to deserialize is
+ * returned as an erroneous batch entry rather than failing the entire request. If the stream
+ * structure itself is broken the iteration ends with an erroneous entry describing the
+ * problem. <p>
+ *
+ * Each element is deserialized as a customer fulfillment. A plain user registration document
+ * is a customer fulfillment without controllers and is handled the same way. A single element
+ * may therefore be as large as a customer fulfillment posted on its own, and is subject to the
+ * same controller limits, see {@link #RegistrationBatchReader(int, CustomerFulfillment.Limits)}.
+ * <p>
+ *
+ * Assumes the incoming request has a HTTP Content-Type of
+ * "application/vnd.openremote.registration-batch+json"
+ * ({@link RegistrationBatch#JSON_HTTP_CONTENT_TYPE}) for JSON arrays, or "application/x-ndjson"
+ * ({@link RegistrationBatch#NDJSON_HTTP_CONTENT_TYPE}) for NDJSON streams.
+ *
+ * @author Juha Lindfors
+ */
+@Consumes ({ RegistrationBatch.JSON_HTTP_CONTENT_TYPE, RegistrationBatch.NDJSON_HTTP_CONTENT_TYPE })
+
+public class RegistrationBatchReader implements MessageBodyReader<RegistrationBatch>
+{
+
+  // Constants ------------------------------------------------------------------------------------
+
+  /**
+   * Default maximum size of a single batch element, in characters. Matches the default
+   * maximum size of a customer fulfillment request,
+   * {@link org.openremote.beehive.account.service.ServiceConfiguration#DEFAULT_MAX_FULFILLMENT_REQUEST_SIZE}.
+   * The reader is also used by the account manager client, which does not include the
+   * service classes: {@value}
+   */
+  public static final int DEFAULT_MAX_ELEMENT_SIZE = 4 * 1024 * 1024;
+
+
+  // Class Members --------------------------------------------------------------------------------
+
+  private static final MediaType NDJSON_MEDIA_TYPE =
+      MediaType.valueOf(RegistrationBatch.NDJSON_HTTP_CONTENT_TYPE);
+
+  private static Logger log = LoggerFactory.getLogger(
+      AccountManager.Log.REGISTRATION_DESERIALIZE.getCanonicalLogHierarchyName());
+
+
+
+  // Instance Fields ------------------------------------------------------------------------------
+
+  /**
+   * Maximum size of a single batch element, in characters.
+   */
+  private int maxElementSize;
+
+  private CustomerFulfillment.Limits limits;
+
+
+
+  // Constructors ---------------------------------------------------------------------------------
+
+  /**
+   * Creates a reader with the {@link #DEFAULT_MAX_ELEMENT_SIZE default} maximum element size
+   * and the {@link CustomerFulfillment.Limits#DEFAULT default} controller limits.
+   */
+  public RegistrationBatchReader()
+  {
+    this(DEFAULT_MAX_ELEMENT_SIZE, CustomerFulfillment.Limits.DEFAULT);
+  }
+
+  /**
+   * Creates a reader with the given limits. The account manager service sets the maximum
+   * element size to the maximum size of a customer fulfillment request, see
+   * {@link org.openremote.beehive.account.service.ServiceConfiguration#getMaxRequestSize(MediaType)},
+   * so that any fulfillment accepted on its own is also accepted as a batch element.
+   *
+   * @param maxElementSize  maximum element size in characters
+   * @param limits          upper limits of the controllers of a single element
+   */
+  public RegistrationBatchReader(int maxElementSize, CustomerFulfillment.Limits limits)
+  {
+    if (maxElementSize < 1)
+    {
+      throw new IncorrectImplementationException(
+          "Maximum batch element size must be positive, got {0}.", maxElementSize
+      );
+    }
+
+    this.maxElementSize = maxElementSize;
+    this.limits = limits;
+  }
+
+
+
+  // Implements MessageBodyReader -----------------------------------------------------------------
+
+  @Override public boolean isReadable(Class<?> type, Type genericType,
+                                      Annotation[] annotations, MediaType mediaType)
+  {
+    return type == RegistrationBatch.class;
+  }
+
+  @Override public RegistrationBatch readFrom(Class<RegistrationBatch> type, Type genericType,
+                                              Annotation[] annotations, MediaType mediaType,
+                                              MultivaluedMap<String, String> httpHeaders,
+                                              InputStream entityStream)
+  {
+    BufferedReader in = new BufferedReader(new InputStreamReader(entityStream, Defaults.UTF8));
+
+    if (mediaType != null && mediaType.isCompatible(NDJSON_MEDIA_TYPE))
+    {
+      return new RegistrationBatch(new EntryIterator(new NDJSONReader(in, maxElementSize), limits));
+    }
+
+    return new RegistrationBatch(new EntryIterator(new JSONArrayReader(in, maxElementSize), limits));
+  }
+
+
+
+  // Nested Classes -------------------------------------------------------------------------------
+
+  /**
+   * Reads ahead one element at a time and deserializes it into a batch entry.
+   */
+  private static class EntryIterator implements Iterator<RegistrationBatch.Entry>
+  {
+    private JSONElementReader elements;
+
+    private CustomerFulfillment.Limits limits;
+
+    private RegistrationBatch.Entry next = null;
+
+    private boolean done = false;
+
+    private EntryIterator(JSONElementReader elements, CustomerFulfillment.Limits limits)
+    {
+      this.elements = elements;
+      this.limits = limits;
+    }
+
+    @Override public boolean hasNext()
+    {
+      if (next == null && !done)
+      {
+        next = readNext();
+      }
+
+      return next != null;
+    }
+
+    @Override public RegistrationBatch.Entry next()
+    {
+      if (!hasNext())
+      {
+        throw new NoSuchElementException();
+      }
+
+      RegistrationBatch.Entry entry = next;
+
+      next = null;
+
+      return entry;
+    }
+
+    @Override public void remove()
+    {
+      throw new UnsupportedOperationException("Registration batch entries cannot be removed.");
+    }
+
+    private RegistrationBatch.Entry readNext()
+    {
+      int index = elements.getElementCount();
+      String element;
+
+      try
+      {
+        element = elements.nextElement();
+      }
+
+      catch (DeserializationException exception)
+      {
+        log.error("Malformed registration batch: {}", exception.getMessage());
+
+        done = true;
+
+        return new RegistrationBatch.Entry(index, exception.getMessage());
+      }
+
+      catch (IOException exception)
+      {
+        log.error("Reading registration batch failed: " + exception.getMessage(), exception);
+
+        done = true;
+
+        return new RegistrationBatch.Entry(index, "I/O error: " + exception.getMessage());
+      }
+
+      if (element == null)
+      {
+        done = true;
+
+        return null;
+      }
+
+      TransformerRegistry.Transformers transformers =
+          TransformerRegistry.borrow(CustomerFulfillment.class);
+
+      try
+      {
+        ((CustomerFulfillment.FulfillmentTransformer)transformers.getTransformerMap()
+            .get(CustomerFulfillment.class)).setLimits(limits);
+
+        return new RegistrationBatch.Entry(
+            index, transformers.read(CustomerFulfillment.class, new StringReader(element))
+        );
+      }
+
+      catch (DeserializationException exception)
+      {
+        log.debug("Batch entry {} could not be deserialized: {}", index, exception.getMessage());
+
+        return new RegistrationBatch.Entry(index, exception.getMessage());
+      }
+
+      catch (RuntimeException exception)
+      {
+        // the object model may reject a document it does not accept with a runtime exception,
+        // which fails only this entry rather than the entire batch...
+
+        log.debug("Batch entry {} was rejected: {}", index, exception.getMessage());
+
+        return new RegistrationBatch.Entry(index, "Invalid entry: " + exception.getMessage());
+      }
+
+      finally
+      {
+        TransformerRegistry.release(transformers);
+      }
+    }
+  }
+}
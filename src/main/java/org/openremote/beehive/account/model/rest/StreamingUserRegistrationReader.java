@@ -0,0 +1,362 @@
+/*
+ * OpenRemote, the Home of the Digital Home.
+ * Copyright 2008-2015, OpenRemote Inc.
+ *
+ * See the contributors.txt file in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.openremote.beehive.account.model.rest;
+
+import java.lang.annotation.Annotation;
+import java.lang.reflect.Type;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import javax.ws.rs.Consumes;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.MultivaluedMap;
+import javax.ws.rs.ext.MessageBodyReader;
+
+import org.openremote.base.Defaults;
+import org.openremote.base.Version;
+
+import org.openremote.model.Model;
+import org.openremote.model.User;
+import org.openremote.model.data.json.DeserializationException;
+import org.openremote.model.data.json.JSONHeader;
+import org.openremote.model.data.json.UserTransformer;
+
+import org.openremote.beehive.account.model.UserRegistration;
+import org.openremote.beehive.account.service.AccountManager;
+import org.openremote.beehive.account.service.HttpBadRequest;
+import org.openremote.beehive.account.service.HttpInternalError;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+
+/**
+ * Deserializes new user registrations from JSON document in a single pass. This reader accepts
+ * the same documents as {@link UserRegistrationReader} but pull-parses the known fields of the
+ * registration document directly into a {@link UserRegistration} instance with a
+ * {@link JSONTokenReader}, instead of first building a generic object tree of the document
+ * and an intermediate user instance to copy from. <p>
+ *
+ * The entity stream is decoded as UTF-8 regardless of the platform default charset. The JSON
+ * header is validated as it is read: the library name must match the object model library and
+ * the major schema version must not be newer than the user schema version supported by this
+ * implementation. Unrecognized properties are skipped. <p>
+ *
+ * The service registers this reader in place of the default reader when enabled with the
+ * {@link org.openremote.beehive.account.service.ServiceConfiguration#WEBAPP_PARAM_STREAMING_REGISTRATION_READER}
+ * deployment parameter. <p>
+ *
+ * If the incoming JSON document cannot be interpreted, will return a HTTP error status 400 -
+ * Bad Request. In case of any other errors will return status 500 -- Internal Server Error. <p>
+ *
+ * Assumes the incoming request has a HTTP Content-Type of either "application/json"
+ * ({@link MediaType#APPLICATION_JSON}) or "application/vnd.openremote.user-registration+json"
+ * ({@link UserRegistration#JSON_HTTP_CONTENT_TYPE}).
+ *
+ * @author Juha Lindfors
+ */
+
+@Consumes ({ MediaType.APPLICATION_JSON, UserRegistration.JSON_HTTP_CONTENT_TYPE })
+
+public class StreamingUserRegistrationReader implements MessageBodyReader<UserRegistration>
+{
+
+  // Constants ------------------------------------------------------------------------------------
+
+  /**
+   * Size of the character buffer used to decode the entity stream: {@value}
+   */
+  public static final int BUFFER_SIZE = 4 * 1024;
+
+  /**
+   * Maximum length of any single string value in the registration document. Equals the
+   * maximum length of a user attribute value.
+   */
+  public static final int MAX_STRING_LENGTH = User.USER_ATTRIBUTE_VALUE_LENGTH_CONSTRAINT;
+
+  /**
+   * The JSON header property name of the object model library name: {@value}
+   */
+  public static final String LIBRARY_NAME_JSON_PROPERTY_NAME = "libraryName";
+
+  /**
+   * The JSON header property name of the document's schema version: {@value}
+   */
+  public static final String SCHEMA_VERSION_JSON_PROPERTY_NAME = "schemaVersion";
+
+  /**
+   * The JSON header property name of the document's model: {@value}
+   */
+  public static final String MODEL_JSON_PROPERTY_NAME = "model";
+
+
+
+  // Class Members --------------------------------------------------------------------------------
+
+  private static Logger log = LoggerFactory.getLogger(
+          AccountManager.Log.REGISTRATION_DESERIALIZE.getCanonicalLogHierarchyName());
+
+  private static final int SUPPORTED_SCHEMA_MAJOR_VERSION =
+      getMajorVersion(User.JSON_SCHEMA_VERSION.toString());
+
+
+  private static int getMajorVersion(String version)
+  {
+    int separator = version.indexOf('.');
+
+    return Integer.parseInt((separator < 0) ? version : version.substring(0, separator));
+  }
+
+
+
+  // Implements MessageBodyReader -----------------------------------------------------------------
+
+  @Override public boolean isReadable(Class<?> type, Type genericType,
+                                      Annotation[] annotations, MediaType mediaType)
+  {
+    return type == UserRegistration.class;
+  }
+
+  @Override public UserRegistration readFrom(Class<UserRegistration> type, Type genericType,
+                                             Annotation[] annotations, MediaType mediaType,
+                                             MultivaluedMap<String, String> httpHeaders,
+                                             InputStream entityStream)
+  {
+    try
+    {
+      JSONTokenReader reader = new JSONTokenReader(
+          new BufferedReader(new InputStreamReader(entityStream, Defaults.UTF8), BUFFER_SIZE),
+          MAX_STRING_LENGTH
+      );
+
+      UserRegistration registration = read(reader);
+
+      log.debug("Deserialized registration for ''{}''...", registration.toString());
+
+      return registration;
+    }
+
+    catch (HttpBadRequest exception)
+    {
+      log.error("Deserializing new user registration failed: {}", exception.getMessage());
+
+      throw exception;
+    }
+
+    catch (DeserializationException exception)
+    {
+      log.error("Deserializing new user registration failed: {}", exception.getMessage());
+
+      throw new HttpBadRequest(
+          exception, "Unable to parse user registration from JSON: " + exception.getMessage()
+      );
+    }
+
+    catch (Model.ValidationException exception)
+    {
+      log.error("Invalid user registration: {}", exception.getMessage());
+
+      throw new HttpBadRequest(
+          exception, "Unable to parse user registration from JSON: " + exception.getMessage()
+      );
+    }
+
+    catch (Exception exception)
+    {
+      log.error("Unknown error: " + exception.getMessage(), exception);
+
+      throw new HttpInternalError(exception, exception.getMessage());
+    }
+  }
+
+
+
+  // Private Instance Methods ---------------------------------------------------------------------
+
+  private UserRegistration read(JSONTokenReader reader)
+      throws DeserializationException, Model.ValidationException, IOException
+  {
+    UserRegistration registration = null;
+
+    reader.beginObject();
+
+    while (reader.hasNextField())
+    {
+      String name = reader.nextName();
+
+      if (name.equals(LIBRARY_NAME_JSON_PROPERTY_NAME))
+      {
+        String library = reader.nextString();
+
+        if (library == null || !library.equalsIgnoreCase(JSONHeader.LIBRARY_NAME))
+        {
+          throw new DeserializationException("Unrecognized JSON library name ''{0}''.", library);
+        }
+      }
+
+      else if (name.equals(SCHEMA_VERSION_JSON_PROPERTY_NAME))
+      {
+        validateSchemaVersion(reader.nextString());
+      }
+
+      else if (name.equals(MODEL_JSON_PROPERTY_NAME))
+      {
+        registration = readModel(reader);
+      }
+
+      else
+      {
+        reader.skipValue();
+      }
+    }
+
+    reader.endDocument();
+
+    if (registration == null)
+    {
+      throw new DeserializationException("User registration document has no model.");
+    }
+
+    return registration;
+  }
+
+  private UserRegistration readModel(JSONTokenReader reader)
+      throws DeserializationException, Model.ValidationException, IOException
+  {
+    String username = null;
+    String email = null;
+
+    Map<String, String> attributes = new LinkedHashMap<String, String>();
+
+    reader.beginObject();
+
+    while (reader.hasNextField())
+    {
+      String name = reader.nextName();
+
+      if (name.equals(UserTransformer.USERNAME_JSON_PROPERTY_NAME))
+      {
+        username = reader.nextString();
+      }
+
+      else if (name.equals(UserTransformer.EMAIL_JSON_PROPERTY_NAME))
+      {
+        email = reader.nextString();
+      }
+
+      else if (name.equals(UserTransformer.USER_ATTRIBUTES_JSON_PROPERTY_NAME))
+      {
+        reader.beginObject();
+
+        while (reader.hasNextField())
+        {
+          String attribute = reader.nextName();
+          String value = reader.nextString();
+
+          if (value != null)
+          {
+            attributes.put(attribute, value);
+          }
+        }
+      }
+
+      else
+      {
+        reader.skipValue();
+      }
+    }
+
+    // For user registration, it must have mandatory registration attributes to continue...
+
+    String credentials = attributes.remove(User.CREDENTIALS_ATTRIBUTE_NAME);
+
+    if (credentials == null || credentials.equals(""))
+    {
+      throw new HttpBadRequest("User registration credentials are missing.");
+    }
+
+    User.CredentialsEncoding encoding = getAuthMode(attributes.remove(User.AUTHMODE_ATTRIBUTE_NAME));
+
+    // Credentials marked as already encoded are only accepted by the account import, a
+    // single registration always has its credentials encoded by the service...
+
+    attributes.remove(UserRegistration.ENCODED_CREDENTIALS_ATTRIBUTE_NAME);
+
+    // The credentials have already been decoded from the entity stream, store them as-is
+    // rather than converting to bytes and back...
+
+    UserRegistration registration = new UserRegistration(username, email, null);
+
+    registration.addAttribute(User.CREDENTIALS_ATTRIBUTE_NAME, credentials);
+    registration.addAttribute(User.AUTHMODE_ATTRIBUTE_NAME, encoding.getEncodingName());
+
+    for (Map.Entry<String, String> attribute : attributes.entrySet())
+    {
+      registration.addAttribute(attribute.getKey(), attribute.getValue());
+    }
+
+    return registration;
+  }
+
+  private void validateSchemaVersion(String version) throws DeserializationException
+  {
+    if (version == null || !version.matches(Version.VERSION_REGEX))
+    {
+      throw new DeserializationException("Malformed schema version ''{0}''.", version);
+    }
+
+    if (getMajorVersion(version) > SUPPORTED_SCHEMA_MAJOR_VERSION)
+    {
+      throw new DeserializationException(
+          "Unsupported user registration schema version {0}, supported version is {1}.",
+          version, User.JSON_SCHEMA_VERSION
+      );
+    }
+  }
+
+  private User.CredentialsEncoding getAuthMode(String authModeProperty)
+  {
+    User.CredentialsEncoding result = User.CredentialsEncoding.DEFAULT;
+
+    if (authModeProperty != null && !authModeProperty.equals(""))
+    {
+      try
+      {
+        result = UserRegistration.CredentialsEncoding.valueOf(authModeProperty);
+      }
+
+      catch (IllegalArgumentException e)
+      {
+        log.debug(
+            "Unrecognized ''{}'' value ''{}'' -- falling back to default encoding type: {}",
+            User.AUTHMODE_ATTRIBUTE_NAME, authModeProperty, User.CredentialsEncoding.DEFAULT
+        );
+      }
+    }
+
+    return result;
+  }
+}
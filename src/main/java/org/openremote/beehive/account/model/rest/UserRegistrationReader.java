@@ -37,8 +37,8 @@ import org.openremote.base.Defaults;
 
 import org.openremote.model.User;
 import org.openremote.model.data.json.DeserializationException;
-import org.openremote.model.data.json.UserTransformer;
 
+import org.openremote.beehive.account.model.TransformerRegistry;
 import org.openremote.beehive.account.model.UserRegistration;
 import org.openremote.beehive.account.service.AccountManager;
 import org.openremote.beehive.account.service.HttpBadRequest;
@@ -92,14 +92,14 @@ public class UserRegistrationReader implements MessageBodyReader<UserRegistratio
   {
     try
     {
-      // TODO : set upper limit to request document size.
-      // TODO : enforce a request timeout
+      // Request document size and read time are bounded by the service's RequestEntityLimits
+      // interceptor before the document reaches this reader...
 
-      log.info("Deserializing user registration JSON document...");
+      log.debug("Deserializing user registration JSON document...");
 
       // Deserialize default user from JSON stream...
 
-      User user = new UserTransformer().read(new BufferedReader(new InputStreamReader(entityStream)));
+      User user = readUser(entityStream);
 
 
       // For user registration, it must have mandatory registration attributes to continue...
@@ -118,7 +118,12 @@ public class UserRegistrationReader implements MessageBodyReader<UserRegistratio
           user, new User.Authentication(credentials, credsEncoding)
       );
 
-      log.info("Deserialized registration for ''{}''...", registration.toString());
+      // Credentials marked as already encoded are only accepted by the account import, a
+      // single registration always has its credentials encoded by the service...
+
+      registration.removeEncodedCredentialsMarker();
+
+      log.debug("Deserialized registration for ''{}''...", registration.toString());
 
       // Done...
 
@@ -158,6 +163,21 @@ public class UserRegistrationReader implements MessageBodyReader<UserRegistratio
 
   // Private Instance Methods ---------------------------------------------------------------------
 
+  private User readUser(InputStream entityStream) throws DeserializationException
+  {
+    TransformerRegistry.Transformers transformers = TransformerRegistry.borrow(User.class);
+
+    try
+    {
+      return transformers.read(User.class, new BufferedReader(new InputStreamReader(entityStream)));
+    }
+
+    finally
+    {
+      TransformerRegistry.release(transformers);
+    }
+  }
+
   private byte[] extractMandatoryCredentials(User user) throws WebApplicationException
   {
     String credentials = user.getAttribute(User.CREDENTIALS_ATTRIBUTE_NAME);
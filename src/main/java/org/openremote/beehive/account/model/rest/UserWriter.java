@@ -21,6 +21,7 @@
 package org.openremote.beehive.account.model.rest;
 
 import org.openremote.base.Version;
+import org.openremote.base.exception.IncorrectImplementationException;
 import org.openremote.beehive.account.model.UserRegistration;
 import org.openremote.model.Account;
 import org.openremote.model.User;
@@ -35,21 +36,63 @@ import javax.ws.rs.core.MultivaluedMap;
 import javax.ws.rs.ext.MessageBodyWriter;
 import java.io.IOException;
 import java.io.OutputStream;
-import java.io.PrintWriter;
 import java.lang.annotation.Annotation;
+import java.lang.reflect.Field;
 import java.lang.reflect.Type;
+import java.util.Map;
 
 /**
  * Writes a User instance to a JSON payload.
  * Credentials are not output in the payload but replaced with a "<not provided>" placeholder.
  * Account id is provided as an attribute of the returned user.
  *
+ * The document is written directly as UTF-8 into the entity stream without copying the user
+ * instance, see {@link JSONEntityWriter}.
+ *
  * @author <a href="mailto:eric@openremote.org">Eric Bariaux</a>
  */
 
 @Produces({ MediaType.APPLICATION_JSON })
 public class UserWriter implements MessageBodyWriter<User>
 {
+  /**
+   * Schema version of the written user documents.
+   */
+  private static final Version SCHEMA_VERSION = new Version(4, 0, 0);
+
+  private static final String CREDENTIALS_PLACEHOLDER = "<not provided>";
+
+  private static final String ACCOUNT_ID_ATTRIBUTE_NAME = "accountId";
+
+  /**
+   * The object model does not expose user's email or attributes, other than as a copy through
+   * the model's own JSON transformer. Reading the fields directly avoids copying the user
+   * for each response.
+   */
+  private static final Field EMAIL_FIELD = userField("email");
+
+  private static final Field ATTRIBUTES_FIELD = userField("userAttributes");
+
+
+  private static Field userField(String name)
+  {
+    try
+    {
+      Field field = User.class.getDeclaredField(name);
+      field.setAccessible(true);
+
+      return field;
+    }
+
+    catch (NoSuchFieldException exception)
+    {
+      throw new IncorrectImplementationException(
+          "Incompatible object model, user field ''{0}'' not found.", exception, name
+      );
+    }
+  }
+
+
   @Override
   public boolean isWriteable(Class<?> aClass, Type type, Annotation[] annotations, MediaType mediaType)
   {
@@ -59,7 +102,9 @@ public class UserWriter implements MessageBodyWriter<User>
   @Override
   public long getSize(User user, Class<?> aClass, Type type, Annotation[] annotations, MediaType mediaType)
   {
-    return 0;
+    // content length is set in writeTo() when the document fits into the write buffer...
+
+    return -1;
   }
 
   @Override
@@ -67,24 +112,79 @@ public class UserWriter implements MessageBodyWriter<User>
                       MultivaluedMap<String, Object> multivaluedMap, OutputStream outputStream
                       ) throws IOException, WebApplicationException
   {
-    UserRegistration reg = new UserRegistration(user,
-            new User.Authentication("<not provided>".getBytes("UTF-8"), User.CredentialsEncoding.UNSPECIFIED));
+    JSONEntityWriter json = new JSONEntityWriter(outputStream);
+
+    json.beginObject();
+    json.member("libraryName", JSONHeader.LIBRARY_NAME);
+    json.member("javaFullClassName", UserRegistration.class.getName());
+    json.member("schemaVersion", SCHEMA_VERSION.toString());
+    json.member("apiVersion", JSONHeader.API_VERSION.toString());
+
+    json.beginObject("model");
+    json.member(UserTransformer.USERNAME_JSON_PROPERTY_NAME, user.getName());
+    json.member(UserTransformer.EMAIL_JSON_PROPERTY_NAME, (String)read(EMAIL_FIELD, user));
+
+    json.beginObject(UserTransformer.USER_ATTRIBUTES_JSON_PROPERTY_NAME);
+    writeAttributes(json, user);
+    json.endObject();
+
+    json.endObject();
+    json.endObject();
 
-    if (!user.getAccounts().isEmpty())
+    json.finish(multivaluedMap);
+  }
+
+
+  private void writeAttributes(JSONEntityWriter json, User user) throws IOException
+  {
+    @SuppressWarnings("unchecked")
+    Map<String, String> attributes = (Map<String, String>)read(ATTRIBUTES_FIELD, user);
+
+    if (attributes != null)
     {
-      for (Account acct : user.getAccounts())
+      for (Map.Entry<String, String> attribute : attributes.entrySet())
       {
-        if (acct instanceof RelationalAccount)
+        String name = attribute.getKey();
+
+        if (!isReplaced(name))
         {
-          reg.addAttribute("accountId", Long.toString(((RelationalAccount) acct).getId()));
-          break;
+          json.member(name, attribute.getValue());
         }
       }
     }
 
-    PrintWriter pw = new PrintWriter(outputStream);
-    pw.write(JSONHeader.toJSON(reg, new Version(4, 0, 0), new UserTransformer()));
-    pw.flush();
+    json.member(User.CREDENTIALS_ATTRIBUTE_NAME, CREDENTIALS_PLACEHOLDER);
+    json.member(User.AUTHMODE_ATTRIBUTE_NAME, User.CredentialsEncoding.UNSPECIFIED.getEncodingName());
+
+    for (Account acct : user.getAccounts())
+    {
+      if (acct instanceof RelationalAccount)
+      {
+        json.member(ACCOUNT_ID_ATTRIBUTE_NAME, Long.toString(((RelationalAccount) acct).getId()));
+        break;
+      }
+    }
   }
 
+  private boolean isReplaced(String attributeName)
+  {
+    return attributeName.equals(User.CREDENTIALS_ATTRIBUTE_NAME) ||
+           attributeName.equals(User.AUTHMODE_ATTRIBUTE_NAME) ||
+           attributeName.equals(ACCOUNT_ID_ATTRIBUTE_NAME);
+  }
+
+  private Object read(Field field, User user)
+  {
+    try
+    {
+      return field.get(user);
+    }
+
+    catch (IllegalAccessException exception)
+    {
+      throw new IncorrectImplementationException(
+          "Cannot read user field ''{0}'': {1}", exception, field.getName(), exception.getMessage()
+      );
+    }
+  }
 }
@@ -0,0 +1,272 @@
+/*
+ * OpenRemote, the Home of the Digital Home.
+ * Copyright 2008-2015, OpenRemote Inc.
+ *
+ * See the contributors.txt file in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.openremote.beehive.account.realm;
+
+import java.io.UnsupportedEncodingException;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.Principal;
+
+import java.text.Normalizer;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+
+/**
+ * Bounded cache of authenticated principals, including their roles, keyed by a SHA-256
+ * hash of the username and credentials. Plain text credentials are not retained. <p>
+ *
+ * Entries are evicted in least-recently-used order once the configured maximum size is
+ * reached, and expire after the configured time-to-live so that password and role changes
+ * made to the database are eventually picked up. To avoid a concurrent authentication
+ * re-populating an entry with data loaded before an invalidation, the realm takes a
+ * {@link #getGeneration() generation} stamp before authenticating against the database and
+ * hands it back with {@link #put(String, String, Principal, long)}. <p>
+ *
+ * Invalidation matches usernames case and accent insensitively, the same way the database
+ * collation matches the username an authentication was made with. <p>
+ *
+ * This class is thread-safe.
+ *
+ * @author Juha Lindfors
+ */
+public class AuthenticationCache implements AuthenticationCacheMBean
+{
+
+  // Class Members --------------------------------------------------------------------------------
+
+  private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+  private static final Pattern COMBINING_MARKS = Pattern.compile("\\p{M}+");
+
+
+  /**
+   * Returns the cache key of the given username and credentials.
+   */
+  private static String getKey(String username, String credentials)
+  {
+    try
+    {
+      MessageDigest digest = MessageDigest.getInstance("SHA-256");
+
+      byte[] hash = digest.digest((username + '\u0000' + credentials).getBytes("UTF-8"));
+      char[] key = new char[hash.length * 2];
+
+      for (int i = 0; i < hash.length; i++)
+      {
+        key[i * 2] = HEX[(hash[i] >> 4) & 0xF];
+        key[i * 2 + 1] = HEX[hash[i] & 0xF];
+      }
+
+      return new String(key);
+    }
+
+    catch (NoSuchAlgorithmException exception)
+    {
+      throw new IllegalStateException("SHA-256 is not available: " + exception.getMessage(), exception);
+    }
+
+    catch (UnsupportedEncodingException exception)
+    {
+      throw new IllegalStateException("UTF-8 is not available: " + exception.getMessage(), exception);
+    }
+  }
+
+  /**
+   * Returns the key a username is invalidated with, ignoring case and accents. The realm is
+   * loaded by the servlet container and does not share the web application's classes, this
+   * must match the account manager's UsernameIndex.normalize().
+   */
+  static String normalize(String username)
+  {
+    String decomposed = Normalizer.normalize(username, Normalizer.Form.NFD);
+
+    return COMBINING_MARKS.matcher(decomposed).replaceAll("").toLowerCase(Locale.ENGLISH);
+  }
+
+
+
+  // Instance Fields ------------------------------------------------------------------------------
+
+  private Map<String, CachedPrincipal> principals;
+
+  private long timeToLive;
+
+  private long generation = 0;
+
+  private long hits = 0;
+
+  private long misses = 0;
+
+
+
+  // Constructors ---------------------------------------------------------------------------------
+
+  /**
+   * Creates a new authentication cache.
+   *
+   * @param maxSize       maximum number of cached authentications
+   * @param timeToLive    time, in milliseconds, an authentication remains cached
+   */
+  public AuthenticationCache(final int maxSize, long timeToLive)
+  {
+    this.timeToLive = timeToLive;
+
+    this.principals = new LinkedHashMap<String, CachedPrincipal>(16, 0.75f, true)
+    {
+      @Override protected boolean removeEldestEntry(Map.Entry<String, CachedPrincipal> eldest)
+      {
+        return size() > maxSize;
+      }
+    };
+  }
+
+
+
+  // Implements AuthenticationCacheMBean ----------------------------------------------------------
+
+  @Override public synchronized void invalidate(String username)
+  {
+    generation++;
+
+    String key = normalize(username);
+    Iterator<CachedPrincipal> it = principals.values().iterator();
+
+    while (it.hasNext())
+    {
+      if (it.next().username.equals(key))
+      {
+        it.remove();
+      }
+    }
+  }
+
+  @Override public synchronized void invalidateAll()
+  {
+    generation++;
+
+    principals.clear();
+  }
+
+  @Override public synchronized int getSize()
+  {
+    return principals.size();
+  }
+
+  @Override public synchronized long getHitCount()
+  {
+    return hits;
+  }
+
+  @Override public synchronized long getMissCount()
+  {
+    return misses;
+  }
+
+
+
+  // Public Instance Methods ----------------------------------------------------------------------
+
+  /**
+   * Returns the cached principal of a previous successful authentication with the same
+   * username and credentials.
+   *
+   * @param username      name of the user
+   * @param credentials   credentials given by the user
+   *
+   * @return  authenticated principal, or <tt>null</tt> if not cached or expired
+   */
+  public synchronized Principal get(String username, String credentials)
+  {
+    String key = getKey(username, credentials);
+    CachedPrincipal cached = principals.get(key);
+
+    if (cached == null || System.currentTimeMillis() - cached.loadTime > timeToLive)
+    {
+      if (cached != null)
+      {
+        principals.remove(key);
+      }
+
+      misses++;
+
+      return null;
+    }
+
+    hits++;
+
+    return cached.principal;
+  }
+
+  /**
+   * Returns the current invalidation generation. Take the stamp before authenticating
+   * against the database and pass it to {@link #put(String, String, Principal, long)}.
+   *
+   * @return  invalidation generation stamp
+   */
+  public synchronized long getGeneration()
+  {
+    return generation;
+  }
+
+  /**
+   * Caches a successful authentication unless the cache has been invalidated since the
+   * given generation stamp was taken.
+   *
+   * @param username      name of the user
+   * @param credentials   credentials given by the user
+   * @param principal     authenticated principal
+   * @param generation    generation stamp taken before authenticating
+   */
+  public synchronized void put(String username, String credentials, Principal principal, long generation)
+  {
+    if (generation != this.generation)
+    {
+      return;
+    }
+
+    principals.put(getKey(username, credentials), new CachedPrincipal(normalize(username), principal));
+  }
+
+
+
+  // Nested Classes -------------------------------------------------------------------------------
+
+  private static class CachedPrincipal
+  {
+    private String username;
+
+    private Principal principal;
+
+    private long loadTime = System.currentTimeMillis();
+
+    private CachedPrincipal(String username, Principal principal)
+    {
+      this.username = username;
+      this.principal = principal;
+    }
+  }
+}
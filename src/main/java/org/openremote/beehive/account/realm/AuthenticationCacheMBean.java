@@ -0,0 +1,68 @@
+/*
+ * OpenRemote, the Home of the Digital Home.
+ * Copyright 2008-2015, OpenRemote Inc.
+ *
+ * See the contributors.txt file in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.openremote.beehive.account.realm;
+
+
+/**
+ * Management interface of the {@link AuthenticationCache}. The account manager web
+ * application uses it to invalidate the cached authentications of removed users, see
+ * {@link CachingDataSourceRealm}.
+ *
+ * @author Juha Lindfors
+ */
+public interface AuthenticationCacheMBean
+{
+
+  /**
+   * JMX object name domain and type under which the authentication caches are registered,
+   * suitable as an object name pattern when appended with ',*'. The account manager web
+   * application does not load the realm classes and repeats this value in its own code, the
+   * two must be kept the same: {@value}
+   */
+  String OBJECT_NAME_PREFIX = "OpenRemote.AccountManager:type=AuthenticationCache";
+
+  /**
+   * Removes all cached authentications of the given user.
+   *
+   * @param username  name of the user
+   */
+  void invalidate(String username);
+
+  /**
+   * Removes all cached authentications.
+   */
+  void invalidateAll();
+
+  /**
+   * @return  number of cached authentications
+   */
+  int getSize();
+
+  /**
+   * @return  number of authentications answered from the cache
+   */
+  long getHitCount();
+
+  /**
+   * @return  number of authentications that queried the database
+   */
+  long getMissCount();
+}
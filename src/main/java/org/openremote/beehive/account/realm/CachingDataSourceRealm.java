@@ -0,0 +1,218 @@
+/*
+ * OpenRemote, the Home of the Digital Home.
+ * Copyright 2008-2015, OpenRemote Inc.
+ *
+ * See the contributors.txt file in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.openremote.beehive.account.realm;
+
+import java.lang.management.ManagementFactory;
+import java.security.Principal;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.apache.catalina.LifecycleException;
+import org.apache.catalina.realm.DataSourceRealm;
+
+
+/**
+ * Tomcat data source realm that caches successful authentications. <p>
+ *
+ * The account manager requires HTTP BASIC authentication on every request. With a plain
+ * data source realm each request queries the user's password and, through the
+ * 'tomcat_user_role' view, joins the user, role and user_role tables for its roles. This
+ * realm keeps the authenticated principals, including their roles, in a bounded
+ * {@link AuthenticationCache} for {@link #setCacheTimeToLive(int) cacheTimeToLive} seconds.
+ * Failed authentications are not cached. <p>
+ *
+ * The cache is registered as an {@link AuthenticationCacheMBean} in the platform MBean
+ * server. The account manager removes the cached authentications of the users it deletes
+ * through it, so removed users are rejected immediately. Password and role changes made by
+ * other means take effect once the cached entry expires. <p>
+ *
+ * The realm is deployed to Tomcat's lib directory and configured in the web application's
+ * context, for example:
+ *
+ * <pre>{@code
+ * <Realm className = "org.openremote.beehive.account.realm.CachingDataSourceRealm"
+ *        dataSourceName = "jdbc/BeehiveDB" localDataSource = "true"
+ *        userTable = "user" userNameCol = "username" userCredCol = "password"
+ *        userRoleTable = "tomcat_user_role" roleNameCol = "rolename"
+ *        cacheSize = "1000" cacheTimeToLive = "60"/>
+ * }</pre>
+ *
+ * @author Juha Lindfors
+ */
+public class CachingDataSourceRealm extends DataSourceRealm
+{
+
+  // Constants ------------------------------------------------------------------------------------
+
+  /**
+   * Default maximum number of cached authentications: {@value}
+   */
+  public static final int DEFAULT_CACHE_SIZE = 1000;
+
+  /**
+   * Default time, in seconds, an authentication is cached: {@value}
+   */
+  public static final int DEFAULT_CACHE_TTL = 60;
+
+
+
+  // Instance Fields ------------------------------------------------------------------------------
+
+  private int cacheSize = DEFAULT_CACHE_SIZE;
+
+  private int cacheTimeToLive = DEFAULT_CACHE_TTL;
+
+  private AuthenticationCache cache;
+
+  private ObjectName objectName;
+
+
+
+  // DataSourceRealm Overrides --------------------------------------------------------------------
+
+  @Override public Principal authenticate(String username, String credentials)
+  {
+    AuthenticationCache current = cache;
+
+    if (current == null || username == null || credentials == null)
+    {
+      return super.authenticate(username, credentials);
+    }
+
+    Principal principal = current.get(username, credentials);
+
+    if (principal != null)
+    {
+      return principal;
+    }
+
+    long generation = current.getGeneration();
+
+    principal = super.authenticate(username, credentials);
+
+    if (principal != null)
+    {
+      current.put(username, credentials, principal, generation);
+    }
+
+    return principal;
+  }
+
+  @Override public void start() throws LifecycleException
+  {
+    super.start();
+
+    if (cacheSize <= 0 || cacheTimeToLive <= 0)
+    {
+      return;
+    }
+
+    cache = new AuthenticationCache(cacheSize, 1000L * cacheTimeToLive);
+
+    try
+    {
+      MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+
+      objectName = new ObjectName(
+          AuthenticationCacheMBean.OBJECT_NAME_PREFIX + ",realm=" +
+          ObjectName.quote(String.valueOf(System.identityHashCode(this)))
+      );
+
+      server.registerMBean(cache, objectName);
+    }
+
+    catch (JMException exception)
+    {
+      // without the MBean, deleted users remain authenticated until their entries expire...
+
+      containerLog.warn(
+          "Authentication cache could not be registered for invalidation, cached entries " +
+          "expire after " + cacheTimeToLive + " seconds: " + exception.getMessage(), exception
+      );
+
+      objectName = null;
+    }
+  }
+
+  @Override public void stop() throws LifecycleException
+  {
+    if (objectName != null)
+    {
+      try
+      {
+        ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+      }
+
+      catch (JMException exception)
+      {
+        containerLog.warn("Authentication cache could not be unregistered: " + exception.getMessage());
+      }
+
+      objectName = null;
+    }
+
+    cache = null;
+
+    super.stop();
+  }
+
+
+
+  // Public Instance Methods ----------------------------------------------------------------------
+
+  /**
+   * Sets the maximum number of cached authentications. Zero disables the cache.
+   *
+   * @param cacheSize   maximum cache size
+   */
+  public void setCacheSize(int cacheSize)
+  {
+    this.cacheSize = cacheSize;
+  }
+
+  /**
+   * @return  maximum number of cached authentications
+   */
+  public int getCacheSize()
+  {
+    return cacheSize;
+  }
+
+  /**
+   * Sets the time, in seconds, a successful authentication is cached. Zero disables the cache.
+   *
+   * @param cacheTimeToLive   cache time-to-live in seconds
+   */
+  public void setCacheTimeToLive(int cacheTimeToLive)
+  {
+    this.cacheTimeToLive = cacheTimeToLive;
+  }
+
+  /**
+   * @return  time, in seconds, a successful authentication is cached
+   */
+  public int getCacheTimeToLive()
+  {
+    return cacheTimeToLive;
+  }
+}
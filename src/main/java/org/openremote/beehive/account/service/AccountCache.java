@@ -0,0 +1,251 @@
+/*
+ * OpenRemote, the Home of the Digital Home.
+ * Copyright 2008-2015, OpenRemote Inc.
+ *
+ * See the contributors.txt file in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.openremote.beehive.account.service;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+
+/**
+ * Application wide, bounded cache of serialized user account listings keyed by username. <p>
+ *
+ * Usernames are keyed by their {@link UsernameIndex#normalize normalized} form, matching the
+ * case and accent insensitive collation the database compares usernames with, so that an
+ * invalidation with the stored username also removes a listing requested with a differently
+ * cased username. <p>
+ *
+ * Entries are evicted in least-recently-used order once the configured maximum size is
+ * reached, and expire after the configured time-to-live so that changes made to the database
+ * by other means are eventually picked up. The account creation and removal resources
+ * invalidate the entries of the usernames they modify. <p>
+ *
+ * The cache is populated by the reading request (read-through). To avoid a concurrent read
+ * re-populating an entry with data loaded before an invalidation, readers take a
+ * {@link #getGeneration() generation} stamp before loading from the database and hand it back
+ * with {@link #put(String, String, long)}; the entry is not stored if any invalidation has
+ * occurred in between. Only listings of existing users should be cached. <p>
+ *
+ * This class is thread-safe.
+ *
+ * @author Juha Lindfors
+ */
+public class AccountCache
+{
+
+  // Instance Fields ------------------------------------------------------------------------------
+
+  private Map<String, CachedListing> listings;
+
+  private int maxSize;
+
+  private long timeToLive;
+
+  private long generation = 0;
+
+  private CacheStatistics statistics = new CacheStatistics("account_listings");
+
+
+
+  // Constructors ---------------------------------------------------------------------------------
+
+  /**
+   * Creates a new account cache.
+   *
+   * @param maxSize
+   *          maximum number of cached account listings; zero disables caching
+   *
+   * @param timeToLive
+   *          time, in milliseconds, an account listing remains valid before it is reloaded
+   *          from the database; zero or negative value disables caching
+   */
+  public AccountCache(final int maxSize, long timeToLive)
+  {
+    this.maxSize = maxSize;
+    this.timeToLive = timeToLive;
+
+    this.listings = new LinkedHashMap<String, CachedListing>(16, 0.75f, true)
+    {
+      @Override protected boolean removeEldestEntry(Map.Entry<String, CachedListing> eldest)
+      {
+        if (size() > maxSize)
+        {
+          statistics.evicted(1);
+
+          return true;
+        }
+
+        return false;
+      }
+    };
+  }
+
+  /**
+   * Creates a new account cache with the size and time-to-live of the given service
+   * configuration.
+   *
+   * @param config  account manager service configuration
+   */
+  public AccountCache(ServiceConfiguration config)
+  {
+    this(config.getAccountCacheSize(), config.getAccountCacheTimeToLive());
+  }
+
+
+
+  // Public Instance Methods ----------------------------------------------------------------------
+
+  /**
+   * Returns the cached account listing of a user.
+   *
+   * @param username  username of the account owner
+   *
+   * @return  serialized account listing, or <tt>null</tt> if the listing is not cached or has
+   *          expired
+   */
+  public synchronized String get(String username)
+  {
+    String key = UsernameIndex.normalize(username);
+
+    CachedListing cached = listings.get(key);
+
+    if (cached == null)
+    {
+      statistics.miss();
+
+      return null;
+    }
+
+    if (System.currentTimeMillis() - cached.loadTime > timeToLive)
+    {
+      listings.remove(key);
+
+      statistics.evicted(1);
+      statistics.miss();
+
+      return null;
+    }
+
+    statistics.hit();
+
+    return cached.json;
+  }
+
+  /**
+   * Returns the current invalidation generation of this cache. Must be called before the
+   * account listing is loaded from the database, and passed to {@link #put(String, String, long)}.
+   *
+   * @return  invalidation generation
+   */
+  public synchronized long getGeneration()
+  {
+    return generation;
+  }
+
+  /**
+   * Stores an account listing of a user, unless the cache has been invalidated after the given
+   * generation was retrieved.
+   *
+   * @param username      username of the account owner
+   * @param json          serialized account listing
+   * @param generation    value of {@link #getGeneration()} before the listing was loaded
+   */
+  public synchronized void put(String username, String json, long generation)
+  {
+    if (maxSize <= 0 || timeToLive <= 0 || generation != this.generation)
+    {
+      return;
+    }
+
+    listings.put(UsernameIndex.normalize(username), new CachedListing(json));
+  }
+
+  /**
+   * Removes the cached account listing of a user. Should be called after the user's accounts
+   * have been modified in the database.
+   *
+   * @param username  username of the account owner
+   */
+  public synchronized void invalidate(String username)
+  {
+    generation++;
+
+    if (listings.remove(UsernameIndex.normalize(username)) != null)
+    {
+      statistics.evicted(1);
+    }
+  }
+
+  /**
+   * Removes the cached account listings of a collection of users.
+   *
+   * @param usernames   usernames of the account owners
+   */
+  public synchronized void invalidate(Iterable<String> usernames)
+  {
+    generation++;
+
+    for (String username : usernames)
+    {
+      if (listings.remove(UsernameIndex.normalize(username)) != null)
+      {
+        statistics.evicted(1);
+      }
+    }
+  }
+
+  /**
+   * Removes all cached account listings.
+   */
+  public synchronized void invalidateAll()
+  {
+    generation++;
+
+    statistics.evicted(listings.size());
+
+    listings.clear();
+  }
+
+  /**
+   * Returns the hit, miss and eviction counters of this cache.
+   *
+   * @return  cache statistics
+   */
+  public CacheStatistics getStatistics()
+  {
+    return statistics;
+  }
+
+
+
+  // Nested Classes -------------------------------------------------------------------------------
+
+  private static class CachedListing
+  {
+    private String json;
+
+    private long loadTime = System.currentTimeMillis();
+
+    private CachedListing(String json)
+    {
+      this.json = json;
+    }
+  }
+}
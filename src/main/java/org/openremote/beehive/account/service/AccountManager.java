@@ -23,17 +23,29 @@ package org.openremote.beehive.account.service;
 import java.util.HashSet;
 import java.util.Set;
 
+import javax.persistence.EntityManager;
+import javax.servlet.ServletContext;
 import javax.ws.rs.container.ContainerRequestContext;
 import javax.ws.rs.container.ContainerRequestFilter;
 import javax.ws.rs.container.DynamicFeature;
 import javax.ws.rs.container.ResourceInfo;
 import javax.ws.rs.core.Application;
+import javax.ws.rs.core.Context;
 import javax.ws.rs.core.FeatureContext;
+import javax.ws.rs.core.MediaType;
 import javax.ws.rs.core.Response;
 import javax.ws.rs.core.SecurityContext;
 
+import org.glassfish.hk2.utilities.binding.AbstractBinder;
+import org.glassfish.jersey.server.spi.Container;
+import org.glassfish.jersey.server.spi.ContainerLifecycleListener;
+
+import org.openremote.beehive.account.model.CustomerFulfillment;
+import org.openremote.beehive.account.model.rest.BatchResultWriter;
 import org.openremote.beehive.account.model.rest.CustomerFulfillmentReader;
 import org.openremote.beehive.account.model.rest.CustomerFulfillmentWriter;
+import org.openremote.beehive.account.model.rest.RegistrationBatchReader;
+import org.openremote.beehive.account.model.rest.StreamingUserRegistrationReader;
 import org.openremote.beehive.account.model.rest.UserRegistrationReader;
 import org.openremote.beehive.account.model.rest.UserWriter;
 
@@ -46,7 +58,14 @@ import org.openremote.beehive.account.model.rest.UserWriter;
  *
  * This implementation uses the explicit resource registration via {@link #getClasses()} method
  * to support pre-Servlet 3.0 containers. It currently assumes a servlet container-based
- * deployment.
+ * deployment. <p>
+ *
+ * The service configuration is resolved from the servlet context when this application is
+ * created, and made available to the REST resources for injection as a
+ * {@link ServiceConfiguration} instance, along with the application wide {@link RoleCache},
+ * {@link UsernameIndex}, {@link AccountCache} and {@link ServiceMetrics}.
+ * An invalid configuration will therefore fail the
+ * deployment of the service rather than individual requests.
  *
  * @author Juha Lindfors
  */
@@ -67,7 +86,10 @@ public class AccountManager extends Application
   {
     resourceClasses.add(CreateAccount.class);
     resourceClasses.add(DeleteAccount.class);
+    resourceClasses.add(DeleteAccounts.class);
     resourceClasses.add(UserAccount.class);
+    resourceClasses.add(ExportAccounts.class);
+    resourceClasses.add(Metrics.class);
   }
 
   private static final Set<Class<?>> providerClasses = new HashSet<Class<?>>();
@@ -75,19 +97,55 @@ public class AccountManager extends Application
   static
   {
     providerClasses.add(UserAuthorization.class);
-    providerClasses.add(UserRegistrationReader.class);
-    providerClasses.add(CustomerFulfillmentReader.class);
+    providerClasses.add(RequestEntityLimits.class);
     providerClasses.add(UserWriter.class);
     providerClasses.add(CustomerFulfillmentWriter.class);
+    providerClasses.add(BatchResultWriter.class);
   }
 
 
 
+  // Instance Fields ------------------------------------------------------------------------------
+
+  private ServiceConfiguration configuration;
+
+  private RoleCache roleCache;
+
+  private UsernameIndex usernameIndex;
+
+  private AccountCache accountCache;
+
+  private ServiceMetrics metrics;
+
+  private CredentialHashing credentialHashing;
+
+
+
   // Constructors ---------------------------------------------------------------------------------
 
-  public AccountManager()
+  /**
+   * Creates the account manager application and resolves its service configuration.
+   *
+   * @param webapp  servlet context of the account manager web application
+   *
+   * @throws ServiceConfigurationException
+   *            if the deployment descriptor contains invalid service configuration
+   */
+  public AccountManager(@Context ServletContext webapp) throws ServiceConfigurationException
   {
     //System.setProperty("jersey.config.server.tracing.type", "ALL");
+
+    this.configuration = new ServiceConfiguration(webapp);
+    this.roleCache = new RoleCache(configuration.getRoleCacheTimeToLive());
+    this.usernameIndex = new UsernameIndex(configuration);
+    this.accountCache = new AccountCache(configuration);
+    this.metrics = new ServiceMetrics(configuration);
+
+    metrics.register(roleCache.getStatistics());
+    metrics.register(usernameIndex.getStatistics());
+    metrics.register(accountCache.getStatistics());
+
+    this.credentialHashing = new CredentialHashing(configuration, metrics);
   }
 
 
@@ -101,10 +159,151 @@ public class AccountManager extends Application
     classes.addAll(resourceClasses);
     classes.addAll(providerClasses);
 
+    // only one reader of user registrations is registered, as selected in configuration...
+
+    if (configuration.isStreamingRegistrationReader())
+    {
+      classes.add(StreamingUserRegistrationReader.class);
+    }
+
+    else
+    {
+      classes.add(UserRegistrationReader.class);
+    }
+
     return classes;
   }
 
+  @Override public Set<Object> getSingletons()
+  {
+    Set<Object> singletons = new HashSet<Object>();
+
+    singletons.add(new ServiceBinder(
+        configuration, roleCache, usernameIndex, accountCache, metrics, credentialHashing
+    ));
+    singletons.add(new RequestMetrics(metrics));
+    singletons.add(new ServiceLifecycle(credentialHashing));
+
+    // roles are only stored in the legacy Beehive schema...
+
+    if (configuration.getSchema() == CreateAccount.Schema.LEGACY_BEEHIVE)
+    {
+      singletons.add(new RoleCacheWarmUp(roleCache));
+    }
+
+    // the fulfillment limits are configured per application, the readers are registered as
+    // instances configured with them...
+
+    CustomerFulfillment.Limits limits = new CustomerFulfillment.Limits(
+        configuration.getMaxFulfillmentControllers(), configuration.getMaxControllerMacAddresses()
+    );
+
+    singletons.add(new CustomerFulfillmentReader(limits));
+    singletons.add(new RegistrationBatchReader(
+        configuration.getMaxRequestSize(MediaType.valueOf(CustomerFulfillment.JSON_HTTP_CONTENT_TYPE)),
+        limits
+    ));
+
+    return singletons;
+  }
+
+
+
+  /**
+   * Binds the application scoped service configuration, role cache, username index, account
+   * cache, service metrics and credential hashing instances so they can be injected into the
+   * REST resources with the {@link javax.ws.rs.core.Context} annotation.
+   */
+  private static class ServiceBinder extends AbstractBinder
+  {
+    private ServiceConfiguration configuration;
+
+    private RoleCache roleCache;
+
+    private UsernameIndex usernameIndex;
+
+    private AccountCache accountCache;
+
+    private ServiceMetrics metrics;
+
+    private CredentialHashing credentialHashing;
+
+    private ServiceBinder(ServiceConfiguration configuration, RoleCache roleCache,
+                          UsernameIndex usernameIndex, AccountCache accountCache,
+                          ServiceMetrics metrics, CredentialHashing credentialHashing)
+    {
+      this.configuration = configuration;
+      this.roleCache = roleCache;
+      this.usernameIndex = usernameIndex;
+      this.accountCache = accountCache;
+      this.metrics = metrics;
+      this.credentialHashing = credentialHashing;
+    }
+
+    @Override protected void configure()
+    {
+      bind(configuration).to(ServiceConfiguration.class);
+      bind(roleCache).to(RoleCache.class);
+      bind(usernameIndex).to(UsernameIndex.class);
+      bind(accountCache).to(AccountCache.class);
+      bind(metrics).to(ServiceMetrics.class);
+      bind(credentialHashing).to(CredentialHashing.class);
+    }
+  }
+
+  /**
+   * Releases the application scoped resources that are not garbage collected with the
+   * application when the container shuts down the service on undeploy.
+   */
+  private static class ServiceLifecycle implements ContainerLifecycleListener
+  {
+    private CredentialHashing credentialHashing;
 
+    private ServiceLifecycle(CredentialHashing credentialHashing)
+    {
+      this.credentialHashing = credentialHashing;
+    }
+
+    @Override public void onStartup(Container container)
+    {
+      // nothing to do, resources are created with the application...
+    }
+
+    @Override public void onReload(Container container)
+    {
+      // nothing to do, a reload shuts down the previous application instance first...
+    }
+
+    @Override public void onShutdown(Container container)
+    {
+      credentialHashing.shutdown();
+    }
+  }
+
+  /**
+   * Starts loading the role cache when the service receives its first request. The entity
+   * manager factory is owned by the transaction management filter and is only reachable
+   * through the entity manager it attaches to each request.
+   */
+  private static class RoleCacheWarmUp implements ContainerRequestFilter
+  {
+    private RoleCache roleCache;
+
+    private RoleCacheWarmUp(RoleCache roleCache)
+    {
+      this.roleCache = roleCache;
+    }
+
+    @Override public void filter(ContainerRequestContext ctx)
+    {
+      Object em = ctx.getProperty(ENTITY_MANAGER_LOOKUP);
+
+      if (em instanceof EntityManager)
+      {
+        roleCache.warmUp(((EntityManager)em).getEntityManagerFactory());
+      }
+    }
+  }
 
   /**
    * Implements user authorization as a dynamic feature. This allows authorization configuration
@@ -130,6 +329,21 @@ public class AccountManager extends Application
       {
         ctx.register(new AuthorizationRole(Role.SERVICE_ADMINISTRATOR_ROLE));
       }
+
+      else if (info.getResourceClass().equals(DeleteAccounts.class))
+      {
+        ctx.register(new AuthorizationRole(Role.SERVICE_ADMINISTRATOR_ROLE));
+      }
+
+      else if (info.getResourceClass().equals(ExportAccounts.class))
+      {
+        ctx.register(new AuthorizationRole(Role.SERVICE_ADMINISTRATOR_ROLE));
+      }
+
+      else if (info.getResourceClass().equals(Metrics.class))
+      {
+        ctx.register(new AuthorizationRole(Role.SERVICE_ADMINISTRATOR_ROLE));
+      }
     }
   }
 
@@ -191,6 +405,8 @@ public class AccountManager extends Application
   {
     TRANSACTION               ("Transaction"),
 
+    CONFIGURATION             ("Configuration"),
+
     REGISTRATION              ("Rest.Registration"),
 
     REGISTRATION_DESERIALIZE  ("Rest.Registration.Deserialize"),
@@ -0,0 +1,262 @@
+/*
+ * OpenRemote, the Home of the Digital Home.
+ * Copyright 2008-2015, OpenRemote Inc.
+ *
+ * See the contributors.txt file in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.openremote.beehive.account.service;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import javax.persistence.EntityManager;
+import javax.persistence.PersistenceException;
+
+
+/**
+ * Removes user accounts, their role assignments and their controllers from the database for a
+ * set of usernames at a time. <p>
+ *
+ * With the legacy Beehive schema the removal is done with set-based JPQL bulk deletes: the ids
+ * of the users and their accounts are resolved with a single scalar query, after which the
+ * role assignments, controllers, users and (no longer referenced) accounts are each deleted
+ * with a single statement for the whole set. No entities are loaded into the persistence
+ * context. <p>
+ *
+ * The Account Manager 2.0 schema is removed with bulk deletes as well. That schema maps the
+ * user, account and controller attributes, the controller MAC addresses and the user account
+ * links as collection tables, which JPQL bulk deletes do not cascade to. Their rows are deleted
+ * first with native statements on the owner ids. Accounts may be shared between users, so only
+ * the accounts (and their controllers) left without users are removed.
+ *
+ * @author Juha Lindfors
+ */
+class AccountRemoval
+{
+
+  // Instance Fields ------------------------------------------------------------------------------
+
+  private ServiceConfiguration config;
+
+  private EntityManager em;
+
+
+
+  // Constructors ---------------------------------------------------------------------------------
+
+  AccountRemoval(ServiceConfiguration config, EntityManager em)
+  {
+    this.config = config;
+    this.em = em;
+  }
+
+
+
+  // Instance Methods -----------------------------------------------------------------------------
+
+  /**
+   * Removes the accounts of the given users.
+   *
+   * @param usernames   usernames of the accounts to remove
+   *
+   * @return  the usernames that were found and removed
+   *
+   * @throws PersistenceException
+   *            if the database operation fails
+   */
+  Set<String> remove(List<String> usernames) throws PersistenceException
+  {
+    if (usernames.isEmpty())
+    {
+      return new HashSet<String>();
+    }
+
+    if (config.getSchema() == CreateAccount.Schema.LEGACY_BEEHIVE)
+    {
+      return removeLegacyBeehive(usernames);
+    }
+
+    return removeAccountManager(usernames);
+  }
+
+
+
+  // Private Instance Methods ---------------------------------------------------------------------
+
+  private Set<String> removeLegacyBeehive(List<String> usernames)
+  {
+    List<Object[]> rows = em.createQuery(
+        "SELECT u.id, u.username, a.id FROM BeehiveUser u LEFT JOIN u.account a " +
+        "WHERE u.username IN :names", Object[].class)
+        .setParameter("names", usernames)
+        .getResultList();
+
+    Set<String> removed = new HashSet<String>(rows.size() * 2);
+
+    if (rows.isEmpty())
+    {
+      return removed;
+    }
+
+    List<Long> userIds = new ArrayList<Long>(rows.size());
+    List<Long> accountIds = new ArrayList<Long>(rows.size());
+
+    for (Object[] row : rows)
+    {
+      userIds.add((Long)row[0]);
+      removed.add((String)row[1]);
+
+      if (row[2] != null)
+      {
+        accountIds.add((Long)row[2]);
+      }
+    }
+
+    em.createQuery("DELETE FROM MinimalBeehiveUserRole ur WHERE ur.userId IN :userIds")
+        .setParameter("userIds", userIds)
+        .executeUpdate();
+
+    if (!accountIds.isEmpty())
+    {
+      em.createQuery("DELETE FROM BeehiveController c WHERE c.account.id IN :accountIds")
+          .setParameter("accountIds", accountIds)
+          .executeUpdate();
+    }
+
+    em.createQuery("DELETE FROM BeehiveUser u WHERE u.id IN :userIds")
+        .setParameter("userIds", userIds)
+        .executeUpdate();
+
+    // remove the accounts that were left without users...
+
+    if (!accountIds.isEmpty())
+    {
+      em.createQuery(
+          "DELETE FROM Account a WHERE a.id IN :accountIds " +
+          "AND NOT EXISTS (SELECT u.id FROM BeehiveUser u WHERE u.account = a)")
+          .setParameter("accountIds", accountIds)
+          .executeUpdate();
+    }
+
+    return removed;
+  }
+
+  private Set<String> removeAccountManager(List<String> usernames)
+  {
+    List<Object[]> rows = em.createQuery(
+        "SELECT u.id, u.username FROM User u WHERE u.username IN :names", Object[].class)
+        .setParameter("names", usernames)
+        .getResultList();
+
+    Set<String> removed = new HashSet<String>(rows.size() * 2);
+
+    if (rows.isEmpty())
+    {
+      return removed;
+    }
+
+    List<Long> userIds = new ArrayList<Long>(rows.size());
+
+    for (Object[] row : rows)
+    {
+      userIds.add((Long)row[0]);
+      removed.add((String)row[1]);
+    }
+
+    // accounts are shared between users, only the accounts that are left without users are
+    // removed along with their controllers...
+
+    List<Long> accountIds = findOrphanAccounts(userIds);
+
+    if (!accountIds.isEmpty())
+    {
+      List<Long> controllerIds = em.createQuery(
+          "SELECT c.id FROM Controller c WHERE c.account.id IN :accountIds", Long.class)
+          .setParameter("accountIds", accountIds)
+          .getResultList();
+
+      if (!controllerIds.isEmpty())
+      {
+        deleteCollection("controller_macs", "controller_oid", controllerIds);
+        deleteCollection("controller_attributes", "controller_oid", controllerIds);
+
+        em.createQuery("DELETE FROM Controller c WHERE c.id IN :controllerIds")
+            .setParameter("controllerIds", controllerIds)
+            .executeUpdate();
+      }
+    }
+
+    deleteCollection("user_attributes", "user_oid", userIds);
+    deleteCollection("user_accounts", "user_id", userIds);
+
+    em.createQuery("DELETE FROM User u WHERE u.id IN :userIds")
+        .setParameter("userIds", userIds)
+        .executeUpdate();
+
+    if (!accountIds.isEmpty())
+    {
+      deleteCollection("account_attributes", "account_oid", accountIds);
+
+      em.createQuery("DELETE FROM Account a WHERE a.id IN :accountIds")
+          .setParameter("accountIds", accountIds)
+          .executeUpdate();
+    }
+
+    return removed;
+  }
+
+  /**
+   * Returns the ids of the accounts of the given users that have no other users.
+   */
+  private List<Long> findOrphanAccounts(List<Long> userIds)
+  {
+    List<Long> accountIds = em.createQuery(
+        "SELECT DISTINCT a.id FROM User u JOIN u.accounts a WHERE u.id IN :userIds", Long.class)
+        .setParameter("userIds", userIds)
+        .getResultList();
+
+    if (accountIds.isEmpty())
+    {
+      return accountIds;
+    }
+
+    List<Long> shared = em.createQuery(
+        "SELECT DISTINCT a.id FROM User u JOIN u.accounts a " +
+        "WHERE a.id IN :accountIds AND u.id NOT IN :userIds", Long.class)
+        .setParameter("accountIds", accountIds)
+        .setParameter("userIds", userIds)
+        .getResultList();
+
+    List<Long> orphans = new ArrayList<Long>(accountIds);
+    orphans.removeAll(shared);
+
+    return orphans;
+  }
+
+  /**
+   * Deletes the rows of an element collection or join table that belong to the given owner
+   * entities. JPQL bulk deletes cannot address collection tables, so a native statement is used.
+   */
+  private void deleteCollection(String table, String ownerColumn, List<Long> ownerIds)
+  {
+    em.createNativeQuery("DELETE FROM " + table + " WHERE " + ownerColumn + " IN (:ids)")
+        .setParameter("ids", ownerIds)
+        .executeUpdate();
+  }
+}
@@ -0,0 +1,192 @@
+/*
+ * OpenRemote, the Home of the Digital Home.
+ * Copyright 2008-2015, OpenRemote Inc.
+ *
+ * See the contributors.txt file in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.openremote.beehive.account.service;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import javax.ws.rs.WebApplicationException;
+
+
+/**
+ * Counts the bytes and the time spent reading a request entity, and fails the read once the
+ * entity exceeds its configured size or the reads have taken longer than the configured
+ * timeout in total. <p>
+ *
+ * Only the time spent blocked in the underlying stream is counted, so that the time the
+ * service spends processing a streamed entity between reads does not count against the
+ * client. A single blocking read is bounded by the servlet container's connection timeout;
+ * this stream bounds the total, so that a client trickling its entity a few bytes at a time
+ * cannot hold on to a request thread indefinitely. <p>
+ *
+ * A violation is raised as {@link HttpRequestEntityTooLarge} or {@link HttpRequestTimeout}.
+ * Since message body readers may wrap the exceptions thrown by their input stream, the
+ * violation is also retained and can be raised again with {@link #checkViolation()}.
+ *
+ * @see RequestEntityLimits
+ *
+ * @author Juha Lindfors
+ */
+class BoundedInputStream extends FilterInputStream
+{
+
+  // Instance Fields ------------------------------------------------------------------------------
+
+  private long maxBytes;
+
+  private long timeoutNanos;
+
+  private long count = 0;
+
+  private long readNanos = 0;
+
+  private WebApplicationException violation = null;
+
+
+
+  // Constructors ---------------------------------------------------------------------------------
+
+  /**
+   * @param in          request entity stream
+   * @param maxBytes    maximum number of bytes that may be read
+   * @param timeout     maximum total time, in milliseconds, spent blocked in reads, zero for
+   *                    no limit
+   */
+  BoundedInputStream(InputStream in, long maxBytes, long timeout)
+  {
+    super(in);
+
+    this.maxBytes = maxBytes;
+    this.timeoutNanos = timeout * 1000000L;
+  }
+
+
+
+  // InputStream Overrides ------------------------------------------------------------------------
+
+  @Override public int read() throws IOException
+  {
+    checkViolation();
+
+    long start = System.nanoTime();
+
+    int b = super.read();
+
+    account(start, (b == -1) ? -1 : 1);
+
+    return b;
+  }
+
+  @Override public int read(byte[] buffer, int offset, int length) throws IOException
+  {
+    checkViolation();
+
+    long start = System.nanoTime();
+
+    // Never read more than one byte past the limit, so an oversize entity is detected
+    // without buffering it...
+
+    long remaining = maxBytes - count + 1;
+
+    int n = super.read(buffer, offset, (int)Math.min(length, remaining));
+
+    account(start, n);
+
+    return n;
+  }
+
+  @Override public long skip(long n) throws IOException
+  {
+    checkViolation();
+
+    long start = System.nanoTime();
+
+    long skipped = super.skip(Math.min(n, maxBytes - count + 1));
+
+    account(start, skipped);
+
+    return skipped;
+  }
+
+  @Override public boolean markSupported()
+  {
+    return false;
+  }
+
+
+
+  // Package-Private Instance Methods -------------------------------------------------------------
+
+  /**
+   * Raises the limit violation of this stream again, if one has occurred.
+   *
+   * @throws WebApplicationException
+   *            HTTP 413 or HTTP 408 error if a limit has been exceeded
+   */
+  void checkViolation()
+  {
+    if (violation != null)
+    {
+      throw violation;
+    }
+  }
+
+  /**
+   * Returns the number of bytes read so far.
+   *
+   * @return  byte count
+   */
+  long getCount()
+  {
+    return count;
+  }
+
+
+
+  // Private Instance Methods ---------------------------------------------------------------------
+
+  private void account(long start, long n)
+  {
+    readNanos += System.nanoTime() - start;
+
+    if (n > 0)
+    {
+      count += n;
+    }
+
+    if (count > maxBytes)
+    {
+      violation = new HttpRequestEntityTooLarge(
+          "Request entity exceeds the maximum size of {0} bytes.", String.valueOf(maxBytes)
+      );
+    }
+
+    else if (timeoutNanos > 0 && readNanos > timeoutNanos)
+    {
+      violation = new HttpRequestTimeout(
+          "Request entity was not received within {0} ms.", String.valueOf(timeoutNanos / 1000000L)
+      );
+    }
+
+    checkViolation();
+  }
+}
@@ -0,0 +1,125 @@
+/*
+ * OpenRemote, the Home of the Digital Home.
+ * Copyright 2008-2015, OpenRemote Inc.
+ *
+ * See the contributors.txt file in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.openremote.beehive.account.service;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/**
+ * Hit, miss and eviction counters of one of the service's application wide caches (a cache
+ * region). A hit is a lookup answered without a database query, a miss a lookup that had to
+ * query the database. The counters are exposed by the {@link Metrics} resource, see
+ * {@link ServiceMetrics#register(CacheStatistics)}. <p>
+ *
+ * This class is thread-safe.
+ *
+ * @author Juha Lindfors
+ */
+public class CacheStatistics
+{
+
+  // Instance Fields ------------------------------------------------------------------------------
+
+  private String region;
+
+  private AtomicLong hits = new AtomicLong(0);
+
+  private AtomicLong misses = new AtomicLong(0);
+
+  private AtomicLong evictions = new AtomicLong(0);
+
+
+
+  // Constructors ---------------------------------------------------------------------------------
+
+  /**
+   * @param region  name of the cache region, e.g. 'roles'
+   */
+  public CacheStatistics(String region)
+  {
+    this.region = region;
+  }
+
+
+
+  // Public Instance Methods ----------------------------------------------------------------------
+
+  /**
+   * Records a lookup that was answered from the cache.
+   */
+  public void hit()
+  {
+    hits.incrementAndGet();
+  }
+
+  /**
+   * Records a lookup that had to be loaded from the database.
+   */
+  public void miss()
+  {
+    misses.incrementAndGet();
+  }
+
+  /**
+   * Records entries removed from the cache due to expiry, size limit or invalidation.
+   *
+   * @param count   number of removed entries
+   */
+  public void evicted(int count)
+  {
+    if (count > 0)
+    {
+      evictions.addAndGet(count);
+    }
+  }
+
+  /**
+   * @return  name of the cache region
+   */
+  public String getRegion()
+  {
+    return region;
+  }
+
+  /**
+   * @return  number of lookups answered from the cache
+   */
+  public long getHitCount()
+  {
+    return hits.get();
+  }
+
+  /**
+   * @return  number of lookups loaded from the database
+   */
+  public long getMissCount()
+  {
+    return misses.get();
+  }
+
+  /**
+   * @return  number of entries removed from the cache
+   */
+  public long getEvictionCount()
+  {
+    return evictions.get();
+  }
+}
@@ -22,35 +22,44 @@ package org.openremote.beehive.account.service;
 
 import org.openremote.base.Defaults;
 import org.openremote.base.exception.IncorrectImplementationException;
+import org.openremote.beehive.account.model.BatchResult;
 import org.openremote.beehive.account.model.CustomerFulfillment;
+import org.openremote.beehive.account.model.RegistrationBatch;
 import org.openremote.beehive.account.model.UserRegistration;
 import org.openremote.model.Controller;
 import org.openremote.model.Model;
 import org.openremote.model.User;
-import org.openremote.model.data.json.DeserializationException;
 import org.openremote.model.persistence.jpa.RelationalAccount;
 import org.openremote.model.persistence.jpa.RelationalController;
 import org.openremote.model.persistence.jpa.RelationalUser;
 import org.openremote.model.persistence.jpa.beehive.BeehiveController;
 import org.openremote.model.persistence.jpa.beehive.BeehiveUser;
-import org.openremote.model.persistence.jpa.beehive.MinimalBeehiveRole;
 import org.openremote.model.persistence.jpa.beehive.MinimalBeehiveUserRole;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import javax.persistence.EntityManager;
 import javax.persistence.PersistenceException;
-import javax.servlet.ServletContext;
 import javax.servlet.http.HttpServletRequest;
 import javax.ws.rs.Consumes;
 import javax.ws.rs.POST;
 import javax.ws.rs.Path;
+import javax.ws.rs.Produces;
 import javax.ws.rs.core.Context;
 import javax.ws.rs.core.MediaType;
 import javax.ws.rs.core.Response;
 import javax.ws.rs.core.SecurityContext;
-import java.io.UnsupportedEncodingException;
-import java.util.Locale;
+import java.lang.reflect.Field;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 
 /**
@@ -67,13 +76,17 @@ public class CreateAccount
   // Constants ------------------------------------------------------------------------------------
 
 
-  public static final String WEBAPP_PARAM_SERVICE_DB_SCHEMA = "ServiceSchema";
-
   /**
    * Log category for the account registration requests.
    */
   private static final AccountManager.Log LOG_CATEGORY = AccountManager.Log.REGISTRATION;
 
+  /**
+   * Maximum number of MAC addresses bound to a single duplicate check query. Keeps the
+   * query's IN list within the parameter limits of common databases: {@value}
+   */
+  private static final int MAX_MAC_ADDRESS_QUERY_PARAMETERS = 1000;
+
 
 
   // Class Members --------------------------------------------------------------------------------
@@ -95,7 +108,30 @@ public class CreateAccount
 
   @Context private HttpServletRequest request;
 
-  @Context private ServletContext webapp;
+  /**
+   * Service configuration resolved at application startup.
+   */
+  @Context private ServiceConfiguration config;
+
+  /**
+   * Application wide cache of role identifiers.
+   */
+  @Context private RoleCache roleCache;
+
+  /**
+   * Application wide index of existing usernames.
+   */
+  @Context private UsernameIndex usernameIndex;
+
+  /**
+   * Application wide cache of account listings.
+   */
+  @Context private AccountCache accountCache;
+
+  /**
+   * Application wide credential hashing thread pool.
+   */
+  @Context private CredentialHashing credentialHashing;
 
 
   // REST API Implementation ----------------------------------------------------------------------
@@ -104,7 +140,7 @@ public class CreateAccount
 
   @POST public Response create(UserRegistration registration)
   {
-    RelationalAccount acct = createPersistentAccount();
+    RelationalAccount acct = new RelationalAccount();
     User user = createUserAccount(acct, registration);
 
     log.info(
@@ -116,72 +152,141 @@ public class CreateAccount
   }
 
 
+  /**
+   * Creates a new account with a user and all the controllers of the given customer
+   * fulfillment. <p>
+   *
+   * The MAC addresses of the controllers are checked for duplicates with a single query
+   * before anything is created, and the controllers are persisted together so that they are
+   * written to the database as one JDBC batch when the transaction is flushed.
+   *
+   * @param fulfillment   customer fulfillment with any number of controllers
+   *
+   * @return  the created customer fulfillment, listing every created controller
+   */
   @Consumes(CustomerFulfillment.JSON_HTTP_CONTENT_TYPE)
 
-  @POST public Response create(CustomerFulfillment fulfillment) throws DeserializationException
+  @POST public Response create(CustomerFulfillment fulfillment)
   {
-    RelationalAccount acct = createPersistentAccount();
-    RelationalUser user = createUserAccount(acct, fulfillment);
+    Schema schema = config.getSchema();
 
-    ControllerData ctrlData = new ControllerData(fulfillment);
+    // throw HTTP 409 - Conflict if any of the controllers is already registered, before
+    // the user account is created...
 
-    Controller addedController = addController(Schema.resolveDBSchema(webapp), acct, ctrlData.controller);
+    if (fulfillment != null)
+    {
+      checkMacAddresses(schema, fulfillment);
+    }
+
+    RelationalAccount acct = new RelationalAccount();
+    RelationalUser user = createUserAccount(acct, fulfillment);
+
+    List<Controller> addedControllers = addControllers(schema, acct, fulfillment.getControllers());
 
     log.info(
-        "CREATE ACCOUNT: [Service admin: ''{}''] created new account for user ''{}''.",
-        security.getUserPrincipal().getName(), user.getName()
+        "CREATE ACCOUNT: [Service admin: ''{}''] created new account for user ''{}'' with {} controllers.",
+        security.getUserPrincipal().getName(), user.getName(), addedControllers.size()
     );
 
-    CustomerFulfillment createdFulfillment = null;
-    try
-    {
-      UserRegistration reg = new UserRegistration(user,
-        new User.Authentication("<not provided>".getBytes("UTF-8"), User.CredentialsEncoding.UNSPECIFIED));
-      createdFulfillment = new CustomerFulfillment(reg, addedController);
-      createdFulfillment.getAccounts().add(acct);
-    } catch (UnsupportedEncodingException exception)
+    UserRegistration reg = new UserRegistration(
+        user, new User.Authentication("<not provided>".getBytes(Defaults.UTF8), User.CredentialsEncoding.UNSPECIFIED)
+    );
+
+    CustomerFulfillment createdFulfillment = new CustomerFulfillment(reg, null);
+
+    for (Controller controller : addedControllers)
     {
-      throw new HttpInternalError(
-              security.getUserPrincipal(), LOG_CATEGORY.getCanonicalLogHierarchyName(), exception,
-              "Account creation FAILED: {0}",
-              exception.getMessage()
-      );
+      createdFulfillment.add(controller);
     }
 
+    createdFulfillment.getAccounts().add(acct);
+
     return Response.ok(createdFulfillment).build();
   }
 
 
-  // TODO: @POST @Consumes({MediaType.TEXT_XML, MediaType.APPLICATION_XML})
+  /**
+   * Creates accounts for a batch of user registrations and customer fulfillments. <p>
+   *
+   * The batch is processed in chunks of {@link ServiceConfiguration#getBatchChunkSize()} entries:
+   * the usernames and controller MAC addresses of each chunk are checked for duplicates with a
+   * single query each, and the SCRYPT credential hashes of the chunk are computed concurrently
+   * on the credential hashing thread pool. The chunk's accounts, users and controllers are
+   * then written and committed in a transaction of their own, and the persistence context is
+   * cleared for the next chunk. The request therefore does not hold a single long running
+   * transaction and the persistence context stays bounded by the chunk size. <p>
+   *
+   * Entries that cannot be deserialized or validated, or that conflict with an existing user
+   * or controller (or an earlier entry in the same batch) are reported individually in the
+   * returned result and do not prevent the rest of the batch from being created. The same
+   * applies to entries whose credentials could not be hashed because the hashing capacity was
+   * exceeded, which are reported with HTTP 503 - Service Unavailable. If a username or MAC
+   * address was registered since the chunk was checked, the chunk is rolled back and its
+   * entries are created one at a time so that only the conflicting entries are reported with
+   * HTTP 409 - Conflict. Other database errors abort the request with an HTTP 500; the chunks
+   * committed before the error remain in the database and the batch can be resubmitted as the
+   * already created usernames are reported as conflicts.
+   *
+   * @param batch   user registrations and/or customer fulfillments
+   *
+   * @return  per-entry results of the batch
+   */
+  @Path("batch")
+  @Consumes(RegistrationBatch.JSON_HTTP_CONTENT_TYPE)
+  @Produces({ MediaType.APPLICATION_JSON, BatchResult.JSON_HTTP_CONTENT_TYPE })
 
+  @POST public Response create(RegistrationBatch batch)
+  {
+    BatchResult result = createAll(batch, false);
 
+    log.info(
+        "CREATE ACCOUNT: [Service admin: ''{}''] batch created {} new accounts, {} entries failed.",
+        security.getUserPrincipal().getName(), result.getSucceededCount(), result.getFailedCount()
+    );
+
+    return Response.ok(result).build();
+  }
 
-  // Private Instance Methods ---------------------------------------------------------------------
 
+  /**
+   * Imports a stream of user registrations and customer fulfillments, typically when migrating
+   * accounts from another installation. <p>
+   *
+   * The import is processed the same way as {@link #create(RegistrationBatch)}, committing
+   * each chunk in its own transaction, and in addition accepts newline delimited JSON. <p>
+   *
+   * Credentials marked as already encoded, such as the credential hashes of an account export,
+   * are stored unchanged only if enabled with
+   * {@link ServiceConfiguration#isImportEncodedCredentials()}. Otherwise the marker is ignored
+   * and the credentials are encoded like those of any other registration.
+   *
+   * @param batch   user registrations and/or customer fulfillments, as a JSON array or as
+   *                newline delimited JSON
+   *
+   * @return  per-entry results of the import
+   */
+  @Path("import")
+  @Consumes({ RegistrationBatch.NDJSON_HTTP_CONTENT_TYPE, RegistrationBatch.JSON_HTTP_CONTENT_TYPE })
+  @Produces({ MediaType.APPLICATION_JSON, BatchResult.JSON_HTTP_CONTENT_TYPE })
 
-  private RelationalAccount createPersistentAccount()
+  @POST public Response importAll(RegistrationBatch batch)
   {
-    try
-    {
-      RelationalAccount acct = new RelationalAccount();
+    BatchResult result = createAll(batch, config.isImportEncodedCredentials());
 
-      getEntityManager().persist(acct);
+    log.info(
+        "IMPORT ACCOUNTS: [Service admin: ''{}''] imported {} new accounts, {} entries failed.",
+        security.getUserPrincipal().getName(), result.getSucceededCount(), result.getFailedCount()
+    );
 
-      return acct;
-    }
+    return Response.ok(result).build();
+  }
+
+
+  // TODO: @POST @Consumes({MediaType.TEXT_XML, MediaType.APPLICATION_XML})
 
-    catch (PersistenceException exception)
-    {
-      // throw HTTP 500 - Internal Error in case the database save fails...
 
-      throw new HttpInternalError(
-          security.getUserPrincipal(), LOG_CATEGORY.getCanonicalLogHierarchyName(), exception,
-          "Account creation FAILED: {0}",
-          exception.getMessage()
-      );
-    }
-  }
 
+  // Private Instance Methods ---------------------------------------------------------------------
 
 
   private RelationalUser createUserAccount(RelationalAccount acct, UserRegistration registration)
@@ -197,12 +302,15 @@ public class CreateAccount
       );
     }
 
-    Schema schema = Schema.resolveDBSchema(webapp);
+    Schema schema = config.getSchema();
+
+    // throw HTTP 409 - Conflict if given username already exists. In insert-first mode the
+    // query is skipped and the unique username constraint violation is reported as a conflict
+    // instead, see createPersistentUserAccount()...
 
-    // throw HTTP 409 - Conflict if given username already exists (covers the underlying
-    // persistence constraint exception that would be thrown otherwise instead)...
+    boolean optimistic = config.isOptimisticRegistration();
 
-    if (exists(schema, registration.getName()))
+    if (!optimistic && exists(registration.getName()))
     {
       throw new HttpConflict(
           security.getUserPrincipal(), LOG_CATEGORY.getCanonicalLogHierarchyName(),
@@ -211,9 +319,14 @@ public class CreateAccount
       );
     }
 
+    // The username filter skips the query for names it has not seen, flush so that a
+    // username created outside this service instance is still reported as a conflict...
+
+    boolean flush = optimistic || config.isUsernameFilterEnabled();
+
     try
     {
-      return  createPersistentUserAccount(schema, acct, registration);
+      return  createPersistentUserAccount(schema, acct, registration, flush, null, null);
     }
 
     catch (Model.ValidationException exception)
@@ -227,52 +340,463 @@ public class CreateAccount
           exception.getMessage()
       );
     }
+
+    catch (PersistenceException exception)
+    {
+      // throw HTTP 409 - Conflict if the username was inserted since it was checked, or was
+      // not checked at all in insert-first mode...
+
+      if (isConstraintViolation(exception))
+      {
+        throw new HttpConflict(
+            security.getUserPrincipal(), LOG_CATEGORY.getCanonicalLogHierarchyName(),
+            "User ''{0}'' already exists.",
+            registration.getName()
+        );
+      }
+
+      // throw HTTP 500 - Internal Error in case the database save fails...
+
+      throw new HttpInternalError(
+          security.getUserPrincipal(), LOG_CATEGORY.getCanonicalLogHierarchyName(), exception,
+          "Account creation FAILED: {0}", exception.getMessage()
+      );
+    }
   }
 
 
 
-  private Controller addController(Schema schema, RelationalAccount acct, final Controller controller)
+  private BatchResult createAll(RegistrationBatch batch, boolean acceptEncoded)
   {
-    if (controller == null)
+    Schema schema = config.getSchema();
+    int chunkSize = config.getBatchChunkSize();
+
+    BatchResult result = new BatchResult();
+    List<RegistrationBatch.Entry> chunk = new ArrayList<RegistrationBatch.Entry>(chunkSize);
+    BatchKeys batchKeys = new BatchKeys();
+
+    try
     {
-      // TODO :
-      //        the ControllerData object where this controller instance is derived from
-      //        does not yet know how to deal with an empty collection of controllers
-      //        in the fullfillment (see the to-do there). So using a null guard here for
-      //        for now, allowing the request to pass but without a controller data in
-      //        the database...
+      for (RegistrationBatch.Entry entry : batch)
+      {
+        chunk.add(entry);
 
-      return null;
+        if (chunk.size() == chunkSize)
+        {
+          createChunk(schema, chunk, batchKeys, result, acceptEncoded);
+
+          chunk.clear();
+        }
+      }
+
+      createChunk(schema, chunk, batchKeys, result, acceptEncoded);
+
+      return result;
     }
 
-    Controller dbController = new RelationalController(acct, controller);
+    finally
+    {
+      // the request transaction is expected to be active when the request completes...
 
-    if (schema == Schema.LEGACY_BEEHIVE)
+      EntityManager em = getEntityManager();
+
+      if (!em.getTransaction().isActive())
+      {
+        em.getTransaction().begin();
+      }
+    }
+  }
+
+  private void createChunk(Schema schema, List<RegistrationBatch.Entry> chunk,
+                           BatchKeys batchKeys, BatchResult result, boolean acceptEncoded)
+  {
+    if (chunk.isEmpty())
+    {
+      return;
+    }
+
+    List<RegistrationBatch.Entry> accepted = reserve(schema, chunk, batchKeys, result);
+
+    Map<Integer, User.CredentialsEncoding> encodings =
+        resolveEncodedCredentials(schema, accepted, batchKeys, result, acceptEncoded);
+
+    Map<Integer, byte[]> hashes = hashCredentials(schema, accepted, encodings, batchKeys, result);
+
+    // The credentials of the chunk are hashed before anything is persisted, the transaction
+    // for this chunk is only started now...
+
+    EntityManager em = getEntityManager();
+
+    if (!em.getTransaction().isActive())
     {
-      dbController = new BeehiveController(acct, controller);
+      em.getTransaction().begin();
     }
 
-    getEntityManager().persist(dbController);
+    BatchResult chunkResult = new BatchResult();
+    List<RegistrationBatch.Entry> createdEntries = new ArrayList<RegistrationBatch.Entry>(accepted.size());
+    List<RelationalAccount> created = new ArrayList<RelationalAccount>(accepted.size());
+
+    try
+    {
+      for (RegistrationBatch.Entry entry : accepted)
+      {
+        try
+        {
+          created.add(createEntry(schema, entry, encodings, hashes));
+          createdEntries.add(entry);
+        }
+
+        catch (Model.ValidationException exception)
+        {
+          chunkResult.failed(
+              entry.getIndex(), entry.getRegistration().getName(),
+              Response.Status.BAD_REQUEST.getStatusCode(), "Incorrect user data: " + exception.getMessage()
+          );
+        }
+      }
+
+      em.flush();
+      em.getTransaction().commit();
+    }
+
+    catch (PersistenceException exception)
+    {
+      rollback(em, exception);
 
-    return dbController;
+      // A username or MAC address in the chunk was registered since it was checked, or was
+      // not checked due to the username filter. Depending on the identifier generator, the
+      // violation is raised either when an entity is persisted or when the chunk is flushed,
+      // in both cases the conflicting entries are found by creating them one at a time...
+
+      createEach(schema, accepted, encodings, hashes, result);
+
+      return;
+    }
+
+    finally
+    {
+      em.clear();
+    }
+
+    for (BatchResult.Item item : chunkResult.getItems())
+    {
+      result.failed(item.getIndex(), item.getUsername(), item.getStatus(), item.getMessage());
+    }
+
+    for (int i = 0; i < created.size(); ++i)
+    {
+      RegistrationBatch.Entry entry = createdEntries.get(i);
+
+      result.succeeded(
+          entry.getIndex(), entry.getRegistration().getName(),
+          Response.Status.OK.getStatusCode(), created.get(i).getId()
+      );
+    }
+  }
+
+  /**
+   * Creates the entries of a chunk that was rolled back due to a constraint violation one at
+   * a time, each in its own transaction. Entries that violate a constraint are reported with
+   * HTTP 409 - Conflict.
+   */
+  private void createEach(Schema schema, List<RegistrationBatch.Entry> entries,
+                          Map<Integer, User.CredentialsEncoding> encodings,
+                          Map<Integer, byte[]> hashes, BatchResult result)
+  {
+    EntityManager em = getEntityManager();
+
+    for (RegistrationBatch.Entry entry : entries)
+    {
+      String username = entry.getRegistration().getName();
+
+      em.getTransaction().begin();
+
+      try
+      {
+        RelationalAccount acct = createEntry(schema, entry, encodings, hashes);
+
+        em.flush();
+        em.getTransaction().commit();
+
+        result.succeeded(entry.getIndex(), username, Response.Status.OK.getStatusCode(), acct.getId());
+      }
+
+      catch (Model.ValidationException exception)
+      {
+        em.getTransaction().rollback();
+
+        result.failed(
+            entry.getIndex(), username, Response.Status.BAD_REQUEST.getStatusCode(),
+            "Incorrect user data: " + exception.getMessage()
+        );
+      }
+
+      catch (PersistenceException exception)
+      {
+        rollback(em, exception);
+
+        result.failed(
+            entry.getIndex(), username, HttpConflict.STATUS_CODE,
+            HttpConflict.format("User ''{0}'' or one of its controllers already exists.", username)
+        );
+      }
+
+      finally
+      {
+        em.clear();
+      }
+    }
+  }
+
+  /**
+   * Persists the account, user and controllers of a batch entry.
+   */
+  private RelationalAccount createEntry(Schema schema, RegistrationBatch.Entry entry,
+                                        Map<Integer, User.CredentialsEncoding> encodings,
+                                        Map<Integer, byte[]> hashes)
+      throws Model.ValidationException
+  {
+    UserRegistration registration = entry.getRegistration();
+    RelationalAccount acct = new RelationalAccount();
+
+    createPersistentUserAccount(
+        schema, acct, registration, false,
+        encodings.get(entry.getIndex()), hashes.get(entry.getIndex())
+    );
+
+    if (registration instanceof CustomerFulfillment)
+    {
+      persistControllers(schema, acct, ((CustomerFulfillment)registration).getControllers());
+    }
+
+    return acct;
+  }
+
+  /**
+   * Rolls back the current transaction after a failed write. Constraint violations are
+   * handled by the caller, any other database error aborts the request.
+   */
+  private void rollback(EntityManager em, PersistenceException exception)
+  {
+    if (em.getTransaction().isActive())
+    {
+      em.getTransaction().rollback();
+    }
+
+    em.clear();
+
+    if (!isConstraintViolation(exception))
+    {
+      // throw HTTP 500 - Internal Error in case the database save fails...
+
+      throw new HttpInternalError(
+          security.getUserPrincipal(), LOG_CATEGORY.getCanonicalLogHierarchyName(), exception,
+          "Batch account creation FAILED: {0}", exception.getMessage()
+      );
+    }
+  }
+
+  /**
+   * Reserves the usernames and controller MAC addresses of the valid entries of a chunk.
+   * Invalid entries, and entries that conflict with existing accounts or earlier entries of the
+   * batch, are recorded as failed.
+   *
+   * @return  entries that can be created
+   */
+  private List<RegistrationBatch.Entry> reserve(Schema schema, List<RegistrationBatch.Entry> chunk,
+                                                BatchKeys batchKeys, BatchResult result)
+  {
+    Set<String> existing = findExisting(chunk);
+    Set<String> existingMacs = findExistingMacAddresses(schema, chunk);
+
+    List<RegistrationBatch.Entry> accepted = new ArrayList<RegistrationBatch.Entry>(chunk.size());
+
+    for (RegistrationBatch.Entry entry : chunk)
+    {
+      if (!entry.isValid())
+      {
+        result.failed(
+            entry.getIndex(), null, Response.Status.BAD_REQUEST.getStatusCode(), entry.getError()
+        );
+
+        continue;
+      }
+
+      UserRegistration registration = entry.getRegistration();
+      String conflict = batchKeys.reserve(schema, registration, existing, existingMacs);
+
+      if (conflict != null)
+      {
+        result.failed(entry.getIndex(), registration.getName(), HttpConflict.STATUS_CODE, conflict);
+
+        continue;
+      }
+
+      accepted.add(entry);
+    }
+
+    return accepted;
   }
 
+  /**
+   * Removes the encoded credentials marker from the entries of a chunk. When encoded
+   * credentials are accepted, the encodings of the marked entries are returned so that their
+   * credentials are stored unchanged. Entries with an unknown encoding are recorded as failed,
+   * their keys are released and they are removed from the given entries.
+   *
+   * @return  credentials encodings by entry index, for the entries with encoded credentials
+   */
+  private Map<Integer, User.CredentialsEncoding> resolveEncodedCredentials(
+      Schema schema, List<RegistrationBatch.Entry> entries, BatchKeys batchKeys,
+      BatchResult result, boolean acceptEncoded)
+  {
+    Map<Integer, User.CredentialsEncoding> encodings = new HashMap<Integer, User.CredentialsEncoding>();
+
+    for (RegistrationBatch.Entry entry : new ArrayList<RegistrationBatch.Entry>(entries))
+    {
+      UserRegistration registration = entry.getRegistration();
+
+      try
+      {
+        User.CredentialsEncoding encoding = acceptEncoded ? registration.getEncodedCredentials() : null;
+
+        if (encoding != null)
+        {
+          encodings.put(entry.getIndex(), encoding);
+        }
+      }
+
+      catch (Model.ValidationException exception)
+      {
+        result.failed(
+            entry.getIndex(), registration.getName(), Response.Status.BAD_REQUEST.getStatusCode(),
+            "Incorrect user data: " + exception.getMessage()
+        );
+
+        batchKeys.release(schema, registration);
+        entries.remove(entry);
+      }
 
-  private boolean exists(Schema schema, String username)
+      finally
+      {
+        registration.removeEncodedCredentialsMarker();
+      }
+    }
+
+    return encodings;
+  }
+
+  /**
+   * Computes the SCRYPT hashes of the entries of a chunk concurrently on the credential hashing
+   * thread pool. Entries whose hash could not be computed due to hashing capacity are recorded
+   * as failed with HTTP 503 - Service Unavailable, their keys are released and they are removed
+   * from the given entries.
+   *
+   * @return  hashes by entry index, for the entries that request SCRYPT encoding
+   */
+  private Map<Integer, byte[]> hashCredentials(Schema schema, List<RegistrationBatch.Entry> entries,
+                                               Map<Integer, User.CredentialsEncoding> encodings,
+                                               BatchKeys batchKeys, BatchResult result)
   {
+    List<RegistrationBatch.Entry> hashed = new ArrayList<RegistrationBatch.Entry>(entries.size());
+    List<byte[]> credentials = new ArrayList<byte[]>(entries.size());
+
+    for (RegistrationBatch.Entry entry : entries)
+    {
+      if (!encodings.containsKey(entry.getIndex()) && isHashed(schema, entry.getRegistration()))
+      {
+        hashed.add(entry);
+        credentials.add(
+            entry.getRegistration().getAttribute(User.CREDENTIALS_ATTRIBUTE_NAME).getBytes(Defaults.UTF8)
+        );
+      }
+    }
+
+    Map<Integer, byte[]> hashes = new HashMap<Integer, byte[]>(hashed.size() * 2);
+
+    if (hashed.isEmpty())
+    {
+      return hashes;
+    }
+
+    List<CredentialHashing.Result> results = credentialHashing.hashAll(credentials);
+
+    for (int i = 0; i < hashed.size(); ++i)
+    {
+      RegistrationBatch.Entry entry = hashed.get(i);
+      CredentialHashing.Result hash = results.get(i);
+
+      if (hash.getHash() != null)
+      {
+        hashes.put(entry.getIndex(), hash.getHash());
+
+        continue;
+      }
+
+      result.failed(
+          entry.getIndex(), entry.getRegistration().getName(), HttpServiceUnavailable.STATUS_CODE,
+          hash.getError()
+      );
+
+      batchKeys.release(schema, entry.getRegistration());
+      entries.remove(entry);
+    }
+
+    return hashes;
+  }
+
+  /**
+   * Indicates whether the plain text credentials of a registration are hashed with SCRYPT
+   * before they are stored, see {@link #hashCredentials(RelationalUser, UserRegistration)}.
+   */
+  private boolean isHashed(Schema schema, UserRegistration registration)
+  {
+    if (schema != Schema.ACCOUNT_MANAGER_2_0 || !registration.hasCredentials())
+    {
+      return false;
+    }
+
+    return User.CredentialsEncoding.SCRYPT.getEncodingName().equalsIgnoreCase(
+        registration.getAttribute(User.AUTHMODE_ATTRIBUTE_NAME)
+    );
+  }
+
+  private Set<String> findExisting(List<RegistrationBatch.Entry> chunk)
+  {
+    EntityManager em = getEntityManager();
+    List<String> usernames = new ArrayList<String>(chunk.size());
+
+    for (RegistrationBatch.Entry entry : chunk)
+    {
+      // only names that may exist according to the username index need to be queried...
+
+      if (entry.isValid() && usernameIndex.mightExist(entry.getRegistration().getName(), em))
+      {
+        usernames.add(entry.getRegistration().getName());
+      }
+    }
+
+    if (usernames.isEmpty())
+    {
+      return new HashSet<String>();
+    }
+
     try
     {
-      String entityName = "User";
+      List<String> found = em.createQuery(config.getFindUsernamesQuery(), String.class)
+          .setParameter("names", usernames)
+          .getResultList();
+
+      // the database may match the names case insensitively, compare normalized names...
 
-      if (schema == Schema.LEGACY_BEEHIVE)
+      Set<String> existing = new HashSet<String>(found.size() * 2);
+
+      for (String username : found)
       {
-        entityName = "BeehiveUser";
+        existing.add(UsernameIndex.normalize(username));
       }
 
-      return getEntityManager().createQuery(
-          "SELECT u FROM " + entityName + " u WHERE u.username = :name", User.class)
-          .setParameter("name", username)
-          .getResultList().size() != 0;
+      return existing;
     }
 
     catch (PersistenceException exception)
@@ -287,153 +811,491 @@ public class CreateAccount
     }
   }
 
-  private RelationalUser createPersistentUserAccount(Schema schema, RelationalAccount acct,
-                                                     UserRegistration registration)
-      throws Model.ValidationException
+
+  private Set<String> findExistingMacAddresses(Schema schema, List<RegistrationBatch.Entry> chunk)
   {
-    try
-    {
-      EntityManager em = getEntityManager();
+    List<String> macs = new ArrayList<String>();
 
-      switch (schema)
+    for (RegistrationBatch.Entry entry : chunk)
+    {
+      if (entry.isValid() && entry.getRegistration() instanceof CustomerFulfillment)
       {
-        case LEGACY_BEEHIVE:
+        for (Controller controller : ((CustomerFulfillment)entry.getRegistration()).getControllers())
+        {
+          macs.addAll(getMacAddressKeys(schema, controller));
+        }
+      }
+    }
 
-          BeehiveUser beehiveUser = new BeehiveUser(
-              acct, registration,
-              registration.getAttribute(User.CREDENTIALS_ATTRIBUTE_NAME).getBytes(Defaults.UTF8)
-          );
+    return findExistingMacAddresses(macs);
+  }
 
-          beehiveUser.link(acct);
+  private Set<String> findExistingMacAddresses(List<String> macs)
+  {
+    Set<String> existing = new HashSet<String>();
 
-          // TODO : eliminate the code duplication on persist (and linking?)...
+    if (macs.isEmpty())
+    {
+      return existing;
+    }
 
-          em.persist(acct);   // TODO : not needed?
-          em.persist(beehiveUser);
+    EntityManager em = getEntityManager();
 
-          MinimalBeehiveRole accountOwnerRole = getAccountOwnerRole();
-          if (accountOwnerRole != null)
-          {
-            MinimalBeehiveUserRole userRoleJoin = new MinimalBeehiveUserRole(beehiveUser.getId(), accountOwnerRole.getId());
-            em.persist(userRoleJoin);
-          }
+    try
+    {
+      // a single query unless the IN list would exceed common database parameter limits...
 
-          return beehiveUser;
+      for (int i = 0; i < macs.size(); i += MAX_MAC_ADDRESS_QUERY_PARAMETERS)
+      {
+        List<String> slice = macs.subList(i, Math.min(macs.size(), i + MAX_MAC_ADDRESS_QUERY_PARAMETERS));
 
-        case ACCOUNT_MANAGER_2_0:
+        existing.addAll(em.createQuery(
+            config.getFindMacAddressesQuery(), String.class)
+            .setParameter("macs", slice)
+            .getResultList()
+        );
+      }
 
-          RelationalUser user = new RelationalUser(registration);
+      return existing;
+    }
 
-          user.link(acct);
+    catch (PersistenceException exception)
+    {
+      // throw HTTP 500 - Internal Error in case the database operation fails...
 
-          em.persist(acct);   // TODO : not needed?
-          em.persist(user);
+      throw new HttpInternalError(
+          security.getUserPrincipal(), LOG_CATEGORY.getCanonicalLogHierarchyName(), exception,
+          "Error in checking duplicate controller MAC addresses: {0}",
+          exception.getMessage()
+      );
+    }
+  }
 
-          return user;
+  private void checkMacAddresses(Schema schema, CustomerFulfillment fulfillment)
+  {
+    List<String> macs = new ArrayList<String>();
+    Set<String> unique = new HashSet<String>();
 
-        default:
+    for (Controller controller : fulfillment.getControllers())
+    {
+      for (String mac : getMacAddressKeys(schema, controller))
+      {
+        // throw HTTP 409 - Conflict if two controllers in the same fulfillment share a
+        // MAC address...
+
+        if (!unique.add(mac))
+        {
+          throw new HttpConflict(
+              security.getUserPrincipal(), LOG_CATEGORY.getCanonicalLogHierarchyName(),
+              "Controller MAC address ''{0}'' is included more than once.", mac
+          );
+        }
 
-          throw new IncorrectImplementationException("Incorrect schema identifier: {0}", schema);
+        macs.add(mac);
       }
     }
 
+    Set<String> existing = findExistingMacAddresses(macs);
+
+    if (!existing.isEmpty())
+    {
+      throw new HttpConflict(
+          security.getUserPrincipal(), LOG_CATEGORY.getCanonicalLogHierarchyName(),
+          "Controller MAC address ''{0}'' is already registered.", existing.iterator().next()
+      );
+    }
+  }
+
+  private List<Controller> addControllers(Schema schema, RelationalAccount acct,
+                                          Collection<Controller> controllers)
+  {
+    try
+    {
+      return persistControllers(schema, acct, controllers);
+    }
+
     catch (PersistenceException exception)
     {
+      // throw HTTP 409 - Conflict if a MAC address was registered since it was checked...
+
+      if (isConstraintViolation(exception))
+      {
+        throw new HttpConflict(
+            security.getUserPrincipal(), LOG_CATEGORY.getCanonicalLogHierarchyName(),
+            "A controller MAC address is already registered: {0}", exception.getMessage()
+        );
+      }
+
       // throw HTTP 500 - Internal Error in case the database save fails...
 
       throw new HttpInternalError(
           security.getUserPrincipal(), LOG_CATEGORY.getCanonicalLogHierarchyName(), exception,
-              "Account creation FAILED: {0}", exception.getMessage()
+          "Controller creation FAILED: {0}", exception.getMessage()
       );
     }
   }
 
-  private MinimalBeehiveRole getAccountOwnerRole()
+  private List<Controller> persistControllers(Schema schema, RelationalAccount acct,
+                                              Collection<Controller> controllers)
+  {
+    // With the default IDENTITY identifiers each controller is inserted as it is persisted.
+    // With the pooled identifier persistence units the inserts are deferred to the next flush,
+    // which writes them as JDBC batches (see 'hibernate.jdbc.batch_size' in web.xml)...
+
+    EntityManager em = getEntityManager();
+    List<Controller> added = new ArrayList<Controller>(controllers.size());
+
+    for (Controller controller : controllers)
+    {
+      Controller dbController = (schema == Schema.LEGACY_BEEHIVE)
+          ? new BeehiveController(acct, controller)
+          : new RelationalController(acct, controller);
+
+      em.persist(dbController);
+
+      added.add(dbController);
+    }
+
+    return added;
+  }
+
+
+  private boolean exists(String username)
   {
     try
     {
-      return (MinimalBeehiveRole) getEntityManager()
-              .createNamedQuery("findRoleByName")
-              .setParameter("roleName", AccountManager.Role.ACCOUNT_OWNER_ROLE.toString()).getSingleResult();
+      return usernameIndex.exists(username, getEntityManager());
     }
-    catch (Exception e)
+
+    catch (PersistenceException exception)
     {
-      log.warn("Could not find account-owner role", e);
+      // throw HTTP 500 - Internal Error in case the database operation fails...
+
+      throw new HttpInternalError(
+          security.getUserPrincipal(), LOG_CATEGORY.getCanonicalLogHierarchyName(), exception,
+          "Error in checking duplicate usernames: {0}",
+          exception.getMessage()
+      );
     }
-    return null;
   }
 
+  private RelationalUser createPersistentUserAccount(Schema schema, RelationalAccount acct,
+                                                     UserRegistration registration, boolean flush,
+                                                     User.CredentialsEncoding encodedCredentials,
+                                                     byte[] hash)
+      throws Model.ValidationException
+  {
+    // Reject placeholder credentials, such as those written by an account export for users
+    // without stored credentials, instead of storing them as the user's password...
 
-  private EntityManager getEntityManager()
+    if (!registration.hasCredentials())
+    {
+      throw new Model.ValidationException(
+          "User ''{0}'' registration does not include credentials.", registration.getName()
+      );
+    }
+
+    // Credentials are stored unchanged only if the caller has accepted them as already encoded,
+    // see resolveEncodedCredentials(), any encoded credentials marker is otherwise ignored...
+
+    String credentials = registration.getAttribute(User.CREDENTIALS_ATTRIBUTE_NAME);
+
+    registration.removeEncodedCredentialsMarker();
+
+    EntityManager em = getEntityManager();
+
+    switch (schema)
+    {
+      case LEGACY_BEEHIVE:
+
+        BeehiveUser beehiveUser = createLegacyUser(
+            acct, registration, credentials, encodedCredentials
+        );
+
+        beehiveUser.link(acct);
+
+        em.persist(acct);
+        em.persist(beehiveUser);
+
+        Long accountOwnerRoleId = roleCache.getRoleId(AccountManager.Role.ACCOUNT_OWNER_ROLE, em);
+
+        if (accountOwnerRoleId != null)
+        {
+          em.persist(new MinimalBeehiveUserRole(beehiveUser.getId(), accountOwnerRoleId));
+        }
+
+        if (flush)
+        {
+          em.flush();
+        }
+
+        usernameIndex.add(beehiveUser.getName());
+        accountCache.invalidate(beehiveUser.getName());
+
+        return beehiveUser;
+
+      case ACCOUNT_MANAGER_2_0:
+
+        RelationalUser user = createUser(registration, credentials, encodedCredentials, hash);
+
+        user.link(acct);
+
+        em.persist(acct);
+        em.persist(user);
+
+        if (flush)
+        {
+          em.flush();
+        }
+
+        usernameIndex.add(user.getName());
+        accountCache.invalidate(user.getName());
+
+        return user;
+
+      default:
+
+        throw new IncorrectImplementationException("Incorrect schema identifier: {0}", schema);
+    }
+  }
+
+  /**
+   * Creates a new legacy Beehive user. Credentials that are already encoded (exported from an
+   * existing account) must use the legacy Beehive encoding and are stored unchanged.
+   */
+  private BeehiveUser createLegacyUser(RelationalAccount acct, UserRegistration registration,
+                                       String credentials, User.CredentialsEncoding encoded)
+      throws Model.ValidationException
   {
-    return (EntityManager)request.getAttribute(AccountManager.ENTITY_MANAGER_LOOKUP);
+    if (encoded != null && encoded != User.CredentialsEncoding.LEGACY_BEEHIVE)
+    {
+      throw new Model.ValidationException(
+          "User ''{0}'' credentials are encoded as ''{1}'', legacy Beehive schema requires ''{2}''.",
+          registration.getName(), encoded, User.CredentialsEncoding.LEGACY_BEEHIVE
+      );
+    }
+
+    BeehiveUser user = new BeehiveUser(acct, registration, credentials.getBytes(Defaults.UTF8));
+
+    if (encoded != null)
+    {
+      setLegacyPassword(user, credentials);
+    }
+
+    return user;
   }
 
+  /**
+   * Creates a new account manager user. Credentials that are already encoded (exported from
+   * an existing account) are stored unchanged, as is a SCRYPT hash already computed for a batch
+   * entry. Other plain text credentials are hashed as requested by the registration.
+   */
+  private RelationalUser createUser(UserRegistration registration, String credentials,
+                                    User.CredentialsEncoding encoded, byte[] hash)
+  {
+    RelationalUser user = new RelationalUser(registration);
 
-  // Enums ----------------------------------------------------------------------------------------
+    if (encoded != null)
+    {
+      user.addAuthentication(new User.Authentication(credentials.getBytes(Defaults.UTF8), encoded));
+    }
 
-  public enum Schema
+    else if (hash != null)
+    {
+      user.addAuthentication(new User.Authentication(hash, User.CredentialsEncoding.SCRYPT));
+    }
+
+    else
+    {
+      hashCredentials(user, registration);
+    }
+
+    return user;
+  }
+
+  /**
+   * Replaces the plain text credentials of a new user with their SCRYPT hash when the
+   * registration requests SCRYPT encoding. The hash is computed on the credential hashing
+   * thread pool, see {@link CredentialHashing}. Legacy Beehive users are not hashed here,
+   * their credentials are encoded by the legacy Beehive user entity.
+   */
+  private void hashCredentials(RelationalUser user, UserRegistration registration)
   {
-    LEGACY_BEEHIVE,
-    ACCOUNT_MANAGER_2_0;
+    String encoding = registration.getAttribute(User.AUTHMODE_ATTRIBUTE_NAME);
+    String credentials = registration.getAttribute(User.CREDENTIALS_ATTRIBUTE_NAME);
+
+    if (credentials == null || !User.CredentialsEncoding.SCRYPT.getEncodingName().equalsIgnoreCase(encoding))
+    {
+      return;
+    }
+
+    byte[] hash = credentialHashing.hash(credentials.getBytes(Defaults.UTF8));
+
+    user.addAuthentication(new User.Authentication(hash, User.CredentialsEncoding.SCRYPT));
+  }
 
-    // TODO : resolve schema in a central location once at startup...
+  /**
+   * Replaces the password of a new legacy Beehive user with an already encoded password, such
+   * as one exported from an existing account. The legacy Beehive user entity always encodes
+   * the credentials it is created with and has no accessor to set an encoded password.
+   */
+  private void setLegacyPassword(BeehiveUser user, String encodedPassword)
+  {
+    try
+    {
+      Field password = BeehiveUser.class.getDeclaredField("password");
+      password.setAccessible(true);
+      password.set(user, encodedPassword);
+    }
 
-    public static Schema resolveDBSchema(ServletContext webapp)
+    catch (Exception exception)
     {
-      String dbSchemaParameter = webapp.getInitParameter(WEBAPP_PARAM_SERVICE_DB_SCHEMA);
+      throw new IncorrectImplementationException(
+          "Cannot set legacy Beehive user password: {0}", exception, exception.getMessage()
+      );
+    }
+  }
 
-      if (dbSchemaParameter == null)
+  /**
+   * Checks whether a persistence exception was caused by an integrity constraint violation,
+   * such as the unique username constraint, in the database. Uses the standard SQL state
+   * class '23' rather than a provider or database specific exception type.
+   */
+  private boolean isConstraintViolation(PersistenceException exception)
+  {
+    for (Throwable cause = exception; cause != null; cause = cause.getCause())
+    {
+      if (cause instanceof SQLException)
       {
-        // TODO Log
+        String state = ((SQLException)cause).getSQLState();
 
-        return Schema.ACCOUNT_MANAGER_2_0;
+        if (state != null && state.startsWith("23"))
+        {
+          return true;
+        }
       }
+    }
+
+    return false;
+  }
 
-      dbSchemaParameter = dbSchemaParameter.toUpperCase(Locale.ENGLISH);
+  private EntityManager getEntityManager()
+  {
+    return (EntityManager)request.getAttribute(AccountManager.ENTITY_MANAGER_LOOKUP);
+  }
 
-      try
-      {
-        return Schema.valueOf(dbSchemaParameter);
-      }
 
-      catch (IllegalArgumentException e)
-      {
-        // TODO : adjust exception type + log on the server
+  // Package-Private Class Methods ----------------------------------------------------------------
 
-        throw new HttpInternalError(
-            "Invalid " + WEBAPP_PARAM_SERVICE_DB_SCHEMA + "value: " + dbSchemaParameter
-        );
-      }
+  /**
+   * Returns the values a controller's MAC addresses are stored with in the given schema. The
+   * account manager schema stores each MAC address as a separate value. The legacy Beehive
+   * schema stores all MAC addresses of a controller as a single value, with dashes as byte
+   * separators.
+   *
+   * @param schema        database schema
+   * @param controller    controller
+   *
+   * @return  stored MAC address values of the controller, possibly empty
+   */
+  static List<String> getMacAddressKeys(Schema schema, Controller controller)
+  {
+    String macs = controller.getMacAddresses();
+
+    if (macs.length() == 0)
+    {
+      return Collections.emptyList();
+    }
+
+    if (schema == Schema.LEGACY_BEEHIVE)
+    {
+      return Collections.singletonList(controller.getMacAddresses("-"));
     }
 
+    return Arrays.asList(macs.split(","));
   }
 
 
-  // Nested Classes -------------------------------------------------------------------------------
+  // Enums ----------------------------------------------------------------------------------------
 
-  private static class ControllerData extends CustomerFulfillment
+  public enum Schema
   {
-    // TODO:
-    //    set an upper limit on number of allowed controllers and number of allowed
-    //    mac addresses within the controller....
+    LEGACY_BEEHIVE,
+    ACCOUNT_MANAGER_2_0
+  }
 
-    private Controller controller = null;
 
-    ControllerData(CustomerFulfillment copy)
+  // Nested Classes -------------------------------------------------------------------------------
+
+  /**
+   * Usernames and controller MAC addresses already reserved by earlier entries of a batch.
+   */
+  private static class BatchKeys
+  {
+    private Set<String> usernames = new HashSet<String>();
+
+    private Set<String> macs = new HashSet<String>();
+
+    /**
+     * Reserves the username and controller MAC addresses of a batch entry, unless they
+     * conflict with existing accounts or earlier entries of the batch. Usernames are
+     * compared as {@link UsernameIndex#normalize normalized}, case insensitive keys.
+     *
+     * @return  conflict description, or <tt>null</tt> if the keys were reserved
+     */
+    private String reserve(Schema schema, UserRegistration registration,
+                           Set<String> existingUsernames, Set<String> existingMacs)
     {
-      super(copy);
+      String username = registration.getName();
+      String key = UsernameIndex.normalize(username);
 
+      if (existingUsernames.contains(key) || usernames.contains(key))
+      {
+        return HttpConflict.format("User ''{0}'' already exists.", username);
+      }
 
-      // TODO : what to do if controllers are empty - deal with the null ref here?
+      List<String> entryMacs = new ArrayList<String>();
+
+      if (registration instanceof CustomerFulfillment)
+      {
+        for (Controller controller : ((CustomerFulfillment)registration).getControllers())
+        {
+          entryMacs.addAll(getMacAddressKeys(schema, controller));
+        }
+      }
 
+      Set<String> unique = new HashSet<String>(entryMacs);
 
-      if (!super.controllers.isEmpty())
+      for (String mac : entryMacs)
       {
-        controller = controllers.iterator().next();
+        if (existingMacs.contains(mac) || macs.contains(mac) || !unique.remove(mac))
+        {
+          return HttpConflict.format("Controller MAC address ''{0}'' is already registered.", mac);
+        }
+      }
+
+      usernames.add(key);
+      macs.addAll(entryMacs);
+
+      return null;
+    }
+
+    /**
+     * Releases the username and controller MAC addresses reserved for a batch entry that was
+     * not created.
+     */
+    private void release(Schema schema, UserRegistration registration)
+    {
+      usernames.remove(UsernameIndex.normalize(registration.getName()));
+
+      if (registration instanceof CustomerFulfillment)
+      {
+        for (Controller controller : ((CustomerFulfillment)registration).getControllers())
+        {
+          macs.removeAll(getMacAddressKeys(schema, controller));
+        }
       }
     }
   }
 
 }
-
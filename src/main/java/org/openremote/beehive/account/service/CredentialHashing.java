@@ -0,0 +1,748 @@
+/*
+ * OpenRemote, the Home of the Digital Home.
+ * Copyright 2008-2015, OpenRemote Inc.
+ *
+ * See the contributors.txt file in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.openremote.beehive.account.service;
+
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.bouncycastle.crypto.generators.SCrypt;
+import org.bouncycastle.util.encoders.Base64;
+
+import org.openremote.base.Defaults;
+import org.openremote.base.exception.IncorrectImplementationException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+
+/**
+ * Computes SCRYPT credential hashes on a dedicated, bounded pool of worker threads. <p>
+ *
+ * SCRYPT is deliberately CPU and memory intensive. Computing the hashes on the HTTP request
+ * threads lets a burst of registrations occupy every container thread and starve cheap
+ * requests. Instead, the request thread hands the credentials to this service and waits for
+ * the result: at most {@link ServiceConfiguration#getCredentialHashingThreads()} hashes are
+ * computed concurrently, and at most {@link ServiceConfiguration#getCredentialHashingQueueDepth()}
+ * hashes wait for a worker. Requests beyond that, or requests that do not get their hash
+ * within {@link ServiceConfiguration#getCredentialHashingTimeout()}, are rejected with
+ * {@link HttpServiceUnavailable} so that clients back off rather than pile up. <p>
+ *
+ * The SCRYPT cost parameter (N) is calibrated once, on a background thread after startup, so
+ * that a single hash takes about {@link ServiceConfiguration#getCredentialHashingTargetLatency()}
+ * on the host, between {@link #MIN_COST} and {@link #MAX_COST}. Until the calibration completes
+ * hashes are computed with the minimum cost. A single SCRYPT hash uses 128 * r * N bytes of
+ * memory, so the cost is further capped to fit
+ * {@link ServiceConfiguration#getCredentialHashingMemory()}; the pool as a whole uses at most
+ * that much memory per hashing thread. The block size (r) and parallelization (p) parameters
+ * are fixed. All parameters are encoded in the hash, in the common '$s0$params$salt$key'
+ * format, so hashes computed with earlier calibrations remain verifiable with
+ * {@link #verify(byte[], byte[])}. <p>
+ *
+ * The hashing pool is shut down with {@link #shutdown()} when the application is undeployed. <p>
+ *
+ * The time hashes spend queued and computed is recorded as the
+ * {@link ServiceMetrics.Metric#CREDENTIAL_HASHING} metric.
+ *
+ * @author Juha Lindfors
+ */
+public class CredentialHashing
+{
+
+  // Constants ------------------------------------------------------------------------------------
+
+  /**
+   * Minimum SCRYPT cost parameter (N) used regardless of calibration. At the default block
+   * size a single hash uses 16MB of memory: {@value}
+   */
+  public static final int MIN_COST = 1 << 14;
+
+  /**
+   * Maximum SCRYPT cost parameter (N). At the default block size a single hash then uses
+   * 128MB of memory per hashing thread, the configured memory budget normally caps the cost
+   * well below this: {@value}
+   */
+  public static final int MAX_COST = 1 << 17;
+
+  /**
+   * SCRYPT block size parameter (r): {@value}
+   */
+  public static final int BLOCK_SIZE = 8;
+
+  /**
+   * SCRYPT parallelization parameter (p): {@value}
+   */
+  public static final int PARALLELIZATION = 1;
+
+  /**
+   * Length of the random salt, in bytes: {@value}
+   */
+  public static final int SALT_LENGTH = 16;
+
+  /**
+   * Length of the derived key, in bytes: {@value}
+   */
+  public static final int KEY_LENGTH = 32;
+
+  /**
+   * Prefix of the SCRYPT hash format: {@value}
+   */
+  public static final String HASH_FORMAT_PREFIX = "$s0$";
+
+  /**
+   * Interval, in milliseconds, between attempts to queue a hash of {@link #hashAll} while the
+   * hashing pool is saturated by other requests: {@value}
+   */
+  private static final long SUBMIT_RETRY_INTERVAL = 10;
+
+
+
+  // Class Members --------------------------------------------------------------------------------
+
+  private static final Logger log = LoggerFactory.getLogger(
+      AccountManager.Log.REGISTRATION.getCanonicalLogHierarchyName()
+  );
+
+  private static final SecureRandom random = new SecureRandom();
+
+
+  /**
+   * Computes a SCRYPT hash of the given credentials with a random salt on the calling thread.
+   *
+   * @param credentials   credentials to hash
+   * @param parameters    SCRYPT parameters
+   *
+   * @return  SCRYPT hash, including the parameters and salt, as UTF-8 bytes
+   */
+  public static byte[] hash(byte[] credentials, Parameters parameters)
+  {
+    byte[] salt = new byte[SALT_LENGTH];
+
+    random.nextBytes(salt);
+
+    byte[] key = SCrypt.generate(
+        credentials, salt, parameters.cost, parameters.blockSize, parameters.parallelization, KEY_LENGTH
+    );
+
+    String params = Long.toString(
+        log2(parameters.cost) << 16 | parameters.blockSize << 8 | parameters.parallelization, 16
+    );
+
+    return (HASH_FORMAT_PREFIX + params + "$" + Base64.toBase64String(salt) + "$" +
+            Base64.toBase64String(key)).getBytes(Defaults.UTF8);
+  }
+
+  /**
+   * Verifies credentials against a SCRYPT hash in the '$s0$params$salt$key' format produced by
+   * {@link #hash(byte[], Parameters)}. The hash is recomputed on the calling thread with the
+   * parameters and salt encoded in the given hash.
+   *
+   * @param credentials   credentials to verify
+   * @param hash          SCRYPT hash to verify against, as UTF-8 bytes
+   *
+   * @return  true if the credentials match the hash, false if they don't or the hash is not
+   *          in the SCRYPT hash format
+   */
+  public static boolean verify(byte[] credentials, byte[] hash)
+  {
+    String value = new String(hash, Defaults.UTF8);
+
+    if (!value.startsWith(HASH_FORMAT_PREFIX))
+    {
+      return false;
+    }
+
+    String[] fields = value.substring(HASH_FORMAT_PREFIX.length()).split("\\$");
+
+    if (fields.length != 3)
+    {
+      return false;
+    }
+
+    try
+    {
+      long params = Long.parseLong(fields[0], 16);
+      int cost = 1 << (int)(params >> 16 & 0xFFFF);
+      int blockSize = (int)(params >> 8 & 0xFF);
+      int parallelization = (int)(params & 0xFF);
+
+      byte[] salt = Base64.decode(fields[1]);
+      byte[] key = Base64.decode(fields[2]);
+
+      byte[] derived = SCrypt.generate(
+          credentials, salt, cost, blockSize, parallelization, key.length
+      );
+
+      return MessageDigest.isEqual(derived, key);
+    }
+
+    catch (RuntimeException exception)
+    {
+      log.debug("Malformed SCRYPT hash: {}", exception.getMessage());
+
+      return false;
+    }
+  }
+
+  /**
+   * Returns the memory, in bytes, a single SCRYPT hash with the given cost parameter and the
+   * default block size uses.
+   *
+   * @param cost  SCRYPT cost parameter (N)
+   *
+   * @return  memory use in bytes
+   */
+  public static long getMemoryUse(int cost)
+  {
+    return 128L * BLOCK_SIZE * cost;
+  }
+
+  /**
+   * Returns the largest SCRYPT cost parameter, between {@link #MIN_COST} and {@link #MAX_COST},
+   * whose hash fits the given memory budget.
+   *
+   * @param memory  memory budget of a single hash in bytes
+   *
+   * @return  maximum SCRYPT cost parameter
+   */
+  public static int getMaxCost(long memory)
+  {
+    int cost = MIN_COST;
+
+    while (cost < MAX_COST && getMemoryUse(cost * 2) <= memory)
+    {
+      cost *= 2;
+    }
+
+    return cost;
+  }
+
+  /**
+   * Selects the largest SCRYPT cost parameter, between {@link #MIN_COST} and the given maximum,
+   * at which a single hash takes no longer than the given target time on this host. The cost
+   * is doubled from the minimum until the measured hashing time would exceed the target.
+   *
+   * @param targetMillis  target time of a single hash in milliseconds, zero to skip the
+   *                      calibration and use the minimum cost
+   * @param maxCost       maximum SCRYPT cost parameter, see {@link #getMaxCost(long)}
+   *
+   * @return  calibrated SCRYPT parameters
+   */
+  public static Parameters calibrate(long targetMillis, int maxCost)
+  {
+    Parameters parameters = new Parameters(MIN_COST, BLOCK_SIZE, PARALLELIZATION);
+
+    if (targetMillis <= 0)
+    {
+      return parameters;
+    }
+
+    byte[] sample = "calibration".getBytes(Defaults.UTF8);
+
+    // warm up the code path before measuring...
+
+    hash(sample, parameters);
+
+    long elapsed = measure(sample, parameters);
+
+    while (parameters.cost < maxCost && elapsed * 2 <= TimeUnit.MILLISECONDS.toNanos(targetMillis))
+    {
+      parameters = new Parameters(parameters.cost * 2, BLOCK_SIZE, PARALLELIZATION);
+
+      elapsed = measure(sample, parameters);
+    }
+
+    log.info(
+        "Calibrated credential hashing to {} ({} ms per hash, target {} ms).",
+        parameters, TimeUnit.NANOSECONDS.toMillis(elapsed), targetMillis
+    );
+
+    return parameters;
+  }
+
+
+  private static long measure(byte[] sample, Parameters parameters)
+  {
+    long start = System.nanoTime();
+
+    hash(sample, parameters);
+
+    return System.nanoTime() - start;
+  }
+
+  private static int log2(int value)
+  {
+    return 31 - Integer.numberOfLeadingZeros(value);
+  }
+
+
+
+  // Instance Fields ------------------------------------------------------------------------------
+
+  private ThreadPoolExecutor executor;
+
+  private volatile Parameters parameters = new Parameters(MIN_COST, BLOCK_SIZE, PARALLELIZATION);
+
+  private long timeout;
+
+  private ServiceMetrics metrics;
+
+
+
+  // Constructors ---------------------------------------------------------------------------------
+
+  /**
+   * Creates the hashing thread pool and starts calibrating the SCRYPT parameters on a
+   * background thread. Hashes use the minimum cost until the calibration completes.
+   *
+   * @param config    service configuration
+   * @param metrics   service metrics to record the hashing times to
+   */
+  public CredentialHashing(ServiceConfiguration config, ServiceMetrics metrics)
+  {
+    int threads = config.getCredentialHashingThreads();
+    int queueDepth = config.getCredentialHashingQueueDepth();
+
+    BlockingQueue<Runnable> queue = (queueDepth == 0)
+        ? new SynchronousQueue<Runnable>()
+        : new ArrayBlockingQueue<Runnable>(queueDepth);
+
+    // idle workers are allowed to exit, the pool is shut down when the application is
+    // undeployed...
+
+    this.executor = new ThreadPoolExecutor(
+        threads, threads, 60, TimeUnit.SECONDS, queue, new HashingThreadFactory(),
+        new ThreadPoolExecutor.AbortPolicy()
+    );
+
+    this.executor.allowCoreThreadTimeOut(true);
+
+    this.timeout = config.getCredentialHashingTimeout();
+    this.metrics = metrics;
+
+    int maxCost = getMaxCost(config.getCredentialHashingMemory());
+
+    log.info(
+        "Credential hashing uses {} threads with a queue depth of {}, at most {} MB per hash.",
+        threads, queueDepth, getMemoryUse(maxCost) / (1024 * 1024)
+    );
+
+    startCalibration(config.getCredentialHashingTargetLatency(), maxCost);
+  }
+
+
+
+  // Public Instance Methods ----------------------------------------------------------------------
+
+  /**
+   * Computes a SCRYPT hash of the given credentials on the hashing thread pool. The calling
+   * thread waits for the result. The credentials array is cleared once the hash has been
+   * computed.
+   *
+   * @param credentials   credentials to hash
+   *
+   * @return  SCRYPT hash, including the parameters and salt, as UTF-8 bytes
+   *
+   * @throws HttpServiceUnavailable
+   *            if the hashing queue is full, or the hash was not computed within the
+   *            configured timeout
+   */
+  public byte[] hash(byte[] credentials) throws HttpServiceUnavailable
+  {
+    long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeout);
+
+    try
+    {
+      return await(submit(credentials), deadline);
+    }
+
+    catch (RejectedExecutionException exception)
+    {
+      throw new HttpServiceUnavailable(
+          "Credential hashing capacity exceeded ({0} hashes queued).", executor.getQueue().size()
+      );
+    }
+  }
+
+  /**
+   * Computes SCRYPT hashes of several credentials concurrently on the hashing thread pool. The
+   * calling thread waits for all of the results. <p>
+   *
+   * When the hashing queue is full, the calling thread waits for its own earlier hashes to
+   * complete before queueing more, so that a large number of credentials does not saturate the
+   * pool by itself. If the pool is saturated by other requests the hash is retried until the
+   * configured timeout. A hash that cannot be queued, or is not computed, within the timeout is
+   * reported as failed without affecting the other results. Each credentials array is cleared once its hash has been
+   * computed.
+   *
+   * @param credentials   credentials to hash
+   *
+   * @return  hash results in the same order as the given credentials
+   */
+  public List<Result> hashAll(List<byte[]> credentials)
+  {
+    List<Result> results = new ArrayList<Result>(credentials.size());
+    List<Future<byte[]>> pending = new ArrayList<Future<byte[]>>(credentials.size());
+    List<Long> deadlines = new ArrayList<Long>(credentials.size());
+
+    for (byte[] value : credentials)
+    {
+      long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeout);
+
+      pending.add(submitOrAwait(value, deadline, pending, deadlines, results));
+      deadlines.add(deadline);
+    }
+
+    while (results.size() < pending.size())
+    {
+      results.add(awaitResult(pending.get(results.size()), deadlines.get(results.size())));
+    }
+
+    return results;
+  }
+
+  /**
+   * Returns the SCRYPT parameters new hashes are computed with. These are the minimum cost
+   * parameters until the calibration started at construction has completed.
+   *
+   * @return  SCRYPT parameters
+   */
+  public Parameters getParameters()
+  {
+    return parameters;
+  }
+
+  /**
+   * Stops the hashing thread pool. Hashes that are still queued are not computed and the
+   * requests waiting for them time out.
+   */
+  public void shutdown()
+  {
+    executor.shutdownNow();
+
+    log.info("Credential hashing stopped.");
+  }
+
+
+
+  // Private Instance Methods ---------------------------------------------------------------------
+
+  private void startCalibration(final long targetMillis, final int maxCost)
+  {
+    if (targetMillis <= 0)
+    {
+      return;
+    }
+
+    Thread calibration = new Thread(new Runnable()
+    {
+      @Override public void run()
+      {
+        try
+        {
+          parameters = calibrate(targetMillis, maxCost);
+        }
+
+        catch (RuntimeException exception)
+        {
+          log.error(
+              "Credential hashing calibration failed, using " + parameters + ": " +
+              exception.getMessage(), exception
+          );
+        }
+      }
+    }, "Account Manager Credential Hashing Calibration");
+
+    calibration.setDaemon(true);
+    calibration.start();
+  }
+
+  private Future<byte[]> submit(final byte[] credentials) throws RejectedExecutionException
+  {
+    final long queued = System.nanoTime();
+
+    try
+    {
+      return executor.submit(new Callable<byte[]>()
+      {
+        @Override public byte[] call()
+        {
+          long start = System.nanoTime();
+
+          metrics.record(ServiceMetrics.Metric.CREDENTIAL_HASHING, "queued", start - queued, false);
+
+          try
+          {
+            return hash(credentials, parameters);
+          }
+
+          finally
+          {
+            Arrays.fill(credentials, (byte)0);
+
+            metrics.record(
+                ServiceMetrics.Metric.CREDENTIAL_HASHING, "hashing", System.nanoTime() - start, false
+            );
+          }
+        }
+      });
+    }
+
+    catch (RejectedExecutionException exception)
+    {
+      metrics.record(ServiceMetrics.Metric.CREDENTIAL_HASHING, "queued", 0, true);
+
+      throw exception;
+    }
+  }
+
+  /**
+   * Queues a hash for {@link #hashAll}. If the queue is full, awaits the oldest pending hashes
+   * of the same call (adding their results) until the hash can be queued. With no pending
+   * hashes left, retries until the given deadline.
+   *
+   * @return  the queued hash, or <tt>null</tt> if it could not be queued
+   */
+  private Future<byte[]> submitOrAwait(byte[] credentials, long deadline,
+                                       List<Future<byte[]>> pending, List<Long> deadlines,
+                                       List<Result> results)
+  {
+    while (true)
+    {
+      try
+      {
+        return submit(credentials);
+      }
+
+      catch (RejectedExecutionException exception)
+      {
+        if (results.size() < pending.size())
+        {
+          results.add(awaitResult(pending.get(results.size()), deadlines.get(results.size())));
+        }
+
+        else if (!pause(deadline))
+        {
+          return null;
+        }
+      }
+    }
+  }
+
+  /**
+   * Waits for {@link #SUBMIT_RETRY_INTERVAL} milliseconds unless the given deadline has passed.
+   *
+   * @return  true if the caller should retry, false otherwise
+   */
+  private boolean pause(long deadline)
+  {
+    if (System.nanoTime() - deadline >= 0)
+    {
+      return false;
+    }
+
+    try
+    {
+      Thread.sleep(SUBMIT_RETRY_INTERVAL);
+
+      return true;
+    }
+
+    catch (InterruptedException exception)
+    {
+      Thread.currentThread().interrupt();
+
+      return false;
+    }
+  }
+
+  private Result awaitResult(Future<byte[]> result, long deadline)
+  {
+    if (result == null)
+    {
+      return new Result(null, HttpServiceUnavailable.format(
+          "Credential hashing capacity exceeded ({0} hashes queued).", executor.getQueue().size()
+      ));
+    }
+
+    try
+    {
+      return new Result(await(result, deadline), null);
+    }
+
+    catch (HttpServiceUnavailable exception)
+    {
+      return new Result(null, exception.getResponse().getStatusInfo().getReasonPhrase());
+    }
+  }
+
+  private byte[] await(Future<byte[]> result, long deadline)
+  {
+    try
+    {
+      return result.get(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+    }
+
+    catch (TimeoutException exception)
+    {
+      // the hash is no longer waited for, don't compute it if it is still queued...
+
+      result.cancel(false);
+
+      throw new HttpServiceUnavailable(
+          "Credential hash was not computed within {0} ms.", timeout
+      );
+    }
+
+    catch (InterruptedException exception)
+    {
+      result.cancel(false);
+
+      Thread.currentThread().interrupt();
+
+      throw new HttpServiceUnavailable("Interrupted while waiting for credential hash.");
+    }
+
+    catch (ExecutionException exception)
+    {
+      throw new IncorrectImplementationException(
+          "Credential hashing failed: {0}", exception.getCause(), exception.getCause().getMessage()
+      );
+    }
+  }
+
+
+
+  // Nested Classes -------------------------------------------------------------------------------
+
+  /**
+   * SCRYPT cost (N), block size (r) and parallelization (p) parameters.
+   */
+  public static class Parameters
+  {
+    private int cost;
+
+    private int blockSize;
+
+    private int parallelization;
+
+    /**
+     * @param cost              SCRYPT cost parameter (N), a power of two
+     * @param blockSize         SCRYPT block size parameter (r)
+     * @param parallelization   SCRYPT parallelization parameter (p)
+     */
+    public Parameters(int cost, int blockSize, int parallelization)
+    {
+      if (cost < 2 || Integer.bitCount(cost) != 1)
+      {
+        throw new IllegalArgumentException("SCRYPT cost must be a power of two, got " + cost);
+      }
+
+      this.cost = cost;
+      this.blockSize = blockSize;
+      this.parallelization = parallelization;
+    }
+
+    public int getCost()
+    {
+      return cost;
+    }
+
+    public int getBlockSize()
+    {
+      return blockSize;
+    }
+
+    public int getParallelization()
+    {
+      return parallelization;
+    }
+
+    @Override public String toString()
+    {
+      return "SCRYPT N=" + cost + ", r=" + blockSize + ", p=" + parallelization;
+    }
+  }
+
+  /**
+   * Result of a single hash computed with {@link #hashAll}.
+   */
+  public static class Result
+  {
+    private byte[] hash;
+
+    private String error;
+
+    private Result(byte[] hash, String error)
+    {
+      this.hash = hash;
+      this.error = error;
+    }
+
+    /**
+     * @return  SCRYPT hash as UTF-8 bytes, or <tt>null</tt> if the hash was not computed
+     */
+    public byte[] getHash()
+    {
+      return hash;
+    }
+
+    /**
+     * @return  reason the hash was not computed, or <tt>null</tt> if it was computed
+     */
+    public String getError()
+    {
+      return error;
+    }
+  }
+
+  /**
+   * Names the hashing threads and marks them as daemon threads.
+   */
+  private static class HashingThreadFactory implements ThreadFactory
+  {
+    private AtomicInteger count = new AtomicInteger(0);
+
+    @Override public Thread newThread(Runnable task)
+    {
+      Thread thread = new Thread(task, "Account Manager Credential Hashing-" + count.incrementAndGet());
+
+      thread.setDaemon(true);
+
+      return thread;
+    }
+  }
+}
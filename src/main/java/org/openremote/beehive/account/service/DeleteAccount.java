@@ -20,14 +20,8 @@
  */
 package org.openremote.beehive.account.service;
 
-import org.openremote.model.persistence.jpa.RelationalUser;
-import org.openremote.model.persistence.jpa.beehive.BeehiveController;
-import org.openremote.model.persistence.jpa.beehive.BeehiveUser;
-import org.openremote.model.persistence.jpa.beehive.MinimalBeehiveUserRole;
-
 import javax.persistence.EntityManager;
 import javax.persistence.PersistenceException;
-import javax.servlet.ServletContext;
 import javax.servlet.http.HttpServletRequest;
 import javax.validation.constraints.NotNull;
 import javax.ws.rs.DELETE;
@@ -39,11 +33,14 @@ import javax.ws.rs.core.Context;
 import javax.ws.rs.core.MediaType;
 import javax.ws.rs.core.Response;
 import javax.ws.rs.core.SecurityContext;
-import java.util.List;
+import java.util.Collections;
+import java.util.Set;
 
 
 /**
- * TODO
+ * Beehive Account Manager REST API for removing a single user account. The user, its role
+ * assignments, controllers and account are removed with set-based deletes, see
+ * {@link AccountRemoval}.
  *
  * @author Juha Lindfors
  */
@@ -63,7 +60,15 @@ public class DeleteAccount
 
   @Context private HttpServletRequest request;
 
-  @Context private ServletContext webapp;
+  /**
+   * Service configuration resolved at application startup.
+   */
+  @Context private ServiceConfiguration config;
+
+  /**
+   * Application wide cache of account listings.
+   */
+  @Context private AccountCache accountCache;
 
   /**
    * Inject the username value from this resource path's URI template.
@@ -80,51 +85,27 @@ public class DeleteAccount
   {
     try
     {
-      CreateAccount.Schema schema = CreateAccount.Schema.resolveDBSchema(webapp);
-
-      String entityName = "User";
-
-      if (schema == CreateAccount.Schema.LEGACY_BEEHIVE)
-      {
-        entityName = "BeehiveUser";
-      }
-
       EntityManager entityManager = getEntityManager();
 
-      List results = entityManager
-          .createQuery("SELECT u FROM " + entityName + " u WHERE u.username = :name")
-          .setParameter("name", username)
-          .getResultList();
+      Set<String> removed = new AccountRemoval(config, entityManager)
+          .remove(Collections.singletonList(username));
 
-      if (results.isEmpty())
+      if (removed.isEmpty())
       {
         // TODO : align with other exception types
 
         throw new NotFoundException("Username was not found.");
       }
 
-      if (schema == CreateAccount.Schema.LEGACY_BEEHIVE)
-      {
-        // Delete all joins to roles
-        RelationalUser user = (RelationalUser) results.get(0);
-        List<MinimalBeehiveUserRole> roleJoins = entityManager.createNamedQuery("findRolesForUser")
-                .setParameter("userId", user.getId())
-                .getResultList();
-        for (MinimalBeehiveUserRole roleJoin : roleJoins)
-        {
-          entityManager.remove(roleJoin);
-        }
-        List<BeehiveController> controllers = entityManager.createNamedQuery("findControllersForAccount")
-                .setParameter("account", ((BeehiveUser)user).getAccount())
-                .getResultList();
-        for (BeehiveController controller : controllers)
-        {
-          entityManager.remove(controller);
-        }
-      }
+      // commit before invalidating the cached account listing and authentications so that a concurrent read
+      // cannot re-cache the accounts from the not yet committed state...
+
+      entityManager.getTransaction().commit();
+      entityManager.getTransaction().begin();
 
+      accountCache.invalidate(removed);
 
-      entityManager.remove(results.get(0));
+      new RealmCacheInvalidation().invalidate(removed);
     }
 
     catch (PersistenceException exception)
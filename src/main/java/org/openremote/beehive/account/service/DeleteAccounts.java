@@ -0,0 +1,253 @@
+/*
+ * OpenRemote, the Home of the Digital Home.
+ * Copyright 2008-2015, OpenRemote Inc.
+ *
+ * See the contributors.txt file in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.openremote.beehive.account.service;
+
+import org.openremote.base.Defaults;
+import org.openremote.beehive.account.model.BatchResult;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.persistence.EntityManager;
+import javax.persistence.PersistenceException;
+import javax.servlet.http.HttpServletRequest;
+import javax.ws.rs.Consumes;
+import javax.ws.rs.DELETE;
+import javax.ws.rs.Path;
+import javax.ws.rs.Produces;
+import javax.ws.rs.core.Context;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Response;
+import javax.ws.rs.core.SecurityContext;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+
+/**
+ * Beehive Account Manager REST API for removing a set of user accounts in a single request. <p>
+ *
+ * The request body is a plain text list of usernames, one per line. The usernames are removed
+ * in chunks of the configured batch chunk size, with set-based deletes (see
+ * {@link AccountRemoval}). Each chunk is committed as soon as it has been removed so that row
+ * locks are only held for the duration of a single chunk rather than the entire request.
+ *
+ * @author Juha Lindfors
+ */
+
+@Path("users")
+
+public class DeleteAccounts
+{
+
+  // Constants ------------------------------------------------------------------------------------
+
+  /**
+   * Log category for the account removal requests.
+   */
+  private static final AccountManager.Log LOG_CATEGORY = AccountManager.Log.REGISTRATION;
+
+
+
+  // Class Members --------------------------------------------------------------------------------
+
+  /**
+   * Logger for this account removal implementation.
+   */
+  private static Logger log = LoggerFactory.getLogger(LOG_CATEGORY.getCanonicalLogHierarchyName());
+
+
+
+  // Instance Fields ------------------------------------------------------------------------------
+
+  /**
+   * Security context associated with the incoming HTTP request provided by the host HTTP servlet
+   * service.
+   */
+  @Context private SecurityContext security;
+
+  @Context private HttpServletRequest request;
+
+  /**
+   * Service configuration resolved at application startup.
+   */
+  @Context private ServiceConfiguration config;
+
+  /**
+   * Application wide cache of account listings.
+   */
+  @Context private AccountCache accountCache;
+
+
+
+  // REST API Implementation ----------------------------------------------------------------------
+
+  /**
+   * Removes the accounts of all the users listed in the request body. <p>
+   *
+   * Usernames that do not exist are reported with HTTP 404 status in the returned result and
+   * do not prevent the rest of the list from being removed. Database errors abort the request
+   * with an HTTP 500; chunks committed before the error remain removed and the request can be
+   * resubmitted.
+   *
+   * @param usernames   plain text list of usernames, one per line
+   *
+   * @return  per-username results of the removal
+   */
+  @Consumes(MediaType.TEXT_PLAIN)
+  @Produces({ MediaType.APPLICATION_JSON, BatchResult.JSON_HTTP_CONTENT_TYPE })
+
+  @DELETE public Response deleteAll(InputStream usernames)
+  {
+    int chunkSize = config.getBatchChunkSize();
+
+    BatchResult result = new BatchResult();
+    List<String> chunk = new ArrayList<String>(chunkSize);
+    int index = 0;
+
+    try
+    {
+      BufferedReader in = new BufferedReader(new InputStreamReader(usernames, Defaults.UTF8));
+
+      while (true)
+      {
+        String username = in.readLine();
+
+        if (username == null)
+        {
+          break;
+        }
+
+        username = username.trim();
+
+        if (username.isEmpty())
+        {
+          continue;
+        }
+
+        chunk.add(username);
+
+        if (chunk.size() == chunkSize)
+        {
+          deleteChunk(chunk, index, result);
+
+          index += chunk.size();
+          chunk.clear();
+        }
+      }
+    }
+
+    catch (IOException exception)
+    {
+      throw new HttpBadRequest(
+          security.getUserPrincipal(), LOG_CATEGORY.getCanonicalLogHierarchyName(), exception,
+          "Reading the username list failed: {0}", exception.getMessage()
+      );
+    }
+
+    deleteChunk(chunk, index, result);
+
+    log.info(
+        "DELETE ACCOUNTS: [Service admin: ''{}''] removed {} accounts, {} usernames not found.",
+        security.getUserPrincipal().getName(), result.getSucceededCount(), result.getFailedCount()
+    );
+
+    return Response.ok(result).build();
+  }
+
+
+
+  // Private Instance Methods ---------------------------------------------------------------------
+
+  private void deleteChunk(List<String> chunk, int index, BatchResult result)
+  {
+    if (chunk.isEmpty())
+    {
+      return;
+    }
+
+    Set<String> removed;
+
+    try
+    {
+      EntityManager em = getEntityManager();
+
+      removed = new AccountRemoval(config, em).remove(chunk);
+
+      em.getTransaction().commit();
+      em.getTransaction().begin();
+
+      // invalidate only after the commit so that a concurrent read cannot re-cache the
+      // accounts from the not yet committed state...
+
+      accountCache.invalidate(removed);
+
+      new RealmCacheInvalidation().invalidate(removed);
+    }
+
+    catch (PersistenceException exception)
+    {
+      // throw HTTP 500 - Internal Error in case the database delete fails...
+
+      throw new HttpInternalError(
+          security.getUserPrincipal(), LOG_CATEGORY.getCanonicalLogHierarchyName(), exception,
+          "Batch account removal FAILED: {0}", exception.getMessage()
+      );
+    }
+
+    // the database may match usernames case and accent insensitively, compare the removed
+    // usernames as normalized keys...
+
+    Set<String> removedKeys = new HashSet<String>(removed.size() * 2);
+
+    for (String username : removed)
+    {
+      removedKeys.add(UsernameIndex.normalize(username));
+    }
+
+    for (int i = 0; i < chunk.size(); ++i)
+    {
+      String username = chunk.get(i);
+
+      if (removedKeys.contains(UsernameIndex.normalize(username)))
+      {
+        result.succeeded(index + i, username, Response.Status.OK.getStatusCode(), null);
+      }
+
+      else
+      {
+        result.failed(
+            index + i, username, Response.Status.NOT_FOUND.getStatusCode(),
+            "User '" + username + "' was not found."
+        );
+      }
+    }
+  }
+
+  private EntityManager getEntityManager()
+  {
+    return (EntityManager)request.getAttribute(AccountManager.ENTITY_MANAGER_LOOKUP);
+  }
+}
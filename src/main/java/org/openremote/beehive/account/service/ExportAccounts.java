@@ -0,0 +1,401 @@
+/*
+ * OpenRemote, the Home of the Digital Home.
+ * Copyright 2008-2015, OpenRemote Inc.
+ *
+ * See the contributors.txt file in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.openremote.beehive.account.service;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.persistence.EntityManager;
+import javax.persistence.PersistenceException;
+import javax.servlet.http.HttpServletRequest;
+import javax.ws.rs.GET;
+import javax.ws.rs.Path;
+import javax.ws.rs.Produces;
+import javax.ws.rs.core.Context;
+import javax.ws.rs.core.Response;
+import javax.ws.rs.core.SecurityContext;
+import javax.ws.rs.core.StreamingOutput;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import org.openremote.base.Defaults;
+import org.openremote.model.Controller;
+import org.openremote.model.User;
+import org.openremote.model.persistence.jpa.RelationalAccount;
+import org.openremote.model.persistence.jpa.RelationalUser;
+import org.openremote.model.persistence.jpa.beehive.BeehiveUser;
+
+import org.openremote.beehive.account.model.CustomerFulfillment;
+import org.openremote.beehive.account.model.RegistrationBatch;
+import org.openremote.beehive.account.model.UserRegistration;
+
+
+/**
+ * Beehive Account Manager REST API for exporting all user accounts. <p>
+ *
+ * Users and their controllers are written as a newline delimited JSON (NDJSON) stream of
+ * customer fulfillment documents, one user per line, in the same format accepted by the
+ * account import. The users are read from the database one page at a time (keyset paged by
+ * user id) and the persistence context is cleared after each page, so neither the result list
+ * nor the persistence context grows with the number of exported accounts. <p>
+ *
+ * By default user credentials are not exported, every user is written with the
+ * {@link UserRegistration#CREDENTIALS_NOT_PROVIDED} placeholder which the account import
+ * rejects. When enabled with {@link ServiceConfiguration#isExportCredentials()}, credentials are
+ * exported in the encoded form they are stored in (a credential hash), marked with
+ * {@link UserRegistration#ENCODED_CREDENTIALS_ATTRIBUTE_NAME} so that an account import with
+ * {@link ServiceConfiguration#isImportEncodedCredentials()} enabled stores them unchanged and
+ * the imported users keep their existing passwords. Plain text credentials are never exported.
+ *
+ * @author Juha Lindfors
+ */
+
+@Path("export/users")
+
+public class ExportAccounts
+{
+
+  // Constants ------------------------------------------------------------------------------------
+
+  /**
+   * Log category for the account export requests.
+   */
+  private static final AccountManager.Log LOG_CATEGORY = AccountManager.Log.REGISTRATION;
+
+
+  // Class Members --------------------------------------------------------------------------------
+
+  private static Logger log = LoggerFactory.getLogger(LOG_CATEGORY.getCanonicalLogHierarchyName());
+
+
+
+  // Instance Fields ------------------------------------------------------------------------------
+
+  /**
+   * Security context associated with the incoming HTTP request provided by the host HTTP servlet
+   * service.
+   */
+  @Context private SecurityContext security;
+
+  @Context private HttpServletRequest request;
+
+  /**
+   * Service configuration resolved at application startup.
+   */
+  @Context private ServiceConfiguration config;
+
+
+
+  // REST API Implementation ----------------------------------------------------------------------
+
+  @GET @Produces(RegistrationBatch.NDJSON_HTTP_CONTENT_TYPE)
+
+  public Response export()
+  {
+    final EntityManager em = getEntityManager();
+
+    StreamingOutput stream = new StreamingOutput()
+    {
+      @Override public void write(OutputStream out) throws IOException
+      {
+        Writer writer = new BufferedWriter(new OutputStreamWriter(out, Defaults.UTF8));
+
+        long count = exportUsers(em, writer);
+
+        writer.flush();
+
+        log.info(
+            "EXPORT ACCOUNTS: [Service admin: ''{}''] exported {} accounts.",
+            security.getUserPrincipal().getName(), count
+        );
+      }
+    };
+
+    return Response.ok(stream).build();
+  }
+
+
+
+  // Private Instance Methods ---------------------------------------------------------------------
+
+  private long exportUsers(EntityManager em, Writer writer) throws IOException
+  {
+    int pageSize = config.getBatchChunkSize();
+
+    long lastId = Long.MIN_VALUE;
+    long count = 0;
+
+    try
+    {
+      while (true)
+      {
+        List<RelationalUser> page = em.createQuery(config.getUserPageQuery(), RelationalUser.class)
+            .setParameter("lastId", lastId)
+            .setMaxResults(pageSize)
+            .getResultList();
+
+        if (page.isEmpty())
+        {
+          return count;
+        }
+
+        Map<Long, RelationalAccount> accounts = findAccounts(em, page);
+        Map<Long, List<Controller>> controllers = findControllers(em, accounts.values());
+        Map<Long, StoredCredentials> credentials = config.isExportCredentials()
+            ? findCredentials(em, page)
+            : Collections.<Long, StoredCredentials>emptyMap();
+
+        for (RelationalUser user : page)
+        {
+          writeUser(
+              user, credentials.get(user.getId()), accounts.get(user.getId()), controllers, writer
+          );
+        }
+
+        count += page.size();
+        lastId = page.get(page.size() - 1).getId();
+
+        // flush each page to the client and release the loaded entities...
+
+        writer.flush();
+        em.clear();
+
+        if (page.size() < pageSize)
+        {
+          return count;
+        }
+      }
+    }
+
+    catch (PersistenceException exception)
+    {
+      // the response may already have been partially sent at this point, the client will
+      // see a truncated stream...
+
+      throw new HttpInternalError(
+          security.getUserPrincipal(), LOG_CATEGORY.getCanonicalLogHierarchyName(), exception,
+          "Account export FAILED after {0} accounts: {1}", count, exception.getMessage()
+      );
+    }
+  }
+
+  private Map<Long, RelationalAccount> findAccounts(EntityManager em, List<RelationalUser> users)
+  {
+    Map<Long, RelationalAccount> accounts = new HashMap<Long, RelationalAccount>(users.size() * 2);
+
+    if (config.getSchema() == CreateAccount.Schema.LEGACY_BEEHIVE)
+    {
+      // legacy Beehive user accounts have been fetched with the user page...
+
+      for (RelationalUser user : users)
+      {
+        RelationalAccount account = ((BeehiveUser)user).getAccount();
+
+        if (account != null)
+        {
+          accounts.put(user.getId(), account);
+        }
+      }
+
+      return accounts;
+    }
+
+    List<Object[]> rows = em.createQuery(config.getAccountsForUsersQuery(), Object[].class)
+        .setParameter("users", users)
+        .getResultList();
+
+    for (Object[] row : rows)
+    {
+      Long userId = (Long)row[0];
+
+      if (!accounts.containsKey(userId))
+      {
+        accounts.put(userId, (RelationalAccount)row[1]);
+      }
+    }
+
+    return accounts;
+  }
+
+  private Map<Long, List<Controller>> findControllers(EntityManager em,
+                                                      Collection<RelationalAccount> accounts)
+  {
+    Map<Long, List<Controller>> controllers = new HashMap<Long, List<Controller>>();
+
+    if (accounts.isEmpty())
+    {
+      return controllers;
+    }
+
+    List<Object[]> rows = em.createQuery(config.getControllersForAccountsQuery(), Object[].class)
+        .setParameter("accounts", new ArrayList<RelationalAccount>(accounts))
+        .getResultList();
+
+    // controllers with several MAC addresses are returned on several rows...
+
+    Set<Controller> added = Collections.newSetFromMap(new IdentityHashMap<Controller, Boolean>());
+
+    for (Object[] row : rows)
+    {
+      Controller controller = (Controller)row[1];
+
+      if (!added.add(controller))
+      {
+        continue;
+      }
+
+      Long accountId = (Long)row[0];
+      List<Controller> list = controllers.get(accountId);
+
+      if (list == null)
+      {
+        list = new ArrayList<Controller>(1);
+        controllers.put(accountId, list);
+      }
+
+      list.add(controller);
+    }
+
+    return controllers;
+  }
+
+  private Map<Long, StoredCredentials> findCredentials(EntityManager em,
+                                                       List<RelationalUser> users)
+  {
+    Map<Long, StoredCredentials> credentials =
+        new HashMap<Long, StoredCredentials>(users.size() * 2);
+
+    List<Object[]> rows = em.createQuery(config.getCredentialsForUsersQuery(), Object[].class)
+        .setParameter("users", users)
+        .getResultList();
+
+    for (Object[] row : rows)
+    {
+      byte[] value;
+      User.CredentialsEncoding encoding;
+
+      if (config.getSchema() == CreateAccount.Schema.LEGACY_BEEHIVE)
+      {
+        value = (row[1] == null) ? null : ((String)row[1]).getBytes(Defaults.UTF8);
+        encoding = User.CredentialsEncoding.LEGACY_BEEHIVE;
+      }
+
+      else
+      {
+        value = (byte[])row[1];
+        encoding = (row[2] == null)
+            ? User.CredentialsEncoding.UNSPECIFIED
+            : (User.CredentialsEncoding)row[2];
+      }
+
+      if (value != null && value.length > 0)
+      {
+        credentials.put((Long)row[0], new StoredCredentials(value, encoding));
+      }
+    }
+
+    return credentials;
+  }
+
+  private void writeUser(RelationalUser user, StoredCredentials credentials,
+                         RelationalAccount account, Map<Long, List<Controller>> controllers,
+                         Writer writer) throws IOException
+  {
+    UserRegistration registration;
+
+    if (credentials == null)
+    {
+      // Users without stored credentials, or all users unless credential export is enabled,
+      // are written with a placeholder that the account import rejects, rather than importing
+      // an account with a known password...
+
+      User.Authentication noCredentials = new User.Authentication(
+          UserRegistration.CREDENTIALS_NOT_PROVIDED.getBytes(Defaults.UTF8),
+          User.CredentialsEncoding.UNSPECIFIED
+      );
+
+      registration = new UserRegistration(user, noCredentials);
+    }
+
+    else
+    {
+      registration = UserRegistration.withEncodedCredentials(
+          user, credentials.value, credentials.encoding
+      );
+    }
+
+    CustomerFulfillment fulfillment = new CustomerFulfillment(registration, null);
+
+    if (account != null)
+    {
+      fulfillment.addAttribute("accountId", Long.toString(account.getId()));
+
+      List<Controller> accountControllers = controllers.get(account.getId());
+
+      if (accountControllers != null)
+      {
+        for (Controller controller : accountControllers)
+        {
+          fulfillment.add(controller);
+        }
+      }
+    }
+
+    writer.write(RegistrationBatch.toSingleLine(fulfillment.toJSONString()));
+    writer.write('\n');
+  }
+
+  private EntityManager getEntityManager()
+  {
+    return (EntityManager)request.getAttribute(AccountManager.ENTITY_MANAGER_LOOKUP);
+  }
+
+
+
+  // Nested Classes -------------------------------------------------------------------------------
+
+  /**
+   * Credentials of a user in the encoded form they are stored in the database.
+   */
+  private static class StoredCredentials
+  {
+    private byte[] value;
+    private User.CredentialsEncoding encoding;
+
+    private StoredCredentials(byte[] value, User.CredentialsEncoding encoding)
+    {
+      this.value = value;
+      this.encoding = encoding;
+    }
+  }
+}
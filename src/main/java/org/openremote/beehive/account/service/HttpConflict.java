@@ -36,6 +36,12 @@ import org.slf4j.LoggerFactory;
 public class HttpConflict extends WebApplicationException
 {
 
+  /**
+   * HTTP status code for conflict: {@value}
+   */
+  public static final int STATUS_CODE = 409;
+
+
   // TODO : create common base class
 
 
@@ -90,7 +96,7 @@ public class HttpConflict extends WebApplicationException
         {
           @Override public int getStatusCode()
           {
-            return 409;
+            return STATUS_CODE;
           }
 
           @Override public String getReasonPhrase()
@@ -0,0 +1,95 @@
+/*
+ * OpenRemote, the Home of the Digital Home.
+ * Copyright 2008-2015, OpenRemote Inc.
+ *
+ * See the contributors.txt file in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.openremote.beehive.account.service;
+
+import java.text.MessageFormat;
+
+import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.core.Response;
+
+
+/**
+ * Request entity was not received within the time the service allows for reading it.
+ *
+ * @author Juha Lindfors
+ */
+public class HttpRequestTimeout extends WebApplicationException
+{
+
+  /**
+   * HTTP status code for request timeout: {@value}
+   */
+  public static final int STATUS_CODE = 408;
+
+
+  // TODO : create common base class
+
+
+  public static String format(String msg, Object... params)
+  {
+    try
+    {
+      return MessageFormat.format(msg, params);
+    }
+
+    catch (Throwable cause)
+    {
+      return msg + "  [EXCEPTION MESSAGE FORMATTING ERROR: " + cause.getMessage().toUpperCase() + "]";
+    }
+  }
+
+
+  public HttpRequestTimeout(String message)
+  {
+    this(null, message);
+  }
+
+  public HttpRequestTimeout(String message, Object... params)
+  {
+    this(format(message, params));
+  }
+
+  public HttpRequestTimeout(Throwable rootCause, final String message)
+  {
+    super(rootCause, Response.noContent().status(
+
+        new Response.StatusType()
+        {
+          @Override public int getStatusCode()
+          {
+            return STATUS_CODE;
+          }
+
+          @Override public String getReasonPhrase()
+          {
+            return "Request Timeout - " + message;
+          }
+
+          @Override public Response.Status.Family getFamily()
+          {
+            return Response.Status.Family.CLIENT_ERROR;
+          }
+        }
+
+    ).build());
+  }
+
+}
@@ -0,0 +1,102 @@
+/*
+ * OpenRemote, the Home of the Digital Home.
+ * Copyright 2008-2015, OpenRemote Inc.
+ *
+ * See the contributors.txt file in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.openremote.beehive.account.service;
+
+import java.text.MessageFormat;
+
+import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.core.HttpHeaders;
+import javax.ws.rs.core.Response;
+
+
+/**
+ * Service is temporarily unable to handle the request due to overload. The response includes
+ * a Retry-After header.
+ *
+ * @author Juha Lindfors
+ */
+public class HttpServiceUnavailable extends WebApplicationException
+{
+
+  /**
+   * HTTP status code for service unavailable: {@value}
+   */
+  public static final int STATUS_CODE = 503;
+
+  /**
+   * Number of seconds the client is asked to wait before retrying: {@value}
+   */
+  public static final int RETRY_AFTER_SECONDS = 5;
+
+
+  // TODO : create common base class
+
+
+  public static String format(String msg, Object... params)
+  {
+    try
+    {
+      return MessageFormat.format(msg, params);
+    }
+
+    catch (Throwable cause)
+    {
+      return msg + "  [EXCEPTION MESSAGE FORMATTING ERROR: " + cause.getMessage().toUpperCase() + "]";
+    }
+  }
+
+
+  public HttpServiceUnavailable(String message)
+  {
+    this(null, message);
+  }
+
+  public HttpServiceUnavailable(String message, Object... params)
+  {
+    this(format(message, params));
+  }
+
+  public HttpServiceUnavailable(Throwable rootCause, final String message)
+  {
+    super(rootCause, Response.noContent().status(
+
+        new Response.StatusType()
+        {
+          @Override public int getStatusCode()
+          {
+            return STATUS_CODE;
+          }
+
+          @Override public String getReasonPhrase()
+          {
+            return "Service Unavailable - " + message;
+          }
+
+          @Override public Response.Status.Family getFamily()
+          {
+            return Response.Status.Family.SERVER_ERROR;
+          }
+        }
+
+    ).header(HttpHeaders.RETRY_AFTER, RETRY_AFTER_SECONDS).build());
+  }
+
+}
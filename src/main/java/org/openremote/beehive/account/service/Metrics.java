@@ -0,0 +1,76 @@
+/*
+ * OpenRemote, the Home of the Digital Home.
+ * Copyright 2008-2015, OpenRemote Inc.
+ *
+ * See the contributors.txt file in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.openremote.beehive.account.service;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+
+import javax.ws.rs.GET;
+import javax.ws.rs.Path;
+import javax.ws.rs.Produces;
+import javax.ws.rs.core.Context;
+import javax.ws.rs.core.Response;
+import javax.ws.rs.core.StreamingOutput;
+
+import org.openremote.base.Defaults;
+
+
+/**
+ * Beehive Account Manager REST API for reading the service metrics in the Prometheus text
+ * exposition format. Restricted to service administrators. See {@link ServiceMetrics} for
+ * the available metrics.
+ *
+ * @author Juha Lindfors
+ */
+
+@Path("metrics")
+
+public class Metrics
+{
+
+  // Instance Fields ------------------------------------------------------------------------------
+
+  /**
+   * Application wide service metrics.
+   */
+  @Context private ServiceMetrics metrics;
+
+
+
+  // REST API Implementation ----------------------------------------------------------------------
+
+  @GET @Produces(ServiceMetrics.PROMETHEUS_TEXT_CONTENT_TYPE)
+
+  public Response get()
+  {
+    StreamingOutput output = new StreamingOutput()
+    {
+      @Override public void write(OutputStream out) throws IOException
+      {
+        metrics.writePrometheus(new BufferedWriter(new OutputStreamWriter(out, Defaults.UTF8)));
+      }
+    };
+
+    return Response.ok(output).build();
+  }
+}
@@ -0,0 +1,116 @@
+/*
+ * OpenRemote, the Home of the Digital Home.
+ * Copyright 2008-2015, OpenRemote Inc.
+ *
+ * See the contributors.txt file in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.openremote.beehive.account.service;
+
+import java.lang.management.ManagementFactory;
+
+import java.util.Collection;
+import java.util.Set;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+
+/**
+ * Removes the cached BASIC authentications of removed users from the authentication caches
+ * of the caching data source realm (org.openremote.beehive.account.realm.CachingDataSourceRealm).
+ * <p>
+ *
+ * The realm is packaged separately and loaded by the servlet container rather than by this
+ * web application, so the caches are reached through the platform MBean server instead of by
+ * direct reference, and none of the realm classes are referenced here. If no caching realm is
+ * configured this is a no-op.
+ *
+ * @author Juha Lindfors
+ */
+final class RealmCacheInvalidation
+{
+
+  // Constants ------------------------------------------------------------------------------------
+
+  /**
+   * Object name prefix of the realm authentication cache MBeans. Must match the
+   * OBJECT_NAME_PREFIX of the realm's AuthenticationCacheMBean interface: {@value}
+   */
+  static final String AUTHENTICATION_CACHE_OBJECT_NAME_PREFIX =
+      "OpenRemote.AccountManager:type=AuthenticationCache";
+
+
+
+  // Class Members --------------------------------------------------------------------------------
+
+  private static final Logger log = LoggerFactory.getLogger(
+      AccountManager.Log.REGISTRATION.getCanonicalLogHierarchyName()
+  );
+
+
+
+  // Instance Fields ------------------------------------------------------------------------------
+
+  private MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+
+
+
+  // Instance Methods -----------------------------------------------------------------------------
+
+  /**
+   * Invalidates the cached authentications of the given users. Must be called after the
+   * removal has been committed, otherwise a concurrent request may re-cache the user.
+   *
+   * @param usernames   names of the removed users
+   */
+  void invalidate(Collection<String> usernames)
+  {
+    if (usernames.isEmpty())
+    {
+      return;
+    }
+
+    try
+    {
+      Set<ObjectName> caches = server.queryNames(
+          new ObjectName(AUTHENTICATION_CACHE_OBJECT_NAME_PREFIX + ",*"), null
+      );
+
+      for (ObjectName cache : caches)
+      {
+        for (String username : usernames)
+        {
+          server.invoke(
+              cache, "invalidate", new Object[] { username }, new String[] { String.class.getName() }
+          );
+        }
+      }
+    }
+
+    catch (JMException exception)
+    {
+      log.warn(
+          "Cached authentications of removed users could not be invalidated, they expire with "
+          + "the realm's cache time-to-live: " + exception.getMessage(), exception
+      );
+    }
+  }
+}
@@ -0,0 +1,138 @@
+/*
+ * OpenRemote, the Home of the Digital Home.
+ * Copyright 2008-2015, OpenRemote Inc.
+ *
+ * See the contributors.txt file in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.openremote.beehive.account.service;
+
+import java.io.IOException;
+
+import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.core.Context;
+import javax.ws.rs.core.HttpHeaders;
+import javax.ws.rs.ext.ReaderInterceptor;
+import javax.ws.rs.ext.ReaderInterceptorContext;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+
+/**
+ * Bounds the size of, and the time spent reading, the request entities of all the message
+ * body readers of this service. <p>
+ *
+ * A request that declares a Content-Length larger than the limit configured for its media
+ * type is rejected with HTTP 413 - Request Entity Too Large before any of its entity is read.
+ * Otherwise the entity stream is wrapped so that the request fails with HTTP 413 as soon as
+ * the limit is crossed, or with HTTP 408 - Request Timeout once the total time spent waiting
+ * for entity data exceeds the configured read timeout. Either way the message body reader
+ * stops reading at the limit, so an oversize entity is never buffered in full. <p>
+ *
+ * The limits are configured with the {@link ServiceConfiguration#WEBAPP_PARAM_MAX_REQUEST_SIZE}
+ * and {@link ServiceConfiguration#WEBAPP_PARAM_REQUEST_READ_TIMEOUT} deployment descriptor
+ * context parameters.
+ *
+ * @author Juha Lindfors
+ */
+public class RequestEntityLimits implements ReaderInterceptor
+{
+
+  // Class Members --------------------------------------------------------------------------------
+
+  private static final Logger log = LoggerFactory.getLogger(
+      AccountManager.Log.REGISTRATION_DESERIALIZE.getCanonicalLogHierarchyName()
+  );
+
+
+
+  // Instance Fields ------------------------------------------------------------------------------
+
+  /**
+   * Service configuration for the entity limits.
+   */
+  @Context private ServiceConfiguration config;
+
+
+
+  // Implements ReaderInterceptor -----------------------------------------------------------------
+
+  @Override public Object aroundReadFrom(ReaderInterceptorContext context)
+      throws IOException, WebApplicationException
+  {
+    int maxBytes = config.getMaxRequestSize(context.getMediaType());
+
+    String contentLength = context.getHeaders().getFirst(HttpHeaders.CONTENT_LENGTH);
+
+    if (contentLength != null && parseLength(contentLength) > maxBytes)
+    {
+      log.info(
+          "Rejected {} request entity of {} bytes, limit is {} bytes.",
+          context.getMediaType(), contentLength, maxBytes
+      );
+
+      throw new HttpRequestEntityTooLarge(
+          "Request entity exceeds the maximum size of {0} bytes.", String.valueOf(maxBytes)
+      );
+    }
+
+    BoundedInputStream in = new BoundedInputStream(
+        context.getInputStream(), maxBytes, config.getRequestReadTimeout()
+    );
+
+    context.setInputStream(in);
+
+    // Message body readers may wrap the exceptions raised by the bounded stream, make sure
+    // a limit violation is reported as such...
+
+    try
+    {
+      return context.proceed();
+    }
+
+    catch (IOException exception)
+    {
+      in.checkViolation();
+
+      throw exception;
+    }
+
+    catch (RuntimeException exception)
+    {
+      in.checkViolation();
+
+      throw exception;
+    }
+  }
+
+
+
+  // Private Instance Methods ---------------------------------------------------------------------
+
+  private long parseLength(String contentLength)
+  {
+    try
+    {
+      return Long.parseLong(contentLength.trim());
+    }
+
+    catch (NumberFormatException exception)
+    {
+      return -1;
+    }
+  }
+}
@@ -0,0 +1,205 @@
+/*
+ * OpenRemote, the Home of the Digital Home.
+ * Copyright 2008-2015, OpenRemote Inc.
+ *
+ * See the contributors.txt file in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.openremote.beehive.account.service;
+
+import java.io.IOException;
+
+import javax.persistence.EntityManager;
+import javax.ws.rs.Priorities;
+import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.container.ContainerRequestContext;
+import javax.ws.rs.container.ContainerRequestFilter;
+import javax.ws.rs.container.ContainerResponseContext;
+import javax.ws.rs.container.ContainerResponseFilter;
+import javax.ws.rs.container.DynamicFeature;
+import javax.ws.rs.container.ResourceInfo;
+import javax.ws.rs.core.FeatureContext;
+import javax.ws.rs.ext.ReaderInterceptor;
+import javax.ws.rs.ext.ReaderInterceptorContext;
+import javax.ws.rs.ext.WriterInterceptor;
+import javax.ws.rs.ext.WriterInterceptorContext;
+
+
+/**
+ * Records the {@link ServiceMetrics} of the REST resources and their message body readers
+ * and writers. <p>
+ *
+ * As a dynamic feature, registers a request/response filter pair for every resource method
+ * that times the request from resource matching until the response is ready to be written,
+ * and wraps the request's entity manager with a {@link TimedEntityManager}. The filters run
+ * before the authorization filters, so rejected requests are timed as well. As reader and
+ * writer interceptors, times the message body readers and writers separately, labeled by the
+ * entity type they read or write. A slow request can therefore be attributed to JSON
+ * processing, authorization or the database.
+ *
+ * @author Juha Lindfors
+ */
+public class RequestMetrics implements DynamicFeature, ReaderInterceptor, WriterInterceptor
+{
+
+  // Constants ------------------------------------------------------------------------------------
+
+  /**
+   * Request property holding the request start time, in nanoseconds.
+   */
+  private static final String START_TIME_PROPERTY = RequestMetrics.class.getName() + ".start";
+
+
+
+  // Instance Fields ------------------------------------------------------------------------------
+
+  private ServiceMetrics metrics;
+
+
+
+  // Constructors ---------------------------------------------------------------------------------
+
+  /**
+   * @param metrics   application wide service metrics to record to
+   */
+  public RequestMetrics(ServiceMetrics metrics)
+  {
+    this.metrics = metrics;
+  }
+
+
+
+  // Implements DynamicFeature --------------------------------------------------------------------
+
+  @Override public void configure(ResourceInfo info, FeatureContext ctx)
+  {
+    String label = info.getResourceClass().getSimpleName() + "." + info.getResourceMethod().getName();
+
+    ctx.register(new ResourceTimer(label), Priorities.AUTHENTICATION - 1);
+  }
+
+
+
+  // Implements ReaderInterceptor -----------------------------------------------------------------
+
+  @Override public Object aroundReadFrom(ReaderInterceptorContext context)
+      throws IOException, WebApplicationException
+  {
+    long start = System.nanoTime();
+    boolean failed = true;
+
+    try
+    {
+      Object entity = context.proceed();
+
+      failed = false;
+
+      return entity;
+    }
+
+    finally
+    {
+      metrics.record(
+          ServiceMetrics.Metric.ENTITY_READ, getTypeLabel(context.getType()),
+          System.nanoTime() - start, failed
+      );
+    }
+  }
+
+
+
+  // Implements WriterInterceptor -----------------------------------------------------------------
+
+  @Override public void aroundWriteTo(WriterInterceptorContext context)
+      throws IOException, WebApplicationException
+  {
+    long start = System.nanoTime();
+    boolean failed = true;
+
+    try
+    {
+      context.proceed();
+
+      failed = false;
+    }
+
+    finally
+    {
+      metrics.record(
+          ServiceMetrics.Metric.ENTITY_WRITE, getTypeLabel(context.getType()),
+          System.nanoTime() - start, failed
+      );
+    }
+  }
+
+
+
+  // Private Instance Methods ---------------------------------------------------------------------
+
+  private String getTypeLabel(Class<?> type)
+  {
+    // anonymous classes, e.g. streaming outputs, have no simple name...
+
+    return type.getSimpleName().isEmpty() ? type.getName() : type.getSimpleName();
+  }
+
+
+
+  // Nested Classes -------------------------------------------------------------------------------
+
+  /**
+   * Times a single resource method.
+   */
+  private class ResourceTimer implements ContainerRequestFilter, ContainerResponseFilter
+  {
+    private String label;
+
+    private ResourceTimer(String label)
+    {
+      this.label = label;
+    }
+
+    @Override public void filter(ContainerRequestContext request)
+    {
+      request.setProperty(START_TIME_PROPERTY, System.nanoTime());
+
+      // In a servlet container the request properties are the servlet request attributes,
+      // the resources therefore look up the timed entity manager...
+
+      Object em = request.getProperty(AccountManager.ENTITY_MANAGER_LOOKUP);
+
+      if (em instanceof EntityManager)
+      {
+        request.setProperty(
+            AccountManager.ENTITY_MANAGER_LOOKUP, TimedEntityManager.wrap((EntityManager)em, metrics)
+        );
+      }
+    }
+
+    @Override public void filter(ContainerRequestContext request, ContainerResponseContext response)
+    {
+      Object start = request.getProperty(START_TIME_PROPERTY);
+
+      if (start instanceof Long)
+      {
+        metrics.record(
+            ServiceMetrics.Metric.HTTP_REQUEST, label,
+            System.nanoTime() - (Long)start, response.getStatus() >= 500
+        );
+      }
+    }
+  }
+}
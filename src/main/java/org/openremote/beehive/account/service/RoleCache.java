@@ -0,0 +1,262 @@
+/*
+ * OpenRemote, the Home of the Digital Home.
+ * Copyright 2008-2015, OpenRemote Inc.
+ *
+ * See the contributors.txt file in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.openremote.beehive.account.service;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.NoResultException;
+import javax.persistence.PersistenceException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import org.openremote.model.persistence.jpa.beehive.MinimalBeehiveRole;
+
+
+/**
+ * Application wide cache of the legacy Beehive role identifiers, keyed by
+ * {@link AccountManager.Role}. <p>
+ *
+ * Role rows are effectively static data, so once a role has been looked up its database
+ * identifier is kept for the configured time-to-live and the registration code path does not
+ * need to query the role table again. Since the persistence context is owned by the
+ * transaction management filter rather than this application, the roles cannot be loaded when
+ * the application is created. Instead all roles are loaded in the background on the first
+ * request the service receives, see {@link #warmUp(EntityManagerFactory)}, and a lookup that
+ * comes before the warm-up has finished loads its role with the entity manager of the request.
+ * A role that does not exist in the database is not cached, so a role that is added later is
+ * picked up by the next registration. <p>
+ *
+ * This class is thread-safe.
+ *
+ * @author Juha Lindfors
+ */
+public class RoleCache
+{
+
+  // Class Members --------------------------------------------------------------------------------
+
+  private static final Logger log = LoggerFactory.getLogger(
+      AccountManager.Log.CONFIGURATION.getCanonicalLogHierarchyName()
+  );
+
+
+
+  // Instance Fields ------------------------------------------------------------------------------
+
+  private ConcurrentMap<AccountManager.Role, CachedRole> roles =
+      new ConcurrentHashMap<AccountManager.Role, CachedRole>();
+
+  private long timeToLive;
+
+  private CacheStatistics statistics = new CacheStatistics("roles");
+
+  private AtomicBoolean warmUpStarted = new AtomicBoolean(false);
+
+
+
+  // Constructors ---------------------------------------------------------------------------------
+
+  /**
+   * Creates a new role cache.
+   *
+   * @param timeToLive
+   *          time, in milliseconds, a role lookup remains valid before it is reloaded from
+   *          the database; zero or negative value disables caching
+   */
+  public RoleCache(long timeToLive)
+  {
+    this.timeToLive = timeToLive;
+  }
+
+
+
+  // Public Instance Methods ----------------------------------------------------------------------
+
+  /**
+   * Returns the database identifier of the given role, loading it from the database if it is
+   * not cached or its cache entry has expired.
+   *
+   * @param role  role to look up
+   * @param em    entity manager to use if the role needs to be loaded
+   *
+   * @return  database identifier of the role, or <tt>null</tt> if the role does not exist
+   *
+   * @throws PersistenceException
+   *            if loading the role from the database fails
+   */
+  public Long getRoleId(AccountManager.Role role, EntityManager em) throws PersistenceException
+  {
+    CachedRole cached = roles.get(role);
+
+    if (cached != null && !cached.isExpired())
+    {
+      statistics.hit();
+
+      return cached.id;
+    }
+
+    statistics.miss();
+
+    if (cached != null)
+    {
+      statistics.evicted(1);
+    }
+
+    Long id = load(role, em);
+
+    if (id != null && timeToLive > 0)
+    {
+      roles.put(role, new CachedRole(id));
+    }
+
+    else
+    {
+      roles.remove(role);
+    }
+
+    return id;
+  }
+
+  /**
+   * Loads all {@link AccountManager.Role roles} into the cache in a background thread, with
+   * an entity manager of its own. Only the first call starts loading, subsequent calls return
+   * immediately unless the previous warm-up failed. Does nothing if caching is disabled.
+   *
+   * @param emf   entity manager factory of the service's persistence context
+   */
+  public void warmUp(final EntityManagerFactory emf)
+  {
+    if (timeToLive <= 0 || !warmUpStarted.compareAndSet(false, true))
+    {
+      return;
+    }
+
+    Thread warmUp = new Thread(new Runnable()
+    {
+      @Override public void run()
+      {
+        try
+        {
+          populate(emf);
+        }
+
+        catch (RuntimeException exception)
+        {
+          log.error("Loading roles failed: " + exception.getMessage(), exception);
+
+          // allow a later request to retry...
+
+          warmUpStarted.set(false);
+        }
+      }
+    }, "Account Manager Role Cache");
+
+    warmUp.setDaemon(true);
+    warmUp.start();
+  }
+
+  /**
+   * Returns the hit and miss counters of this cache.
+   *
+   * @return  cache statistics
+   */
+  public CacheStatistics getStatistics()
+  {
+    return statistics;
+  }
+
+
+
+  // Private Instance Methods ---------------------------------------------------------------------
+
+  private void populate(EntityManagerFactory emf)
+  {
+    EntityManager em = emf.createEntityManager();
+
+    try
+    {
+      for (AccountManager.Role role : AccountManager.Role.values())
+      {
+        Long id = load(role, em);
+
+        if (id != null)
+        {
+          roles.put(role, new CachedRole(id));
+        }
+      }
+
+      log.info("Role cache loaded with {} roles.", roles.size());
+    }
+
+    finally
+    {
+      em.close();
+    }
+  }
+
+  private Long load(AccountManager.Role role, EntityManager em)
+  {
+    try
+    {
+      MinimalBeehiveRole dbRole = em.createNamedQuery("findRoleByName", MinimalBeehiveRole.class)
+          .setParameter("roleName", role.toString())
+          .getSingleResult();
+
+      log.debug("Loaded role ''{}'' with id {}.", role, dbRole.getId());
+
+      return dbRole.getId();
+    }
+
+    catch (NoResultException exception)
+    {
+      log.warn("Role ''{}'' was not found in the database.", role);
+
+      return null;
+    }
+  }
+
+
+
+  // Nested Classes -------------------------------------------------------------------------------
+
+  private class CachedRole
+  {
+    private Long id;
+
+    private long expires;
+
+    private CachedRole(Long id)
+    {
+      this.id = id;
+      this.expires = System.currentTimeMillis() + timeToLive;
+    }
+
+    private boolean isExpired()
+    {
+      return System.currentTimeMillis() >= expires;
+    }
+  }
+}
@@ -0,0 +1,1022 @@
+/*
+ * OpenRemote, the Home of the Digital Home.
+ * Copyright 2008-2015, OpenRemote Inc.
+ *
+ * See the contributors.txt file in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.openremote.beehive.account.service;
+
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+import javax.servlet.ServletContext;
+import javax.ws.rs.core.MediaType;
+
+import org.openremote.beehive.account.model.CustomerFulfillment;
+import org.openremote.beehive.account.model.RegistrationBatch;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+
+/**
+ * Application scoped configuration of the account manager service. <p>
+ *
+ * The configuration is resolved once from the web application's deployment descriptor when
+ * the JAX-RS application is initialized, and is injected into the REST resources from there.
+ * This includes the database schema in use, the corresponding JPA entity names and the JPQL
+ * query strings built from them, so none of these need to be resolved per request. <p>
+ *
+ * An invalid configuration value causes a {@link ServiceConfigurationException} during
+ * initialization, which prevents the service from being deployed.
+ *
+ * @see AccountManager
+ *
+ * @author Juha Lindfors
+ */
+public class ServiceConfiguration
+{
+
+  // Constants ------------------------------------------------------------------------------------
+
+  /**
+   * Optional deployment descriptor context parameter for the database schema used to store
+   * account data. See {@link CreateAccount.Schema} for valid values: {@value}
+   */
+  public static final String WEBAPP_PARAM_SERVICE_DB_SCHEMA = "ServiceSchema";
+
+  /**
+   * Optional deployment descriptor context parameter for the number of batch entries processed
+   * as a single chunk. See {@link #DEFAULT_BATCH_CHUNK_SIZE}: {@value}
+   */
+  public static final String WEBAPP_PARAM_BATCH_CHUNK_SIZE = "BatchChunkSize";
+
+  /**
+   * Default number of batch entries that are checked for duplicates with a single query and
+   * written to the database before the persistence context is flushed and cleared: {@value} <p>
+   *
+   * This should match the 'hibernate.jdbc.batch_size' configured for the persistence context
+   * in the deployment descriptor.
+   */
+  public static final int DEFAULT_BATCH_CHUNK_SIZE = 50;
+
+  /**
+   * Optional deployment descriptor context parameter for the time, in seconds, a role lookup
+   * is cached before it is reloaded from the database. See {@link #DEFAULT_ROLE_CACHE_TTL}:
+   * {@value}
+   */
+  public static final String WEBAPP_PARAM_ROLE_CACHE_TTL = "RoleCacheTimeToLive";
+
+  /**
+   * Default time, in seconds, a role lookup is cached: {@value}
+   */
+  public static final int DEFAULT_ROLE_CACHE_TTL = 600;
+
+  /**
+   * Optional deployment descriptor context parameter to enable or disable the in-memory
+   * filter of known usernames. See {@link UsernameIndex}: {@value}
+   */
+  public static final String WEBAPP_PARAM_USERNAME_FILTER = "UsernameFilter";
+
+  /**
+   * By default the in-memory username filter is disabled, since it is only correct when this
+   * service instance creates all accounts in the database: {@value}
+   */
+  public static final boolean DEFAULT_USERNAME_FILTER = false;
+
+  /**
+   * Optional deployment descriptor context parameter to enable the insert-first registration
+   * mode. When enabled, the user registration resources skip the username existence query
+   * and rely on the unique username constraint of the database instead: {@value}
+   */
+  public static final String WEBAPP_PARAM_OPTIMISTIC_REGISTRATION = "OptimisticRegistration";
+
+  /**
+   * By default usernames are checked before a new user is inserted: {@value}
+   */
+  public static final boolean DEFAULT_OPTIMISTIC_REGISTRATION = false;
+
+  /**
+   * Optional deployment descriptor context parameter to deserialize single user registrations
+   * with the single-pass
+   * {@link org.openremote.beehive.account.model.rest.StreamingUserRegistrationReader} instead
+   * of the default {@link org.openremote.beehive.account.model.rest.UserRegistrationReader}:
+   * {@value}
+   */
+  public static final String WEBAPP_PARAM_STREAMING_REGISTRATION_READER =
+      "StreamingRegistrationReader";
+
+  /**
+   * By default user registrations are deserialized with the default registration reader:
+   * {@value}
+   */
+  public static final boolean DEFAULT_STREAMING_REGISTRATION_READER = false;
+
+  /**
+   * Optional deployment descriptor context parameter to include the stored credential hashes
+   * of users in the account export (GET export/users), so that the exported accounts can be
+   * imported with their existing passwords: {@value}
+   */
+  public static final String WEBAPP_PARAM_EXPORT_CREDENTIALS = "ExportCredentials";
+
+  /**
+   * By default the account export does not include stored credential hashes: {@value}
+   */
+  public static final boolean DEFAULT_EXPORT_CREDENTIALS = false;
+
+  /**
+   * Optional deployment descriptor context parameter to let the account import
+   * (POST users/import) store credentials that are marked as already encoded, such as the
+   * credential hashes of an account export, unchanged. Credentials sent to any other
+   * registration resource are always encoded by the service: {@value}
+   */
+  public static final String WEBAPP_PARAM_IMPORT_ENCODED_CREDENTIALS = "ImportEncodedCredentials";
+
+  /**
+   * By default already encoded credentials are not accepted by the account import: {@value}
+   */
+  public static final boolean DEFAULT_IMPORT_ENCODED_CREDENTIALS = false;
+
+  /**
+   * Optional deployment descriptor context parameter for the maximum number of users whose
+   * account listings are cached in memory. Zero disables the cache. See
+   * {@link #DEFAULT_ACCOUNT_CACHE_SIZE}: {@value}
+   */
+  public static final String WEBAPP_PARAM_ACCOUNT_CACHE_SIZE = "AccountCacheSize";
+
+  /**
+   * Default maximum number of cached account listings: {@value}
+   */
+  public static final int DEFAULT_ACCOUNT_CACHE_SIZE = 10000;
+
+  /**
+   * Optional deployment descriptor context parameter for the time, in seconds, an account
+   * listing is cached before it is reloaded from the database. See
+   * {@link #DEFAULT_ACCOUNT_CACHE_TTL}: {@value}
+   */
+  public static final String WEBAPP_PARAM_ACCOUNT_CACHE_TTL = "AccountCacheTimeToLive";
+
+  /**
+   * Default time, in seconds, an account listing is cached: {@value}
+   */
+  public static final int DEFAULT_ACCOUNT_CACHE_TTL = 300;
+
+  /**
+   * Optional deployment descriptor context parameter for the maximum size, in bytes, of a
+   * request entity of any media type that has no media type specific limit. See
+   * {@link #DEFAULT_MAX_REQUEST_SIZE}: {@value} <p>
+   *
+   * A limit for a specific media type is configured with a parameter name that appends the
+   * media type to this name with a colon, for example 'MaxRequestSize:application/json'.
+   */
+  public static final String WEBAPP_PARAM_MAX_REQUEST_SIZE = "MaxRequestSize";
+
+  /**
+   * Default maximum size of a request entity, in bytes: {@value}
+   */
+  public static final int DEFAULT_MAX_REQUEST_SIZE = 64 * 1024;
+
+  /**
+   * Default maximum size of a streamed bulk request entity (registration batches, imports and
+   * bulk deletes), in bytes: {@value}
+   */
+  public static final int DEFAULT_MAX_BULK_REQUEST_SIZE = 64 * 1024 * 1024;
+
+  /**
+   * Default maximum size of a customer fulfillment request entity, in bytes, sized for
+   * fulfillments with thousands of controllers: {@value}
+   */
+  public static final int DEFAULT_MAX_FULFILLMENT_REQUEST_SIZE = 4 * 1024 * 1024;
+
+  /**
+   * Optional deployment descriptor context parameter for the maximum time, in seconds, the
+   * service spends waiting for request entity data. Zero disables the limit. See
+   * {@link #DEFAULT_REQUEST_READ_TIMEOUT}: {@value}
+   */
+  public static final String WEBAPP_PARAM_REQUEST_READ_TIMEOUT = "RequestReadTimeout";
+
+  /**
+   * Default maximum time, in seconds, spent waiting for request entity data: {@value}
+   */
+  public static final int DEFAULT_REQUEST_READ_TIMEOUT = 30;
+
+  /**
+   * Optional deployment descriptor context parameter for the maximum number of controllers
+   * accepted in a single customer fulfillment. See
+   * {@link CustomerFulfillment#DEFAULT_MAX_CONTROLLERS}: {@value}
+   */
+  public static final String WEBAPP_PARAM_MAX_FULFILLMENT_CONTROLLERS = "MaxFulfillmentControllers";
+
+  /**
+   * Optional deployment descriptor context parameter for the maximum number of MAC addresses
+   * accepted for a single controller in a customer fulfillment. See
+   * {@link CustomerFulfillment#DEFAULT_MAX_MAC_ADDRESSES}: {@value}
+   */
+  public static final String WEBAPP_PARAM_MAX_CONTROLLER_MAC_ADDRESSES = "MaxControllerMacAddresses";
+
+  /**
+   * Optional deployment descriptor context parameter for the number of worker threads that
+   * compute credential hashes. Zero sizes the pool to the number of available processors.
+   * See {@link #DEFAULT_CREDENTIAL_HASHING_THREADS}: {@value}
+   */
+  public static final String WEBAPP_PARAM_CREDENTIAL_HASHING_THREADS = "CredentialHashingThreads";
+
+  /**
+   * By default the credential hashing pool has a thread per available processor: {@value}
+   */
+  public static final int DEFAULT_CREDENTIAL_HASHING_THREADS = 0;
+
+  /**
+   * Optional deployment descriptor context parameter for the maximum number of credential
+   * hashes waiting for a worker thread. Registrations beyond the limit are rejected with
+   * HTTP 503 - Service Unavailable. See {@link #DEFAULT_CREDENTIAL_HASHING_QUEUE_DEPTH}: {@value}
+   */
+  public static final String WEBAPP_PARAM_CREDENTIAL_HASHING_QUEUE_DEPTH = "CredentialHashingQueueDepth";
+
+  /**
+   * Default maximum number of queued credential hashes: {@value}
+   */
+  public static final int DEFAULT_CREDENTIAL_HASHING_QUEUE_DEPTH = 50;
+
+  /**
+   * Optional deployment descriptor context parameter for the maximum time, in seconds, a
+   * request waits for its credential hash to be computed. See
+   * {@link #DEFAULT_CREDENTIAL_HASHING_TIMEOUT}: {@value}
+   */
+  public static final String WEBAPP_PARAM_CREDENTIAL_HASHING_TIMEOUT = "CredentialHashingTimeout";
+
+  /**
+   * Default maximum time, in seconds, spent waiting for a credential hash: {@value}
+   */
+  public static final int DEFAULT_CREDENTIAL_HASHING_TIMEOUT = 10;
+
+  /**
+   * Optional deployment descriptor context parameter for the time, in milliseconds, a single
+   * credential hash should take on this host. The SCRYPT cost parameter is calibrated to it
+   * at startup. Zero skips the calibration and uses the minimum cost. See
+   * {@link #DEFAULT_CREDENTIAL_HASHING_TARGET_LATENCY}: {@value}
+   */
+  public static final String WEBAPP_PARAM_CREDENTIAL_HASHING_TARGET_LATENCY = "CredentialHashingTargetLatency";
+
+  /**
+   * Default target time, in milliseconds, of a single credential hash: {@value}
+   */
+  public static final int DEFAULT_CREDENTIAL_HASHING_TARGET_LATENCY = 100;
+
+  /**
+   * Optional deployment descriptor context parameter for the memory, in megabytes, a single
+   * credential hash may use. The calibrated SCRYPT cost parameter is capped so that one hash
+   * fits the budget; the hashing pool as a whole uses up to this amount per hashing thread.
+   * Must be at least the memory use of {@link CredentialHashing#MIN_COST}. See
+   * {@link #DEFAULT_CREDENTIAL_HASHING_MEMORY}: {@value}
+   */
+  public static final String WEBAPP_PARAM_CREDENTIAL_HASHING_MEMORY = "CredentialHashingMemory";
+
+  /**
+   * Default memory budget, in megabytes, of a single credential hash: {@value}
+   */
+  public static final int DEFAULT_CREDENTIAL_HASHING_MEMORY = 32;
+
+
+
+  // Class Members --------------------------------------------------------------------------------
+
+  private static final Logger log = LoggerFactory.getLogger(
+      AccountManager.Log.CONFIGURATION.getCanonicalLogHierarchyName()
+  );
+
+
+
+  // Instance Fields ------------------------------------------------------------------------------
+
+  private CreateAccount.Schema schema;
+
+  private int batchChunkSize;
+
+  private long roleCacheTimeToLive;
+
+  private boolean usernameFilterEnabled;
+
+  private boolean optimisticRegistration;
+
+  private boolean streamingRegistrationReader;
+
+  private boolean exportCredentials;
+
+  private boolean importEncodedCredentials;
+
+  private int accountCacheSize;
+
+  private long accountCacheTimeToLive;
+
+  private int maxRequestSize;
+
+  private Map<String, Integer> maxRequestSizes = new HashMap<String, Integer>();
+
+  private long requestReadTimeout;
+
+  private int maxFulfillmentControllers;
+
+  private int maxControllerMacAddresses;
+
+  private int credentialHashingThreads;
+
+  private int credentialHashingQueueDepth;
+
+  private long credentialHashingTimeout;
+
+  private long credentialHashingTargetLatency;
+
+  private long credentialHashingMemory;
+
+  private String userEntityName;
+
+  private String controllerEntityName;
+
+  private String findUserQuery;
+
+  private String findUsernamesQuery;
+
+  private String userPageQuery;
+
+  private String accountsForUsersQuery;
+
+  private String credentialsForUsersQuery;
+
+  private String usernameExistsQuery;
+
+  private String usernamePageQuery;
+
+  private String userCountQuery;
+
+  private String controllersForAccountsQuery;
+
+  private String findMacAddressesQuery;
+
+
+
+  // Constructors ---------------------------------------------------------------------------------
+
+  /**
+   * Resolves the service configuration from the given web application context parameters.
+   *
+   * @param webapp  servlet context of the account manager web application
+   *
+   * @throws ServiceConfigurationException
+   *            if the deployment descriptor contains invalid configuration values
+   */
+  public ServiceConfiguration(ServletContext webapp) throws ServiceConfigurationException
+  {
+    this(getInitParameters(webapp));
+  }
+
+  /**
+   * Resolves the service configuration from given configuration parameter values. Parameters
+   * that are not present in the map are set to their default values.
+   *
+   * @param parameters
+   *            configuration parameter names (such as {@link #WEBAPP_PARAM_SERVICE_DB_SCHEMA})
+   *            and their values
+   *
+   * @throws ServiceConfigurationException
+   *            if the configuration values are not valid
+   */
+  public ServiceConfiguration(Map<String, String> parameters) throws ServiceConfigurationException
+  {
+    this.schema = resolveSchema(parameters.get(WEBAPP_PARAM_SERVICE_DB_SCHEMA));
+
+    this.batchChunkSize = resolveInteger(
+        parameters, WEBAPP_PARAM_BATCH_CHUNK_SIZE, DEFAULT_BATCH_CHUNK_SIZE, 1
+    );
+
+    this.roleCacheTimeToLive = 1000L * resolveInteger(
+        parameters, WEBAPP_PARAM_ROLE_CACHE_TTL, DEFAULT_ROLE_CACHE_TTL, 0
+    );
+
+    this.usernameFilterEnabled = resolveBoolean(
+        parameters, WEBAPP_PARAM_USERNAME_FILTER, DEFAULT_USERNAME_FILTER
+    );
+
+    this.optimisticRegistration = resolveBoolean(
+        parameters, WEBAPP_PARAM_OPTIMISTIC_REGISTRATION, DEFAULT_OPTIMISTIC_REGISTRATION
+    );
+
+    this.streamingRegistrationReader = resolveBoolean(
+        parameters, WEBAPP_PARAM_STREAMING_REGISTRATION_READER, DEFAULT_STREAMING_REGISTRATION_READER
+    );
+
+    this.exportCredentials = resolveBoolean(
+        parameters, WEBAPP_PARAM_EXPORT_CREDENTIALS, DEFAULT_EXPORT_CREDENTIALS
+    );
+
+    this.importEncodedCredentials = resolveBoolean(
+        parameters, WEBAPP_PARAM_IMPORT_ENCODED_CREDENTIALS, DEFAULT_IMPORT_ENCODED_CREDENTIALS
+    );
+
+    this.accountCacheSize = resolveInteger(
+        parameters, WEBAPP_PARAM_ACCOUNT_CACHE_SIZE, DEFAULT_ACCOUNT_CACHE_SIZE, 0
+    );
+
+    this.accountCacheTimeToLive = 1000L * resolveInteger(
+        parameters, WEBAPP_PARAM_ACCOUNT_CACHE_TTL, DEFAULT_ACCOUNT_CACHE_TTL, 0
+    );
+
+    this.maxRequestSize = resolveInteger(
+        parameters, WEBAPP_PARAM_MAX_REQUEST_SIZE, DEFAULT_MAX_REQUEST_SIZE, 1
+    );
+
+    this.maxRequestSizes.put(RegistrationBatch.JSON_HTTP_CONTENT_TYPE, DEFAULT_MAX_BULK_REQUEST_SIZE);
+    this.maxRequestSizes.put(RegistrationBatch.NDJSON_HTTP_CONTENT_TYPE, DEFAULT_MAX_BULK_REQUEST_SIZE);
+    this.maxRequestSizes.put(MediaType.TEXT_PLAIN, DEFAULT_MAX_BULK_REQUEST_SIZE);
+    this.maxRequestSizes.put(CustomerFulfillment.JSON_HTTP_CONTENT_TYPE, DEFAULT_MAX_FULFILLMENT_REQUEST_SIZE);
+
+    for (String name : parameters.keySet())
+    {
+      if (name.startsWith(WEBAPP_PARAM_MAX_REQUEST_SIZE + ":"))
+      {
+        String mediaType = name.substring(WEBAPP_PARAM_MAX_REQUEST_SIZE.length() + 1).trim();
+
+        maxRequestSizes.put(
+            mediaType.toLowerCase(Locale.ENGLISH), resolveInteger(parameters, name, 0, 1)
+        );
+      }
+    }
+
+    this.requestReadTimeout = 1000L * resolveInteger(
+        parameters, WEBAPP_PARAM_REQUEST_READ_TIMEOUT, DEFAULT_REQUEST_READ_TIMEOUT, 0
+    );
+
+    this.maxFulfillmentControllers = resolveInteger(
+        parameters, WEBAPP_PARAM_MAX_FULFILLMENT_CONTROLLERS, CustomerFulfillment.DEFAULT_MAX_CONTROLLERS, 1
+    );
+
+    this.maxControllerMacAddresses = resolveInteger(
+        parameters, WEBAPP_PARAM_MAX_CONTROLLER_MAC_ADDRESSES, CustomerFulfillment.DEFAULT_MAX_MAC_ADDRESSES, 1
+    );
+
+    this.credentialHashingThreads = resolveInteger(
+        parameters, WEBAPP_PARAM_CREDENTIAL_HASHING_THREADS, DEFAULT_CREDENTIAL_HASHING_THREADS, 0
+    );
+
+    if (credentialHashingThreads == 0)
+    {
+      credentialHashingThreads = Runtime.getRuntime().availableProcessors();
+    }
+
+    this.credentialHashingQueueDepth = resolveInteger(
+        parameters, WEBAPP_PARAM_CREDENTIAL_HASHING_QUEUE_DEPTH, DEFAULT_CREDENTIAL_HASHING_QUEUE_DEPTH, 0
+    );
+
+    this.credentialHashingTimeout = 1000L * resolveInteger(
+        parameters, WEBAPP_PARAM_CREDENTIAL_HASHING_TIMEOUT, DEFAULT_CREDENTIAL_HASHING_TIMEOUT, 1
+    );
+
+    this.credentialHashingTargetLatency = resolveInteger(
+        parameters, WEBAPP_PARAM_CREDENTIAL_HASHING_TARGET_LATENCY, DEFAULT_CREDENTIAL_HASHING_TARGET_LATENCY, 0
+    );
+
+    this.credentialHashingMemory = 1024L * 1024L * resolveInteger(
+        parameters, WEBAPP_PARAM_CREDENTIAL_HASHING_MEMORY, DEFAULT_CREDENTIAL_HASHING_MEMORY,
+        (int)(CredentialHashing.getMemoryUse(CredentialHashing.MIN_COST) / (1024L * 1024L))
+    );
+
+    if (schema == CreateAccount.Schema.LEGACY_BEEHIVE)
+    {
+      userEntityName = "BeehiveUser";
+      controllerEntityName = "BeehiveController";
+    }
+
+    else
+    {
+      userEntityName = "User";
+      controllerEntityName = "Controller";
+    }
+
+    findUserQuery =
+        "SELECT u FROM " + userEntityName + " u WHERE u.username = :name";
+
+    findUsernamesQuery =
+        "SELECT u.username FROM " + userEntityName + " u WHERE u.username IN :names";
+
+    // The legacy Beehive user has a single account reference which is fetched with the page,
+    // the account manager schema links users to accounts through a join table that is read
+    // for a whole page at a time with the accounts query...
+
+    userPageQuery = (schema == CreateAccount.Schema.LEGACY_BEEHIVE)
+        ? "SELECT u FROM " + userEntityName + " u LEFT JOIN FETCH u.account "
+          + "WHERE u.id > :lastId ORDER BY u.id"
+        : "SELECT u FROM " + userEntityName + " u WHERE u.id > :lastId ORDER BY u.id";
+
+    accountsForUsersQuery = (schema == CreateAccount.Schema.LEGACY_BEEHIVE)
+        ? "SELECT u.id, a FROM " + userEntityName + " u JOIN u.account a WHERE u IN :users"
+        : "SELECT u.id, a FROM " + userEntityName + " u JOIN u.accounts a WHERE u IN :users";
+
+    credentialsForUsersQuery = (schema == CreateAccount.Schema.LEGACY_BEEHIVE)
+        ? "SELECT u.id, u.password FROM " + userEntityName + " u WHERE u IN :users"
+        : "SELECT u.id, u.authentication.credentials, u.authentication.encoding FROM "
+          + userEntityName + " u WHERE u IN :users";
+
+    usernameExistsQuery =
+        "SELECT u.id FROM " + userEntityName + " u WHERE u.username = :name";
+
+    usernamePageQuery =
+        "SELECT u.id, u.username FROM " + userEntityName + " u WHERE u.id > :lastId ORDER BY u.id";
+
+    userCountQuery =
+        "SELECT COUNT(u) FROM " + userEntityName + " u";
+
+    // MAC addresses in the account manager schema are fetched with the controllers, a
+    // controller is therefore returned once for each of its MAC addresses...
+
+    controllersForAccountsQuery = (schema == CreateAccount.Schema.LEGACY_BEEHIVE)
+        ? "SELECT a.id, c FROM " + controllerEntityName + " c JOIN c.account a WHERE a IN :accounts"
+        : "SELECT a.id, c FROM " + controllerEntityName + " c JOIN c.account a "
+          + "LEFT JOIN FETCH c.macAddresses WHERE a IN :accounts";
+
+    // The legacy Beehive schema stores the MAC addresses of a controller in a single
+    // column, the account manager schema in a separate collection table...
+
+    findMacAddressesQuery = (schema == CreateAccount.Schema.LEGACY_BEEHIVE)
+        ? "SELECT c.macAddresses FROM " + controllerEntityName + " c WHERE c.macAddresses IN :macs"
+        : "SELECT m FROM " + controllerEntityName + " c JOIN c.macAddresses m WHERE m IN :macs";
+
+    log.info(
+        "Account Manager configured with database schema ''{}'', batch chunk size {}.",
+        schema, batchChunkSize
+    );
+  }
+
+
+
+  // Public Instance Methods ----------------------------------------------------------------------
+
+  /**
+   * Returns the database schema used to store account data.
+   *
+   * @return  database schema
+   */
+  public CreateAccount.Schema getSchema()
+  {
+    return schema;
+  }
+
+  /**
+   * Returns the number of entries processed as a single chunk in batch operations.
+   *
+   * @return  batch chunk size
+   */
+  public int getBatchChunkSize()
+  {
+    return batchChunkSize;
+  }
+
+  /**
+   * Returns the time a role lookup is cached before it is reloaded from the database.
+   *
+   * @return  role cache time-to-live in milliseconds
+   */
+  public long getRoleCacheTimeToLive()
+  {
+    return roleCacheTimeToLive;
+  }
+
+  /**
+   * Indicates whether the in-memory filter of known usernames should be used to avoid
+   * database queries when checking for existing usernames. The filter should be disabled if
+   * accounts are created or removed by other means than this service instance.
+   *
+   * @return  true if username filter is enabled, false otherwise
+   */
+  public boolean isUsernameFilterEnabled()
+  {
+    return usernameFilterEnabled;
+  }
+
+  /**
+   * Indicates whether single user registrations are inserted without checking for an
+   * existing username first. A duplicate username is then detected by the unique username
+   * constraint when the new user is flushed to the database, which saves a query per
+   * registration and reports concurrent registrations of the same username consistently.
+   *
+   * @return  true if insert-first registration is enabled, false otherwise
+   */
+  public boolean isOptimisticRegistration()
+  {
+    return optimisticRegistration;
+  }
+
+  /**
+   * Indicates whether single user registrations are deserialized with the single-pass
+   * streaming registration reader rather than the default registration reader.
+   *
+   * @return  true if the streaming registration reader is used, false otherwise
+   */
+  public boolean isStreamingRegistrationReader()
+  {
+    return streamingRegistrationReader;
+  }
+
+  /**
+   * Indicates whether the account export includes the stored credential hashes of users.
+   *
+   * @return  true if credential hashes are exported, false otherwise
+   */
+  public boolean isExportCredentials()
+  {
+    return exportCredentials;
+  }
+
+  /**
+   * Indicates whether the account import stores credentials that are marked as already
+   * encoded unchanged.
+   *
+   * @return  true if the import accepts encoded credentials, false otherwise
+   */
+  public boolean isImportEncodedCredentials()
+  {
+    return importEncodedCredentials;
+  }
+
+  /**
+   * Returns the maximum number of account listings held in the account cache.
+   *
+   * @return  account cache size, zero if account listings should not be cached
+   */
+  public int getAccountCacheSize()
+  {
+    return accountCacheSize;
+  }
+
+  /**
+   * Returns the time an account listing is cached before it is reloaded from the database.
+   *
+   * @return  account cache time-to-live in milliseconds
+   */
+  public long getAccountCacheTimeToLive()
+  {
+    return accountCacheTimeToLive;
+  }
+
+  /**
+   * Returns the maximum size of a request entity of the given media type. Media type
+   * parameters, such as charset, are ignored.
+   *
+   * @param mediaType   media type of the request entity, or <tt>null</tt> if not known
+   *
+   * @return  maximum request entity size in bytes
+   */
+  public int getMaxRequestSize(MediaType mediaType)
+  {
+    if (mediaType == null)
+    {
+      return maxRequestSize;
+    }
+
+    Integer limit = maxRequestSizes.get(
+        (mediaType.getType() + "/" + mediaType.getSubtype()).toLowerCase(Locale.ENGLISH)
+    );
+
+    return (limit == null) ? maxRequestSize : limit;
+  }
+
+  /**
+   * Returns the maximum total time the service spends waiting for the data of a single
+   * request entity.
+   *
+   * @return  request read timeout in milliseconds, zero if reads are not limited
+   */
+  public long getRequestReadTimeout()
+  {
+    return requestReadTimeout;
+  }
+
+  /**
+   * Returns the maximum number of controllers accepted in a single customer fulfillment.
+   *
+   * @return  maximum controller count
+   */
+  public int getMaxFulfillmentControllers()
+  {
+    return maxFulfillmentControllers;
+  }
+
+  /**
+   * Returns the maximum number of MAC addresses accepted for a single controller in a
+   * customer fulfillment.
+   *
+   * @return  maximum MAC address count
+   */
+  public int getMaxControllerMacAddresses()
+  {
+    return maxControllerMacAddresses;
+  }
+
+  /**
+   * Returns the number of worker threads that compute credential hashes.
+   *
+   * @return  credential hashing thread count
+   */
+  public int getCredentialHashingThreads()
+  {
+    return credentialHashingThreads;
+  }
+
+  /**
+   * Returns the maximum number of credential hashes waiting for a worker thread.
+   *
+   * @return  credential hashing queue depth, zero if hashes are not queued
+   */
+  public int getCredentialHashingQueueDepth()
+  {
+    return credentialHashingQueueDepth;
+  }
+
+  /**
+   * Returns the maximum time a request waits for its credential hash, including the time
+   * spent queued.
+   *
+   * @return  credential hashing timeout in milliseconds
+   */
+  public long getCredentialHashingTimeout()
+  {
+    return credentialHashingTimeout;
+  }
+
+  /**
+   * Returns the time a single credential hash should take, used to calibrate the SCRYPT
+   * cost parameter at startup.
+   *
+   * @return  target hashing time in milliseconds, zero if the cost should not be calibrated
+   */
+  public long getCredentialHashingTargetLatency()
+  {
+    return credentialHashingTargetLatency;
+  }
+
+  /**
+   * Returns the memory a single credential hash may use, which caps the calibrated SCRYPT
+   * cost parameter.
+   *
+   * @return  memory budget of a credential hash in bytes
+   */
+  public long getCredentialHashingMemory()
+  {
+    return credentialHashingMemory;
+  }
+
+  /**
+   * Returns the JPA entity name of users in the configured schema.
+   *
+   * @return  user entity name
+   */
+  public String getUserEntityName()
+  {
+    return userEntityName;
+  }
+
+  /**
+   * Returns the JPA entity name of controllers in the configured schema.
+   *
+   * @return  controller entity name
+   */
+  public String getControllerEntityName()
+  {
+    return controllerEntityName;
+  }
+
+  /**
+   * Returns a JPQL query that selects a user by its username, with parameter 'name'.
+   *
+   * @return  JPQL query string
+   */
+  public String getFindUserQuery()
+  {
+    return findUserQuery;
+  }
+
+  /**
+   * Returns a JPQL query that selects which of the given usernames already exist, with
+   * collection parameter 'names'.
+   *
+   * @return  JPQL query string
+   */
+  public String getFindUsernamesQuery()
+  {
+    return findUsernamesQuery;
+  }
+
+  /**
+   * Returns a JPQL query that selects users in id order following a given user id, with
+   * parameter 'lastId'.
+   *
+   * @return  JPQL query string
+   */
+  public String getUserPageQuery()
+  {
+    return userPageQuery;
+  }
+
+  /**
+   * Returns a JPQL query that selects (user id, account) pairs for a collection of users, with
+   * collection parameter 'users'.
+   *
+   * @return  JPQL query string
+   */
+  public String getAccountsForUsersQuery()
+  {
+    return accountsForUsersQuery;
+  }
+
+  /**
+   * Returns a JPQL query that selects the stored credentials of a collection of users, with
+   * collection parameter 'users'. The legacy Beehive schema returns (user id, password) pairs,
+   * the account manager schema (user id, credentials, credentials encoding) triples.
+   *
+   * @return  JPQL query string
+   */
+  public String getCredentialsForUsersQuery()
+  {
+    return credentialsForUsersQuery;
+  }
+
+  /**
+   * Returns a JPQL query that selects only the id of a user with a given username, with
+   * parameter 'name'.
+   *
+   * @return  JPQL query string
+   */
+  public String getUsernameExistsQuery()
+  {
+    return usernameExistsQuery;
+  }
+
+  /**
+   * Returns a JPQL query that selects (user id, username) pairs in id order following a given
+   * user id, with parameter 'lastId'.
+   *
+   * @return  JPQL query string
+   */
+  public String getUsernamePageQuery()
+  {
+    return usernamePageQuery;
+  }
+
+  /**
+   * Returns a JPQL query that counts all users.
+   *
+   * @return  JPQL query string
+   */
+  public String getUserCountQuery()
+  {
+    return userCountQuery;
+  }
+
+  /**
+   * Returns a JPQL query that selects (account id, controller) pairs for a collection of
+   * accounts, with collection parameter 'accounts'. In the account manager schema the
+   * controller MAC addresses are fetched with the query and the same controller may be
+   * returned on several rows.
+   *
+   * @return  JPQL query string
+   */
+  public String getControllersForAccountsQuery()
+  {
+    return controllersForAccountsQuery;
+  }
+
+  /**
+   * Returns a JPQL query that selects which of the given controller MAC addresses are already
+   * registered, with collection parameter 'macs'. See
+   * {@link CreateAccount#getMacAddressKeys(CreateAccount.Schema, org.openremote.model.Controller)}
+   * for the format of the values in the configured schema.
+   *
+   * @return  JPQL query string
+   */
+  public String getFindMacAddressesQuery()
+  {
+    return findMacAddressesQuery;
+  }
+
+
+
+  // Private Instance Methods ---------------------------------------------------------------------
+
+  private CreateAccount.Schema resolveSchema(String dbSchemaParameter)
+  {
+    if (dbSchemaParameter == null)
+    {
+      log.info(
+          "No ''{}'' parameter configured, defaulting to {}.",
+          WEBAPP_PARAM_SERVICE_DB_SCHEMA, CreateAccount.Schema.ACCOUNT_MANAGER_2_0
+      );
+
+      return CreateAccount.Schema.ACCOUNT_MANAGER_2_0;
+    }
+
+    try
+    {
+      return CreateAccount.Schema.valueOf(dbSchemaParameter.trim().toUpperCase(Locale.ENGLISH));
+    }
+
+    catch (IllegalArgumentException exception)
+    {
+      throw new ServiceConfigurationException(
+          "Invalid ''{0}'' value: ''{1}''", WEBAPP_PARAM_SERVICE_DB_SCHEMA, dbSchemaParameter
+      );
+    }
+  }
+
+  private int resolveInteger(Map<String, String> parameters, String name,
+                             int defaultValue, int minValue)
+  {
+    String value = parameters.get(name);
+
+    if (value == null)
+    {
+      return defaultValue;
+    }
+
+    int result;
+
+    try
+    {
+      result = Integer.parseInt(value.trim());
+    }
+
+    catch (NumberFormatException exception)
+    {
+      result = minValue - 1;
+    }
+
+    if (result < minValue)
+    {
+      throw new ServiceConfigurationException(
+          "Invalid ''{0}'' value: ''{1}'' (must be an integer of at least {2})",
+          name, value, minValue
+      );
+    }
+
+    return result;
+  }
+
+  private boolean resolveBoolean(Map<String, String> parameters, String name, boolean defaultValue)
+  {
+    String value = parameters.get(name);
+
+    if (value == null)
+    {
+      return defaultValue;
+    }
+
+    value = value.trim();
+
+    if (value.equalsIgnoreCase("true"))
+    {
+      return true;
+    }
+
+    if (value.equalsIgnoreCase("false"))
+    {
+      return false;
+    }
+
+    throw new ServiceConfigurationException(
+        "Invalid ''{0}'' value: ''{1}'' (must be true or false)", name, value
+    );
+  }
+
+
+
+  // Private Class Methods ------------------------------------------------------------------------
+
+  private static Map<String, String> getInitParameters(ServletContext webapp)
+  {
+    Map<String, String> parameters = new HashMap<String, String>();
+    Enumeration<?> names = webapp.getInitParameterNames();
+
+    while (names.hasMoreElements())
+    {
+      String name = (String)names.nextElement();
+
+      parameters.put(name, webapp.getInitParameter(name));
+    }
+
+    return parameters;
+  }
+}
@@ -0,0 +1,53 @@
+/*
+ * OpenRemote, the Home of the Digital Home.
+ * Copyright 2008-2015, OpenRemote Inc.
+ *
+ * See the contributors.txt file in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.openremote.beehive.account.service;
+
+import org.openremote.base.exception.OpenRemoteRuntimeException;
+
+/**
+ * Indicates an invalid account manager service configuration in the web application's
+ * deployment descriptor. Thrown at application startup to prevent the service from being
+ * deployed with a configuration it cannot operate with.
+ *
+ * @author Juha Lindfors
+ */
+public class ServiceConfigurationException extends OpenRemoteRuntimeException
+{
+  public ServiceConfigurationException(String msg)
+  {
+    super(msg);
+  }
+
+  public ServiceConfigurationException(String msg, Object... args)
+  {
+    super(msg, args);
+  }
+
+  public ServiceConfigurationException(String msg, Throwable cause)
+  {
+    super(msg, cause);
+  }
+
+  public ServiceConfigurationException(String msg, Throwable cause, Object... args)
+  {
+    super(msg, cause, args);
+  }
+}
@@ -0,0 +1,446 @@
+/*
+ * OpenRemote, the Home of the Digital Home.
+ * Copyright 2008-2015, OpenRemote Inc.
+ *
+ * See the contributors.txt file in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.openremote.beehive.account.service;
+
+import java.io.IOException;
+import java.io.Writer;
+
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+
+/**
+ * Application wide latency histograms and error counters of the account manager service's
+ * hot paths: REST resource methods, message body readers and writers, and persistence
+ * calls. <p>
+ *
+ * Each {@link Metric metric} is a family of histograms distinguished by a single label, e.g.
+ * the resource method or the persistence operation. Recording a sample only updates atomic
+ * counters, no locks are taken on the request path. The histograms are exposed in the
+ * Prometheus text exposition format by the {@link Metrics} resource, together with the hit,
+ * miss and eviction counters of the {@link #register(CacheStatistics) registered} caches. <p>
+ *
+ * This class is thread-safe.
+ *
+ * @author Juha Lindfors
+ */
+public class ServiceMetrics
+{
+
+  // Constants ------------------------------------------------------------------------------------
+
+  /**
+   * Prometheus text exposition format content type: {@value}
+   */
+  public static final String PROMETHEUS_TEXT_CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+
+  /**
+   * Upper bounds of the latency histogram buckets, in nanoseconds, from one millisecond to
+   * ten seconds.
+   */
+  private static final long[] BUCKET_BOUNDS = new long[]
+  {
+    1000000L, 2500000L, 5000000L, 10000000L, 25000000L, 50000000L,
+    100000000L, 250000000L, 500000000L, 1000000000L, 2500000000L, 5000000000L, 10000000000L
+  };
+
+  private static final double NANOS_PER_SECOND = 1000000000.0;
+
+
+
+  // Enums ----------------------------------------------------------------------------------------
+
+  /**
+   * Histogram families recorded by the service.
+   */
+  public enum Metric
+  {
+    /**
+     * Time spent in a REST resource method including reading the request entity, labeled
+     * by resource class and method name. Responses with a 5xx status count as failed.
+     */
+    HTTP_REQUEST(
+        "accountmanager_http_request_duration_seconds", "resource",
+        "Time from resource matching to response, excluding the response entity."
+    ),
+
+    /**
+     * Time spent in a message body reader, labeled by the deserialized type.
+     */
+    ENTITY_READ(
+        "accountmanager_entity_read_duration_seconds", "type",
+        "Time spent deserializing request entities."
+    ),
+
+    /**
+     * Time spent in a message body writer, labeled by the serialized type.
+     */
+    ENTITY_WRITE(
+        "accountmanager_entity_write_duration_seconds", "type",
+        "Time spent serializing response entities."
+    ),
+
+    /**
+     * Time spent in entity manager and query calls, labeled by the operation.
+     */
+    PERSISTENCE(
+        "accountmanager_persistence_duration_seconds", "operation",
+        "Time spent in JPA entity manager operations and query execution."
+    ),
+
+    /**
+     * Time credential hashes spend waiting for a hashing thread ('queued') and being computed
+     * ('hashing'). Hashes rejected because the queue is full count as failed 'queued' entries.
+     */
+    CREDENTIAL_HASHING(
+        "accountmanager_credential_hashing_duration_seconds", "stage",
+        "Time credential hashes spend queued and computed on the hashing threads."
+    );
+
+
+    private String name;
+
+    private String label;
+
+    private String help;
+
+    private Metric(String name, String label, String help)
+    {
+      this.name = name;
+      this.label = label;
+      this.help = help;
+    }
+
+    /**
+     * Returns the Prometheus metric name of this histogram family.
+     *
+     * @return  metric name
+     */
+    public String getName()
+    {
+      return name;
+    }
+  }
+
+
+
+  // Instance Fields ------------------------------------------------------------------------------
+
+  private Map<Metric, ConcurrentMap<String, Histogram>> histograms =
+      new EnumMap<Metric, ConcurrentMap<String, Histogram>>(Metric.class);
+
+  /**
+   * Operation labels of known JPQL query strings, see {@link #nameQuery(String, String)}.
+   */
+  private ConcurrentMap<String, String> queryLabels = new ConcurrentHashMap<String, String>();
+
+  /**
+   * Registered cache regions, only added to at application startup.
+   */
+  private List<CacheStatistics> caches = new CopyOnWriteArrayList<CacheStatistics>();
+
+
+
+  // Constructors ---------------------------------------------------------------------------------
+
+  /**
+   * Creates an empty set of service metrics.
+   */
+  public ServiceMetrics()
+  {
+    for (Metric metric : Metric.values())
+    {
+      histograms.put(metric, new ConcurrentHashMap<String, Histogram>());
+    }
+  }
+
+  /**
+   * Creates an empty set of service metrics, with operation labels for the JPQL queries of
+   * the given service configuration.
+   *
+   * @param config  account manager service configuration
+   */
+  public ServiceMetrics(ServiceConfiguration config)
+  {
+    this();
+
+    nameQuery(config.getFindUserQuery(), "find_user");
+    nameQuery(config.getFindUsernamesQuery(), "find_usernames");
+    nameQuery(config.getUserPageQuery(), "user_page");
+    nameQuery(config.getAccountsForUsersQuery(), "accounts_for_users");
+    nameQuery(config.getCredentialsForUsersQuery(), "credentials_for_users");
+    nameQuery(config.getUsernameExistsQuery(), "username_exists");
+    nameQuery(config.getUsernamePageQuery(), "username_page");
+    nameQuery(config.getUserCountQuery(), "user_count");
+    nameQuery(config.getControllersForAccountsQuery(), "controllers_for_accounts");
+    nameQuery(config.getFindMacAddressesQuery(), "find_mac_addresses");
+  }
+
+
+
+  // Public Instance Methods ----------------------------------------------------------------------
+
+  /**
+   * Records a single sample.
+   *
+   * @param metric      histogram family
+   * @param label       label value within the family
+   * @param nanos       duration of the sample, in nanoseconds
+   * @param failed      true if the measured call failed
+   */
+  public void record(Metric metric, String label, long nanos, boolean failed)
+  {
+    ConcurrentMap<String, Histogram> family = histograms.get(metric);
+    Histogram histogram = family.get(label);
+
+    if (histogram == null)
+    {
+      Histogram created = new Histogram();
+
+      histogram = family.putIfAbsent(label, created);
+
+      if (histogram == null)
+      {
+        histogram = created;
+      }
+    }
+
+    histogram.record(nanos, failed);
+  }
+
+  /**
+   * Adds the counters of a cache region to the exposed metrics.
+   *
+   * @param statistics  cache counters
+   */
+  public void register(CacheStatistics statistics)
+  {
+    caches.add(statistics);
+  }
+
+  /**
+   * Gives a known JPQL query string an operation label, e.g. 'username_exists', for the
+   * {@link Metric#PERSISTENCE} metric. Queries without a name are labeled by their
+   * statement type and entity.
+   *
+   * @param jpql    JPQL query string
+   * @param label   operation label
+   */
+  public void nameQuery(String jpql, String label)
+  {
+    queryLabels.put(jpql, label);
+  }
+
+  /**
+   * Returns the operation label of a JPQL query string.
+   *
+   * @param jpql    JPQL query string
+   *
+   * @return  label given with {@link #nameQuery(String, String)}, or a label derived from the
+   *          statement type and the first entity name of the query
+   */
+  public String getQueryLabel(String jpql)
+  {
+    String label = queryLabels.get(jpql);
+
+    if (label == null)
+    {
+      label = deriveQueryLabel(jpql);
+
+      queryLabels.putIfAbsent(jpql, label);
+    }
+
+    return label;
+  }
+
+  /**
+   * Returns the number of samples recorded for a label.
+   *
+   * @param metric    histogram family
+   * @param label     label value within the family
+   *
+   * @return  sample count
+   */
+  public long getCount(Metric metric, String label)
+  {
+    Histogram histogram = histograms.get(metric).get(label);
+
+    return (histogram == null) ? 0 : histogram.count.get();
+  }
+
+  /**
+   * Writes all recorded metrics in the Prometheus text exposition format (version 0.0.4).
+   * Each family is written as a histogram of durations in seconds, followed by a counter of
+   * failed calls.
+   *
+   * @param out   character stream to write to
+   *
+   * @throws IOException  if writing fails
+   */
+  public void writePrometheus(Writer out) throws IOException
+  {
+    for (Map.Entry<Metric, ConcurrentMap<String, Histogram>> family : histograms.entrySet())
+    {
+      Metric metric = family.getKey();
+      Map<String, Histogram> sorted = new TreeMap<String, Histogram>(family.getValue());
+
+      out.write("# HELP " + metric.name + " " + metric.help + "\n");
+      out.write("# TYPE " + metric.name + " histogram\n");
+
+      for (Map.Entry<String, Histogram> entry : sorted.entrySet())
+      {
+        entry.getValue().write(out, metric, escape(entry.getKey()));
+      }
+
+      String errors = metric.name.replace("_duration_seconds", "_errors_total");
+
+      out.write("# HELP " + errors + " Number of failed calls.\n");
+      out.write("# TYPE " + errors + " counter\n");
+
+      for (Map.Entry<String, Histogram> entry : sorted.entrySet())
+      {
+        out.write(
+            errors + "{" + metric.label + "=\"" + escape(entry.getKey()) + "\"} " +
+            entry.getValue().errors.get() + "\n"
+        );
+      }
+    }
+
+    writeCacheCounter(out, "hits", "Cache lookups answered without a database query.");
+    writeCacheCounter(out, "misses", "Cache lookups that queried the database.");
+    writeCacheCounter(out, "evictions", "Cache entries removed by expiry, size limit or invalidation.");
+
+    out.flush();
+  }
+
+
+
+  // Private Instance Methods ---------------------------------------------------------------------
+
+  private String deriveQueryLabel(String jpql)
+  {
+    String[] tokens = jpql.trim().split("\\s+");
+    String statement = tokens[0].toLowerCase(Locale.ENGLISH);
+
+    for (int i = 0; i < tokens.length - 1; ++i)
+    {
+      if (tokens[i].equalsIgnoreCase("FROM") || tokens[i].equalsIgnoreCase("UPDATE"))
+      {
+        return statement + "_" + tokens[i + 1];
+      }
+    }
+
+    return statement;
+  }
+
+  private void writeCacheCounter(Writer out, String counter, String help) throws IOException
+  {
+    String name = "accountmanager_cache_" + counter + "_total";
+
+    out.write("# HELP " + name + " " + help + "\n");
+    out.write("# TYPE " + name + " counter\n");
+
+    for (CacheStatistics cache : caches)
+    {
+      long value = counter.equals("hits") ? cache.getHitCount()
+                 : counter.equals("misses") ? cache.getMissCount()
+                 : cache.getEvictionCount();
+
+      out.write(name + "{region=\"" + escape(cache.getRegion()) + "\"} " + value + "\n");
+    }
+  }
+
+  private String escape(String labelValue)
+  {
+    return labelValue.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+  }
+
+
+
+  // Nested Classes -------------------------------------------------------------------------------
+
+  /**
+   * Lock-free latency histogram with fixed buckets.
+   */
+  private static class Histogram
+  {
+    /**
+     * Per-bucket (non-cumulative) sample counts, the last slot counts samples above the
+     * largest bucket bound.
+     */
+    private AtomicLongArray buckets = new AtomicLongArray(BUCKET_BOUNDS.length + 1);
+
+    private AtomicLong count = new AtomicLong(0);
+
+    private AtomicLong sum = new AtomicLong(0);
+
+    private AtomicLong errors = new AtomicLong(0);
+
+    private void record(long nanos, boolean failed)
+    {
+      int bucket = 0;
+
+      while (bucket < BUCKET_BOUNDS.length && nanos > BUCKET_BOUNDS[bucket])
+      {
+        bucket++;
+      }
+
+      buckets.incrementAndGet(bucket);
+      sum.addAndGet(nanos);
+      count.incrementAndGet();
+
+      if (failed)
+      {
+        errors.incrementAndGet();
+      }
+    }
+
+    private void write(Writer out, Metric metric, String labelValue) throws IOException
+    {
+      String labels = metric.label + "=\"" + labelValue + "\"";
+      long cumulative = 0;
+
+      for (int i = 0; i < BUCKET_BOUNDS.length; ++i)
+      {
+        cumulative += buckets.get(i);
+
+        out.write(
+            metric.name + "_bucket{" + labels + ",le=\"" + (BUCKET_BOUNDS[i] / NANOS_PER_SECOND) +
+            "\"} " + cumulative + "\n"
+        );
+      }
+
+      cumulative += buckets.get(BUCKET_BOUNDS.length);
+
+      out.write(metric.name + "_bucket{" + labels + ",le=\"+Inf\"} " + cumulative + "\n");
+      out.write(metric.name + "_sum{" + labels + "} " + (sum.get() / NANOS_PER_SECOND) + "\n");
+      out.write(metric.name + "_count{" + labels + "} " + cumulative + "\n");
+    }
+  }
+}
@@ -0,0 +1,231 @@
+/*
+ * OpenRemote, the Home of the Digital Home.
+ * Copyright 2008-2015, OpenRemote Inc.
+ *
+ * See the contributors.txt file in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.openremote.beehive.account.service;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Set;
+
+import javax.persistence.EntityManager;
+import javax.persistence.Query;
+
+
+/**
+ * Records the time spent in entity manager operations and query executions as the
+ * {@link ServiceMetrics.Metric#PERSISTENCE} metric. <p>
+ *
+ * The entity manager is wrapped in a dynamic proxy so that the resources keep using the
+ * plain {@link EntityManager} API. Entity operations are labeled by method name (persist,
+ * find, flush, ...), queries by the operation label of their JPQL string (see
+ * {@link ServiceMetrics#getQueryLabel(String)}) or by the name of a named query. Note that
+ * with JDBC batching the inserts of persisted entities are executed, and therefore timed, on
+ * the next flush.
+ *
+ * @author Juha Lindfors
+ */
+final class TimedEntityManager implements InvocationHandler
+{
+
+  // Constants ------------------------------------------------------------------------------------
+
+  /**
+   * Entity manager operations that are timed.
+   */
+  private static final Set<String> TIMED_OPERATIONS = new HashSet<String>(Arrays.asList(
+      "persist", "merge", "remove", "find", "getReference", "refresh", "flush", "lock"
+  ));
+
+  /**
+   * Query operations that are timed.
+   */
+  private static final Set<String> TIMED_QUERY_OPERATIONS = new HashSet<String>(Arrays.asList(
+      "getResultList", "getSingleResult", "executeUpdate"
+  ));
+
+
+
+  // Class Methods --------------------------------------------------------------------------------
+
+  /**
+   * Wraps an entity manager with timing. An entity manager that has already been wrapped
+   * is returned as is.
+   *
+   * @param em        entity manager to wrap
+   * @param metrics   metrics to record the timings to
+   *
+   * @return  timed entity manager
+   */
+  static EntityManager wrap(EntityManager em, ServiceMetrics metrics)
+  {
+    if (em == null || (Proxy.isProxyClass(em.getClass()) &&
+        Proxy.getInvocationHandler(em) instanceof TimedEntityManager))
+    {
+      return em;
+    }
+
+    return (EntityManager)Proxy.newProxyInstance(
+        EntityManager.class.getClassLoader(),
+        new Class<?>[] { EntityManager.class },
+        new TimedEntityManager(em, metrics)
+    );
+  }
+
+
+
+  // Instance Fields ------------------------------------------------------------------------------
+
+  private EntityManager em;
+
+  private ServiceMetrics metrics;
+
+
+
+  // Constructors ---------------------------------------------------------------------------------
+
+  private TimedEntityManager(EntityManager em, ServiceMetrics metrics)
+  {
+    this.em = em;
+    this.metrics = metrics;
+  }
+
+
+
+  // Implements InvocationHandler -----------------------------------------------------------------
+
+  @Override public Object invoke(Object proxy, Method method, Object[] args) throws Throwable
+  {
+    String name = method.getName();
+
+    if (TIMED_OPERATIONS.contains(name))
+    {
+      return timed(em, method, args, name);
+    }
+
+    Object result = delegate(em, method, args);
+
+    if (result instanceof Query && method.getReturnType().isInterface())
+    {
+      return Proxy.newProxyInstance(
+          EntityManager.class.getClassLoader(),
+          new Class<?>[] { method.getReturnType() },
+          new TimedQuery((Query)result, getQueryLabel(name, args))
+      );
+    }
+
+    return result;
+  }
+
+
+
+  // Private Instance Methods ---------------------------------------------------------------------
+
+  private String getQueryLabel(String method, Object[] args)
+  {
+    if (args == null || !(args[0] instanceof String))
+    {
+      return "criteria_query";
+    }
+
+    if (method.equals("createQuery"))
+    {
+      return metrics.getQueryLabel((String)args[0]);
+    }
+
+    // named queries are labeled by their name, native queries by their statement type...
+
+    return method.equals("createNamedQuery")
+        ? (String)args[0]
+        : "native_" + ((String)args[0]).trim().split("\\s+")[0].toLowerCase(Locale.ENGLISH);
+  }
+
+  private Object timed(Object target, Method method, Object[] args, String label) throws Throwable
+  {
+    long start = System.nanoTime();
+    boolean failed = true;
+
+    try
+    {
+      Object result = delegate(target, method, args);
+
+      failed = false;
+
+      return result;
+    }
+
+    finally
+    {
+      metrics.record(ServiceMetrics.Metric.PERSISTENCE, label, System.nanoTime() - start, failed);
+    }
+  }
+
+  private Object delegate(Object target, Method method, Object[] args) throws Throwable
+  {
+    try
+    {
+      return method.invoke(target, args);
+    }
+
+    catch (InvocationTargetException exception)
+    {
+      throw exception.getCause();
+    }
+  }
+
+
+
+  // Nested Classes -------------------------------------------------------------------------------
+
+  /**
+   * Times the executions of a query.
+   */
+  private class TimedQuery implements InvocationHandler
+  {
+    private Query query;
+
+    private String label;
+
+    private TimedQuery(Query query, String label)
+    {
+      this.query = query;
+      this.label = label;
+    }
+
+    @Override public Object invoke(Object proxy, Method method, Object[] args) throws Throwable
+    {
+      if (TIMED_QUERY_OPERATIONS.contains(method.getName()))
+      {
+        return timed(query, method, args, label);
+      }
+
+      Object result = delegate(query, method, args);
+
+      // keep chained setters (setParameter, setMaxResults, ...) on the proxy...
+
+      return (result == query) ? proxy : result;
+    }
+  }
+}
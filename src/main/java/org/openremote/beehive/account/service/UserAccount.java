@@ -20,17 +20,46 @@
  */
 package org.openremote.beehive.account.service;
 
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.persistence.EntityManager;
+import javax.persistence.PersistenceException;
+import javax.servlet.http.HttpServletRequest;
 import javax.validation.constraints.NotNull;
+import javax.ws.rs.ForbiddenException;
 import javax.ws.rs.GET;
+import javax.ws.rs.NotFoundException;
 import javax.ws.rs.Path;
 import javax.ws.rs.PathParam;
 import javax.ws.rs.Produces;
 import javax.ws.rs.core.Context;
 import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Response;
 import javax.ws.rs.core.SecurityContext;
 
+import org.openremote.model.Account;
+import org.openremote.model.persistence.jpa.RelationalAccount;
+import org.openremote.model.persistence.jpa.RelationalController;
+import org.openremote.model.persistence.jpa.RelationalUser;
+import org.openremote.model.persistence.jpa.beehive.BeehiveUser;
+
+import org.openremote.beehive.account.model.AccountListing;
+
+
 /**
- * TODO
+ * Beehive Account Manager REST API for retrieving the accounts of a user, along with the
+ * controllers registered to each account. <p>
+ *
+ * Account listings are served from the application wide {@link AccountCache} when present.
+ * On a cache miss the user, its accounts and their controllers are loaded with three queries
+ * (the user, its lazily loaded accounts and the controllers of those accounts) and the
+ * serialized listing is stored in the cache. Account owners may only retrieve their own
+ * accounts.
  *
  * @author <a href="mailto:juha@openremote.org">Juha Lindfors</a>
  */
@@ -53,15 +82,143 @@ public class UserAccount
    */
   @Context private SecurityContext security;
 
+  @Context private HttpServletRequest request;
+
+  /**
+   * Service configuration resolved at application startup.
+   */
+  @Context private ServiceConfiguration config;
+
+  /**
+   * Application wide cache of account listings.
+   */
+  @Context private AccountCache accountCache;
+
 
   // HTTP Methods ---------------------------------------------------------------------------------
 
-  @GET @Produces (MediaType.TEXT_PLAIN)
+  @GET @Produces ({ MediaType.APPLICATION_JSON, AccountListing.JSON_HTTP_CONTENT_TYPE })
 
-  public String listUserAccounts()
+  public Response listUserAccounts()
   {
-    return "[SEC: " + security.getUserPrincipal().getName() + "] Retrieve accounts for User " + username;
+    if (!security.isUserInRole(AccountManager.Role.SERVICE_ADMINISTRATOR_ROLE.getWebDescriptorRoleName()) &&
+        !username.equals(security.getUserPrincipal().getName()))
+    {
+      throw new ForbiddenException();
+    }
+
+    String json = accountCache.get(username);
+
+    if (json == null)
+    {
+      long generation = accountCache.getGeneration();
+
+      json = loadAccountListing().toJSONString();
+
+      accountCache.put(username, json, generation);
+    }
+
+    return Response.ok(json).build();
   }
 
-}
 
+
+  // Private Instance Methods ---------------------------------------------------------------------
+
+  private AccountListing loadAccountListing()
+  {
+    try
+    {
+      EntityManager em = getEntityManager();
+
+      List<RelationalUser> users = em.createQuery(config.getFindUserQuery(), RelationalUser.class)
+          .setParameter("name", username)
+          .getResultList();
+
+      if (users.isEmpty())
+      {
+        throw new NotFoundException("Username was not found.");
+      }
+
+      List<RelationalAccount> accounts = getAccounts(users.get(0));
+
+      // the listing is cached for all usernames the database matches, list the stored name...
+
+      AccountListing listing = new AccountListing(users.get(0).getName());
+
+      if (accounts.isEmpty())
+      {
+        return listing;
+      }
+
+      Map<Long, AccountListing.AccountEntry> entries =
+          new HashMap<Long, AccountListing.AccountEntry>(accounts.size() * 2);
+
+      for (RelationalAccount account : accounts)
+      {
+        entries.put(account.getId(), listing.addAccount(account.getId()));
+      }
+
+      List<Object[]> rows = em.createQuery(config.getControllersForAccountsQuery(), Object[].class)
+          .setParameter("accounts", accounts)
+          .getResultList();
+
+      // controllers with several MAC addresses are returned on several rows...
+
+      Set<Long> listed = new HashSet<Long>(rows.size() * 2);
+
+      for (Object[] row : rows)
+      {
+        RelationalController controller = (RelationalController)row[1];
+
+        if (!listed.add(controller.getId()))
+        {
+          continue;
+        }
+
+        entries.get((Long)row[0]).addController(
+            controller.getId(), controller.getMacAddresses()
+        );
+      }
+
+      return listing;
+    }
+
+    catch (PersistenceException exception)
+    {
+      throw new HttpInternalError(exception.getMessage());
+    }
+  }
+
+  private List<RelationalAccount> getAccounts(RelationalUser user)
+  {
+    List<RelationalAccount> accounts = new ArrayList<RelationalAccount>(1);
+
+    if (user instanceof BeehiveUser)
+    {
+      RelationalAccount account = ((BeehiveUser)user).getAccount();
+
+      if (account != null)
+      {
+        accounts.add(account);
+      }
+
+      return accounts;
+    }
+
+    for (Account account : user.getAccounts())
+    {
+      if (account instanceof RelationalAccount)
+      {
+        accounts.add((RelationalAccount)account);
+      }
+    }
+
+    return accounts;
+  }
+
+  private EntityManager getEntityManager()
+  {
+    return (EntityManager)request.getAttribute(AccountManager.ENTITY_MANAGER_LOOKUP);
+  }
+}
@@ -0,0 +1,431 @@
+/*
+ * OpenRemote, the Home of the Digital Home.
+ * Copyright 2008-2015, OpenRemote Inc.
+ *
+ * See the contributors.txt file in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.openremote.beehive.account.service;
+
+import java.text.Normalizer;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.regex.Pattern;
+
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.PersistenceException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+
+/**
+ * Existence checks for usernames. <p>
+ *
+ * The database is queried with a scalar projection of the user id limited to a single row, so
+ * no user entities (or their associations) are loaded just to test whether a username is
+ * taken. <p>
+ *
+ * In addition, an in-memory Bloom filter of known usernames is maintained. The filter is
+ * populated in the background from the database on first use (reading only the username
+ * column, one page at a time) and new usernames are added as accounts are created. Once the
+ * filter has been populated, a username that the filter has not seen is known not to exist
+ * and no database query is made at all. Since the majority of registrations are for new
+ * usernames this removes the existence query from the common case. Usernames that the filter
+ * reports as possibly existing are always verified from the database, so false positives
+ * only cost a query. Deleted usernames cannot be removed from a Bloom filter and are handled
+ * the same way. <p>
+ *
+ * The filter assumes this service instance sees all account creations and is therefore
+ * disabled by default, see {@link ServiceConfiguration#WEBAPP_PARAM_USERNAME_FILTER}. It must
+ * not be enabled if accounts are created by other means (the legacy Beehive application or
+ * another service instance on the same database, for example). The database unique constraint
+ * on usernames still applies in either case, and a violation is reported as a conflict. <p>
+ *
+ * Usernames are compared in the filter as {@link #normalize normalized}, case and accent
+ * insensitive keys, matching the default case insensitive collation of the MySQL username
+ * column. With a case sensitive collation this only adds false positives. <p>
+ *
+ * This class is thread-safe.
+ *
+ * @author Juha Lindfors
+ */
+public class UsernameIndex
+{
+
+  // Constants ------------------------------------------------------------------------------------
+
+  /**
+   * Minimum number of usernames the filter is sized for: {@value}
+   */
+  public static final int MIN_FILTER_CAPACITY = 100000;
+
+  /**
+   * Maximum number of usernames the filter is sized for, bounding its memory use to roughly
+   * 25MB. Beyond this the false positive rate increases, which only costs database
+   * queries: {@value}
+   */
+  public static final int MAX_FILTER_CAPACITY = 20000000;
+
+  /**
+   * Number of usernames read from the database per query when populating the filter: {@value}
+   */
+  public static final int WARM_UP_PAGE_SIZE = 1000;
+
+
+
+  // Class Members --------------------------------------------------------------------------------
+
+  private static final Logger log = LoggerFactory.getLogger(
+      AccountManager.Log.REGISTRATION.getCanonicalLogHierarchyName()
+  );
+
+  private static final Pattern COMBINING_MARKS = Pattern.compile("\\p{M}+");
+
+
+
+  // Package-Private Class Methods ----------------------------------------------------------------
+
+  /**
+   * Returns the key a username is compared with, ignoring case and accents the same way as
+   * a case insensitive database collation does.
+   *
+   * @param username  username to normalize
+   *
+   * @return  normalized username
+   */
+  static String normalize(String username)
+  {
+    String decomposed = Normalizer.normalize(username, Normalizer.Form.NFD);
+
+    return COMBINING_MARKS.matcher(decomposed).replaceAll("").toLowerCase(Locale.ENGLISH);
+  }
+
+
+
+  // Instance Fields ------------------------------------------------------------------------------
+
+  private ServiceConfiguration config;
+
+  private AtomicBoolean warmUpStarted = new AtomicBoolean(false);
+
+  private volatile BloomFilter filter = null;
+
+  private volatile boolean warm = false;
+
+  /**
+   * A hit is a username the filter has never seen, for which the database query is skipped.
+   */
+  private CacheStatistics statistics = new CacheStatistics("username_filter");
+
+
+
+  // Constructors ---------------------------------------------------------------------------------
+
+  public UsernameIndex(ServiceConfiguration config)
+  {
+    this.config = config;
+  }
+
+
+
+  // Public Instance Methods ----------------------------------------------------------------------
+
+  /**
+   * Checks whether a user with given username exists.
+   *
+   * @param username  username to check
+   * @param em        entity manager to use if the database needs to be queried
+   *
+   * @return  true if username exists, false otherwise
+   *
+   * @throws PersistenceException
+   *            if the database query fails
+   */
+  public boolean exists(String username, EntityManager em) throws PersistenceException
+  {
+    if (!mightExist(username, em))
+    {
+      return false;
+    }
+
+    return !em.createQuery(config.getUsernameExistsQuery(), Long.class)
+        .setParameter("name", username)
+        .setMaxResults(1)
+        .getResultList()
+        .isEmpty();
+  }
+
+  /**
+   * Checks whether a user with given username may exist. If this method returns false, the
+   * username is known not to exist. If it returns true, the username must be verified from
+   * the database.
+   *
+   * @param username  username to check
+   * @param em        entity manager of the current request, used to start populating the
+   *                  username filter on first use
+   *
+   * @return  false if username is known not to exist, true otherwise
+   */
+  public boolean mightExist(String username, EntityManager em)
+  {
+    if (!config.isUsernameFilterEnabled())
+    {
+      return true;
+    }
+
+    if (!warm)
+    {
+      startWarmUp(em.getEntityManagerFactory());
+
+      statistics.miss();
+
+      return true;
+    }
+
+    if (filter.mightContain(username))
+    {
+      statistics.miss();
+
+      return true;
+    }
+
+    statistics.hit();
+
+    return false;
+  }
+
+  /**
+   * Returns the hit and miss counters of the username filter. Lookups are only counted while
+   * the filter is enabled.
+   *
+   * @return  filter statistics
+   */
+  public CacheStatistics getStatistics()
+  {
+    return statistics;
+  }
+
+  /**
+   * Records a new username. Should be called whenever an account is created.
+   *
+   * @param username  new username
+   */
+  public void add(String username)
+  {
+    BloomFilter current = filter;
+
+    if (current != null)
+    {
+      current.add(username);
+    }
+  }
+
+
+
+  // Private Instance Methods ---------------------------------------------------------------------
+
+  private void startWarmUp(final EntityManagerFactory emf)
+  {
+    if (!warmUpStarted.compareAndSet(false, true))
+    {
+      return;
+    }
+
+    Thread warmUp = new Thread(new Runnable()
+    {
+      @Override public void run()
+      {
+        try
+        {
+          populate(emf);
+        }
+
+        catch (RuntimeException exception)
+        {
+          log.error("Populating username filter failed: " + exception.getMessage(), exception);
+
+          filter = null;
+
+          // allow a later request to retry...
+
+          warmUpStarted.set(false);
+        }
+      }
+    }, "Account Manager Username Index");
+
+    warmUp.setDaemon(true);
+    warmUp.start();
+  }
+
+  private void populate(EntityManagerFactory emf)
+  {
+    long start = System.currentTimeMillis();
+
+    EntityManager em = emf.createEntityManager();
+
+    try
+    {
+      long count = em.createQuery(config.getUserCountQuery(), Long.class).getSingleResult();
+
+      // publish the filter before reading existing usernames so that accounts created
+      // concurrently are recorded as well...
+
+      long capacity = Math.min(Math.max(count * 2, MIN_FILTER_CAPACITY), MAX_FILTER_CAPACITY);
+
+      BloomFilter newFilter = new BloomFilter((int)capacity);
+      filter = newFilter;
+
+      long lastId = Long.MIN_VALUE;
+      long loaded = 0;
+
+      while (true)
+      {
+        List<Object[]> page = em.createQuery(config.getUsernamePageQuery(), Object[].class)
+            .setParameter("lastId", lastId)
+            .setMaxResults(WARM_UP_PAGE_SIZE)
+            .getResultList();
+
+        for (Object[] row : page)
+        {
+          newFilter.add((String)row[1]);
+        }
+
+        loaded += page.size();
+
+        if (page.size() < WARM_UP_PAGE_SIZE)
+        {
+          break;
+        }
+
+        lastId = (Long)page.get(page.size() - 1)[0];
+      }
+
+      warm = true;
+
+      log.info(
+          "Username filter populated with {} usernames in {} ms.",
+          loaded, System.currentTimeMillis() - start
+      );
+    }
+
+    finally
+    {
+      em.close();
+    }
+  }
+
+
+
+  // Nested Classes -------------------------------------------------------------------------------
+
+  /**
+   * A fixed size Bloom filter of strings with roughly one percent false positive rate at its
+   * configured capacity. Bits are set with atomic operations so the filter can be read and
+   * updated concurrently.
+   */
+  private static class BloomFilter
+  {
+    private static final int BITS_PER_ELEMENT = 10;
+
+    private static final int HASH_FUNCTIONS = 7;
+
+    private AtomicLongArray bits;
+
+    private long size;
+
+    private BloomFilter(int capacity)
+    {
+      int words = (int)(((long)capacity * BITS_PER_ELEMENT + 63) / 64);
+
+      bits = new AtomicLongArray(words);
+      size = words * 64L;
+    }
+
+    private void add(String value)
+    {
+      long hash = hash(value);
+      int h1 = (int)hash;
+      int h2 = (int)(hash >>> 32);
+
+      for (int i = 0; i < HASH_FUNCTIONS; ++i)
+      {
+        long bit = index(h1 + i * h2);
+        int word = (int)(bit >>> 6);
+        long mask = 1L << bit;
+
+        while (true)
+        {
+          long current = bits.get(word);
+
+          if ((current & mask) != 0 || bits.compareAndSet(word, current, current | mask))
+          {
+            break;
+          }
+        }
+      }
+    }
+
+    private boolean mightContain(String value)
+    {
+      long hash = hash(value);
+      int h1 = (int)hash;
+      int h2 = (int)(hash >>> 32);
+
+      for (int i = 0; i < HASH_FUNCTIONS; ++i)
+      {
+        long bit = index(h1 + i * h2);
+
+        if ((bits.get((int)(bit >>> 6)) & (1L << bit)) == 0)
+        {
+          return false;
+        }
+      }
+
+      return true;
+    }
+
+    private long index(int combinedHash)
+    {
+      return (combinedHash & 0x7FFFFFFFL) % size;
+    }
+
+    /**
+     * 64-bit FNV-1a hash over the characters of the normalized username, with a final mixing
+     * step so that both 32-bit halves are well distributed.
+     */
+    private long hash(String username)
+    {
+      String value = normalize(username);
+      long hash = 0xcbf29ce484222325L;
+
+      for (int i = 0; i < value.length(); ++i)
+      {
+        hash ^= value.charAt(i);
+        hash *= 0x100000001b3L;
+      }
+
+      hash ^= hash >>> 33;
+      hash *= 0xff51afd7ed558ccdL;
+      hash ^= hash >>> 33;
+
+      return hash;
+    }
+  }
+}
@@ -0,0 +1,334 @@
+/*
+ * OpenRemote, the Home of the Digital Home.
+ * Copyright 2008-2015, OpenRemote Inc.
+ *
+ * See the contributors.txt file in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.openremote.beehive.account.client;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import javax.ws.rs.client.InvocationCallback;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+
+/**
+ * Unit tests for {@link org.openremote.beehive.account.client.AsyncResult} class and the
+ * in-flight request limit of {@link org.openremote.beehive.account.client.AccountManagerClient}.
+ *
+ * @author Juha Lindfors
+ */
+public class AsyncResultTest
+{
+
+  // Tests ----------------------------------------------------------------------------------------
+
+  /**
+   * The in-flight permit is released exactly once, however many times the result is finished.
+   *
+   * @throws Exception  if test fails
+   */
+  @Test public void testPermitReleasedOnce() throws Exception
+  {
+    Semaphore permits = new Semaphore(2);
+    permits.acquire();
+
+    AsyncResult<String> result = new AsyncResult<String>(permits, null, null);
+
+    result.complete("value");
+    result.complete("other");
+    result.fail(new RuntimeException("late failure"));
+
+    Assert.assertFalse(result.cancel(true));
+    Assert.assertEquals(permits.availablePermits(), 2);
+    Assert.assertTrue(result.isDone());
+    Assert.assertEquals(result.get(), "value");
+  }
+
+  /**
+   * A failed result releases its permit and reports the failure.
+   *
+   * @throws Exception  if test fails
+   */
+  @Test public void testFailReleasesPermit() throws Exception
+  {
+    Semaphore permits = new Semaphore(1);
+    permits.acquire();
+
+    AsyncResult<String> result = new AsyncResult<String>(permits, null, null);
+
+    result.fail(new IllegalStateException("no route"));
+    result.fail(new IllegalStateException("again"));
+
+    Assert.assertEquals(permits.availablePermits(), 1);
+
+    try
+    {
+      result.get();
+
+      Assert.fail("Should not get here...");
+    }
+
+    catch (ExecutionException exception)
+    {
+      // expected...
+
+      Assert.assertEquals(exception.getCause().getMessage(), "no route");
+    }
+  }
+
+  /**
+   * A cancelled result releases its permit, cancels the pending request and ignores a late
+   * response.
+   *
+   * @throws Exception  if test fails
+   */
+  @Test public void testCancelReleasesPermit() throws Exception
+  {
+    Semaphore permits = new Semaphore(1);
+    permits.acquire();
+
+    RecordingCallback<String> callback = new RecordingCallback<String>(1);
+    AsyncResult<String> result = new AsyncResult<String>(permits, callback, null);
+
+    FutureTask<Void> pending = new FutureTask<Void>(new Runnable()
+    {
+      @Override public void run()
+      {
+        // never started or finished...
+      }
+    }, null);
+
+    result.setPending(pending);
+
+    Assert.assertTrue(result.cancel(false));
+    Assert.assertTrue(pending.isCancelled());
+
+    result.complete("late");
+
+    Assert.assertEquals(permits.availablePermits(), 1);
+    Assert.assertTrue(result.isCancelled());
+    Assert.assertTrue(callback.failure.get() instanceof CancellationException);
+    Assert.assertEquals(callback.invocations.get(), 1);
+
+    try
+    {
+      result.get(1, TimeUnit.SECONDS);
+
+      Assert.fail("Should not get here...");
+    }
+
+    catch (CancellationException exception)
+    {
+      // expected...
+    }
+  }
+
+  /**
+   * Callbacks run on the configured executor, or on the completing thread if the executor
+   * rejects them.
+   *
+   * @throws Exception  if test fails
+   */
+  @Test public void testCallbackExecutor() throws Exception
+  {
+    final List<Runnable> queued = new ArrayList<Runnable>();
+
+    Executor executor = new Executor()
+    {
+      @Override public void execute(Runnable command)
+      {
+        queued.add(command);
+      }
+    };
+
+    RecordingCallback<String> callback = new RecordingCallback<String>(1);
+    new AsyncResult<String>(null, callback, executor).complete("value");
+
+    Assert.assertEquals(queued.size(), 1);
+    Assert.assertNull(callback.value.get());
+
+    queued.get(0).run();
+
+    Assert.assertEquals(callback.value.get(), "value");
+
+    Executor rejecting = new Executor()
+    {
+      @Override public void execute(Runnable command)
+      {
+        throw new RejectedExecutionException("shut down");
+      }
+    };
+
+    callback = new RecordingCallback<String>(1);
+    new AsyncResult<String>(null, callback, rejecting).complete("value");
+
+    Assert.assertEquals(callback.value.get(), "value");
+  }
+
+  /**
+   * The client does not issue more asynchronous requests than its in-flight limit allows, and
+   * blocks the caller until a pending request completes.
+   *
+   * @throws Exception  if test fails
+   */
+  @Test public void testMaxInFlightRequests() throws Exception
+  {
+    final SlowServer handler = new SlowServer();
+
+    HttpServer server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+    server.createContext("/", handler);
+    server.setExecutor(Executors.newCachedThreadPool());
+    server.start();
+
+    final AccountManagerClient client = new AccountManagerClient(
+        new URL("http://localhost:" + server.getAddress().getPort()), "admin", "secret".getBytes()
+    );
+
+    try
+    {
+      client.setMaxInFlightRequests(2);
+
+      final RecordingCallback<AccountResult> callback = new RecordingCallback<AccountResult>(3);
+      final AtomicInteger issued = new AtomicInteger(0);
+
+      Thread caller = new Thread(new Runnable()
+      {
+        @Override public void run()
+        {
+          for (int i = 0; i < 3; ++i)
+          {
+            client.deleteAsync("user" + i, callback);
+            issued.incrementAndGet();
+          }
+        }
+      });
+
+      caller.start();
+
+      Assert.assertTrue(handler.received.tryAcquire(2, 10, TimeUnit.SECONDS));
+      Assert.assertFalse(handler.received.tryAcquire(200, TimeUnit.MILLISECONDS));
+      Assert.assertEquals(issued.get(), 2);
+
+      handler.gate.countDown();
+
+      caller.join(10000);
+
+      Assert.assertTrue(callback.done.await(10, TimeUnit.SECONDS));
+      Assert.assertEquals(issued.get(), 3);
+      Assert.assertEquals(handler.maxConcurrent.get(), 2);
+      Assert.assertEquals(callback.value.get().getStatus(), 204);
+    }
+
+    finally
+    {
+      handler.gate.countDown();
+      client.close();
+      server.stop(0);
+    }
+  }
+
+
+  // Nested Classes -------------------------------------------------------------------------------
+
+  private static class RecordingCallback<T> implements InvocationCallback<T>
+  {
+    private CountDownLatch done;
+
+    private AtomicInteger invocations = new AtomicInteger(0);
+    private AtomicReference<T> value = new AtomicReference<T>();
+    private AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+
+    private RecordingCallback(int count)
+    {
+      this.done = new CountDownLatch(count);
+    }
+
+    @Override public void completed(T response)
+    {
+      value.set(response);
+      invocations.incrementAndGet();
+      done.countDown();
+    }
+
+    @Override public void failed(Throwable throwable)
+    {
+      failure.set(throwable);
+      invocations.incrementAndGet();
+      done.countDown();
+    }
+  }
+
+  /**
+   * Holds all requests until the gate is opened, recording the number of concurrent requests.
+   */
+  private static class SlowServer implements HttpHandler
+  {
+    private CountDownLatch gate = new CountDownLatch(1);
+    private Semaphore received = new Semaphore(0);
+
+    private AtomicInteger concurrent = new AtomicInteger(0);
+    private AtomicInteger maxConcurrent = new AtomicInteger(0);
+
+    @Override public void handle(HttpExchange exchange) throws IOException
+    {
+      int current = concurrent.incrementAndGet();
+
+      synchronized (maxConcurrent)
+      {
+        maxConcurrent.set(Math.max(maxConcurrent.get(), current));
+      }
+
+      received.release();
+
+      try
+      {
+        gate.await(10, TimeUnit.SECONDS);
+      }
+
+      catch (InterruptedException exception)
+      {
+        Thread.currentThread().interrupt();
+      }
+
+      concurrent.decrementAndGet();
+
+      exchange.sendResponseHeaders(204, -1);
+      exchange.close();
+    }
+  }
+}
@@ -0,0 +1,327 @@
+/*
+ * OpenRemote, the Home of the Digital Home.
+ * Copyright 2008-2015, OpenRemote Inc.
+ *
+ * See the contributors.txt file in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.openremote.beehive.account.client;
+
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.ws.rs.client.InvocationCallback;
+
+import org.openremote.beehive.account.model.BatchResult;
+import org.openremote.beehive.account.model.UserRegistration;
+import org.openremote.model.Model;
+import org.openremote.model.User;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+
+/**
+ * Unit tests for {@link org.openremote.beehive.account.client.BulkImport} class.
+ *
+ * @author Juha Lindfors
+ */
+public class BulkImportTest
+{
+
+  // Constants ------------------------------------------------------------------------------------
+
+  /**
+   * Scripted outcome of an attempt that receives no response from the service.
+   */
+  private static final int NO_RESPONSE = -1;
+
+
+  // Tests ----------------------------------------------------------------------------------------
+
+  /**
+   * Registrations that succeed on the first attempt are reported with their account IDs.
+   *
+   * @throws Exception  if test fails
+   */
+  @Test public void testCreated() throws Exception
+  {
+    ScriptedClient client = new ScriptedClient();
+    client.script("alice", 201);
+    client.script("bob", 201);
+
+    BatchResult result = createAll(client, "alice", "bob");
+
+    Assert.assertEquals(result.getSucceededCount(), 2);
+    Assert.assertEquals(result.getFailedCount(), 0);
+    Assert.assertEquals(getItem(result, 0).getUsername(), "alice");
+    Assert.assertNotNull(getItem(result, 0).getAccountId());
+    Assert.assertNotNull(getItem(result, 1).getAccountId());
+  }
+
+  /**
+   * Server errors and missing responses are retried until the registration succeeds.
+   *
+   * @throws Exception  if test fails
+   */
+  @Test public void testRetry() throws Exception
+  {
+    ScriptedClient client = new ScriptedClient();
+    client.script("alice", 503, 201);
+    client.script("bob", NO_RESPONSE, 500, 201);
+
+    BatchResult result = createAll(client, "alice", "bob");
+
+    Assert.assertEquals(result.getSucceededCount(), 2);
+    Assert.assertEquals(client.getAttempts("alice"), 2);
+    Assert.assertEquals(client.getAttempts("bob"), 3);
+  }
+
+  /**
+   * A conflict on a retried registration means an earlier attempt was committed, and is
+   * reported as a success.
+   *
+   * @throws Exception  if test fails
+   */
+  @Test public void testConflictAfterRetry() throws Exception
+  {
+    ScriptedClient client = new ScriptedClient();
+    client.script("alice", 502, 409);
+    client.script("bob", NO_RESPONSE, 409);
+
+    BatchResult result = createAll(client, "alice", "bob");
+
+    Assert.assertEquals(result.getSucceededCount(), 2);
+    Assert.assertEquals(getItem(result, 0).getStatus(), 409);
+    Assert.assertNull(getItem(result, 0).getAccountId());
+  }
+
+  /**
+   * A conflict on the first attempt means the account existed before the import, and is
+   * reported as a failure without retrying.
+   *
+   * @throws Exception  if test fails
+   */
+  @Test public void testConflictOnFirstAttempt() throws Exception
+  {
+    ScriptedClient client = new ScriptedClient();
+    client.script("alice", 409);
+    client.script("bob", 400);
+
+    BatchResult result = createAll(client, "alice", "bob");
+
+    Assert.assertEquals(result.getSucceededCount(), 0);
+    Assert.assertEquals(result.getFailedCount(), 2);
+    Assert.assertEquals(getItem(result, 0).getStatus(), 409);
+    Assert.assertEquals(getItem(result, 0).getMessage(), "alice: 409");
+    Assert.assertEquals(getItem(result, 1).getStatus(), 400);
+    Assert.assertEquals(client.getAttempts("alice"), 1);
+    Assert.assertEquals(client.getAttempts("bob"), 1);
+  }
+
+  /**
+   * Registrations are given up after the configured number of attempts.
+   *
+   * @throws Exception  if test fails
+   */
+  @Test public void testMaxAttempts() throws Exception
+  {
+    ScriptedClient client = new ScriptedClient();
+    client.script("alice", 503, 503, 503, 201);
+    client.script("bob", NO_RESPONSE, NO_RESPONSE, NO_RESPONSE, 201);
+
+    BatchResult result = new BulkImport(client)
+        .setMaxAttempts(3)
+        .setBackoff(0, 0, TimeUnit.MILLISECONDS)
+        .createAll(registrations("alice", "bob"));
+
+    Assert.assertEquals(result.getFailedCount(), 2);
+    Assert.assertEquals(getItem(result, 0).getStatus(), 503);
+    Assert.assertEquals(getItem(result, 1).getStatus(), BulkImport.NO_RESPONSE_STATUS);
+    Assert.assertEquals(client.getAttempts("alice"), 3);
+    Assert.assertEquals(client.getAttempts("bob"), 3);
+  }
+
+  /**
+   * No more registrations than the window size are pending at any given time.
+   *
+   * @throws Exception  if test fails
+   */
+  @Test public void testWindowSize() throws Exception
+  {
+    ScriptedClient client = new ScriptedClient();
+    List<String> usernames = new ArrayList<String>();
+
+    for (int i = 0; i < 50; ++i)
+    {
+      usernames.add("user" + i);
+      client.script("user" + i, (i % 3 == 0) ? 503 : 201, 201);
+    }
+
+    BatchResult result = new BulkImport(client)
+        .setWindowSize(4)
+        .setBackoff(0, 0, TimeUnit.MILLISECONDS)
+        .createAll(registrations(usernames.toArray(new String[usernames.size()])));
+
+    Assert.assertEquals(result.getSucceededCount(), 50);
+    Assert.assertTrue(client.maxPending.get() <= 4, "Pending: " + client.maxPending.get());
+  }
+
+
+  // Helpers --------------------------------------------------------------------------------------
+
+  private BatchResult createAll(AccountManagerClient client, String... usernames) throws Exception
+  {
+    return new BulkImport(client)
+        .setBackoff(0, 0, TimeUnit.MILLISECONDS)
+        .createAll(registrations(usernames));
+  }
+
+  private Iterator<UserRegistration> registrations(String... usernames) throws Exception
+  {
+    List<UserRegistration> list = new ArrayList<UserRegistration>();
+
+    for (String username : usernames)
+    {
+      list.add(new UserRegistration(username, username + "@host.domain", "secret123".getBytes()));
+    }
+
+    return list.iterator();
+  }
+
+  private BatchResult.Item getItem(BatchResult result, int index)
+  {
+    for (BatchResult.Item item : result.getItems())
+    {
+      if (item.getIndex() == index)
+      {
+        return item;
+      }
+    }
+
+    Assert.fail("No result item for index " + index);
+
+    return null;
+  }
+
+
+  // Nested Classes -------------------------------------------------------------------------------
+
+  /**
+   * Answers registrations asynchronously with a scripted sequence of HTTP status codes per
+   * username, recording the attempts and the number of pending registrations.
+   */
+  private static class ScriptedClient extends AccountManagerClient
+  {
+    private Map<String, LinkedList<Integer>> scripts = new HashMap<String, LinkedList<Integer>>();
+
+    private Map<String, AtomicInteger> attempts = new HashMap<String, AtomicInteger>();
+
+    private ExecutorService responses = Executors.newCachedThreadPool();
+
+    private AtomicInteger accountIds = new AtomicInteger(0);
+    private AtomicInteger pending = new AtomicInteger(0);
+    private AtomicInteger maxPending = new AtomicInteger(0);
+
+    private ScriptedClient() throws Exception
+    {
+      super(new URL("http://localhost"), "admin", "secret".getBytes());
+    }
+
+    private void script(String username, Integer... statuses)
+    {
+      scripts.put(username, new LinkedList<Integer>(Arrays.asList(statuses)));
+      attempts.put(username, new AtomicInteger(0));
+    }
+
+    private int getAttempts(String username)
+    {
+      return attempts.get(username).get();
+    }
+
+    @Override public Future<AccountResult> createAsync(final UserRegistration user,
+                                                       InvocationCallback<AccountResult> callback)
+    {
+      final String username = user.getName();
+      final AsyncResult<AccountResult> result = new AsyncResult<AccountResult>(null, callback, null);
+      final int status;
+
+      synchronized (scripts)
+      {
+        status = scripts.get(username).removeFirst();
+      }
+
+      attempts.get(username).incrementAndGet();
+
+      int current = pending.incrementAndGet();
+
+      synchronized (maxPending)
+      {
+        maxPending.set(Math.max(maxPending.get(), current));
+      }
+
+      responses.execute(new Runnable()
+      {
+        @Override public void run()
+        {
+          pending.decrementAndGet();
+
+          if (status == NO_RESPONSE)
+          {
+            result.fail(new RuntimeException("Connection refused"));
+          }
+
+          else if (status == 201)
+          {
+            result.complete(new AccountResult(username, status, "Created", createdUser(user)));
+          }
+
+          else
+          {
+            result.complete(new AccountResult(username, status, "Status " + status, username + ": " + status));
+          }
+        }
+      });
+
+      return result;
+    }
+
+    private String createdUser(UserRegistration user)
+    {
+      try
+      {
+        return new User(user.getName(), user.getName() + "@host.domain")
+            .addAttribute(AccountResult.ACCOUNT_ID_ATTRIBUTE_NAME, Integer.toString(accountIds.incrementAndGet()))
+            .toJSONString();
+      }
+
+      catch (Model.ValidationException exception)
+      {
+        throw new AssertionError(exception);
+      }
+    }
+  }
+}
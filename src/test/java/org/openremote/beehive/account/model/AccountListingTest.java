@@ -0,0 +1,87 @@
+/*
+ * OpenRemote, the Home of the Digital Home.
+ * Copyright 2008-2015, OpenRemote Inc.
+ *
+ * See the contributors.txt file in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.openremote.beehive.account.model;
+
+import java.io.StringReader;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+
+/**
+ * Unit tests for {@link org.openremote.beehive.account.model.AccountListing} class.
+ *
+ * @author Juha Lindfors
+ */
+public class AccountListingTest
+{
+
+  // Tests ----------------------------------------------------------------------------------------
+
+  /**
+   * Account listing serializes to JSON and back.
+   *
+   * @throws Exception  if test fails
+   */
+  @Test public void testAccountListingJSON() throws Exception
+  {
+    AccountListing listing = new AccountListing("listinguser");
+
+    AccountListing.AccountEntry account = listing.addAccount(10L);
+    account.addController(20L, "01:02:03:04:05:06");
+    account.addController(21L, null);
+
+    listing.addAccount(11L);
+
+    AccountListing copy = new AccountListing.ListingTransformer().read(
+        new StringReader(listing.toJSONString())
+    );
+
+    Assert.assertEquals(copy.getUsername(), "listinguser");
+    Assert.assertEquals(copy.getAccounts().size(), 2);
+
+    AccountListing.AccountEntry first = copy.getAccounts().get(0);
+
+    Assert.assertEquals(first.getId(), Long.valueOf(10));
+    Assert.assertEquals(first.getControllers().size(), 2);
+    Assert.assertEquals(first.getControllers().get(0).getId(), Long.valueOf(20));
+    Assert.assertEquals(first.getControllers().get(0).getMacAddresses(), "01:02:03:04:05:06");
+    Assert.assertNull(first.getControllers().get(1).getMacAddresses());
+
+    Assert.assertEquals(copy.getAccounts().get(1).getId(), Long.valueOf(11));
+    Assert.assertTrue(copy.getAccounts().get(1).getControllers().isEmpty());
+  }
+
+  /**
+   * A user without accounts serializes to an empty account array.
+   *
+   * @throws Exception  if test fails
+   */
+  @Test public void testEmptyAccountListingJSON() throws Exception
+  {
+    AccountListing copy = new AccountListing.ListingTransformer().read(
+        new StringReader(new AccountListing("nobody").toJSONString())
+    );
+
+    Assert.assertEquals(copy.getUsername(), "nobody");
+    Assert.assertTrue(copy.getAccounts().isEmpty());
+  }
+}
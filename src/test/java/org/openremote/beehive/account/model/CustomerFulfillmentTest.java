@@ -37,6 +37,8 @@ import org.testng.annotations.BeforeClass;
 import org.testng.annotations.Test;
 
 import org.openremote.model.Controller;
+import org.openremote.model.Model;
+import org.openremote.model.data.json.DeserializationException;
 
 
 /**
@@ -111,6 +113,139 @@ public class CustomerFulfillmentTest
     // TODO : complete assertions
   }
 
+  /**
+   * All controllers in a fulfillment document are deserialized, not just the first one.
+   *
+   * @throws Exception  if test fails
+   */
+  @Test public void testCustomerFulfillmentMultipleControllers() throws Exception
+  {
+    String second =
+        "{ \"libraryName\": \"OpenRemote Object Model\", " +
+        "  \"javaFullClassName\": \"org.openremote.model.Controller\", " +
+        "  \"schemaVersion\": \"4.0.0\", \"apiVersion\": \"0.2\", " +
+        "  \"model\": { \"identity\": \"second\", " +
+        "    \"macAddresses\": [ \"00:00:00:00:00:02\", \"00:00:00:00:00:03\" ], " +
+        "    \"controllerAttributes\": { \"foo\": \"bar\" } } }";
+
+    int array = fulfillmentJSON.indexOf("\"controllers\": [") + "\"controllers\": [".length();
+
+    String json = fulfillmentJSON.substring(0, array) + second + ", " + fulfillmentJSON.substring(array);
+
+    CustomerFulfillment fulfillment = (CustomerFulfillment)new CustomerFulfillment.FulfillmentTransformer()
+        .read(new StringReader(json));
+
+    Assert.assertEquals(fulfillment.getName(), "testCustomerFulfillmentJSON");
+    Assert.assertEquals(fulfillment.controllers.size(), 2);
+
+    Set<String> macAddresses = new HashSet<String>();
+
+    for (Controller controller : fulfillment.controllers)
+    {
+      macAddresses.add(controller.getMacAddresses());
+
+      if (controller.getMacAddresses().contains("00:00:00:00:00:02"))
+      {
+        Assert.assertTrue(controller.hasAttribute("foo"));
+      }
+    }
+
+    Assert.assertTrue(macAddresses.contains("FF:FF:FF:FF:FF:FF"), macAddresses.toString());
+    Assert.assertEquals(macAddresses.size(), 2);
+  }
+
+
+  /**
+   * Builder collects controllers in insertion order and publishes them as an unmodifiable set
+   * that copies share.
+   *
+   * @throws Exception  if test fails
+   */
+  @Test public void testCustomerFulfillmentBuilder() throws Exception
+  {
+    CustomerFulfillment.Builder builder = new CustomerFulfillment.Builder(
+        new UserRegistration("builderuser", "email@host.domain", "secretsecret".getBytes("UTF-8"))
+    );
+
+    for (int i = 0; i < 500; ++i)
+    {
+      builder.addController(String.format("00:00:00:00:%02X:%02X", i >> 8, i & 0xFF));
+    }
+
+    CustomerFulfillment fulfillment = builder.build();
+
+    Assert.assertEquals(fulfillment.getControllers().size(), 500);
+    Assert.assertEquals(
+        fulfillment.getControllers().iterator().next().getMacAddresses(), "00:00:00:00:00:00"
+    );
+    Assert.assertEquals(builder.getControllerCount(), 0);
+
+    try
+    {
+      fulfillment.add(new Controller());
+
+      Assert.fail("Should not get here...");
+    }
+
+    catch (RuntimeException exception)
+    {
+      // expected...
+    }
+
+    Assert.assertSame(new CustomerFulfillment(fulfillment) { }.controllers, fulfillment.controllers);
+  }
+
+  /**
+   * Builder and deserializer reject fulfillments over the configured controller limits.
+   *
+   * @throws Exception  if test fails
+   */
+  @Test public void testCustomerFulfillmentLimits() throws Exception
+  {
+    CustomerFulfillment.Limits limits = new CustomerFulfillment.Limits(2, 1);
+
+    CustomerFulfillment.Builder builder = new CustomerFulfillment.Builder(
+        new UserRegistration("limituser", "email@host.domain", "secretsecret".getBytes("UTF-8")), limits
+    );
+
+    builder.addController("00:00:00:00:00:01").addController("00:00:00:00:00:02");
+
+    try
+    {
+      builder.addController("00:00:00:00:00:03");
+
+      Assert.fail("Should not get here...");
+    }
+
+    catch (Model.ValidationException exception)
+    {
+      // expected...
+    }
+
+    String twoMacAddresses = fulfillmentJSON.replace(
+        "\"FF:FF:FF:FF:FF:FF\"", "\"FF:FF:FF:FF:FF:FF\", \"FF:FF:FF:FF:FF:FE\""
+    );
+
+    CustomerFulfillment.FulfillmentTransformer transformer = new CustomerFulfillment.FulfillmentTransformer();
+    transformer.setLimits(limits);
+
+    try
+    {
+      transformer.read(new StringReader(twoMacAddresses));
+
+      Assert.fail("Should not get here...");
+    }
+
+    catch (DeserializationException exception)
+    {
+      // expected...
+    }
+
+    // the limits of one transformer do not apply to others...
+
+    new CustomerFulfillment.FulfillmentTransformer().read(new StringReader(twoMacAddresses));
+  }
+
 
   // Helper Methods -------------------------------------------------------------------------------
 
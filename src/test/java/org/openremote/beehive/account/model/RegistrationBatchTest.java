@@ -0,0 +1,438 @@
+/*
+ * OpenRemote, the Home of the Digital Home.
+ * Copyright 2008-2015, OpenRemote Inc.
+ *
+ * See the contributors.txt file in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.openremote.beehive.account.model;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.StringReader;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.ws.rs.core.MediaType;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import org.openremote.base.Defaults;
+import org.openremote.model.User;
+
+import org.openremote.beehive.account.model.rest.JSONArrayReader;
+import org.openremote.beehive.account.model.rest.RegistrationBatchReader;
+
+
+/**
+ * Unit tests for {@link org.openremote.beehive.account.model.RegistrationBatch} and
+ * {@link org.openremote.beehive.account.model.BatchResult} classes.
+ *
+ * @author Juha Lindfors
+ */
+public class RegistrationBatchTest
+{
+
+  // Tests ----------------------------------------------------------------------------------------
+
+  /**
+   * Read a batch of a registration and a fulfillment through the batch reader.
+   *
+   * @throws Exception  if test fails
+   */
+  @Test public void testBatchRead() throws Exception
+  {
+    String registration = new UserRegistration(
+        "batchuser1", "email@host.domain", "secretsecret".getBytes(Defaults.UTF8)
+    ).toJSONString();
+
+    String json = "[ " + registration + ", " + loadFulfillmentJSONFile("fulfillment.json") + " ]";
+
+    RegistrationBatch batch = read(json);
+
+    List<RegistrationBatch.Entry> entries = new ArrayList<RegistrationBatch.Entry>();
+
+    for (RegistrationBatch.Entry entry : batch)
+    {
+      entries.add(entry);
+    }
+
+    Assert.assertEquals(entries.size(), 2);
+
+    Assert.assertTrue(entries.get(0).isValid());
+    Assert.assertEquals(entries.get(0).getIndex(), 0);
+    Assert.assertEquals(entries.get(0).getRegistration().getName(), "batchuser1");
+
+    Assert.assertTrue(entries.get(1).isValid());
+    Assert.assertEquals(entries.get(1).getIndex(), 1);
+    Assert.assertEquals(entries.get(1).getRegistration().getName(), "testCustomerFulfillmentJSON");
+    Assert.assertTrue(entries.get(1).getRegistration() instanceof CustomerFulfillment);
+  }
+
+  /**
+   * Malformed entries are reported individually without stopping the rest of the batch.
+   *
+   * @throws Exception  if test fails
+   */
+  @Test public void testBatchMalformedEntry() throws Exception
+  {
+    String valid = new UserRegistration(
+        "batchuser3", "email@host.domain", "secretsecret".getBytes(Defaults.UTF8)
+    ).toJSONString();
+
+    RegistrationBatch batch = read("[ { \"foo\" : \"{[\" }, " + valid + " ]");
+
+    List<RegistrationBatch.Entry> entries = new ArrayList<RegistrationBatch.Entry>();
+
+    for (RegistrationBatch.Entry entry : batch)
+    {
+      entries.add(entry);
+    }
+
+    Assert.assertEquals(entries.size(), 2);
+    Assert.assertFalse(entries.get(0).isValid());
+    Assert.assertNotNull(entries.get(0).getError());
+    Assert.assertTrue(entries.get(1).isValid());
+  }
+
+  /**
+   * A fulfillment with a controller that has no identity is reported as an erroneous entry
+   * without stopping the rest of the batch.
+   *
+   * @throws Exception  if test fails
+   */
+  @Test public void testBatchControllerWithoutIdentity() throws Exception
+  {
+    String valid = new UserRegistration(
+        "batchuser4", "email@host.domain", "secretsecret".getBytes(Defaults.UTF8)
+    ).toJSONString();
+
+    String fulfillment = loadFulfillmentJSONFile("fulfillment.json");
+    String noIdentity = fulfillment.replace("\"identity\": \"test\",", "");
+
+    Assert.assertNotEquals(noIdentity, fulfillment);
+
+    RegistrationBatch batch = read("[ " + valid + ", " + noIdentity + ", " + fulfillment + " ]");
+
+    List<RegistrationBatch.Entry> entries = new ArrayList<RegistrationBatch.Entry>();
+
+    for (RegistrationBatch.Entry entry : batch)
+    {
+      entries.add(entry);
+    }
+
+    Assert.assertEquals(entries.size(), 3);
+    Assert.assertTrue(entries.get(0).isValid());
+    Assert.assertFalse(entries.get(1).isValid());
+    Assert.assertTrue(entries.get(1).getError().contains("identity"), entries.get(1).getError());
+    Assert.assertTrue(entries.get(2).isValid());
+  }
+
+  /**
+   * Broken array structure ends the batch with an erroneous entry.
+   *
+   * @throws Exception  if test fails
+   */
+  @Test public void testBatchTruncated() throws Exception
+  {
+    RegistrationBatch batch = read("[ { \"foo\" : ");
+
+    List<RegistrationBatch.Entry> entries = new ArrayList<RegistrationBatch.Entry>();
+
+    for (RegistrationBatch.Entry entry : batch)
+    {
+      entries.add(entry);
+    }
+
+    Assert.assertEquals(entries.size(), 1);
+    Assert.assertFalse(entries.get(0).isValid());
+  }
+
+  /**
+   * A fulfillment with many controllers is larger than the default element size of the JSON
+   * array reader, but is accepted as a batch element up to the configured element size.
+   *
+   * @throws Exception  if test fails
+   */
+  @Test public void testBatchLargeEntry() throws Exception
+  {
+    String fulfillment = createLargeFulfillmentJSON(500);
+
+    Assert.assertTrue(fulfillment.length() > JSONArrayReader.DEFAULT_MAX_ELEMENT_SIZE);
+
+    List<RegistrationBatch.Entry> entries = new ArrayList<RegistrationBatch.Entry>();
+
+    for (RegistrationBatch.Entry entry : read("[ " + fulfillment + " ]"))
+    {
+      entries.add(entry);
+    }
+
+    Assert.assertEquals(entries.size(), 1);
+    Assert.assertTrue(entries.get(0).isValid(), entries.get(0).getError());
+    Assert.assertEquals(
+        ((CustomerFulfillment)entries.get(0).getRegistration()).getControllers().size(), 500
+    );
+
+    // an element exceeding a smaller configured limit is rejected...
+
+    RegistrationBatchReader reader = new RegistrationBatchReader(
+        fulfillment.length() / 2, CustomerFulfillment.Limits.DEFAULT
+    );
+
+    entries.clear();
+
+    for (RegistrationBatch.Entry entry : read(reader, "[ " + fulfillment + " ]"))
+    {
+      entries.add(entry);
+    }
+
+    Assert.assertEquals(entries.size(), 1);
+    Assert.assertFalse(entries.get(0).isValid());
+
+    // as is an element exceeding the configured controller limits...
+
+    reader = new RegistrationBatchReader(
+        RegistrationBatchReader.DEFAULT_MAX_ELEMENT_SIZE, new CustomerFulfillment.Limits(499, 64)
+    );
+
+    entries.clear();
+
+    for (RegistrationBatch.Entry entry : read(reader, "[ " + fulfillment + " ]"))
+    {
+      entries.add(entry);
+    }
+
+    Assert.assertEquals(entries.size(), 1);
+    Assert.assertFalse(entries.get(0).isValid());
+  }
+
+  /**
+   * Read a newline delimited JSON stream of registrations through the batch reader.
+   *
+   * @throws Exception  if test fails
+   */
+  @Test public void testBatchReadNDJSON() throws Exception
+  {
+    List<UserRegistration> registrations = new ArrayList<UserRegistration>();
+
+    registrations.add(
+        new UserRegistration("batchuser4", "email@host.domain", "secretsecret".getBytes(Defaults.UTF8))
+    );
+
+    registrations.add(
+        new UserRegistration("batchuser5", "email@host.domain", "secretsecret".getBytes(Defaults.UTF8))
+    );
+
+    String ndjson = new RegistrationBatch(registrations).toNDJSONString();
+
+    Assert.assertEquals(ndjson.split("\n").length, 2);
+
+    RegistrationBatch batch = new RegistrationBatchReader().readFrom(
+        RegistrationBatch.class, null, null,
+        MediaType.valueOf(RegistrationBatch.NDJSON_HTTP_CONTENT_TYPE), null,
+        new ByteArrayInputStream(("\n" + ndjson + "\n").getBytes(Defaults.UTF8))
+    );
+
+    List<RegistrationBatch.Entry> entries = new ArrayList<RegistrationBatch.Entry>();
+
+    for (RegistrationBatch.Entry entry : batch)
+    {
+      entries.add(entry);
+    }
+
+    Assert.assertEquals(entries.size(), 2);
+    Assert.assertEquals(entries.get(0).getRegistration().getName(), "batchuser4");
+    Assert.assertEquals(entries.get(1).getRegistration().getName(), "batchuser5");
+  }
+
+  /**
+   * An exported account is read back by the account import with its encoded credentials
+   * unchanged, and an exported account without credentials cannot be imported with the
+   * credentials placeholder as its password.
+   *
+   * @throws Exception  if test fails
+   */
+  @Test public void testExportReimport() throws Exception
+  {
+    String hash = "$s0$e0801$c2FsdHNhbHRzYWx0c2FsdA==$aGFzaGhhc2hoYXNoaGFzaA==";
+
+    User user = new UserRegistration(
+        "exportuser", "email@host.domain", "secretsecret".getBytes(Defaults.UTF8)
+    );
+
+    // export writes the stored credentials marked as already encoded...
+
+    CustomerFulfillment exported = new CustomerFulfillment(
+        UserRegistration.withEncodedCredentials(
+            user, hash.getBytes(Defaults.UTF8), User.CredentialsEncoding.SCRYPT
+        ),
+        null
+    );
+
+    exported.addAttribute("accountId", "12");
+
+    // ...and users without stored credentials with a placeholder...
+
+    CustomerFulfillment placeholder = new CustomerFulfillment(
+        new UserRegistration(
+            user,
+            new User.Authentication(
+                UserRegistration.CREDENTIALS_NOT_PROVIDED.getBytes(Defaults.UTF8),
+                User.CredentialsEncoding.UNSPECIFIED
+            )
+        ),
+        null
+    );
+
+    String ndjson =
+        RegistrationBatch.toSingleLine(exported.toJSONString()) + "\n" +
+        RegistrationBatch.toSingleLine(placeholder.toJSONString()) + "\n";
+
+    RegistrationBatch batch = new RegistrationBatchReader().readFrom(
+        RegistrationBatch.class, null, null,
+        MediaType.valueOf(RegistrationBatch.NDJSON_HTTP_CONTENT_TYPE), null,
+        new ByteArrayInputStream(ndjson.getBytes(Defaults.UTF8))
+    );
+
+    List<RegistrationBatch.Entry> entries = new ArrayList<RegistrationBatch.Entry>();
+
+    for (RegistrationBatch.Entry entry : batch)
+    {
+      entries.add(entry);
+    }
+
+    Assert.assertEquals(entries.size(), 2);
+    Assert.assertTrue(entries.get(0).isValid());
+    Assert.assertTrue(entries.get(1).isValid());
+
+    UserRegistration imported = entries.get(0).getRegistration();
+
+    Assert.assertEquals(imported.getName(), "exportuser");
+    Assert.assertTrue(imported.hasCredentials());
+    Assert.assertEquals(imported.getEncodedCredentials(), User.CredentialsEncoding.SCRYPT);
+    Assert.assertEquals(imported.getAttribute(User.CREDENTIALS_ATTRIBUTE_NAME), hash);
+
+    imported.removeEncodedCredentialsMarker();
+
+    Assert.assertNull(imported.getEncodedCredentials());
+
+    UserRegistration missing = entries.get(1).getRegistration();
+
+    Assert.assertFalse(missing.hasCredentials());
+    Assert.assertNull(missing.getEncodedCredentials());
+  }
+
+  /**
+   * Batch results serialize to JSON and back.
+   *
+   * @throws Exception  if test fails
+   */
+  @Test public void testBatchResultJSON() throws Exception
+  {
+    BatchResult result = new BatchResult();
+    result.succeeded(0, "foo", 200, 12L);
+    result.failed(1, "bar", 409, "User 'bar' already exists.");
+
+    BatchResult copy = new BatchResult.ResultTransformer().read(
+        new StringReader(result.toJSONString())
+    );
+
+    Assert.assertEquals(copy.getSucceededCount(), 1);
+    Assert.assertEquals(copy.getFailedCount(), 1);
+    Assert.assertEquals(copy.getItems().get(0).getAccountId(), Long.valueOf(12));
+    Assert.assertEquals(copy.getItems().get(1).getStatus(), 409);
+    Assert.assertEquals(copy.getItems().get(1).getMessage(), "User 'bar' already exists.");
+  }
+
+
+  // Helper Methods -------------------------------------------------------------------------------
+
+  private RegistrationBatch read(String json) throws Exception
+  {
+    return read(new RegistrationBatchReader(), json);
+  }
+
+  private RegistrationBatch read(RegistrationBatchReader reader, String json) throws Exception
+  {
+    return reader.readFrom(
+        RegistrationBatch.class, null, null, null, null,
+        new ByteArrayInputStream(json.getBytes(Defaults.UTF8))
+    );
+  }
+
+  private String createLargeFulfillmentJSON(int controllers) throws IOException
+  {
+    String template = loadFulfillmentJSONFile("fulfillment.json");
+
+    int start = template.indexOf('{', template.indexOf("\"controllers\""));
+    int end = template.lastIndexOf(']', template.indexOf("\"userAttributes\""));
+
+    String controller = template.substring(start, end).trim();
+    StringBuilder builder = new StringBuilder();
+
+    for (int i = 0; i < controllers; ++i)
+    {
+      builder.append((i == 0) ? "" : ", ").append(
+          controller.replace("FF:FF:FF:FF:FF:FF", String.format("00:00:00:00:%02X:%02X", i >> 8, i & 0xFF))
+      );
+    }
+
+    return template.substring(0, start) + builder + "\n        " + template.substring(end);
+  }
+
+  private String loadFulfillmentJSONFile(String name) throws IOException
+  {
+    File testResourceDirs = new File(
+        System.getProperty("openremote.project.resources.dir"), "test"
+    );
+
+    File fulfillmentFile = new File(new File(testResourceDirs, "fulfillment"), name);
+
+    BufferedReader reader = new BufferedReader(
+        new InputStreamReader(new FileInputStream(fulfillmentFile), Defaults.UTF8)
+    );
+
+    StringBuilder builder = new StringBuilder();
+
+    try
+    {
+      while (true)
+      {
+        String line = reader.readLine();
+
+        if (line == null)
+        {
+          break;
+        }
+
+        builder.append(line).append("\n");
+      }
+    }
+
+    finally
+    {
+      reader.close();
+    }
+
+    return builder.toString();
+  }
+}
@@ -0,0 +1,153 @@
+/*
+ * OpenRemote, the Home of the Digital Home.
+ * Copyright 2008-2015, OpenRemote Inc.
+ *
+ * See the contributors.txt file in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.openremote.beehive.account.model;
+
+import java.io.StringReader;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import org.openremote.base.Defaults;
+
+
+/**
+ * Unit tests for {@link org.openremote.beehive.account.model.TransformerRegistry} class.
+ *
+ * @author Juha Lindfors
+ */
+public class TransformerRegistryTest
+{
+
+  // Tests ----------------------------------------------------------------------------------------
+
+  /**
+   * Released transformers are handed out again instead of creating new ones.
+   */
+  @Test public void testBorrowRelease()
+  {
+    TransformerRegistry.Transformers first = TransformerRegistry.borrow(AccountListing.class);
+    TransformerRegistry.Transformers second = TransformerRegistry.borrow(AccountListing.class);
+
+    Assert.assertNotSame(first, second);
+
+    TransformerRegistry.release(second);
+
+    Assert.assertSame(TransformerRegistry.borrow(AccountListing.class), second);
+
+    TransformerRegistry.release(first);
+    TransformerRegistry.release(second);
+  }
+
+  /**
+   * Pre-built transformer maps cannot be modified.
+   */
+  @Test (expectedExceptions = UnsupportedOperationException.class)
+  public void testImmutableTransformerMap()
+  {
+    TransformerRegistry.Transformers transformers = TransformerRegistry.borrow(BatchResult.class);
+
+    try
+    {
+      transformers.getTransformerMap().clear();
+    }
+
+    finally
+    {
+      TransformerRegistry.release(transformers);
+    }
+  }
+
+  /**
+   * Documents serialized concurrently through the registry are identical to the documents
+   * serialized by a single thread, and can be read back.
+   *
+   * @throws Exception  if test fails
+   */
+  @Test public void testConcurrentSerialization() throws Exception
+  {
+    final CustomerFulfillment fulfillment = new CustomerFulfillment(
+        new UserRegistration(
+            "registryuser", "email@host.domain", "secretsecret".getBytes(Defaults.UTF8)
+        ), null
+    );
+
+    final String expected = fulfillment.toJSONString();
+
+    ExecutorService executor = Executors.newFixedThreadPool(8);
+
+    try
+    {
+      List<Future<String>> results = new ArrayList<Future<String>>();
+
+      for (int i = 0; i < 200; ++i)
+      {
+        results.add(executor.submit(new Callable<String>()
+        {
+          @Override public String call() throws Exception
+          {
+            return fulfillment.toJSONString();
+          }
+        }));
+      }
+
+      for (Future<String> result : results)
+      {
+        Assert.assertEquals(result.get(), expected);
+      }
+    }
+
+    finally
+    {
+      executor.shutdownNow();
+    }
+
+    TransformerRegistry.Transformers transformers =
+        TransformerRegistry.borrow(CustomerFulfillment.class);
+
+    try
+    {
+      CustomerFulfillment copy = transformers.read(CustomerFulfillment.class, new StringReader(expected));
+
+      Assert.assertEquals(copy.getName(), "registryuser");
+    }
+
+    finally
+    {
+      TransformerRegistry.release(transformers);
+    }
+  }
+
+  /**
+   * Borrowing transformers for a type that has not been registered fails.
+   */
+  @Test (expectedExceptions = RuntimeException.class)
+  public void testUnregisteredType()
+  {
+    TransformerRegistry.borrow(String.class);
+  }
+}
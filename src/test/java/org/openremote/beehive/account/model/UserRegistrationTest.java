@@ -21,16 +21,24 @@
 package org.openremote.beehive.account.model;
 
 import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.io.StringReader;
 
 import java.util.HashSet;
 import java.util.Set;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
+import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.core.HttpHeaders;
+import javax.ws.rs.core.MultivaluedHashMap;
+import javax.ws.rs.core.MultivaluedMap;
+
 import org.testng.Assert;
 import org.testng.annotations.AfterMethod;
 import org.testng.annotations.BeforeClass;
@@ -44,6 +52,11 @@ import org.openremote.base.exception.IncorrectImplementationException;
 import org.openremote.model.Account;
 import org.openremote.model.Model;
 import org.openremote.model.User;
+import org.openremote.model.data.json.UserTransformer;
+
+import org.openremote.beehive.account.model.rest.StreamingUserRegistrationReader;
+import org.openremote.beehive.account.model.rest.UserRegistrationReader;
+import org.openremote.beehive.account.model.rest.UserWriter;
 
 import static org.openremote.beehive.account.model.UserRegistration.convertToUTF8Bytes;
 import static org.openremote.beehive.account.model.UserRegistration.clear;
@@ -950,6 +963,259 @@ public class UserRegistrationTest
 
 
 
+  // Streaming Reader Tests -----------------------------------------------------------------------
+
+  /**
+   * The streaming registration reader produces the same registration as the transformer.
+   *
+   * @throws Exception  if test fails
+   */
+  @Test public void testStreamingReader() throws Exception
+  {
+    for (String json : new String[] { userRegistrationJSON, userRegistrationCharsJSON })
+    {
+      User expected = new UserTransformer().read(new StringReader(json));
+
+      UserRegistration registration = readStreaming(json);
+
+      Assert.assertEquals(registration.getName(), expected.getName());
+      Assert.assertEquals(
+          registration.getAttribute(User.CREDENTIALS_ATTRIBUTE_NAME),
+          expected.getAttribute(User.CREDENTIALS_ATTRIBUTE_NAME)
+      );
+      Assert.assertEquals(
+          registration.getAttribute(User.AUTHMODE_ATTRIBUTE_NAME),
+          User.CredentialsEncoding.DEFAULT.getEncodingName()
+      );
+    }
+  }
+
+  /**
+   * Documents with a newer major schema version than supported are rejected.
+   *
+   * @throws Exception  if test fails
+   */
+  @Test (expectedExceptions = WebApplicationException.class)
+  public void testStreamingReaderUnsupportedSchema() throws Exception
+  {
+    readStreaming(userRegistrationJSON.replace("\"2.0.0\"", "\"99.0.0\""));
+  }
+
+  /**
+   * Truncated documents are rejected.
+   *
+   * @throws Exception  if test fails
+   */
+  @Test (expectedExceptions = WebApplicationException.class)
+  public void testStreamingReaderTruncated() throws Exception
+  {
+    readStreaming(userRegistrationJSON.substring(0, userRegistrationJSON.length() / 2));
+  }
+
+  /**
+   * Registrations without credentials are rejected.
+   *
+   * @throws Exception  if test fails
+   */
+  @Test (expectedExceptions = WebApplicationException.class)
+  public void testStreamingReaderNoCredentials() throws Exception
+  {
+    readStreaming(userRegistrationJSON.replace("\"credentials\"", "\"foo\""));
+  }
+
+
+
+  // Reader Equivalence Tests ---------------------------------------------------------------------
+
+  /**
+   * The streaming registration reader and the default registration reader produce equivalent
+   * registrations across credentials encodings and user attribute sets.
+   *
+   * @throws Exception  if test fails
+   */
+  @Test public void testReaderEquivalence() throws Exception
+  {
+    String[] authModes = new String[]
+    {
+        null, "", "scrypt", "SCRYPT", "legacy_beehive", "LEGACY_BEEHIVE", "UNSPECIFIED", "foo"
+    };
+
+    String[][] attributeSets = new String[][]
+    {
+        { },
+        { "foo", "bar" },
+        { "foo", "", "locale", "fi_FI", "chars", "\\u00e4\\u20ac\\ud83d\\ude00 <\"bar\">" }
+    };
+
+    for (String authMode : authModes)
+    {
+      for (String[] attributes : attributeSets)
+      {
+        String json = createRegistrationJSON("equivalence", "secretsecret", authMode, attributes);
+
+        UserRegistration expected = readDefault(json);
+        UserRegistration registration = readStreaming(json);
+
+        Assert.assertEquals(registration.getName(), expected.getName(), json);
+        Assert.assertEquals(
+            new RegistrationData(registration).email, new RegistrationData(expected).email, json
+        );
+
+        Assert.assertEquals(
+            registration.getAttribute(User.CREDENTIALS_ATTRIBUTE_NAME),
+            expected.getAttribute(User.CREDENTIALS_ATTRIBUTE_NAME), json
+        );
+
+        Assert.assertEquals(
+            registration.getAttribute(User.AUTHMODE_ATTRIBUTE_NAME),
+            expected.getAttribute(User.AUTHMODE_ATTRIBUTE_NAME), json
+        );
+
+        for (int i = 0; i < attributes.length; i += 2)
+        {
+          Assert.assertEquals(
+              registration.getAttribute(attributes[i]), expected.getAttribute(attributes[i]), json
+          );
+        }
+      }
+    }
+
+    Assert.assertEquals(
+        readStreaming(userRegistrationJSON).getName(), readDefault(userRegistrationJSON).getName()
+    );
+  }
+
+  /**
+   * The streaming registration reader and the default registration reader both reject
+   * malformed registration documents.
+   *
+   * @throws Exception  if test fails
+   */
+  @Test public void testReaderEquivalenceMalformed() throws Exception
+  {
+    String json = createRegistrationJSON("malformed", "secretsecret", "scrypt", new String[] { });
+
+    String[] malformed = new String[]
+    {
+        "",
+        "foo",
+        "[]",
+        json.substring(0, json.length() / 2),
+        json.replace("\"credentials\"", "\"foo\""),
+        createRegistrationJSON("malformed", "", "scrypt", new String[] { }),
+        createRegistrationJSON("", "secretsecret", "scrypt", new String[] { })
+    };
+
+    for (String document : malformed)
+    {
+      assertRejected(document, false);
+      assertRejected(document, true);
+    }
+  }
+
+  /**
+   * Both registration readers drop the encoded credentials marker so that a single user
+   * registration cannot store a client provided credential hash.
+   *
+   * @throws Exception  if test fails
+   */
+  @Test public void testReaderEncodedCredentialsMarker() throws Exception
+  {
+    String json = createRegistrationJSON(
+        "encoded", "$s0$e0801$c2FsdA==$aGFzaA==", "scrypt",
+        new String[] { UserRegistration.ENCODED_CREDENTIALS_ATTRIBUTE_NAME, "SCRYPT" }
+    );
+
+    UserRegistration registration = readDefault(json);
+
+    Assert.assertNull(registration.getAttribute(UserRegistration.ENCODED_CREDENTIALS_ATTRIBUTE_NAME));
+    Assert.assertNull(registration.getEncodedCredentials());
+
+    registration = readStreaming(json);
+
+    Assert.assertNull(registration.getAttribute(UserRegistration.ENCODED_CREDENTIALS_ATTRIBUTE_NAME));
+    Assert.assertNull(registration.getEncodedCredentials());
+  }
+
+
+  // Writer Tests ---------------------------------------------------------------------------------
+
+  /**
+   * The user writer sets the content length of small documents, encodes them as UTF-8 and
+   * replaces the credentials with a placeholder.
+   *
+   * @throws Exception  if test fails
+   */
+  @Test public void testUserWriter() throws Exception
+  {
+    UserRegistration registration = new UserRegistration(
+        "writeruser", "email@host.domain", "secretsecret".getBytes(UserRegistration.UTF8)
+    );
+
+    registration.addAttribute("foo", "\u00e4\u20ac\ud83d\ude00 <\"bar\">");
+
+    MultivaluedMap<String, Object> headers = new MultivaluedHashMap<String, Object>();
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+    new UserWriter().writeTo(registration, UserRegistration.class, null, null, null, headers, out);
+
+    Assert.assertEquals(
+        headers.getFirst(HttpHeaders.CONTENT_LENGTH), Integer.toString(out.size())
+    );
+
+    User user = new UserTransformer().read(
+        new StringReader(new String(out.toByteArray(), UserRegistration.UTF8))
+    );
+
+    Assert.assertEquals(user.getName(), "writeruser");
+    Assert.assertEquals(user.getAttribute("foo"), "\u00e4\u20ac\ud83d\ude00 <\"bar\">");
+    Assert.assertEquals(user.getAttribute(User.CREDENTIALS_ATTRIBUTE_NAME), "<not provided>");
+
+    // the written user itself is not modified...
+
+    Assert.assertEquals(registration.getAttribute(User.CREDENTIALS_ATTRIBUTE_NAME), "secretsecret");
+  }
+
+  /**
+   * Documents that do not fit into the write buffer are written without a content length.
+   *
+   * @throws Exception  if test fails
+   */
+  @Test public void testUserWriterLargeDocument() throws Exception
+  {
+    UserRegistration registration = new UserRegistration(
+        "writeruser", "email@host.domain", "secretsecret".getBytes(UserRegistration.UTF8)
+    );
+
+    StringBuilder value = new StringBuilder();
+
+    for (int i = 0; i < 100; ++i)
+    {
+      value.append('\u00e4');
+    }
+
+    for (int i = 0; i < 100; ++i)
+    {
+      registration.addAttribute("attribute" + i, value.toString());
+    }
+
+    MultivaluedMap<String, Object> headers = new MultivaluedHashMap<String, Object>();
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+    new UserWriter().writeTo(registration, UserRegistration.class, null, null, null, headers, out);
+
+    Assert.assertNull(headers.getFirst(HttpHeaders.CONTENT_LENGTH));
+    Assert.assertTrue(out.size() > 2 * 100 * 100);
+
+    User user = new UserTransformer().read(
+        new StringReader(new String(out.toByteArray(), UserRegistration.UTF8))
+    );
+
+    Assert.assertEquals(user.getAttribute("attribute99"), value.toString());
+  }
+
+
+
   // ToJSONString Tests ---------------------------------------------------------------------------
 /*
   @Test public void testUserRegistrationJSON() throws Exception
@@ -982,6 +1248,78 @@ public class UserRegistrationTest
 
   // Helper Methods -------------------------------------------------------------------------------
 
+  private UserRegistration readStreaming(String json)
+  {
+    return new StreamingUserRegistrationReader().readFrom(
+        UserRegistration.class, null, null, null, null,
+        new ByteArrayInputStream(json.getBytes(UserRegistration.UTF8))
+    );
+  }
+
+  private UserRegistration readDefault(String json)
+  {
+    return new UserRegistrationReader().readFrom(
+        UserRegistration.class, null, null, null, null,
+        new ByteArrayInputStream(json.getBytes(UserRegistration.UTF8))
+    );
+  }
+
+  private void assertRejected(String json, boolean streaming)
+  {
+    try
+    {
+      if (streaming)
+      {
+        readStreaming(json);
+      }
+
+      else
+      {
+        readDefault(json);
+      }
+
+      Assert.fail((streaming ? "Streaming" : "Default") + " reader accepted: " + json);
+    }
+
+    catch (WebApplicationException exception)
+    {
+      Assert.assertEquals(
+          exception.getResponse().getStatus(), 400,
+          (streaming ? "Streaming" : "Default") + " reader status for: " + json
+      );
+    }
+  }
+
+  /**
+   * Creates a user registration document. Non-ASCII characters are expected to be escaped
+   * in the given values so that the document does not depend on the platform charset.
+   */
+  private String createRegistrationJSON(String username, String credentials, String authMode,
+                                        String[] attributes)
+  {
+    StringBuilder builder = new StringBuilder();
+
+    builder.append("{ \"libraryName\": \"OpenRemote Object Model\", ")
+        .append("\"javaFullClassName\": \"org.openremote.beehive.account.model.UserRegistration\", ")
+        .append("\"schemaVersion\": \"2.0.0\", \"apiVersion\": \"0.2\", ")
+        .append("\"model\": { \"username\": \"").append(username).append("\", ")
+        .append("\"email\": \"email@host.domain\", \"userAttributes\": { ")
+        .append("\"credentials\": \"").append(credentials).append("\"");
+
+    if (authMode != null)
+    {
+      builder.append(", \"authMode\": \"").append(authMode).append("\"");
+    }
+
+    for (int i = 0; i < attributes.length; i += 2)
+    {
+      builder.append(", \"").append(attributes[i]).append("\": \"")
+          .append(attributes[i + 1].replace("\"", "\\\"")).append("\"");
+    }
+
+    return builder.append(" } } }").toString();
+  }
+
 
   private boolean compare(String json1, String json2)
   {
@@ -0,0 +1,157 @@
+/*
+ * OpenRemote, the Home of the Digital Home.
+ * Copyright 2008-2015, OpenRemote Inc.
+ *
+ * See the contributors.txt file in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.openremote.beehive.account.realm;
+
+import java.security.Principal;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+
+/**
+ * Unit tests for {@link org.openremote.beehive.account.realm.AuthenticationCache} class.
+ *
+ * @author Juha Lindfors
+ */
+public class AuthenticationCacheTest
+{
+
+  // Tests ----------------------------------------------------------------------------------------
+
+  /**
+   * A cached authentication is returned only for the same username and credentials.
+   */
+  @Test public void testGetPut()
+  {
+    AuthenticationCache cache = new AuthenticationCache(10, 60000);
+    Principal principal = new TestPrincipal("alice");
+
+    Assert.assertNull(cache.get("alice", "secret"));
+
+    cache.put("alice", "secret", principal, cache.getGeneration());
+
+    Assert.assertSame(cache.get("alice", "secret"), principal);
+    Assert.assertNull(cache.get("alice", "Secret"));
+    Assert.assertNull(cache.get("bob", "secret"));
+
+    Assert.assertEquals(cache.getSize(), 1);
+    Assert.assertEquals(cache.getHitCount(), 1);
+    Assert.assertEquals(cache.getMissCount(), 3);
+  }
+
+  /**
+   * Invalidation removes the cached authentications of a user regardless of the case and
+   * accents of the username, and leaves other users cached.
+   */
+  @Test public void testInvalidateNormalized()
+  {
+    AuthenticationCache cache = new AuthenticationCache(10, 60000);
+
+    cache.put("Alice", "secret", new TestPrincipal("Alice"), cache.getGeneration());
+    cache.put("alice", "other", new TestPrincipal("alice"), cache.getGeneration());
+    cache.put("\u00e9lise", "secret", new TestPrincipal("\u00e9lise"), cache.getGeneration());
+    cache.put("bob", "secret", new TestPrincipal("bob"), cache.getGeneration());
+
+    cache.invalidate("ALICE");
+
+    Assert.assertNull(cache.get("Alice", "secret"));
+    Assert.assertNull(cache.get("alice", "other"));
+    Assert.assertNotNull(cache.get("bob", "secret"));
+
+    cache.invalidate("Elise");
+
+    Assert.assertNull(cache.get("\u00e9lise", "secret"));
+    Assert.assertEquals(cache.getSize(), 1);
+  }
+
+  /**
+   * An authentication loaded before an invalidation is not cached.
+   */
+  @Test public void testGeneration()
+  {
+    AuthenticationCache cache = new AuthenticationCache(10, 60000);
+
+    long generation = cache.getGeneration();
+
+    cache.invalidate("alice");
+    cache.put("alice", "secret", new TestPrincipal("alice"), generation);
+
+    Assert.assertNull(cache.get("alice", "secret"));
+
+    generation = cache.getGeneration();
+
+    cache.invalidateAll();
+    cache.put("alice", "secret", new TestPrincipal("alice"), generation);
+
+    Assert.assertEquals(cache.getSize(), 0);
+  }
+
+  /**
+   * The least recently used authentication is evicted once the cache is full.
+   */
+  @Test public void testMaxSize()
+  {
+    AuthenticationCache cache = new AuthenticationCache(2, 60000);
+
+    cache.put("alice", "secret", new TestPrincipal("alice"), cache.getGeneration());
+    cache.put("bob", "secret", new TestPrincipal("bob"), cache.getGeneration());
+
+    Assert.assertNotNull(cache.get("alice", "secret"));
+
+    cache.put("carol", "secret", new TestPrincipal("carol"), cache.getGeneration());
+
+    Assert.assertEquals(cache.getSize(), 2);
+    Assert.assertNotNull(cache.get("alice", "secret"));
+    Assert.assertNull(cache.get("bob", "secret"));
+  }
+
+  /**
+   * Expired authentications are not returned and are removed from the cache.
+   */
+  @Test public void testExpiry()
+  {
+    AuthenticationCache cache = new AuthenticationCache(10, -1);
+
+    cache.put("alice", "secret", new TestPrincipal("alice"), cache.getGeneration());
+
+    Assert.assertNull(cache.get("alice", "secret"));
+    Assert.assertEquals(cache.getSize(), 0);
+  }
+
+
+
+  // Nested Classes -------------------------------------------------------------------------------
+
+  private static class TestPrincipal implements Principal
+  {
+    private String name;
+
+    private TestPrincipal(String name)
+    {
+      this.name = name;
+    }
+
+    @Override public String getName()
+    {
+      return name;
+    }
+  }
+}
@@ -0,0 +1,217 @@
+/*
+ * OpenRemote, the Home of the Digital Home.
+ * Copyright 2008-2015, OpenRemote Inc.
+ *
+ * See the contributors.txt file in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.openremote.beehive.account.realm;
+
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.security.Principal;
+import java.sql.Connection;
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.testng.Assert;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.Test;
+
+
+/**
+ * Unit tests for {@link org.openremote.beehive.account.realm.CachingDataSourceRealm} class.
+ *
+ * @author Juha Lindfors
+ */
+public class CachingDataSourceRealmTest
+{
+
+  // Instance Fields ------------------------------------------------------------------------------
+
+  private TestRealm realm;
+
+
+  // Test Lifecycle -------------------------------------------------------------------------------
+
+  @AfterMethod public void stop() throws Exception
+  {
+    if (realm != null)
+    {
+      realm.stop();
+      realm = null;
+    }
+  }
+
+
+  // Tests ----------------------------------------------------------------------------------------
+
+  /**
+   * A successful authentication is answered from the cache, failed authentications and
+   * different credentials are always checked against the database.
+   *
+   * @throws Exception  if test fails
+   */
+  @Test public void testCachedAuthentication() throws Exception
+  {
+    realm = createRealm(10, 60);
+
+    Principal principal = realm.authenticate("alice", "secret");
+
+    Assert.assertNotNull(principal);
+    Assert.assertSame(realm.authenticate("alice", "secret"), principal);
+    Assert.assertEquals(realm.queries, 1);
+
+    Assert.assertNull(realm.authenticate("alice", "wrong"));
+    Assert.assertNull(realm.authenticate("alice", "wrong"));
+    Assert.assertEquals(realm.queries, 3);
+  }
+
+  /**
+   * The cache is registered in the platform MBean server on start, and invalidating a user
+   * through it requires the next authentication to query the database. The registration is
+   * removed on stop.
+   *
+   * @throws Exception  if test fails
+   */
+  @Test public void testInvalidationMBean() throws Exception
+  {
+    realm = createRealm(10, 60);
+
+    MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+    ObjectName pattern = new ObjectName(AuthenticationCacheMBean.OBJECT_NAME_PREFIX + ",*");
+
+    Assert.assertEquals(server.queryNames(pattern, null).size(), 1);
+
+    ObjectName name = server.queryNames(pattern, null).iterator().next();
+
+    realm.authenticate("Alice", "secret");
+
+    Assert.assertEquals(server.getAttribute(name, "Size"), 1);
+
+    server.invoke(name, "invalidate", new Object[] { "alice" }, new String[] { String.class.getName() });
+
+    realm.authenticate("Alice", "secret");
+
+    Assert.assertEquals(realm.queries, 2);
+
+    realm.stop();
+    realm = null;
+
+    Assert.assertTrue(server.queryNames(pattern, null).isEmpty());
+  }
+
+  /**
+   * A zero cache size or time-to-live disables the cache.
+   *
+   * @throws Exception  if test fails
+   */
+  @Test public void testCacheDisabled() throws Exception
+  {
+    realm = createRealm(0, 60);
+
+    realm.authenticate("alice", "secret");
+    realm.authenticate("alice", "secret");
+
+    Assert.assertEquals(realm.queries, 2);
+
+    realm.stop();
+
+    realm = createRealm(10, 0);
+
+    realm.authenticate("alice", "secret");
+    realm.authenticate("alice", "secret");
+
+    Assert.assertEquals(realm.queries, 2);
+    Assert.assertTrue(ManagementFactory.getPlatformMBeanServer().queryNames(
+        new ObjectName(AuthenticationCacheMBean.OBJECT_NAME_PREFIX + ",*"), null).isEmpty()
+    );
+  }
+
+
+
+  // Helpers --------------------------------------------------------------------------------------
+
+  private TestRealm createRealm(int cacheSize, int cacheTimeToLive) throws Exception
+  {
+    TestRealm testRealm = new TestRealm();
+
+    testRealm.setCacheSize(cacheSize);
+    testRealm.setCacheTimeToLive(cacheTimeToLive);
+    testRealm.passwords.put("alice", "secret");
+
+    testRealm.start();
+
+    return testRealm;
+  }
+
+
+
+  // Nested Classes -------------------------------------------------------------------------------
+
+  /**
+   * Data source realm that authenticates against an in-memory password map instead of a
+   * database, counting the queries.
+   */
+  private static class TestRealm extends CachingDataSourceRealm
+  {
+    private Map<String, String> passwords = new HashMap<String, String>();
+
+    private int queries = 0;
+
+    @Override protected Connection open()
+    {
+      return (Connection)Proxy.newProxyInstance(
+          Connection.class.getClassLoader(), new Class<?>[] { Connection.class },
+          new InvocationHandler()
+          {
+            @Override public Object invoke(Object proxy, Method method, Object[] args)
+            {
+              throw new UnsupportedOperationException(method.getName());
+            }
+          }
+      );
+    }
+
+    @Override protected void close(Connection connection)
+    {
+      // no-op
+    }
+
+    @Override protected Principal authenticate(Connection connection, String username, String credentials)
+    {
+      queries++;
+
+      if (!credentials.equals(passwords.get(username.toLowerCase())))
+      {
+        return null;
+      }
+
+      return new Principal()
+      {
+        @Override public String getName()
+        {
+          return "alice";
+        }
+      };
+    }
+  }
+}
@@ -0,0 +1,181 @@
+/*
+ * OpenRemote, the Home of the Digital Home.
+ * Copyright 2008-2015, OpenRemote Inc.
+ *
+ * See the contributors.txt file in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.openremote.beehive.account.service;
+
+import java.util.Arrays;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+
+/**
+ * Unit tests for {@link org.openremote.beehive.account.service.AccountCache} class.
+ *
+ * @author Juha Lindfors
+ */
+public class AccountCacheTest
+{
+
+  // Tests ----------------------------------------------------------------------------------------
+
+  /**
+   * A stored listing is returned for the username regardless of its case and accents.
+   */
+  @Test public void testGetPut()
+  {
+    AccountCache cache = new AccountCache(10, 60000);
+
+    Assert.assertNull(cache.get("alice"));
+
+    cache.put("Alice", "{ listing }", cache.getGeneration());
+
+    Assert.assertEquals(cache.get("alice"), "{ listing }");
+    Assert.assertEquals(cache.get("\u00c1LICE"), "{ listing }");
+    Assert.assertNull(cache.get("bob"));
+
+    Assert.assertEquals(cache.getStatistics().getHitCount(), 2);
+    Assert.assertEquals(cache.getStatistics().getMissCount(), 2);
+  }
+
+  /**
+   * A listing loaded before an invalidation of any user is not stored, a listing loaded after
+   * it is.
+   */
+  @Test public void testGeneration()
+  {
+    AccountCache cache = new AccountCache(10, 60000);
+
+    long generation = cache.getGeneration();
+
+    cache.invalidate("bob");
+    cache.put("alice", "{ stale }", generation);
+
+    Assert.assertNull(cache.get("alice"));
+
+    generation = cache.getGeneration();
+
+    cache.invalidate(Arrays.asList("bob", "carol"));
+    cache.put("alice", "{ stale }", generation);
+
+    Assert.assertNull(cache.get("alice"));
+
+    generation = cache.getGeneration();
+
+    cache.invalidateAll();
+    cache.put("alice", "{ stale }", generation);
+
+    Assert.assertNull(cache.get("alice"));
+
+    cache.put("alice", "{ listing }", cache.getGeneration());
+
+    Assert.assertEquals(cache.get("alice"), "{ listing }");
+  }
+
+  /**
+   * Invalidation removes the listings of the given users, regardless of the case the listing
+   * was requested with.
+   */
+  @Test public void testInvalidate()
+  {
+    AccountCache cache = new AccountCache(10, 60000);
+
+    cache.put("alice", "{ alice }", cache.getGeneration());
+    cache.put("bob", "{ bob }", cache.getGeneration());
+    cache.put("carol", "{ carol }", cache.getGeneration());
+
+    cache.invalidate("Alice");
+
+    Assert.assertNull(cache.get("alice"));
+    Assert.assertNotNull(cache.get("bob"));
+
+    cache.invalidate(Arrays.asList("BOB", "dave"));
+
+    Assert.assertNull(cache.get("bob"));
+    Assert.assertNotNull(cache.get("carol"));
+
+    cache.invalidateAll();
+
+    Assert.assertNull(cache.get("carol"));
+    Assert.assertEquals(cache.getStatistics().getEvictionCount(), 3);
+  }
+
+  /**
+   * The least recently used listing is evicted once the cache is full, and expired listings
+   * are not returned.
+   */
+  @Test public void testEviction()
+  {
+    AccountCache cache = new AccountCache(2, 60000);
+
+    cache.put("alice", "{ alice }", cache.getGeneration());
+    cache.put("bob", "{ bob }", cache.getGeneration());
+
+    Assert.assertNotNull(cache.get("alice"));
+
+    cache.put("carol", "{ carol }", cache.getGeneration());
+
+    Assert.assertNotNull(cache.get("alice"));
+    Assert.assertNull(cache.get("bob"));
+
+    cache = new AccountCache(2, 1);
+
+    cache.put("alice", "{ alice }", cache.getGeneration());
+
+    sleep(10);
+
+    Assert.assertNull(cache.get("alice"));
+  }
+
+  /**
+   * A zero size or time-to-live disables the cache.
+   */
+  @Test public void testDisabled()
+  {
+    AccountCache cache = new AccountCache(0, 60000);
+
+    cache.put("alice", "{ alice }", cache.getGeneration());
+
+    Assert.assertNull(cache.get("alice"));
+
+    cache = new AccountCache(10, 0);
+
+    cache.put("alice", "{ alice }", cache.getGeneration());
+
+    Assert.assertNull(cache.get("alice"));
+  }
+
+
+
+  // Helpers --------------------------------------------------------------------------------------
+
+  private void sleep(long millis)
+  {
+    try
+    {
+      Thread.sleep(millis);
+    }
+
+    catch (InterruptedException exception)
+    {
+      Thread.currentThread().interrupt();
+    }
+  }
+}
@@ -0,0 +1,202 @@
+/*
+ * OpenRemote, the Home of the Digital Home.
+ * Copyright 2008-2015, OpenRemote Inc.
+ *
+ * See the contributors.txt file in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.openremote.beehive.account.service;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+
+/**
+ * Unit tests for {@link org.openremote.beehive.account.service.AccountRemoval} class. The
+ * removal is run against a {@link ScriptedEntityManager}, the tests verify the delete
+ * statements issued and the identifiers they are issued for.
+ *
+ * @author Juha Lindfors
+ */
+public class AccountRemovalTest
+{
+
+  // Constants ------------------------------------------------------------------------------------
+
+  private static final String FIND_LEGACY_USERS =
+      "SELECT u.id, u.username, a.id FROM BeehiveUser u LEFT JOIN u.account a " +
+      "WHERE u.username IN :names";
+
+  private static final String FIND_USERS =
+      "SELECT u.id, u.username FROM User u WHERE u.username IN :names";
+
+  private static final String FIND_ACCOUNTS =
+      "SELECT DISTINCT a.id FROM User u JOIN u.accounts a WHERE u.id IN :userIds";
+
+  private static final String FIND_SHARED_ACCOUNTS =
+      "SELECT DISTINCT a.id FROM User u JOIN u.accounts a " +
+      "WHERE a.id IN :accountIds AND u.id NOT IN :userIds";
+
+  private static final String FIND_CONTROLLERS =
+      "SELECT c.id FROM Controller c WHERE c.account.id IN :accountIds";
+
+
+  // Tests ----------------------------------------------------------------------------------------
+
+  /**
+   * Legacy Beehive users are removed with their role assignments, their account's controllers
+   * and their account. The usernames are returned as stored. Unknown usernames are ignored.
+   */
+  @Test public void testRemoveLegacyBeehive()
+  {
+    ScriptedEntityManager em = new ScriptedEntityManager();
+
+    em.respond(FIND_LEGACY_USERS, Arrays.asList(
+        new Object[] { 1L, "Alice", 10L },
+        new Object[] { 2L, "bob", null }
+    ));
+
+    AccountRemoval removal = new AccountRemoval(config(CreateAccount.Schema.LEGACY_BEEHIVE), em.getEntityManager());
+
+    Assert.assertEquals(
+        removal.remove(Arrays.asList("alice", "bob", "nobody")),
+        new HashSet<String>(Arrays.asList("Alice", "bob"))
+    );
+
+    List<ScriptedEntityManager.Statement> updates = em.getUpdates();
+
+    Assert.assertEquals(updates.size(), 4);
+
+    assertUpdate(updates.get(0), "DELETE FROM MinimalBeehiveUserRole", "userIds", Arrays.asList(1L, 2L));
+    assertUpdate(updates.get(1), "DELETE FROM BeehiveController", "accountIds", Arrays.asList(10L));
+    assertUpdate(updates.get(2), "DELETE FROM BeehiveUser", "userIds", Arrays.asList(1L, 2L));
+    assertUpdate(updates.get(3), "DELETE FROM Account", "accountIds", Arrays.asList(10L));
+
+    // the account is only removed if no other user refers to it...
+
+    Assert.assertTrue(updates.get(3).getQuery().contains("NOT EXISTS"));
+  }
+
+  /**
+   * Account Manager 2.0 users are removed with their attributes and account links. Only the
+   * accounts left without users are removed, along with their controllers and the
+   * controllers' collection tables.
+   */
+  @Test public void testRemoveAccountManager()
+  {
+    ScriptedEntityManager em = new ScriptedEntityManager();
+
+    em.respond(FIND_USERS, Arrays.asList(new Object[] { 1L, "alice" }, new Object[] { 2L, "bob" }));
+    em.respond(FIND_ACCOUNTS, Arrays.asList(10L, 11L));
+    em.respond(FIND_SHARED_ACCOUNTS, Arrays.asList(11L));
+    em.respond(FIND_CONTROLLERS, Arrays.asList(100L, 101L));
+
+    AccountRemoval removal = new AccountRemoval(config(CreateAccount.Schema.ACCOUNT_MANAGER_2_0), em.getEntityManager());
+
+    Assert.assertEquals(
+        removal.remove(Arrays.asList("alice", "bob")), new HashSet<String>(Arrays.asList("alice", "bob"))
+    );
+
+    List<ScriptedEntityManager.Statement> updates = em.getUpdates();
+
+    Assert.assertEquals(updates.size(), 8);
+
+    assertNative(updates.get(0), "controller_macs", Arrays.asList(100L, 101L));
+    assertNative(updates.get(1), "controller_attributes", Arrays.asList(100L, 101L));
+    assertUpdate(updates.get(2), "DELETE FROM Controller", "controllerIds", Arrays.asList(100L, 101L));
+    assertNative(updates.get(3), "user_attributes", Arrays.asList(1L, 2L));
+    assertNative(updates.get(4), "user_accounts", Arrays.asList(1L, 2L));
+    assertUpdate(updates.get(5), "DELETE FROM User", "userIds", Arrays.asList(1L, 2L));
+    assertNative(updates.get(6), "account_attributes", Arrays.asList(10L));
+    assertUpdate(updates.get(7), "DELETE FROM Account", "accountIds", Arrays.asList(10L));
+  }
+
+  /**
+   * Users whose accounts are all shared with other users are removed without removing any
+   * accounts or controllers.
+   */
+  @Test public void testRemoveSharedAccounts()
+  {
+    ScriptedEntityManager em = new ScriptedEntityManager();
+
+    em.respond(FIND_USERS, Collections.singletonList(new Object[] { 1L, "alice" }));
+    em.respond(FIND_ACCOUNTS, Arrays.asList(10L));
+    em.respond(FIND_SHARED_ACCOUNTS, Arrays.asList(10L));
+
+    new AccountRemoval(config(CreateAccount.Schema.ACCOUNT_MANAGER_2_0), em.getEntityManager())
+        .remove(Collections.singletonList("alice"));
+
+    List<ScriptedEntityManager.Statement> updates = em.getUpdates();
+
+    Assert.assertEquals(updates.size(), 3);
+
+    assertNative(updates.get(0), "user_attributes", Arrays.asList(1L));
+    assertNative(updates.get(1), "user_accounts", Arrays.asList(1L));
+    assertUpdate(updates.get(2), "DELETE FROM User", "userIds", Arrays.asList(1L));
+
+    Assert.assertFalse(em.getQueries().contains(FIND_CONTROLLERS));
+  }
+
+  /**
+   * Nothing is deleted if none of the users exist, and an empty username list does not query
+   * the database at all.
+   */
+  @Test public void testRemoveNone()
+  {
+    ScriptedEntityManager em = new ScriptedEntityManager();
+
+    em.respond(FIND_USERS, Collections.emptyList());
+
+    AccountRemoval removal = new AccountRemoval(config(CreateAccount.Schema.ACCOUNT_MANAGER_2_0), em.getEntityManager());
+
+    Assert.assertTrue(removal.remove(Collections.singletonList("nobody")).isEmpty());
+    Assert.assertTrue(removal.remove(Collections.<String>emptyList()).isEmpty());
+
+    Assert.assertEquals(em.getQueries().size(), 1);
+    Assert.assertTrue(em.getUpdates().isEmpty());
+  }
+
+
+
+  // Helpers --------------------------------------------------------------------------------------
+
+  private ServiceConfiguration config(CreateAccount.Schema schema)
+  {
+    return new ServiceConfiguration(Collections.singletonMap(
+        ServiceConfiguration.WEBAPP_PARAM_SERVICE_DB_SCHEMA, schema.name()
+    ));
+  }
+
+  private void assertUpdate(ScriptedEntityManager.Statement update, String statement,
+                            String parameter, List<Long> ids)
+  {
+    Assert.assertFalse(update.isNative(), update.getQuery());
+    Assert.assertTrue(update.getQuery().startsWith(statement), update.getQuery());
+    Assert.assertEquals(update.getParameter(parameter), ids);
+  }
+
+  private void assertNative(ScriptedEntityManager.Statement update, String table, List<Long> ids)
+  {
+    Assert.assertTrue(update.isNative(), update.getQuery());
+    Assert.assertTrue(update.getQuery().startsWith("DELETE FROM " + table + " "), update.getQuery());
+    Assert.assertEquals(update.getParameter("ids"), ids);
+  }
+}
@@ -0,0 +1,238 @@
+/*
+ * OpenRemote, the Home of the Digital Home.
+ * Copyright 2008-2015, OpenRemote Inc.
+ *
+ * See the contributors.txt file in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.openremote.beehive.account.service;
+
+import java.io.ByteArrayInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import javax.ws.rs.WebApplicationException;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+
+/**
+ * Unit tests for {@link org.openremote.beehive.account.service.BoundedInputStream} class.
+ *
+ * @author Juha Lindfors
+ */
+public class BoundedInputStreamTest
+{
+
+  // Tests ----------------------------------------------------------------------------------------
+
+  /**
+   * An entity up to the maximum size is read in full.
+   *
+   * @throws Exception  if test fails
+   */
+  @Test public void testWithinLimits() throws Exception
+  {
+    BoundedInputStream in = new BoundedInputStream(new ByteArrayInputStream(new byte[100]), 100, 0);
+
+    Assert.assertEquals(readAll(in), 100);
+    Assert.assertEquals(in.getCount(), 100);
+    Assert.assertEquals(in.read(), -1);
+
+    in.checkViolation();
+  }
+
+  /**
+   * An oversize entity fails with HTTP 413, having read at most one byte past the limit, and
+   * the violation is raised again by subsequent reads.
+   *
+   * @throws Exception  if test fails
+   */
+  @Test public void testEntityTooLarge() throws Exception
+  {
+    BoundedInputStream in = new BoundedInputStream(new ByteArrayInputStream(new byte[1000]), 100, 0);
+
+    assertStatus(in, HttpRequestEntityTooLarge.STATUS_CODE);
+
+    Assert.assertEquals(in.getCount(), 101);
+
+    try
+    {
+      in.read();
+
+      Assert.fail("Should not get here...");
+    }
+
+    catch (WebApplicationException exception)
+    {
+      Assert.assertEquals(exception.getResponse().getStatus(), HttpRequestEntityTooLarge.STATUS_CODE);
+    }
+
+    try
+    {
+      in.checkViolation();
+
+      Assert.fail("Should not get here...");
+    }
+
+    catch (WebApplicationException exception)
+    {
+      Assert.assertEquals(exception.getResponse().getStatus(), HttpRequestEntityTooLarge.STATUS_CODE);
+    }
+  }
+
+  /**
+   * Single byte reads and skips count against the maximum size as well.
+   *
+   * @throws Exception  if test fails
+   */
+  @Test public void testSingleByteReadsAndSkip() throws Exception
+  {
+    BoundedInputStream in = new BoundedInputStream(new ByteArrayInputStream(new byte[10]), 3, 0);
+
+    in.read();
+    in.read();
+    in.read();
+
+    try
+    {
+      in.read();
+
+      Assert.fail("Should not get here...");
+    }
+
+    catch (WebApplicationException exception)
+    {
+      Assert.assertEquals(exception.getResponse().getStatus(), HttpRequestEntityTooLarge.STATUS_CODE);
+    }
+
+    in = new BoundedInputStream(new ByteArrayInputStream(new byte[10]), 3, 0);
+
+    try
+    {
+      in.skip(10);
+
+      Assert.fail("Should not get here...");
+    }
+
+    catch (WebApplicationException exception)
+    {
+      Assert.assertEquals(exception.getResponse().getStatus(), HttpRequestEntityTooLarge.STATUS_CODE);
+    }
+  }
+
+  /**
+   * An entity whose reads block longer than the timeout in total fails with HTTP 408.
+   *
+   * @throws Exception  if test fails
+   */
+  @Test public void testTimeout() throws Exception
+  {
+    BoundedInputStream in = new BoundedInputStream(new SlowInputStream(new byte[100], 20), 1000, 50);
+
+    assertStatus(in, HttpRequestTimeout.STATUS_CODE);
+
+    Assert.assertTrue(in.getCount() < 100);
+  }
+
+  /**
+   * Time spent outside the reads does not count against the timeout.
+   *
+   * @throws Exception  if test fails
+   */
+  @Test public void testTimeoutExcludesProcessing() throws Exception
+  {
+    BoundedInputStream in = new BoundedInputStream(new ByteArrayInputStream(new byte[10]), 100, 50);
+
+    for (int i = 0; i < 5; ++i)
+    {
+      in.read();
+
+      Thread.sleep(20);
+    }
+
+    Assert.assertEquals(readAll(in), 5);
+  }
+
+
+
+  // Helpers --------------------------------------------------------------------------------------
+
+  private int readAll(InputStream in) throws IOException
+  {
+    byte[] buffer = new byte[16];
+    int total = 0;
+    int n;
+
+    while ((n = in.read(buffer, 0, buffer.length)) != -1)
+    {
+      total += n;
+    }
+
+    return total;
+  }
+
+  private void assertStatus(InputStream in, int status) throws IOException
+  {
+    try
+    {
+      readAll(in);
+
+      Assert.fail("Should not get here...");
+    }
+
+    catch (WebApplicationException exception)
+    {
+      Assert.assertEquals(exception.getResponse().getStatus(), status);
+    }
+  }
+
+
+
+  // Nested Classes -------------------------------------------------------------------------------
+
+  /**
+   * Returns its content a single byte per read, blocking each read for the given time.
+   */
+  private static class SlowInputStream extends FilterInputStream
+  {
+    private long delay;
+
+    private SlowInputStream(byte[] content, long delay)
+    {
+      super(new ByteArrayInputStream(content));
+
+      this.delay = delay;
+    }
+
+    @Override public int read(byte[] buffer, int offset, int length) throws IOException
+    {
+      try
+      {
+        Thread.sleep(delay);
+      }
+
+      catch (InterruptedException exception)
+      {
+        Thread.currentThread().interrupt();
+      }
+
+      return super.read(buffer, offset, Math.min(length, 1));
+    }
+  }
+}
@@ -0,0 +1,238 @@
+/*
+ * OpenRemote, the Home of the Digital Home.
+ * Copyright 2008-2015, OpenRemote Inc.
+ *
+ * See the contributors.txt file in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.openremote.beehive.account.service;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.openremote.base.Defaults;
+import org.testng.Assert;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.Test;
+
+
+/**
+ * Unit tests for {@link org.openremote.beehive.account.service.CredentialHashing} class.
+ *
+ * @author Juha Lindfors
+ */
+public class CredentialHashingTest
+{
+
+  // Instance Fields ------------------------------------------------------------------------------
+
+  private CredentialHashing hashing;
+
+
+  // Test Lifecycle -------------------------------------------------------------------------------
+
+  @AfterMethod public void shutdown()
+  {
+    if (hashing != null)
+    {
+      hashing.shutdown();
+      hashing = null;
+    }
+  }
+
+
+  // Tests ----------------------------------------------------------------------------------------
+
+  /**
+   * A SCRYPT hash is written in the $s0$ format and verifies only with the hashed credentials.
+   *
+   * @throws Exception  if test fails
+   */
+  @Test public void testHashAndVerify() throws Exception
+  {
+    CredentialHashing.Parameters params = new CredentialHashing.Parameters(
+        CredentialHashing.MIN_COST, CredentialHashing.BLOCK_SIZE, CredentialHashing.PARALLELIZATION
+    );
+
+    byte[] hash = CredentialHashing.hash(bytes("secretsecret"), params);
+
+    Assert.assertTrue(new String(hash, Defaults.UTF8).startsWith(CredentialHashing.HASH_FORMAT_PREFIX));
+
+    Assert.assertTrue(CredentialHashing.verify(bytes("secretsecret"), hash));
+    Assert.assertFalse(CredentialHashing.verify(bytes("secretsecreT"), hash));
+
+    // each hash has its own salt...
+
+    Assert.assertFalse(new String(hash, Defaults.UTF8).equals(
+        new String(CredentialHashing.hash(bytes("secretsecret"), params), Defaults.UTF8)
+    ));
+  }
+
+  /**
+   * Malformed hashes do not verify.
+   */
+  @Test public void testVerifyMalformed()
+  {
+    Assert.assertFalse(CredentialHashing.verify(bytes("secret"), bytes("")));
+    Assert.assertFalse(CredentialHashing.verify(bytes("secret"), bytes("secret")));
+    Assert.assertFalse(CredentialHashing.verify(bytes("secret"), bytes("$s0$e0801$foo")));
+    Assert.assertFalse(CredentialHashing.verify(bytes("secret"), bytes("$s0$zz$c2FsdA==$aGFzaA==")));
+  }
+
+  /**
+   * The SCRYPT cost is capped by the memory budget of a single hash.
+   */
+  @Test public void testMaxCost()
+  {
+    Assert.assertEquals(CredentialHashing.getMemoryUse(CredentialHashing.MIN_COST), 16L * 1024 * 1024);
+    Assert.assertEquals(CredentialHashing.getMemoryUse(CredentialHashing.MAX_COST), 128L * 1024 * 1024);
+
+    Assert.assertEquals(CredentialHashing.getMaxCost(0), CredentialHashing.MIN_COST);
+    Assert.assertEquals(CredentialHashing.getMaxCost(32L * 1024 * 1024), CredentialHashing.MIN_COST * 2);
+    Assert.assertEquals(CredentialHashing.getMaxCost(Long.MAX_VALUE), CredentialHashing.MAX_COST);
+  }
+
+  /**
+   * A hash computed on the thread pool verifies and the given credentials are cleared.
+   */
+  @Test public void testPooledHash()
+  {
+    hashing = createHashing(1, 1);
+
+    byte[] credentials = bytes("secretsecret");
+    byte[] hash = hashing.hash(credentials);
+
+    Assert.assertTrue(CredentialHashing.verify(bytes("secretsecret"), hash));
+    Assert.assertEquals(credentials, new byte[credentials.length]);
+  }
+
+  /**
+   * Hashing several credentials waits for its own earlier hashes rather than failing when the
+   * pool has no queue capacity left, and returns the results in order.
+   */
+  @Test public void testHashAllBackpressure()
+  {
+    hashing = createHashing(1, 0);
+
+    List<byte[]> credentials = new ArrayList<byte[]>();
+
+    for (int i = 0; i < 5; ++i)
+    {
+      credentials.add(bytes("secret" + i));
+    }
+
+    List<CredentialHashing.Result> results = hashing.hashAll(credentials);
+
+    Assert.assertEquals(results.size(), 5);
+
+    for (int i = 0; i < 5; ++i)
+    {
+      Assert.assertNull(results.get(i).getError());
+      Assert.assertTrue(CredentialHashing.verify(bytes("secret" + i), results.get(i).getHash()));
+    }
+
+    Assert.assertTrue(hashing.hashAll(Collections.<byte[]>emptyList()).isEmpty());
+  }
+
+  /**
+   * A single hash is rejected with HTTP 503 while the pool is saturated.
+   *
+   * @throws Exception  if test fails
+   */
+  @Test public void testSaturation() throws Exception
+  {
+    hashing = createHashing(1, 0);
+
+    final List<byte[]> credentials = new ArrayList<byte[]>();
+
+    for (int i = 0; i < 20; ++i)
+    {
+      credentials.add(bytes("secret" + i));
+    }
+
+    final AtomicReference<List<CredentialHashing.Result>> batch =
+        new AtomicReference<List<CredentialHashing.Result>>();
+
+    Thread thread = new Thread(new Runnable()
+    {
+      @Override public void run()
+      {
+        batch.set(hashing.hashAll(credentials));
+      }
+    });
+
+    thread.start();
+
+    boolean rejected = false;
+
+    try
+    {
+      for (int i = 0; i < 20 && !rejected && thread.isAlive(); ++i)
+      {
+        Thread.sleep(10);
+
+        try
+        {
+          hashing.hash(bytes("single"));
+        }
+
+        catch (HttpServiceUnavailable exception)
+        {
+          Assert.assertEquals(exception.getResponse().getStatus(), HttpServiceUnavailable.STATUS_CODE);
+
+          rejected = true;
+        }
+      }
+    }
+
+    finally
+    {
+      thread.join();
+    }
+
+    Assert.assertTrue(rejected);
+
+    // the batch itself is never rejected due to its own hashes...
+
+    for (CredentialHashing.Result result : batch.get())
+    {
+      Assert.assertNotNull(result.getHash(), result.getError());
+    }
+  }
+
+
+  // Helper Methods -------------------------------------------------------------------------------
+
+  private CredentialHashing createHashing(int threads, int queueDepth)
+  {
+    Map<String, String> params = new HashMap<String, String>();
+
+    params.put(ServiceConfiguration.WEBAPP_PARAM_CREDENTIAL_HASHING_THREADS, Integer.toString(threads));
+    params.put(ServiceConfiguration.WEBAPP_PARAM_CREDENTIAL_HASHING_QUEUE_DEPTH, Integer.toString(queueDepth));
+    params.put(ServiceConfiguration.WEBAPP_PARAM_CREDENTIAL_HASHING_TARGET_LATENCY, "0");
+
+    return new CredentialHashing(new ServiceConfiguration(params), new ServiceMetrics());
+  }
+
+  private static byte[] bytes(String value)
+  {
+    return value.getBytes(Defaults.UTF8);
+  }
+}
@@ -0,0 +1,143 @@
+/*
+ * OpenRemote, the Home of the Digital Home.
+ * Copyright 2008-2015, OpenRemote Inc.
+ *
+ * See the contributors.txt file in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.openremote.beehive.account.service;
+
+import java.lang.management.ManagementFactory;
+import java.security.Principal;
+import java.util.Arrays;
+import java.util.Collections;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.openremote.beehive.account.realm.AuthenticationCache;
+import org.openremote.beehive.account.realm.AuthenticationCacheMBean;
+import org.testng.Assert;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+
+/**
+ * Unit tests for {@link org.openremote.beehive.account.service.RealmCacheInvalidation} class.
+ *
+ * @author Juha Lindfors
+ */
+public class RealmCacheInvalidationTest
+{
+
+  // Instance Fields ------------------------------------------------------------------------------
+
+  private MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+
+  private ObjectName name;
+
+  private AuthenticationCache cache;
+
+
+  // Test Lifecycle -------------------------------------------------------------------------------
+
+  @BeforeMethod public void register() throws Exception
+  {
+    cache = new AuthenticationCache(10, 60000);
+    name = new ObjectName(RealmCacheInvalidation.AUTHENTICATION_CACHE_OBJECT_NAME_PREFIX + ",realm=test");
+
+    server.registerMBean(cache, name);
+  }
+
+  @AfterMethod public void unregister() throws Exception
+  {
+    if (server.isRegistered(name))
+    {
+      server.unregisterMBean(name);
+    }
+  }
+
+
+  // Tests ----------------------------------------------------------------------------------------
+
+  /**
+   * The object name prefix matches the one the realm registers its caches with.
+   */
+  @Test public void testObjectNamePrefix()
+  {
+    Assert.assertEquals(
+        RealmCacheInvalidation.AUTHENTICATION_CACHE_OBJECT_NAME_PREFIX,
+        AuthenticationCacheMBean.OBJECT_NAME_PREFIX
+    );
+  }
+
+  /**
+   * The cached authentications of the removed users are invalidated in the registered realm
+   * caches, regardless of the case of the usernames.
+   */
+  @Test public void testInvalidate()
+  {
+    cache.put("Alice", "secret", new TestPrincipal("Alice"), cache.getGeneration());
+    cache.put("bob", "secret", new TestPrincipal("bob"), cache.getGeneration());
+    cache.put("carol", "secret", new TestPrincipal("carol"), cache.getGeneration());
+
+    new RealmCacheInvalidation().invalidate(Arrays.asList("alice", "bob"));
+
+    Assert.assertNull(cache.get("Alice", "secret"));
+    Assert.assertNull(cache.get("bob", "secret"));
+    Assert.assertNotNull(cache.get("carol", "secret"));
+  }
+
+  /**
+   * Invalidation is a no-op with an empty username list or without registered realm caches.
+   *
+   * @throws Exception  if test fails
+   */
+  @Test public void testNoCaches() throws Exception
+  {
+    cache.put("alice", "secret", new TestPrincipal("alice"), cache.getGeneration());
+
+    new RealmCacheInvalidation().invalidate(Collections.<String>emptyList());
+
+    Assert.assertNotNull(cache.get("alice", "secret"));
+
+    server.unregisterMBean(name);
+
+    new RealmCacheInvalidation().invalidate(Arrays.asList("alice"));
+
+    Assert.assertNotNull(cache.get("alice", "secret"));
+  }
+
+
+
+  // Nested Classes -------------------------------------------------------------------------------
+
+  private static class TestPrincipal implements Principal
+  {
+    private String name;
+
+    private TestPrincipal(String name)
+    {
+      this.name = name;
+    }
+
+    @Override public String getName()
+    {
+      return name;
+    }
+  }
+}
@@ -0,0 +1,187 @@
+/*
+ * OpenRemote, the Home of the Digital Home.
+ * Copyright 2008-2015, OpenRemote Inc.
+ *
+ * See the contributors.txt file in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.openremote.beehive.account.service;
+
+import java.lang.reflect.Field;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import org.openremote.model.persistence.jpa.beehive.MinimalBeehiveRole;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+
+/**
+ * Unit tests for {@link org.openremote.beehive.account.service.RoleCache} class.
+ *
+ * @author Juha Lindfors
+ */
+public class RoleCacheTest
+{
+
+  // Tests ----------------------------------------------------------------------------------------
+
+  /**
+   * A role is loaded once and then served from the cache, a missing role is not cached.
+   *
+   * @throws Exception  if test fails
+   */
+  @Test public void testGetRoleId() throws Exception
+  {
+    ScriptedEntityManager scripted = new ScriptedEntityManager();
+    scripted.respond("findRoleByName", new Roles(false));
+
+    RoleCache cache = new RoleCache(60000);
+
+    Assert.assertEquals(
+        cache.getRoleId(AccountManager.Role.ACCOUNT_OWNER_ROLE, scripted.getEntityManager()), Long.valueOf(2)
+    );
+    Assert.assertEquals(
+        cache.getRoleId(AccountManager.Role.ACCOUNT_OWNER_ROLE, scripted.getEntityManager()), Long.valueOf(2)
+    );
+    Assert.assertNull(cache.getRoleId(AccountManager.Role.SERVICE_ADMINISTRATOR_ROLE, scripted.getEntityManager()));
+    Assert.assertNull(cache.getRoleId(AccountManager.Role.SERVICE_ADMINISTRATOR_ROLE, scripted.getEntityManager()));
+
+    Assert.assertEquals(scripted.getQueries().size(), 3);
+    Assert.assertEquals(cache.getStatistics().getHitCount(), 1);
+    Assert.assertEquals(cache.getStatistics().getMissCount(), 3);
+  }
+
+  /**
+   * Warming up loads all roles in the background, after which lookups do not query the
+   * database. Further warm-ups are ignored.
+   *
+   * @throws Exception  if test fails
+   */
+  @Test public void testWarmUp() throws Exception
+  {
+    ScriptedEntityManager scripted = new ScriptedEntityManager();
+    scripted.respond("findRoleByName", new Roles(true));
+
+    RoleCache cache = new RoleCache(60000);
+
+    cache.warmUp(scripted.getEntityManagerFactory());
+    cache.warmUp(scripted.getEntityManagerFactory());
+
+    awaitWarmUp();
+
+    Assert.assertEquals(
+        cache.getRoleId(AccountManager.Role.SERVICE_ADMINISTRATOR_ROLE, null), Long.valueOf(1)
+    );
+    Assert.assertEquals(
+        cache.getRoleId(AccountManager.Role.ACCOUNT_OWNER_ROLE, null), Long.valueOf(2)
+    );
+
+    Assert.assertEquals(scripted.getQueries().size(), AccountManager.Role.values().length);
+    Assert.assertEquals(cache.getStatistics().getHitCount(), 2);
+    Assert.assertEquals(cache.getStatistics().getMissCount(), 0);
+  }
+
+  /**
+   * Warming up does nothing when caching is disabled.
+   *
+   * @throws Exception  if test fails
+   */
+  @Test public void testWarmUpDisabled() throws Exception
+  {
+    ScriptedEntityManager scripted = new ScriptedEntityManager();
+    scripted.respond("findRoleByName", new Roles(true));
+
+    new RoleCache(0).warmUp(scripted.getEntityManagerFactory());
+
+    awaitWarmUp();
+
+    Assert.assertTrue(scripted.getQueries().isEmpty());
+  }
+
+
+  // Helpers --------------------------------------------------------------------------------------
+
+  private void awaitWarmUp() throws Exception
+  {
+    for (Thread thread : Thread.getAllStackTraces().keySet())
+    {
+      if (thread.getName().equals("Account Manager Role Cache"))
+      {
+        thread.join(5000);
+      }
+    }
+  }
+
+  private static MinimalBeehiveRole createRole(long id, String name) throws Exception
+  {
+    MinimalBeehiveRole role = new MinimalBeehiveRole();
+
+    setField(role, "id", id);
+    setField(role, "name", name);
+
+    return role;
+  }
+
+  private static void setField(Object target, String name, Object value) throws Exception
+  {
+    Field field = target.getClass().getDeclaredField(name);
+    field.setAccessible(true);
+    field.set(target, value);
+  }
+
+
+  // Nested Classes -------------------------------------------------------------------------------
+
+  /**
+   * Role table with the account owner role, and optionally the service administrator role.
+   */
+  private static class Roles implements ScriptedEntityManager.Results
+  {
+    private boolean includeAdministrator;
+
+    private Roles(boolean includeAdministrator)
+    {
+      this.includeAdministrator = includeAdministrator;
+    }
+
+    @Override public List<?> get(Map<String, Object> parameters, int maxResults)
+    {
+      try
+      {
+        Object name = parameters.get("roleName");
+
+        if (name.equals(AccountManager.Role.ACCOUNT_OWNER_ROLE.toString()))
+        {
+          return Collections.singletonList(createRole(2, name.toString()));
+        }
+
+        if (includeAdministrator && name.equals(AccountManager.Role.SERVICE_ADMINISTRATOR_ROLE.toString()))
+        {
+          return Collections.singletonList(createRole(1, name.toString()));
+        }
+
+        return Collections.emptyList();
+      }
+
+      catch (Exception exception)
+      {
+        throw new AssertionError(exception);
+      }
+    }
+  }
+}
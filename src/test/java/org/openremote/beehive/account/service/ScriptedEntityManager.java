@@ -0,0 +1,316 @@
+/*
+ * OpenRemote, the Home of the Digital Home.
+ * Copyright 2008-2015, OpenRemote Inc.
+ *
+ * See the contributors.txt file in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.openremote.beehive.account.service;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.NoResultException;
+import javax.persistence.Query;
+import javax.persistence.TypedQuery;
+
+
+/**
+ * Scripted entity manager for unit tests that cannot use a database. Query results are
+ * provided per query string, or per query name for named queries, and updates are recorded,
+ * along with their parameters. Any other entity manager operation fails with an
+ * {@link UnsupportedOperationException}. <p>
+ *
+ * Not thread-safe, except for reading queries from a single other thread.
+ *
+ * @author Juha Lindfors
+ */
+class ScriptedEntityManager
+{
+
+  // Instance Fields ------------------------------------------------------------------------------
+
+  private Map<String, Results> results = new LinkedHashMap<String, Results>();
+
+  private List<Statement> updates = Collections.synchronizedList(new ArrayList<Statement>());
+
+  private List<String> queries = Collections.synchronizedList(new ArrayList<String>());
+
+  private EntityManagerFactory factory;
+
+  private EntityManager entityManager;
+
+
+
+  // Constructors ---------------------------------------------------------------------------------
+
+  ScriptedEntityManager()
+  {
+    entityManager = (EntityManager)Proxy.newProxyInstance(
+        EntityManager.class.getClassLoader(), new Class<?>[] { EntityManager.class },
+        new EntityManagerHandler()
+    );
+
+    factory = (EntityManagerFactory)Proxy.newProxyInstance(
+        EntityManagerFactory.class.getClassLoader(), new Class<?>[] { EntityManagerFactory.class },
+        new InvocationHandler()
+        {
+          @Override public Object invoke(Object proxy, Method method, Object[] args)
+          {
+            if (method.getName().equals("createEntityManager"))
+            {
+              return entityManager;
+            }
+
+            throw new UnsupportedOperationException(method.getName());
+          }
+        }
+    );
+  }
+
+
+
+  // Instance Methods -----------------------------------------------------------------------------
+
+  /**
+   * Sets the results of a query.
+   *
+   * @param query     query string
+   * @param result    results of the query, regardless of its parameters
+   */
+  void respond(String query, final List<?> result)
+  {
+    respond(query, new Results()
+    {
+      @Override public List<?> get(Map<String, Object> parameters, int maxResults)
+      {
+        return result;
+      }
+    });
+  }
+
+  /**
+   * Sets the results of a query that depend on the query parameters.
+   *
+   * @param query     query string
+   * @param result    results of the query
+   */
+  void respond(String query, Results result)
+  {
+    results.put(query, result);
+  }
+
+  EntityManager getEntityManager()
+  {
+    return entityManager;
+  }
+
+  EntityManagerFactory getEntityManagerFactory()
+  {
+    return factory;
+  }
+
+  /**
+   * @return  query strings of the executed reading queries, in execution order
+   */
+  List<String> getQueries()
+  {
+    return new ArrayList<String>(queries);
+  }
+
+  /**
+   * @return  executed updates, in execution order
+   */
+  List<Statement> getUpdates()
+  {
+    return new ArrayList<Statement>(updates);
+  }
+
+
+
+  // Nested Classes -------------------------------------------------------------------------------
+
+  /**
+   * Results of a scripted query.
+   */
+  interface Results
+  {
+    List<?> get(Map<String, Object> parameters, int maxResults);
+  }
+
+  /**
+   * An executed update statement.
+   */
+  static class Statement
+  {
+    private String query;
+
+    private boolean nativeQuery;
+
+    private Map<String, Object> parameters;
+
+    private Statement(String query, boolean nativeQuery, Map<String, Object> parameters)
+    {
+      this.query = query;
+      this.nativeQuery = nativeQuery;
+      this.parameters = parameters;
+    }
+
+    String getQuery()
+    {
+      return query;
+    }
+
+    boolean isNative()
+    {
+      return nativeQuery;
+    }
+
+    Object getParameter(String name)
+    {
+      return parameters.get(name);
+    }
+  }
+
+
+  private class EntityManagerHandler implements InvocationHandler
+  {
+    @Override public Object invoke(Object proxy, Method method, Object[] args)
+    {
+      String name = method.getName();
+
+      if (name.equals("createQuery") && args[0] instanceof String)
+      {
+        return createQuery((String)args[0], false, args.length > 1 ? TypedQuery.class : Query.class);
+      }
+
+      if (name.equals("createNamedQuery"))
+      {
+        return createQuery((String)args[0], false, args.length > 1 ? TypedQuery.class : Query.class);
+      }
+
+      if (name.equals("createNativeQuery") && args.length == 1)
+      {
+        return createQuery((String)args[0], true, Query.class);
+      }
+
+      if (name.equals("getEntityManagerFactory"))
+      {
+        return factory;
+      }
+
+      if (name.equals("close"))
+      {
+        return null;
+      }
+
+      throw new UnsupportedOperationException(name);
+    }
+
+    private Object createQuery(String query, boolean nativeQuery, Class<?> type)
+    {
+      return Proxy.newProxyInstance(
+          type.getClassLoader(), new Class<?>[] { type }, new QueryHandler(query, nativeQuery)
+      );
+    }
+  }
+
+
+  private class QueryHandler implements InvocationHandler
+  {
+    private String query;
+
+    private boolean nativeQuery;
+
+    private Map<String, Object> parameters = new HashMap<String, Object>();
+
+    private int maxResults = Integer.MAX_VALUE;
+
+    private QueryHandler(String query, boolean nativeQuery)
+    {
+      this.query = query;
+      this.nativeQuery = nativeQuery;
+    }
+
+    @Override public Object invoke(Object proxy, Method method, Object[] args)
+    {
+      String name = method.getName();
+
+      if (name.equals("setParameter") && args[0] instanceof String)
+      {
+        parameters.put((String)args[0], args[1]);
+
+        return proxy;
+      }
+
+      if (name.equals("setMaxResults"))
+      {
+        maxResults = (Integer)args[0];
+
+        return proxy;
+      }
+
+      if (name.equals("executeUpdate"))
+      {
+        updates.add(new Statement(query, nativeQuery, parameters));
+
+        return 1;
+      }
+
+      if (name.equals("getResultList"))
+      {
+        return getResults();
+      }
+
+      if (name.equals("getSingleResult"))
+      {
+        List<?> list = getResults();
+
+        if (list.isEmpty())
+        {
+          throw new NoResultException("No result for: " + query);
+        }
+
+        return list.get(0);
+      }
+
+      throw new UnsupportedOperationException(name);
+    }
+
+    private List<?> getResults()
+    {
+      Results result = results.get(query);
+
+      if (result == null)
+      {
+        throw new UnsupportedOperationException("No results scripted for: " + query);
+      }
+
+      queries.add(query);
+
+      return new ArrayList<Object>(result.get(parameters, maxResults));
+    }
+  }
+}
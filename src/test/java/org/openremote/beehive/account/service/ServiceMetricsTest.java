@@ -0,0 +1,176 @@
+/*
+ * OpenRemote, the Home of the Digital Home.
+ * Copyright 2008-2015, OpenRemote Inc.
+ *
+ * See the contributors.txt file in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.openremote.beehive.account.service;
+
+import java.io.StringWriter;
+import java.util.Locale;
+
+import javax.persistence.EntityManager;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+
+/**
+ * Unit tests for {@link org.openremote.beehive.account.service.ServiceMetrics} class.
+ *
+ * @author Juha Lindfors
+ */
+public class ServiceMetricsTest
+{
+
+  // Tests ----------------------------------------------------------------------------------------
+
+  /**
+   * Recorded samples are written as cumulative Prometheus histogram buckets in seconds, with
+   * a separate counter of failed calls.
+   *
+   * @throws Exception  if test fails
+   */
+  @Test public void testHistogramOutput() throws Exception
+  {
+    ServiceMetrics metrics = new ServiceMetrics();
+
+    metrics.record(ServiceMetrics.Metric.HTTP_REQUEST, "CreateAccount.create", 2000000L, false);
+    metrics.record(ServiceMetrics.Metric.HTTP_REQUEST, "CreateAccount.create", 20000000L, true);
+    metrics.record(ServiceMetrics.Metric.HTTP_REQUEST, "CreateAccount.create", 20000000000L, false);
+
+    Assert.assertEquals(metrics.getCount(ServiceMetrics.Metric.HTTP_REQUEST, "CreateAccount.create"), 3);
+    Assert.assertEquals(metrics.getCount(ServiceMetrics.Metric.HTTP_REQUEST, "DeleteAccount.delete"), 0);
+
+    String output = write(metrics);
+    String name = ServiceMetrics.Metric.HTTP_REQUEST.getName();
+    String labels = "{resource=\"CreateAccount.create\"";
+
+    Assert.assertTrue(output.contains("# TYPE " + name + " histogram\n"), output);
+    Assert.assertTrue(output.contains(name + "_bucket" + labels + ",le=\"0.001\"} 0\n"), output);
+    Assert.assertTrue(output.contains(name + "_bucket" + labels + ",le=\"0.0025\"} 1\n"), output);
+    Assert.assertTrue(output.contains(name + "_bucket" + labels + ",le=\"0.025\"} 2\n"), output);
+    Assert.assertTrue(output.contains(name + "_bucket" + labels + ",le=\"10.0\"} 2\n"), output);
+    Assert.assertTrue(output.contains(name + "_bucket" + labels + ",le=\"+Inf\"} 3\n"), output);
+    Assert.assertTrue(output.contains(name + "_sum" + labels + "} 20.022\n"), output);
+    Assert.assertTrue(output.contains(name + "_count" + labels + "} 3\n"), output);
+
+    Assert.assertTrue(output.contains(
+        "# TYPE accountmanager_http_request_errors_total counter\n"), output
+    );
+    Assert.assertTrue(output.contains(
+        "accountmanager_http_request_errors_total" + labels + "} 1\n"), output
+    );
+  }
+
+  /**
+   * Label values are escaped, and cache region counters are written for registered caches.
+   *
+   * @throws Exception  if test fails
+   */
+  @Test public void testLabelsAndCaches() throws Exception
+  {
+    ServiceMetrics metrics = new ServiceMetrics();
+    CacheStatistics cache = new CacheStatistics("accounts");
+
+    cache.hit();
+    cache.hit();
+    cache.miss();
+    cache.evicted(3);
+
+    metrics.register(cache);
+    metrics.record(ServiceMetrics.Metric.ENTITY_READ, "a\"b\\c\nd", 1000L, false);
+
+    String output = write(metrics);
+
+    Assert.assertTrue(output.contains("{type=\"a\\\"b\\\\c\\nd\"}"), output);
+    Assert.assertTrue(output.contains("accountmanager_cache_hits_total{region=\"accounts\"} 2\n"), output);
+    Assert.assertTrue(output.contains("accountmanager_cache_misses_total{region=\"accounts\"} 1\n"), output);
+    Assert.assertTrue(output.contains("accountmanager_cache_evictions_total{region=\"accounts\"} 3\n"), output);
+  }
+
+  /**
+   * Unnamed queries are labeled by their statement type and entity, independent of the
+   * default locale.
+   */
+  @Test public void testQueryLabels()
+  {
+    Locale defaultLocale = Locale.getDefault();
+
+    try
+    {
+      Locale.setDefault(new Locale("tr", "TR"));
+
+      ServiceMetrics metrics = new ServiceMetrics();
+      metrics.nameQuery("SELECT u FROM User u WHERE u.name = :name", "find_user");
+
+      Assert.assertEquals(metrics.getQueryLabel("SELECT u FROM User u WHERE u.name = :name"), "find_user");
+      Assert.assertEquals(metrics.getQueryLabel("  SELECT c FROM Controller c"), "select_Controller");
+      Assert.assertEquals(metrics.getQueryLabel("DELETE FROM Account a"), "delete_Account");
+      Assert.assertEquals(metrics.getQueryLabel("UPDATE User u SET u.email = ''"), "update_User");
+      Assert.assertEquals(metrics.getQueryLabel("INSERT"), "insert");
+    }
+
+    finally
+    {
+      Locale.setDefault(defaultLocale);
+    }
+  }
+
+  /**
+   * Query executions through a timed entity manager are recorded by their query label,
+   * independent of the default locale.
+   */
+  @Test public void testTimedEntityManager()
+  {
+    Locale defaultLocale = Locale.getDefault();
+
+    try
+    {
+      Locale.setDefault(new Locale("tr", "TR"));
+
+      ServiceMetrics metrics = new ServiceMetrics();
+      ScriptedEntityManager scripted = new ScriptedEntityManager();
+      EntityManager em = TimedEntityManager.wrap(scripted.getEntityManager(), metrics);
+
+      Assert.assertSame(TimedEntityManager.wrap(em, metrics), em);
+
+      em.createNativeQuery("INSERT INTO user_roles VALUES (1, 2)").executeUpdate();
+      em.createQuery("DELETE FROM Controller c WHERE c.id = 1").executeUpdate();
+
+      Assert.assertEquals(metrics.getCount(ServiceMetrics.Metric.PERSISTENCE, "native_insert"), 1);
+      Assert.assertEquals(metrics.getCount(ServiceMetrics.Metric.PERSISTENCE, "delete_Controller"), 1);
+    }
+
+    finally
+    {
+      Locale.setDefault(defaultLocale);
+    }
+  }
+
+
+  // Helpers --------------------------------------------------------------------------------------
+
+  private String write(ServiceMetrics metrics) throws Exception
+  {
+    StringWriter out = new StringWriter();
+
+    metrics.writePrometheus(out);
+
+    return out.toString();
+  }
+}
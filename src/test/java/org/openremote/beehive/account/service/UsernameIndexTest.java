@@ -0,0 +1,184 @@
+/*
+ * OpenRemote, the Home of the Digital Home.
+ * Copyright 2008-2015, OpenRemote Inc.
+ *
+ * See the contributors.txt file in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.openremote.beehive.account.service;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+import javax.persistence.EntityManager;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+
+/**
+ * Unit tests for {@link org.openremote.beehive.account.service.UsernameIndex} class.
+ *
+ * @author Juha Lindfors
+ */
+public class UsernameIndexTest
+{
+
+  // Tests ----------------------------------------------------------------------------------------
+
+  /**
+   * Usernames are normalized to case and accent insensitive keys.
+   */
+  @Test public void testNormalize()
+  {
+    Assert.assertEquals(UsernameIndex.normalize("Alice"), "alice");
+    Assert.assertEquals(UsernameIndex.normalize("ALICE"), "alice");
+    Assert.assertEquals(UsernameIndex.normalize("\u00c1lice"), "alice");
+    Assert.assertEquals(UsernameIndex.normalize("A\u0301lice"), "alice");
+    Assert.assertEquals(UsernameIndex.normalize("J\u00fcrgen.M\u00fcller"), "jurgen.muller");
+    Assert.assertEquals(UsernameIndex.normalize("user@host.domain"), "user@host.domain");
+
+    // the default locale does not affect the key...
+
+    Locale locale = Locale.getDefault();
+
+    try
+    {
+      Locale.setDefault(new Locale("tr", "TR"));
+
+      Assert.assertEquals(UsernameIndex.normalize("TITLE"), "title");
+    }
+
+    finally
+    {
+      Locale.setDefault(locale);
+    }
+  }
+
+  /**
+   * With the filter disabled every username may exist and is checked from the database.
+   */
+  @Test public void testFilterDisabled()
+  {
+    ScriptedEntityManager em = new ScriptedEntityManager();
+    ServiceConfiguration config = config(false);
+
+    em.respond(config.getUsernameExistsQuery(), Collections.emptyList());
+
+    UsernameIndex index = new UsernameIndex(config);
+
+    Assert.assertTrue(index.mightExist("nobody", em.getEntityManager()));
+    Assert.assertFalse(index.exists("nobody", em.getEntityManager()));
+
+    Assert.assertEquals(em.getQueries(), Collections.singletonList(config.getUsernameExistsQuery()));
+    Assert.assertEquals(index.getStatistics().getHitCount(), 0);
+  }
+
+  /**
+   * Once populated, the filter rules out usernames that do not exist without a database
+   * query. Existing and added usernames, with any case and accents, are checked from the
+   * database.
+   *
+   * @throws Exception  if test fails
+   */
+  @Test public void testFilter() throws Exception
+  {
+    ScriptedEntityManager em = new ScriptedEntityManager();
+    ServiceConfiguration config = config(true);
+
+    final List<String> usernames = new ArrayList<String>();
+
+    for (int i = 0; i < UsernameIndex.WARM_UP_PAGE_SIZE * 2 + 10; ++i)
+    {
+      usernames.add("user" + i);
+    }
+
+    em.respond(config.getUserCountQuery(), Arrays.asList((long)usernames.size()));
+    em.respond(config.getUsernamePageQuery(), new ScriptedEntityManager.Results()
+    {
+      @Override public List<?> get(Map<String, Object> parameters, int maxResults)
+      {
+        long lastId = (Long)parameters.get("lastId");
+        int start = (lastId == Long.MIN_VALUE) ? 0 : (int)lastId + 1;
+
+        List<Object[]> page = new ArrayList<Object[]>();
+
+        for (int i = start; i < usernames.size() && page.size() < maxResults; ++i)
+        {
+          page.add(new Object[] { (long)i, usernames.get(i) });
+        }
+
+        return page;
+      }
+    });
+
+    UsernameIndex index = new UsernameIndex(config);
+
+    awaitWarmUp(index, em.getEntityManager());
+
+    for (String username : usernames)
+    {
+      Assert.assertTrue(index.mightExist(username, em.getEntityManager()), username);
+    }
+
+    Assert.assertTrue(index.mightExist("USER1", em.getEntityManager()));
+    Assert.assertFalse(index.mightExist("alice", em.getEntityManager()));
+
+    index.add("\u00c1lice");
+
+    Assert.assertTrue(index.mightExist("alice", em.getEntityManager()));
+
+    // a username ruled out by the filter is not queried...
+
+    Assert.assertFalse(index.exists("bob", em.getEntityManager()));
+    Assert.assertFalse(em.getQueries().contains(config.getUsernameExistsQuery()));
+
+    Assert.assertTrue(index.getStatistics().getHitCount() > 0);
+  }
+
+
+
+  // Helpers --------------------------------------------------------------------------------------
+
+  private ServiceConfiguration config(boolean filter)
+  {
+    Map<String, String> params = new HashMap<String, String>();
+    params.put(ServiceConfiguration.WEBAPP_PARAM_USERNAME_FILTER, String.valueOf(filter));
+
+    return new ServiceConfiguration(params);
+  }
+
+  /**
+   * The first lookup starts populating the filter in the background, wait until it rules out
+   * a username.
+   */
+  private void awaitWarmUp(UsernameIndex index, EntityManager em) throws InterruptedException
+  {
+    long deadline = System.currentTimeMillis() + 10000;
+
+    while (index.mightExist("nobody", em))
+    {
+      Assert.assertTrue(System.currentTimeMillis() < deadline, "Username filter was not populated.");
+
+      Thread.sleep(10);
+    }
+  }
+}